@@ -0,0 +1,199 @@
+package com.mycorp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mycorp.cache.ValueCodeRegistry;
+import com.mycorp.support.Poliza;
+import com.mycorp.support.PolizaBasicoFromPolizaBuilder;
+import com.mycorp.support.ResumenBravo;
+import com.mycorp.support.Ticket;
+import com.mycorp.support.ValueCode;
+import com.mycorp.template.TicketModel;
+import com.mycorp.template.TicketModel.Campo;
+import com.mycorp.template.TicketRenderer;
+import com.mycorp.template.TicketTemplates;
+import com.mycorp.text.TicketSanitizer;
+
+import util.datos.DetallePoliza;
+import util.datos.PolizaBasico;
+import util.datos.UsuarioAlta;
+
+/**
+ * <p>Etapas de CPU de {@link ZendeskService#altaTicketZendesk(UsuarioAlta, String)}, medidas una a
+ * una con datos de tamaño real. Las llamadas a servicios externos no se miden.
+ *
+ * <p>Ejecutar con el perfilador <code>gc</code> (lo añade {@link BenchmarkMain}) para ver los bytes
+ * asignados por operacion ademas del tiempo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AltaTicketBenchmark {
+
+    private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 "
+            + "(KHTML, like Gecko) Chrome/61.0.3163.100 Safari/537.36";
+
+    @Param({"true", "false"})
+    public boolean isPoliza;
+
+    private ZendeskService service;
+    private Zendesk zendesk;
+    private TicketRenderer tplDatosUsuario;
+    private TicketRenderer tplDatosBravo;
+    private TicketRenderer compiladaDatosUsuario;
+    private TicketRenderer compiladaDatosBravo;
+    private TicketModel modelo;
+    private StringBuilder datosServicio;
+    private String datosUsuarioStr;
+    private String datosBravoStr;
+    private String clientName;
+    private UsuarioAlta usuarioAlta;
+    private Ticket ticket;
+    private Poliza poliza;
+    private ObjectReader ticketReader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final ValueCodeRegistry registro = new ValueCodeRegistry.Builder()
+                .addTable(ZendeskService.TABLA_TIPOS_DOCUMENTO, new ValueCodeRegistry.Source() {
+                    @Override
+                    public List<ValueCode> load() {
+                        return Payloads.tiposDocumentos();
+                    }
+                })
+                .build();
+        service = new ZendeskService() {
+            @Override
+            ValueCodeRegistry getRegistroReferencia() {
+                return registro;
+            }
+        };
+        service.PETICION_ZENDESK = Payloads.PETICION_ZENDESK;
+        TicketTemplates plantillas = TicketTemplates.load();
+        tplDatosUsuario = plantillas.getDatosUsuarioRenderer(false);
+        tplDatosBravo = plantillas.getDatosBravoRenderer(false);
+        compiladaDatosUsuario = plantillas.getDatosUsuarioRenderer(true);
+        compiladaDatosBravo = plantillas.getDatosBravoRenderer(true);
+        zendesk = new Zendesk.Builder("http://localhost").setRateLimiter(null).build();
+        ticketReader = Zendesk.createMapper().readerFor(Ticket.class);
+
+        usuarioAlta = Payloads.usuarioAlta(isPoliza);
+        modelo = service.componerModelo(usuarioAlta, USER_AGENT, ResumenBravo.of(Payloads.datosCliente()));
+
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.enable(SerializationFeature.INDENT_OUTPUT);
+        DetallePoliza detalle = Payloads.detallePoliza();
+        datosServicio = new StringBuilder("Datos recuperados del servicio de tarjeta:").append("\\n")
+                .append(mapper.writeValueAsString(isPoliza ? detalle : String.valueOf(detalle.getTomador().getIdentificador())));
+        clientName = isPoliza ? "MARIA GARCIA LOPEZ" : "123456789";
+
+        datosUsuarioStr = service.mergeTemplate(tplDatosUsuario, modelo);
+        datosBravoStr = service.mergeTemplate(tplDatosBravo, modelo);
+        ticket = buildTicket();
+        poliza = Payloads.poliza();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        zendesk.close();
+        service.destroy();
+    }
+
+    /** Inicializacion de Velocity y compilacion de plantillas; solo se paga al arrancar el servicio. */
+    @Benchmark
+    public TicketTemplates loadTemplates() {
+        return TicketTemplates.load();
+    }
+
+    /**
+     * Merge con Velocity. Cada alta crea su modelo, asi que el contexto Velocity se construye
+     * tambien en cada operacion.
+     */
+    @Benchmark
+    public String mergeDatosUsuario() {
+        return service.mergeTemplate(tplDatosUsuario, modelo.put(Campo.USER_AGENT, modelo.get(Campo.USER_AGENT)));
+    }
+
+    @Benchmark
+    public String mergeDatosBravo() {
+        return service.mergeTemplate(tplDatosBravo, modelo.put(Campo.USER_AGENT, modelo.get(Campo.USER_AGENT)));
+    }
+
+    @Benchmark
+    public String mergeDatosUsuarioCompilada() {
+        return service.mergeTemplate(compiladaDatosUsuario, modelo);
+    }
+
+    @Benchmark
+    public String mergeDatosBravoCompilada() {
+        return service.mergeTemplate(compiladaDatosBravo, modelo);
+    }
+
+    @Benchmark
+    public String parseJsonBravo() {
+        return service.parseJsonBravo(datosServicio);
+    }
+
+    /** Limpieza anterior con dos replaceAll; referencia para {@link #parseJsonBravo()}. */
+    @Benchmark
+    public String parseJsonBravoRegex() {
+        return datosServicio.toString().replaceAll("[\\[\\]\\{\\}\\\"\\r]", "").replaceAll("\\n", "\\\\n");
+    }
+
+    /**
+     * Composicion anterior del ticket: String.format sobre <code>zendesk.ticket</code> y relectura
+     * como {@link Ticket}. Se mantiene como referencia para {@link #buildTicket()}.
+     */
+    @Benchmark
+    public Ticket formatAndReadTicket() throws Exception {
+        return ticketReader.readValue(formatTicket());
+    }
+
+    /** Composicion del ticket con {@link Ticket.Builder} a partir de la plantilla ya leida. */
+    @Benchmark
+    public Ticket buildTicket() {
+        return new Ticket.Builder(service.getPlantillaTicket())
+                .setRequester(clientName, usuarioAlta.getEmail())
+                .setComment(TicketSanitizer.comentarioTicket(datosUsuarioStr, datosBravoStr, datosServicio))
+                .build();
+    }
+
+    /** Serializacion del cuerpo de <code>POST tickets.json</code>. */
+    @Benchmark
+    public byte[] zendeskJson() {
+        return zendesk.json(Collections.singletonMap("ticket", ticket));
+    }
+
+    @Benchmark
+    public PolizaBasico polizaBasicoBuild() {
+        return new PolizaBasicoFromPolizaBuilder().withPoliza(poliza).build();
+    }
+
+    private String formatTicket() {
+        String composed = String.format(service.PETICION_ZENDESK, clientName, usuarioAlta.getEmail(),
+                datosUsuarioStr + datosBravoStr + service.parseJsonBravo(datosServicio));
+        return composed.replaceAll("[\\n]", " ");
+    }
+}
@@ -0,0 +1,27 @@
+package com.mycorp;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Lanzador de los benchmarks: acepta las mismas opciones que el de JMH y añade siempre el
+ * perfilador <code>gc</code>, que informa de la tasa de asignacion (<code>gc.alloc.rate.norm</code>,
+ * bytes por operacion).
+ *
+ * <pre>
+ * mvn -B package
+ * java -jar test2-benchmarks/target/benchmarks.jar [AltaTicketBenchmark.merge] [-p isPoliza=true]
+ * </pre>
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(cli).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,141 @@
+package com.mycorp;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.mycorp.support.DatosCliente;
+import com.mycorp.support.Poliza;
+import com.mycorp.support.ValueCode;
+
+import util.datos.DatosPersonales;
+import util.datos.DetallePoliza;
+import util.datos.UsuarioAlta;
+
+/**
+ * Datos de ejemplo con el tamaño y la forma de los que devuelven los servicios reales.
+ */
+final class Payloads {
+
+    /** Plantilla de ticket con la forma de la propiedad <code>zendesk.ticket</code>. */
+    static final String PETICION_ZENDESK = "{\"requester\":{\"name\":\"%s\",\"email\":\"%s\"},"
+            + "\"subject\":\"Alta de usuario en el area de clientes\",\"tags\":[\"alta_web\",\"clientes\"],"
+            + "\"comment\":{\"body\":\"%s\"}}";
+
+    private Payloads() {
+    }
+
+    static UsuarioAlta usuarioAlta(boolean isPoliza) {
+        UsuarioAlta usuario = new UsuarioAlta();
+        if (isPoliza) {
+            usuario.setNumPoliza("40123456");
+        } else {
+            usuario.setNumTarjeta("6034120012345678");
+        }
+        usuario.setNumDocAcreditativo("100234");
+        usuario.setTipoDocAcreditativo(1);
+        usuario.setEmail("maria.garcia.lopez@example.com");
+        usuario.setNumeroTelefono("600123456");
+        return usuario;
+    }
+
+    static DatosCliente datosCliente() {
+        DatosCliente cliente = new DatosCliente();
+        cliente.setIdCliente(123456789L);
+        cliente.setGenTTipoDocumento(1);
+        cliente.setGenCTipoDocumento(1);
+        cliente.setNumeroDocAcred("12345678Z");
+        cliente.setIdPais(34);
+        cliente.setIdIdioma(1);
+        cliente.setNombre("MARIA");
+        cliente.setPrimerApellido("GARCIA");
+        cliente.setSegundoApellido("LOPEZ");
+        cliente.setFechaNacimiento("15/03/1978");
+        cliente.setNombreTarjeta("MARIA GARCIA LOPEZ");
+        cliente.setSwAutorizaInformacion("S");
+        cliente.setfAlta("01/02/2010");
+        cliente.setGenTTipoCliente(2);
+        cliente.setGenCTipoCliente(2);
+        cliente.setGenTStatus(1);
+        cliente.setGenCStatus(1);
+        cliente.setGenTSexo(2);
+        cliente.setGenCSexo(2);
+        cliente.setIdMotivoAlta(7);
+        cliente.setGenTEstadoCivil(2);
+        cliente.setNumHijos(2);
+        cliente.setGenTGrupoTmk(3);
+        cliente.setGenCGrupoTmk(3);
+        return cliente;
+    }
+
+    static DetallePoliza detallePoliza() {
+        DetallePoliza detalle = new DetallePoliza();
+        detalle.setCompania(1);
+        detalle.setNumPoliza(40123456);
+        detalle.setNumColectivo(100234);
+        detalle.setPlan(12);
+        detalle.setDescPlan("SANITAS PROFESIONALES PLUS");
+        detalle.setNumTarjeta("6034120012345678");
+        detalle.setIdEmpresa(1);
+        detalle.setNombreEmpresa("SANITAS S.A. DE SEGUROS");
+        detalle.setFAlta(new Date(1264982400000L));
+        detalle.setFRenovacion(new Date(1580515200000L));
+        detalle.setEstado(1);
+        detalle.setFrecPago("MENSUAL");
+        detalle.setFormaPago("DOMICILIACION BANCARIA");
+        detalle.setNumTelefono("912345678");
+        detalle.setEmail("maria.garcia.lopez@example.com");
+        detalle.setTipoVia("CL");
+        detalle.setNombreVia("RIBERA DEL LOIRA");
+        detalle.setNumVia("52");
+        detalle.setPiso("3");
+        detalle.setPuerta("B");
+        detalle.setCodPostal("28042");
+        detalle.setMunicipio("MADRID");
+        detalle.setProvincia("MADRID");
+        detalle.setTomador(tomador());
+        List<DatosPersonales> beneficiarios = new ArrayList<DatosPersonales>();
+        for (int i = 0; i < 3; i++) {
+            beneficiarios.add(tomador());
+        }
+        detalle.setBeneficiarios(beneficiarios);
+        return detalle;
+    }
+
+    static DatosPersonales tomador() {
+        DatosPersonales tomador = new DatosPersonales();
+        tomador.setIdentificador("123456789");
+        tomador.setNombre("MARIA");
+        tomador.setApellido1("GARCIA");
+        tomador.setApellido2("LOPEZ");
+        tomador.setNumDocAcreditativo("12345678Z");
+        tomador.setTipoDocAcreditativo(1);
+        tomador.setEmail("maria.garcia.lopez@example.com");
+        tomador.setNumeroTelefono("600123456");
+        return tomador;
+    }
+
+    static Poliza poliza() {
+        Poliza poliza = new Poliza();
+        poliza.setNumPoliza(40123456);
+        poliza.setNumColectivo(100234);
+        poliza.setCompania(1);
+        ValueCode plan = new ValueCode();
+        plan.setCode("12");
+        plan.setValue("SANITAS PROFESIONALES PLUS");
+        poliza.setPlanInfo(plan);
+        return poliza;
+    }
+
+    static List<ValueCode> tiposDocumentos() {
+        String[] nombres = {"NIF", "NIE", "PASAPORTE", "CIF", "OTROS"};
+        List<ValueCode> tipos = new ArrayList<ValueCode>();
+        for (int i = 0; i < nombres.length; i++) {
+            ValueCode tipo = new ValueCode();
+            tipo.setCode(String.valueOf(i + 1));
+            tipo.setValue(nombres[i]);
+            tipos.add(tipo);
+        }
+        return tipos;
+    }
+}
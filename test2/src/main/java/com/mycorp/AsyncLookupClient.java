@@ -0,0 +1,182 @@
+package com.mycorp;
+
+import java.io.Closeable;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.util.UriTemplate;
+import org.springframework.web.util.UriUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.mycorp.support.DatosCliente;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+
+/**
+ * <p>Consultas no bloqueantes a los servicios de tarjetas y de BRAVO sobre un
+ * {@link ZendeskConnectionPool}.
+ *
+ * <p>Ningun hilo espera la respuesta: el futuro se completa desde el <code>callbackExecutor</code>
+ * cuando llega. El cuerpo de BRAVO se decodifica directamente del flujo de bytes a
+ * {@link DatosCliente}, sin pasar por un String.
+ *
+ * <p>Los errores siguen el criterio de <code>RestTemplate</code>: 404 es "no existe" (null) y el resto
+ * de estados no 2xx completan el futuro con {@link HttpClientErrorException} o
+ * {@link HttpServerErrorException}.
+ */
+public class AsyncLookupClient implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( AsyncLookupClient.class );
+
+    private static final ObjectReader DATOS_CLIENTE_READER = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .readerFor(DatosCliente.class);
+
+    private final ZendeskConnectionPool pool;
+    private final AsyncHttpClient client;
+    private final Executor callbackExecutor;
+    private final String tarjetasUrl;
+    private final UriTemplate bravoUrl;
+
+    /**
+     * @param pool pool de conexiones; se adquiere una referencia que se libera en {@link #close()}
+     * @param callbackExecutor hilos en los que se completan los futuros, fuera del event loop de Netty
+     * @param tarjetasUrl prefijo de la consulta de tarjetas; se le añade el numero de tarjeta codificado
+     * @param bravoUrl plantilla de URI de la consulta de BRAVO; su variable se expande con el idCliente,
+     *            como hace <code>RestTemplate</code>
+     */
+    public AsyncLookupClient(ZendeskConnectionPool pool, Executor callbackExecutor, String tarjetasUrl, String bravoUrl) {
+        this.pool = pool;
+        this.client = pool.acquire();
+        this.callbackExecutor = callbackExecutor;
+        this.tarjetasUrl = tarjetasUrl;
+        this.bravoUrl = new UriTemplate(bravoUrl);
+    }
+
+    /**
+     * @return futuro con el idCliente de la tarjeta, o null si el servicio no la conoce
+     */
+    public ListenableFuture<String> consultarTarjeta(String numTarjeta) {
+        String url;
+        try {
+            url = tarjetasUrl + UriUtils.encodePathSegment(numTarjeta, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return get(url, new AsyncCompletionHandler<String>() {
+            @Override
+            public String onCompleted(Response response) throws Exception {
+                if (!comprobar(response)) {
+                    return null;
+                }
+                String body = response.getResponseBody("UTF-8");
+                return StringUtils.isNotBlank(body) ? body : null;
+            }
+        });
+    }
+
+    /**
+     * @param idCliente cliente a consultar
+     * @return futuro con los datos del cliente, o null si BRAVO no lo devuelve
+     */
+    public ListenableFuture<DatosCliente> consultarBravo(String idCliente) {
+        return get(bravoUrl.expand(idCliente).toString(), new AsyncCompletionHandler<DatosCliente>() {
+            @Override
+            public DatosCliente onCompleted(Response response) throws Exception {
+                if (!comprobar(response) || !response.hasResponseBody()) {
+                    return null;
+                }
+                return DATOS_CLIENTE_READER.readValue(response.getResponseBodyAsStream());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        pool.release();
+    }
+
+    /**
+     * @return false si es un 404; true si es 2xx
+     * @throws RestClientException con el resto de estados
+     */
+    private static boolean comprobar(Response response) throws Exception {
+        int status = response.getStatusCode();
+        if (status / 100 == 2) {
+            return true;
+        }
+        if (status == 404) {
+            return false;
+        }
+        HttpStatus httpStatus;
+        try {
+            httpStatus = HttpStatus.valueOf(status);
+        } catch (IllegalArgumentException e) {
+            throw new RestClientException("Unknown HTTP status " + status + " from " + response.getUri());
+        }
+        if (status / 100 == 4) {
+            throw new HttpClientErrorException(httpStatus, response.getStatusText());
+        }
+        throw new HttpServerErrorException(httpStatus, response.getStatusText());
+    }
+
+    private <T> ListenableFuture<T> get(String url, AsyncCompletionHandler<T> handler) {
+        final AtomicReference<Future<T>> enCurso = new AtomicReference<Future<T>>();
+        final SettableListenableFuture<T> result = new SettableListenableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // primero el futuro propio: si no, el callback de la peticion abortada lo completaria antes
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                Future<T> actual = enCurso.get();
+                if (cancelled && actual != null) {
+                    actual.cancel(true);
+                }
+                return cancelled;
+            }
+        };
+        final com.ning.http.client.ListenableFuture<T> future;
+        try {
+            future = client.prepareGet(url).execute(handler);
+        } catch (RuntimeException e) {
+            result.setException(e);
+            return result;
+        }
+        enCurso.set(future);
+        if (result.isCancelled()) {
+            future.cancel(true);	// cancelado mientras se lanzaba la peticion
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.setException(e);
+                } catch (ExecutionException e) {
+                    result.setException(e.getCause());
+                } catch (CancellationException e) {
+                    result.cancel(false);
+                }
+            }
+        }, callbackExecutor);
+        LOG.debug("Request GET {}", url);
+        return result;
+    }
+}
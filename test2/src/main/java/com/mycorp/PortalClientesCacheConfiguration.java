@@ -0,0 +1,73 @@
+package com.mycorp;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import com.mycorp.cache.CachingProxy;
+
+import portalclientesweb.ejb.interfaces.PortalClientesWebEJBRemote;
+
+/**
+ * <p>Publica el EJB de PortalClientesWeb con cache en las consultas de referencia como el
+ * {@link PortalClientesWebEJBRemote} principal, asi que cualquier bean que lo inyecte por tipo pasa
+ * por la cache. El EJB sin cache sigue disponible como <code>portalclientesWebEJB</code>.
+ *
+ * <p>Cada entrada de <code>portalclientes.cache.methods</code> es
+ * <code>metodo[:ttl[:maxEntries]]</code> y se aplica a todas las sobrecargas del metodo; sin ttl ni
+ * maxEntries se usan <code>portalclientes.cache.ttl</code> y
+ * <code>portalclientes.cache.maxEntries</code>. {@link ZendeskService} publica las metricas de cada
+ * cache y precarga al arrancar los metodos sin argumentos de <code>portalclientes.cache.preload</code>.
+ */
+@Configuration
+public class PortalClientesCacheConfiguration {
+
+    @Value("#{envPC['portalclientes.cache.methods'] ?: 'recuperarGeneTablas,recuperarProvincias,recuperarMunicipios,recuperarComunidades,recuperarEstados,listaPaises,listaMotivosSolictudTarjeta'}")
+    public String PORTALCLIENTES_CACHE_METHODS = "recuperarGeneTablas,recuperarProvincias,recuperarMunicipios,recuperarComunidades,recuperarEstados,listaPaises,listaMotivosSolictudTarjeta";
+
+    @Value("#{envPC['portalclientes.cache.ttl'] ?: 3600000}")
+    public long PORTALCLIENTES_CACHE_TTL = 3600000;
+
+    @Value("#{envPC['portalclientes.cache.maxEntries'] ?: 1000}")
+    public int PORTALCLIENTES_CACHE_MAX_ENTRIES = 1000;
+
+    @Value("#{envPC['portalclientes.cache.preload'] ?: 'listaMotivosSolictudTarjeta'}")
+    public String PORTALCLIENTES_CACHE_PRELOAD = "listaMotivosSolictudTarjeta";
+
+    /** El EJB remoto, sin cache. */
+    @Autowired
+    @Qualifier("portalclientesWebEJB")
+    private PortalClientesWebEJBRemote portalclientesWebEJB;
+
+    /**
+     * @return el decorador con cache del EJB, con sus caches y su precarga
+     */
+    @Bean
+    public CachingProxy<PortalClientesWebEJBRemote> portalClientesCache() {
+        CachingProxy.Builder<PortalClientesWebEJBRemote> builder = new CachingProxy.Builder<PortalClientesWebEJBRemote>(
+                PortalClientesWebEJBRemote.class, portalclientesWebEJB);
+        for (String metodo : StringUtils.split(PORTALCLIENTES_CACHE_METHODS, ", ")) {
+            String[] partes = metodo.split(":");
+            builder.cache(partes[0],
+                    partes.length > 1 ? Long.parseLong(partes[1]) : PORTALCLIENTES_CACHE_TTL,
+                    partes.length > 2 ? Integer.parseInt(partes[2]) : PORTALCLIENTES_CACHE_MAX_ENTRIES);
+        }
+        for (String metodo : StringUtils.split(PORTALCLIENTES_CACHE_PRELOAD, ", ")) {
+            builder.preload(metodo);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return el EJB con cache, que es el que se inyecta por tipo
+     */
+    @Bean
+    @Primary
+    public PortalClientesWebEJBRemote portalClientesWebEJBCache() {
+        return portalClientesCache().getProxy();
+    }
+}
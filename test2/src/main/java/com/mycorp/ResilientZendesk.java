@@ -0,0 +1,404 @@
+package com.mycorp;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import com.mycorp.idempotency.IdempotencyStore;
+import com.mycorp.resilience.Backoff;
+import com.mycorp.resilience.CircuitBreaker;
+import com.mycorp.resilience.CircuitOpenException;
+import com.mycorp.resilience.Deadline;
+import com.mycorp.support.JobStatus;
+import com.mycorp.support.Ticket;
+
+/**
+ * <p>Capa de resiliencia sobre {@link Zendesk}.
+ *
+ * <p>Clasifica los fallos segun {@link ZendeskException#getKind()}, reintenta los que son seguros
+ * (ver {@link ZendeskException#isRetryable(boolean)}) con espera exponencial y jitter, y protege
+ * las llamadas con un {@link CircuitBreaker}: cuando Zendesk esta caido se falla inmediatamente con
+ * {@link ZendeskException.Kind#CIRCUIT_OPEN} en lugar de dejar hilos esperando.
+ *
+ * <p>Los errores de red y los 5xx cuentan como fallo para el circuito; los 4xx indican que Zendesk
+ * responde y cuentan como exito; los 429 no cuentan ni se reintentan aqui, porque ya los reintenta
+ * {@link Zendesk}.
+ *
+ * <p>Las altas con clave de idempotencia se consideran idempotentes y se reintentan tambien tras
+ * timeouts; si se configura un {@link IdempotencyStore}, una clave ya completada devuelve el ticket
+ * existente sin llamar a Zendesk.
+ */
+public class ResilientZendesk implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( ResilientZendesk.class );
+
+    /**
+     * Llamada asincrona a Zendesk que puede repetirse.
+     */
+    public interface Operation<T> {
+        ListenableFuture<T> execute();
+    }
+
+    private final Zendesk zendesk;
+    private final CircuitBreaker circuitBreaker;
+    private final Backoff backoff;
+    private final int maxAttempts;
+    private final boolean idempotent;
+    private final IdempotencyStore idempotencyStore;
+    private final ScheduledExecutorService scheduler;
+    private final boolean shutdownScheduler;
+
+    private ResilientZendesk(Builder builder) {
+        this.zendesk = builder.zendesk;
+        this.circuitBreaker = builder.circuitBreaker != null ? builder.circuitBreaker
+                : new CircuitBreaker("zendesk", builder.failureThreshold, builder.openMillis);
+        this.backoff = new Backoff(builder.baseDelayMillis, builder.maxDelayMillis);
+        this.maxAttempts = builder.maxAttempts;
+        this.idempotent = builder.idempotent;
+        this.idempotencyStore = builder.idempotencyStore;
+        this.shutdownScheduler = builder.scheduler == null;
+        if (builder.scheduler == null) {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("zendesk-retry-");
+            threadFactory.setDaemon(true);
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        } else {
+            this.scheduler = builder.scheduler;
+        }
+    }
+
+    public Ticket createTicket(Ticket ticket) {
+        return createTicket(ticket, null);
+    }
+
+    /**
+     * Version sincrona de {@link #createTicketAsync(Ticket, String)}. Si el hilo tiene
+     * {@link Deadline}, espera como mucho lo que le queda y, si se agota o se interrumpe el hilo,
+     * cancela la peticion en curso.
+     */
+    public Ticket createTicket(Ticket ticket, String idempotencyKey) {
+        Deadline deadline = Deadline.current();
+        ListenableFuture<Ticket> future = createTicketAsync(ticket, idempotencyKey);
+        try {
+            return deadline == null ? future.get() : future.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new ZendeskException("Deadline expired waiting for Zendesk", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ZendeskException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            throw toZendeskException(e.getCause());
+        }
+    }
+
+    public ListenableFuture<Ticket> createTicketAsync(final Ticket ticket) {
+        return execute(new Operation<Ticket>() {
+            @Override
+            public ListenableFuture<Ticket> execute() {
+                return zendesk.createTicketAsync(ticket);
+            }
+        }, idempotent);
+    }
+
+    /**
+     * Crea un ticket con clave de idempotencia.
+     *
+     * @param ticket ticket a crear
+     * @param idempotencyKey clave de idempotencia del alta, o null si no tiene
+     * @return futuro con el ticket creado, o con el ya creado anteriormente con la misma clave
+     */
+    public ListenableFuture<Ticket> createTicketAsync(final Ticket ticket, final String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return createTicketAsync(ticket);
+        }
+        Long existente = idempotencyStore == null ? null : idempotencyStore.get(idempotencyKey);
+        if (existente != null) {
+            LOG.info("Alta {} ya creada como ticket {}; no se reenvia", idempotencyKey, existente);
+            Ticket creado = new Ticket();
+            creado.setId(existente);
+            SettableListenableFuture<Ticket> result = new SettableListenableFuture<Ticket>();
+            result.set(creado);
+            return result;
+        }
+        ListenableFuture<Ticket> result = execute(new Operation<Ticket>() {
+            @Override
+            public ListenableFuture<Ticket> execute() {
+                return zendesk.createTicketAsync(ticket, idempotencyKey);
+            }
+        }, true);
+        if (idempotencyStore != null) {
+            result.addCallback(new ListenableFutureCallback<Ticket>() {
+                @Override
+                public void onSuccess(Ticket creado) {
+                    if (creado != null) {
+                        idempotencyStore.put(idempotencyKey, creado.getId());
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Crea los tickets con un unico <code>create_many</code>. No se reintenta tras timeouts ni 5xx
+     * ambiguos, porque el lote podria haberse encolado ya.
+     *
+     * @return futuro con el trabajo encolado por Zendesk
+     */
+    public ListenableFuture<JobStatus> createTicketsAsync(final List<Ticket> tickets) {
+        return execute(new Operation<JobStatus>() {
+            @Override
+            public ListenableFuture<JobStatus> execute() {
+                return zendesk.createTicketsAsync(tickets);
+            }
+        }, false);
+    }
+
+    /**
+     * Consulta el estado de un trabajo; es una lectura, asi que se reintenta siempre que sea seguro.
+     */
+    public ListenableFuture<JobStatus> getJobStatusAsync(final JobStatus status) {
+        return execute(new Operation<JobStatus>() {
+            @Override
+            public ListenableFuture<JobStatus> execute() {
+                return zendesk.getJobStatusAsync(status);
+            }
+        }, true);
+    }
+
+    /**
+     * @return registro de claves de idempotencia completadas, o null si no hay
+     */
+    public IdempotencyStore getIdempotencyStore() {
+        return idempotencyStore;
+    }
+
+    /**
+     * Ejecuta una operacion con reintentos y circuit breaker.
+     *
+     * @param operation llamada a Zendesk
+     * @param idempotent si la operacion puede repetirse sin duplicar su efecto
+     * @return futuro con el resultado del primer intento que tenga exito
+     */
+    public <T> ListenableFuture<T> execute(Operation<T> operation, boolean idempotent) {
+        Attempt<T> attempt = new Attempt<T>(operation, idempotent);
+        attempt.run();
+        return attempt.result;
+    }
+
+    public Zendesk getZendesk() {
+        return zendesk;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Apaga el scheduler de reintentos si es propio. No cierra el {@link Zendesk} subyacente.
+     */
+    @Override
+    public void close() {
+        if (shutdownScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static ZendeskException toZendeskException(Throwable t) {
+        return t instanceof ZendeskException ? (ZendeskException) t : new ZendeskException(t.getMessage(), t);
+    }
+
+    private class Attempt<T> implements Runnable, ListenableFutureCallback<T> {
+        private final Operation<T> operation;
+        private final boolean idempotent;
+        private final Deadline deadline = Deadline.current();	// del hilo que hace la llamada
+        private int number = 0;
+        private volatile Future<?> current;
+        private final SettableListenableFuture<T> result = new SettableListenableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                Future<?> actual = current;
+                if (actual != null) {
+                    actual.cancel(mayInterruptIfRunning);
+                }
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        Attempt(Operation<T> operation, boolean idempotent) {
+            this.operation = operation;
+            this.idempotent = idempotent;
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                return;
+            }
+            number++;
+            if (deadline != null && deadline.isExpired()) {
+                result.setException(new ZendeskException("Deadline expired before calling Zendesk",
+                        new TimeoutException()));
+                return;
+            }
+            if (!circuitBreaker.tryAcquire()) {
+                result.setException(new ZendeskException("Zendesk circuit breaker is open",
+                        new CircuitOpenException(circuitBreaker.getName())));
+                return;
+            }
+            ListenableFuture<T> future;
+            try {
+                future = operation.execute();
+            } catch (RuntimeException e) {
+                onFailure(e);
+                return;
+            }
+            current = future;
+            future.addCallback(this);
+        }
+
+        @Override
+        public void onSuccess(T value) {
+            circuitBreaker.onSuccess();
+            result.set(value);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            ZendeskException error = toZendeskException(t);
+            switch (error.getKind()) {
+            case IO:
+            case SERVER_ERROR:
+                circuitBreaker.onFailure();
+                break;
+            case CLIENT_ERROR:
+                circuitBreaker.onSuccess();
+                break;
+            default:
+                circuitBreaker.onIgnored();
+            }
+
+            if (number >= maxAttempts || !error.isRetryable(idempotent) || result.isDone()) {
+                result.setException(error);
+                return;
+            }
+            long delay = backoff.delayMillis(number);
+            if (deadline != null && deadline.remainingMillis() <= delay) {
+                LOG.warn("Zendesk call failed ({}) and the deadline expires before the retry: {}", error.getKind(),
+                        error.getMessage());
+                result.setException(error);
+                return;
+            }
+            LOG.warn("Zendesk call failed ({}), retry {}/{} in {} ms: {}", error.getKind(), number,
+                    maxAttempts - 1, delay, error.getMessage());
+            try {
+                current = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                result.setException(error);
+            }
+        }
+    }
+
+    public static class Builder {
+        private final Zendesk zendesk;
+        private CircuitBreaker circuitBreaker = null;
+        private ScheduledExecutorService scheduler = null;
+        private int maxAttempts = 3;
+        private long baseDelayMillis = 200;
+        private long maxDelayMillis = 5000;
+        private int failureThreshold = 5;
+        private long openMillis = 30000;
+        private boolean idempotent = false;
+        private IdempotencyStore idempotencyStore = null;
+
+        public Builder(Zendesk zendesk) {
+            this.zendesk = zendesk;
+        }
+
+        /**
+         * @param maxAttempts intentos totales, incluido el primero
+         */
+        public Builder setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder setBaseDelayMillis(long baseDelayMillis) {
+            this.baseDelayMillis = baseDelayMillis;
+            return this;
+        }
+
+        public Builder setMaxDelayMillis(long maxDelayMillis) {
+            this.maxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * @param failureThreshold fallos consecutivos que abren el circuito
+         */
+        public Builder setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * @param openMillis tiempo que el circuito permanece abierto antes de probar de nuevo
+         */
+        public Builder setOpenMillis(long openMillis) {
+            this.openMillis = openMillis;
+            return this;
+        }
+
+        /**
+         * Usa un circuit breaker ya existente en lugar de crear uno con el umbral y tiempo indicados.
+         */
+        public Builder setCircuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        public Builder setScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Indica si la creacion de tickets es idempotente, lo que permite reintentar tambien tras
+         * timeouts y 5xx ambiguos. Por defecto no lo es.
+         */
+        public Builder setIdempotent(boolean idempotent) {
+            this.idempotent = idempotent;
+            return this;
+        }
+
+        /**
+         * Registro de claves de idempotencia ya completadas, para no repetir altas ya creadas.
+         */
+        public Builder setIdempotencyStore(IdempotencyStore idempotencyStore) {
+            this.idempotencyStore = idempotencyStore;
+            return this;
+        }
+
+        public ResilientZendesk build() {
+            return new ResilientZendesk(this);
+        }
+    }
+}
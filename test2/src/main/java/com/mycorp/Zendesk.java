@@ -1,47 +1,100 @@
 package com.mycorp;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mycorp.resilience.Deadline;
+import com.mycorp.support.JobStatus;
 import com.mycorp.support.Ticket;
-import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
-import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
 import com.ning.http.client.Realm;
 import com.ning.http.client.Request;
 import com.ning.http.client.RequestBuilder;
-import com.ning.http.client.Response;
 import com.ning.http.client.uri.Uri;
 
 public class Zendesk implements Closeable {
     private static final String JSON = "application/json; charset=UTF-8";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
     private final boolean closeClient;
+    private final ZendeskConnectionPool pool;
     private final AsyncHttpClient client;
     private final Realm realm;
     private final String url;
     private final String oauthToken;
     private final ObjectMapper mapper;
     private final Logger logger;
-    private boolean closed = false;
-
-
-    private Zendesk(AsyncHttpClient client, String url, String username, String password) {
+    private final Executor callbackExecutor;
+    private final ZendeskRateLimiter rateLimiter;
+    private final int maxRateLimitRetries;
+    private final int maxResponseBodySize;
+    private ScheduledExecutorService scheduler;
+    private final boolean shutdownScheduler;
+    private final Set<Envio<?>> pendientes = Collections.newSetFromMap(new ConcurrentHashMap<Envio<?>, Boolean>());	// envios sin respuesta todavia
+    private volatile boolean closed = false;
+
+
+    private Zendesk(Builder builder, String username, String password) {
+        AsyncHttpClient client = builder.client;
+        ZendeskConnectionPool pool = builder.pool;
+        String url = builder.url;
         this.logger = LoggerFactory.getLogger(Zendesk.class);
-        this.closeClient = client == null;
+        this.callbackExecutor = builder.callbackExecutor == null ? DIRECT_EXECUTOR : builder.callbackExecutor;
+        this.rateLimiter = builder.rateLimiter;
+        this.maxRateLimitRetries = builder.maxRateLimitRetries;
+        this.maxResponseBodySize = builder.maxResponseBodySize;
+        this.scheduler = builder.scheduler;
+        this.shutdownScheduler = builder.scheduler == null;
+        this.closeClient = client == null && pool == null;
+        this.pool = client == null ? pool : null;
         this.oauthToken = null;
-        this.client = client == null ? new AsyncHttpClient() : client;
+        if (client != null) {
+            this.client = client;
+        } else if (pool != null) {
+            this.client = pool.acquire();
+        } else {
+            this.client = new AsyncHttpClient(new AsyncHttpClientConfig.Builder().setMaxRequestRetry(0).build());
+        }
         this.url = url.endsWith("/") ? url + "api/v2" : url + "/api/v2";
         if (username != null) {
             this.realm = new Realm.RealmBuilder()
@@ -60,12 +113,88 @@ public class Zendesk implements Closeable {
     }
 
     public Ticket createTicket(Ticket ticket) {
-        return complete(submit(req("POST", cnst("/tickets.json"),
-                        JSON, json(Collections.singletonMap("ticket", ticket))),
-                handle(Ticket.class, "ticket")));
+        return complete(submitTicket(ticket, null));
+    }
+
+    /**
+     * Crea un ticket enviando una clave de idempotencia: si Zendesk ya ha creado un ticket con la
+     * misma clave devuelve ese mismo ticket en lugar de crear otro.
+     *
+     * @param ticket ticket a crear
+     * @param idempotencyKey clave de idempotencia, o null para no enviarla
+     * @return ticket creado
+     */
+    public Ticket createTicket(Ticket ticket, String idempotencyKey) {
+        return complete(submitTicket(ticket, idempotencyKey));
+    }
+
+    /**
+     * Crea un ticket sin bloquear el hilo llamante.
+     *
+     * <p>Los callbacks registrados en el futuro devuelto se ejecutan en el executor de callbacks
+     * configurado en el {@link Builder} (por defecto, el propio hilo de I/O que completa la peticion).
+     * Los fallos llegan como {@link ZendeskException}; cancelar el futuro aborta la peticion HTTP.
+     *
+     * @param ticket ticket a crear
+     * @return futuro con el ticket creado
+     */
+    public ListenableFuture<Ticket> createTicketAsync(Ticket ticket) {
+        return submitTicket(ticket, null);
+    }
+
+    /**
+     * Version asincrona de {@link #createTicket(Ticket, String)}.
+     */
+    public ListenableFuture<Ticket> createTicketAsync(Ticket ticket, String idempotencyKey) {
+        return submitTicket(ticket, idempotencyKey);
     }
 
-    private byte[] json(Object object) {
+    /**
+     * Crea varios tickets en una unica peticion a <code>tickets/create_many.json</code>.
+     *
+     * @param tickets tickets a crear (Zendesk admite como maximo 100 por peticion)
+     * @return futuro con el {@link JobStatus} del trabajo encolado en Zendesk
+     */
+    public ListenableFuture<JobStatus> createTicketsAsync(List<Ticket> tickets) {
+        return submit(req("POST", cnst("/tickets/create_many.json"),
+                        JSON, json(Collections.singletonMap("tickets", tickets))),
+                handle(JobStatus.class, "job_status"));
+    }
+
+    /**
+     * Consulta el estado actual de un trabajo asincrono.
+     *
+     * @param status estado devuelto previamente por Zendesk
+     * @return futuro con el estado actualizado
+     */
+    public ListenableFuture<JobStatus> getJobStatusAsync(JobStatus status) {
+        return submit(req("GET", cnst("/job_statuses/" + status.getId() + ".json")),
+                handle(JobStatus.class, "job_status"));
+    }
+
+    /**
+     * @return el limitador de ritmo en uso, o null si esta desactivado
+     */
+    public ZendeskRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return ultimo <code>X-Rate-Limit-Remaining</code> recibido, o -1 si no se conoce
+     */
+    public int getRateLimitRemaining() {
+        return rateLimiter == null ? -1 : rateLimiter.getRemaining();
+    }
+
+    private ListenableFuture<Ticket> submitTicket(Ticket ticket, String idempotencyKey) {
+        Request request = req("POST", cnst("/tickets.json"), JSON, json(Collections.singletonMap("ticket", ticket)));
+        if (idempotencyKey != null) {
+            request = new RequestBuilder(request).addHeader(IDEMPOTENCY_KEY, idempotencyKey).build();
+        }
+        return submit(request, handle(Ticket.class, "ticket"));
+    }
+
+    byte[] json(Object object) {
         try {
             return mapper.writeValueAsBytes(object);
         } catch (JsonProcessingException e) {
@@ -75,6 +204,17 @@ public class Zendesk implements Closeable {
 
     private static final Pattern RESTRICTED_PATTERN = Pattern.compile("%2B", Pattern.LITERAL);
 
+    private Request req(String method, Uri template) {
+        RequestBuilder builder = new RequestBuilder(method);
+        if (realm != null) {
+            builder.setRealm(realm);
+        } else {
+            builder.addHeader("Authorization", "Bearer " + oauthToken);
+        }
+        builder.setUrl(RESTRICTED_PATTERN.matcher(template.toString()).replaceAll("+"));
+        return builder.build();
+    }
+
     private Request req(String method, Uri template, String contentType, byte[] body) {
         RequestBuilder builder = new RequestBuilder(method);
         if (realm != null) {
@@ -101,11 +241,29 @@ public class Zendesk implements Closeable {
         return Uri.create(url + template);
     }
 
-    private boolean isStatus2xx(Response response) {
-        return response.getStatusCode() / 100 == 2;
+    private <T> ListenableFuture<T> submit(Request request, ZendeskAsyncCompletionHandler<T> handler) {
+        final Envio<T> envio = new Envio<T>(request, handler);
+        pendientes.add(envio);
+        envio.result.addCallback(new ListenableFutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                pendientes.remove(envio);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                pendientes.remove(envio);
+            }
+        });
+        if (closed) {
+            envio.cerrado();	// close() ya ha repasado los envios pendientes
+        } else {
+            envio.programar();
+        }
+        return envio.result;
     }
 
-    private <T> ListenableFuture<T> submit(Request request, ZendeskAsyncCompletionHandler<T> handler) {
+    private void logRequest(Request request) {
         if (logger.isDebugEnabled()) {
             if (request.getStringData() != null) {
                 logger.debug("Request {} {}\n{}", request.getMethod(), request.getUrl(), request.getStringData());
@@ -116,21 +274,188 @@ public class Zendesk implements Closeable {
                 logger.debug("Request {} {}", request.getMethod(), request.getUrl());
             }
         }
-        return client.executeRequest(request, handler);
     }
 
-    private void logResponse(Response response) throws IOException {
-        if (logger.isDebugEnabled()) {
-            logger.debug("Response HTTP/{} {}\n{}", response.getStatusCode(), response.getStatusText(),
-                    response.getResponseBody());
+    private synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("zendesk-scheduler-");
+            threadFactory.setDaemon(true);
+            scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        }
+        return scheduler;
+    }
+
+    /**
+     * Envio de una peticion: espera el turno que marca el limitador, la ejecuta y, si Zendesk
+     * responde 429, la vuelve a encolar tras la espera indicada en <code>Retry-After</code>, haya
+     * limitador o no.
+     */
+    private class Envio<T> implements Runnable {
+        private final Request request;
+        private final ZendeskAsyncCompletionHandler<T> handler;
+        private volatile Future<?> enCurso;
+        private volatile boolean esperando;	// programado en el scheduler, aun sin enviar
+        private int reintentos = 0;
+        private final SettableListenableFuture<T> result = new SettableListenableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // primero el futuro propio: si no, el callback de la peticion abortada lo completaria antes
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                Future<?> actual = enCurso;
+                if (cancelled && actual != null) {
+                    actual.cancel(true);
+                }
+                return cancelled;
+            }
+        };
+
+        Envio(Request request, ZendeskAsyncCompletionHandler<T> handler) {
+            this.request = request;
+            this.handler = handler;
+        }
+
+        void programar() {
+            programar(0);
+        }
+
+        /**
+         * @param minimoNanos espera minima antes de enviar, ademas del turno del limitador
+         */
+        void programar(long minimoNanos) {
+            if (result.isDone()) {
+                return;
+            }
+            long espera;
+            try {
+                espera = Math.max(minimoNanos, rateLimiter == null ? 0 : rateLimiter.reserve());
+            } catch (ZendeskException e) {
+                result.setException(e);
+                return;
+            }
+            if (espera <= 0) {
+                run();
+                return;
+            }
+            logger.debug("Request {} {} delayed {} ms", request.getMethod(), request.getUrl(),
+                    TimeUnit.NANOSECONDS.toMillis(espera));
+            esperando = true;
+            try {
+                enCurso = scheduler().schedule(this, espera, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                result.setException(new ZendeskException("Zendesk client is closed", e));
+                return;
+            }
+            if (closed) {
+                cerrado();	// close() ya ha repasado los envios pendientes
+            }
+        }
+
+        /**
+         * Falla el envio porque el cliente se ha cerrado antes de que llegue la respuesta.
+         */
+        void cerrado() {
+            if (result.setException(new ZendeskException("Zendesk client is closed"))) {
+                Future<?> actual = enCurso;
+                if (actual != null) {
+                    actual.cancel(true);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            esperando = false;
+            if (result.isDone()) {
+                return;
+            }
+            logRequest(request);
+            final com.ning.http.client.ListenableFuture<T> future;
+            try {
+                future = client.executeRequest(request, handler);
+            } catch (RuntimeException e) {
+                result.setException(e instanceof ZendeskException ? e : new ZendeskException(e.getMessage(), e));
+                return;
+            }
+            enCurso = future;
+            if (result.isCancelled()) {
+                future.cancel(true);	// cancelado mientras se lanzaba la peticion
+            }
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    completar(future);
+                }
+            }, callbackExecutor);
+        }
+
+        private void completar(Future<T> future) {
+            try {
+                result.set(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.setException(new ZendeskException(e.getMessage(), e));
+            } catch (ExecutionException e) {
+                ZendeskException error = unwrap(e);
+                if (error instanceof ZendeskRateLimitException && reintentos < maxRateLimitRetries) {
+                    reintentos++;
+                    logger.warn("Zendesk rate limit reached, retrying {} {} ({}/{})", request.getMethod(),
+                            request.getUrl(), reintentos, maxRateLimitRetries);
+                    // el limitador ya cuenta con el Retry-After; sin el hay que esperarlo aqui
+                    programar(rateLimiter != null ? 0 : retryAfterNanos((ZendeskRateLimitException) error));
+                    return;
+                }
+                result.setException(error);
+            } catch (CancellationException e) {
+                result.cancel(false);
+            } catch (RuntimeException e) {
+                result.setException(e);
+            }
+        }
+    }
+
+    private boolean isRateLimitResponse(int statusCode) {
+        return statusCode == 429;
+    }
+
+    private void updateRateLimit(FluentCaseInsensitiveStringsMap headers) {
+        if (rateLimiter != null) {
+            rateLimiter.onResponse(intHeader(headers, "X-Rate-Limit"), intHeader(headers, "X-Rate-Limit-Remaining"));
+        }
+    }
+
+    private ZendeskException rateLimitException(int statusCode, String statusText, String body,
+            FluentCaseInsensitiveStringsMap headers) {
+        long retryAfter = retryAfterMillis(headers);
+        if (rateLimiter != null) {
+            rateLimiter.onRateLimited(retryAfter);
+        }
+        return new ZendeskRateLimitException(statusCode, statusText, body, retryAfter,
+                intHeader(headers, "X-Rate-Limit-Remaining"));
+    }
+
+    private static int intHeader(FluentCaseInsensitiveStringsMap headers, String name) {
+        String value = headers == null ? null : headers.getFirstValue(name);
+        if (value == null) {
+            return -1;
         }
-        if (logger.isTraceEnabled()) {
-            logger.trace("Response headers {}", response.getHeaders());
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
-    private boolean isRateLimitResponse(Response response) {
-        return response.getStatusCode() == 429;
+    private static long retryAfterNanos(ZendeskRateLimitException error) {
+        long retryAfter = error.getRetryAfterMillis();
+        return TimeUnit.MILLISECONDS.toNanos(retryAfter >= 0 ? retryAfter : ZendeskRateLimiter.DEFAULT_RETRY_AFTER_MILLIS);
+    }
+
+    /**
+     * <code>Retry-After</code> en milisegundos; Zendesk lo envia en segundos. -1 si no viene o no es numerico.
+     */
+    private static long retryAfterMillis(FluentCaseInsensitiveStringsMap headers) {
+        int seconds = intHeader(headers, "Retry-After");
+        return seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
     }
 
     protected <T> ZendeskAsyncCompletionHandler<T> handle(final Class<T> clazz, final String name, final Class... typeParams) {
@@ -138,44 +463,155 @@ public class Zendesk implements Closeable {
     }
 
 
+    /**
+     * Decodifica el campo <code>name</code> del sobre JSON de la respuesta en una sola pasada:
+     * avanza por los campos de primer nivel saltando los que no interesan y vincula el buscado
+     * directamente al tipo destino, sin construir un arbol intermedio.
+     */
     private class BasicAsyncCompletionHandler<T> extends ZendeskAsyncCompletionHandler<T> {
-        private final Class<T> clazz;
         private final String name;
-        private final Class[] typeParams;
+        private final JavaType type;
 
         public BasicAsyncCompletionHandler(Class clazz, String name, Class... typeParams) {
-            this.clazz = clazz;
             this.name = name;
-            this.typeParams = typeParams;
+            this.type = typeParams.length > 0
+                    ? mapper.getTypeFactory().constructParametricType(clazz, typeParams)
+                    : mapper.getTypeFactory().constructType(clazz);
         }
 
         @Override
-        public T onCompleted(Response response) throws Exception {
-            logResponse(response);
-            if (isStatus2xx(response)) {
-                if (typeParams.length > 0) {
-                    JavaType type = mapper.getTypeFactory().constructParametricType(clazz, typeParams);
-                    return mapper.convertValue(mapper.readTree(response.getResponseBodyAsStream()).get(name), type);
+        protected T decode(InputStream body) throws IOException {
+            JsonParser parser = mapper.getFactory().createParser(body);
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return null;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                        if (name.equals(field)) {
+                            return null;
+                        }
+                    } else if (name.equals(field)) {
+                        return mapper.readValue(parser, type);
+                    } else {
+                        parser.skipChildren();
+                    }
                 }
-                return mapper.convertValue(mapper.readTree(response.getResponseBodyAsStream()).get(name), clazz);
-            } else if (isRateLimitResponse(response)) {
-                throw new ZendeskException(response.toString());
-            }
-            if (response.getStatusCode() == 404) {
                 return null;
+            } finally {
+                parser.close();
             }
-            throw new ZendeskException(response.toString());
         }
     }
 
 
-    private static abstract class ZendeskAsyncCompletionHandler<T> extends AsyncCompletionHandler<T> {
+    /**
+     * <p>Handler base de las respuestas de Zendesk.
+     *
+     * <p>Va acumulando las partes del cuerpo segun llegan, sin volver a copiarlas en un buffer unico,
+     * y aborta la descarga si el cuerpo supera el tamaño maximo configurado. Al completarse
+     * actualiza el limitador de ritmo y convierte los estados de error en excepciones.
+     */
+    private abstract class ZendeskAsyncCompletionHandler<T> implements AsyncHandler<T> {
+        private int statusCode;
+        private String statusText;
+        private FluentCaseInsensitiveStringsMap headers;
+        private final List<byte[]> parts = new ArrayList<byte[]>();
+        private long size;
+        private boolean tooLarge;
+
+        /**
+         * Decodifica el cuerpo de una respuesta 2xx.
+         */
+        protected abstract T decode(InputStream body) throws IOException;
+
+        @Override
+        public STATE onStatusReceived(HttpResponseStatus status) throws Exception {
+            // el handler se reutiliza al reencolar una peticion: se empieza de cero
+            statusCode = status.getStatusCode();
+            statusText = status.getStatusText();
+            headers = null;
+            parts.clear();
+            size = 0;
+            tooLarge = false;
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onHeadersReceived(HttpResponseHeaders responseHeaders) throws Exception {
+            headers = responseHeaders.getHeaders();
+            if (intHeader(headers, "Content-Length") > maxResponseBodySize) {
+                tooLarge = true;
+                return STATE.ABORT;
+            }
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onBodyPartReceived(HttpResponseBodyPart part) throws Exception {
+            size += part.length();
+            if (size > maxResponseBodySize) {
+                tooLarge = true;
+                parts.clear();
+                return STATE.ABORT;
+            }
+            parts.add(part.getBodyPartBytes());
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public T onCompleted() throws Exception {
+            logResponse();
+            updateRateLimit(headers);
+            if (tooLarge) {
+                throw new ZendeskException("Response HTTP/" + statusCode + " exceeds the maximum body size of "
+                        + maxResponseBodySize + " bytes");
+            }
+            if (statusCode / 100 == 2) {
+                return decode(body());
+            } else if (isRateLimitResponse(statusCode)) {
+                throw rateLimitException(statusCode, statusText, bodyAsString(), headers);
+            }
+            if (statusCode == 404) {
+                return null;
+            }
+            throw new ZendeskResponseException(statusCode, statusText, bodyAsString());
+        }
+
         @Override
         public void onThrowable(Throwable t) {
             if (t instanceof IOException) {
                 throw new ZendeskException(t);
-            } else {
-                super.onThrowable(t);
+            }
+            logger.debug(t.getMessage(), t);
+        }
+
+        private InputStream body() {
+            List<InputStream> streams = new ArrayList<InputStream>(parts.size());
+            for (byte[] part : parts) {
+                streams.add(new ByteArrayInputStream(part));
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+
+        private String bodyAsString() {
+            // se concatenan los bytes antes de decodificar: una parte puede cortar un caracter multibyte
+            byte[] body = new byte[(int) size];
+            int offset = 0;
+            for (byte[] part : parts) {
+                System.arraycopy(part, 0, body, offset, part.length);
+                offset += part.length;
+            }
+            return new String(body, 0, offset, UTF_8);
+        }
+
+        private void logResponse() {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Response HTTP/{} {}\n{}", statusCode, statusText, bodyAsString());
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("Response headers {}", headers);
             }
         }
     }
@@ -189,32 +625,77 @@ public class Zendesk implements Closeable {
         return closed || client.isClosed();
     }
 
-    public void close() {
-        if (closeClient && !client.isClosed()) {
-            client.close();
+    /**
+     * Libera el cliente HTTP. Los envios que esperaban su turno (limitador o <code>Retry-After</code>)
+     * fallan con {@link ZendeskException}, y tambien los que esperaban respuesta si el cliente HTTP
+     * es propio y se cierra: sus futuros no se completarian nunca.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
         }
         closed = true;
+        for (Envio<?> envio : pendientes) {
+            if (envio.esperando || closeClient) {
+                envio.cerrado();
+            }
+        }
+        if (pool != null) {
+            pool.release();
+        } else if (closeClient && !client.isClosed()) {
+            client.close();
+        }
+        if (shutdownScheduler && scheduler != null) {
+            scheduler.shutdownNow();
+        }
     }
 
     //////////////////////////////////////////////////////////////////////
     // Static helper methods
     //////////////////////////////////////////////////////////////////////
 
-    private static <T> T complete(ListenableFuture<T> future) {
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Espera la respuesta; si el hilo tiene {@link Deadline}, como mucho lo que le queda. Si se
+     * agota o se interrumpe el hilo, aborta la peticion HTTP.
+     */
+    private static <T> T complete(Future<T> future) {
+        Deadline deadline = Deadline.current();
         try {
-            return future.get();
+            return deadline == null ? future.get() : future.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new ZendeskException("Deadline expired waiting for Zendesk", e);
         } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
             throw new ZendeskException(e.getMessage(), e);
         } catch (ExecutionException e) {
-            if (e.getCause() instanceof ZendeskException) {
-                throw (ZendeskException) e.getCause();
-            }
-            throw new ZendeskException(e.getMessage(), e);
+            throw unwrap(e);
         }
     }
 
+    private static ZendeskException unwrap(ExecutionException e) {
+        if (e.getCause() instanceof ZendeskException) {
+            return (ZendeskException) e.getCause();
+        }
+        return new ZendeskException(e.getMessage(), e);
+    }
+
     public static class Builder {
         private AsyncHttpClient client = null;
+        private ZendeskConnectionPool pool = null;
+        private Executor callbackExecutor = null;
+        private ScheduledExecutorService scheduler = null;
+        private ZendeskRateLimiter rateLimiter = new ZendeskRateLimiter.Builder().build();
+        private int maxRateLimitRetries = 3;
+        private int maxResponseBodySize = 10 * 1024 * 1024;
         private final String url;
         private String username = null;
         private String password = null;
@@ -225,6 +706,65 @@ public class Zendesk implements Closeable {
             this.url = url;
         }
 
+        /**
+         * Usa un cliente HTTP gestionado externamente; {@link Zendesk#close()} no lo cierra.
+         */
+        public Builder setClient(AsyncHttpClient client) {
+            this.client = client;
+            return this;
+        }
+
+        /**
+         * Usa el cliente HTTP de un pool compartido; {@link Zendesk#close()} libera la referencia adquirida.
+         */
+        public Builder setConnectionPool(ZendeskConnectionPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Executor en el que se completan los futuros de las operaciones asincronas. Conviene
+         * indicarlo si los callbacks hacen trabajo bloqueante, para no ocupar los hilos de I/O.
+         */
+        public Builder setCallbackExecutor(Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
+
+        /**
+         * Scheduler para las peticiones que el limitador retrasa. Si no se indica se crea uno propio
+         * al primer retraso, que se apaga en {@link Zendesk#close()}.
+         */
+        public Builder setScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Limitador de ritmo a aplicar; null lo desactiva. Por defecto se usa uno con la
+         * configuracion de {@link ZendeskRateLimiter.Builder}.
+         */
+        public Builder setRateLimiter(ZendeskRateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * Veces que se reencola una peticion rechazada con 429 antes de devolver el error.
+         */
+        public Builder setMaxRateLimitRetries(int maxRateLimitRetries) {
+            this.maxRateLimitRetries = maxRateLimitRetries;
+            return this;
+        }
+
+        /**
+         * Tamaño maximo (bytes) de cuerpo de respuesta que se acepta; por encima se aborta la descarga.
+         */
+        public Builder setMaxResponseBodySize(int maxResponseBodySize) {
+            this.maxResponseBodySize = maxResponseBodySize;
+            return this;
+        }
+
         public Builder setUsername(String username) {
             this.username = username;
             return this;
@@ -250,9 +790,9 @@ public class Zendesk implements Closeable {
 
         public Zendesk build() {
             if (token != null) {
-                return new Zendesk(client, url, username + "/token", token);
+                return new Zendesk(this, username + "/token", token);
             }
-            return new Zendesk(client, url, username, password);
+            return new Zendesk(this, username, password);
         }
     }
 }
\ No newline at end of file
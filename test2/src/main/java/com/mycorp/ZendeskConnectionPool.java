@@ -0,0 +1,160 @@
+package com.mycorp;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+
+/**
+ * <p>Pool de conexiones HTTP compartido por todas las instancias de {@link Zendesk}.
+ *
+ * <p>Encapsula un unico {@link AsyncHttpClient} (event loop de Netty, pool de conexiones
+ * keep-alive y contexto TLS) y lleva la cuenta de referencias de sus usuarios: cada
+ * {@link Zendesk} construido sobre el pool adquiere una referencia y la libera en su
+ * {@link Zendesk#close()}. El cliente subyacente solo se cierra cuando se libera la
+ * ultima referencia, incluida la del propietario del pool ({@link #close()}).
+ */
+public class ZendeskConnectionPool implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( ZendeskConnectionPool.class );
+
+    private final AsyncHttpClient client;
+    private final AtomicInteger references = new AtomicInteger( 1 );	// la referencia del propietario
+    private final AtomicBoolean ownerReleased = new AtomicBoolean( false );
+
+    private ZendeskConnectionPool(AsyncHttpClientConfig config) {
+        this.client = new AsyncHttpClient(config);
+    }
+
+    /**
+     * Adquiere una referencia al cliente compartido.
+     *
+     * @return el cliente HTTP del pool
+     * @throws IllegalStateException si el pool ya se ha cerrado
+     */
+    public AsyncHttpClient acquire() {
+        for (;;) {
+            int current = references.get();
+            if (current <= 0) {
+                throw new IllegalStateException("Zendesk connection pool is closed");
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return client;
+            }
+        }
+    }
+
+    /**
+     * Libera una referencia adquirida con {@link #acquire()}. Al liberar la ultima se cierra el cliente.
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            LOG.info("Cerrando pool de conexiones Zendesk");
+            client.close();
+        } else if (remaining < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("Zendesk connection pool released more times than acquired");
+        }
+    }
+
+    /**
+     * @return numero de referencias vivas, incluida la del propietario si aun no ha cerrado
+     */
+    public int getReferenceCount() {
+        return Math.max(references.get(), 0);
+    }
+
+    public boolean isClosed() {
+        return references.get() <= 0 || client.isClosed();
+    }
+
+    /**
+     * Libera la referencia del propietario. Es idempotente: sucesivas llamadas no tienen efecto.
+     */
+    @Override
+    public void close() {
+        if (ownerReleased.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    public static class Builder {
+        private int maxConnections = 100;
+        private int maxConnectionsPerHost = 20;
+        private int connectTimeout = 5000;
+        private int requestTimeout = 30000;
+        private int readTimeout = 30000;
+        private int pooledConnectionIdleTimeout = 60000;
+        private int connectionTTL = -1;
+        private int ioThreadMultiplier = 2;
+
+        public Builder setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        public Builder setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder setRequestTimeout(int requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        public Builder setReadTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * @param pooledConnectionIdleTimeout tiempo (ms) que una conexion keep-alive puede estar ociosa en el pool
+         */
+        public Builder setPooledConnectionIdleTimeout(int pooledConnectionIdleTimeout) {
+            this.pooledConnectionIdleTimeout = pooledConnectionIdleTimeout;
+            return this;
+        }
+
+        /**
+         * @param connectionTTL vida maxima (ms) de una conexion antes de reciclarla; -1 sin limite
+         */
+        public Builder setConnectionTTL(int connectionTTL) {
+            this.connectionTTL = connectionTTL;
+            return this;
+        }
+
+        public Builder setIoThreadMultiplier(int ioThreadMultiplier) {
+            this.ioThreadMultiplier = ioThreadMultiplier;
+            return this;
+        }
+
+        public ZendeskConnectionPool build() {
+            AsyncHttpClientConfig config = new AsyncHttpClientConfig.Builder()
+                    .setAllowPoolingConnections(true)
+                    .setAllowPoolingSslConnections(true)
+                    .setMaxConnections(maxConnections)
+                    .setMaxConnectionsPerHost(maxConnectionsPerHost)
+                    .setConnectTimeout(connectTimeout)
+                    .setRequestTimeout(requestTimeout)
+                    .setReadTimeout(readTimeout)
+                    .setPooledConnectionIdleTimeout(pooledConnectionIdleTimeout)
+                    .setConnectionTTL(connectionTTL)
+                    .setIOThreadMultiplier(ioThreadMultiplier)
+                    .setMaxRequestRetry(0)	// los reintentos los decide ResilientZendesk, no AHC
+                    .build();
+            return new ZendeskConnectionPool(config);
+        }
+    }
+}
@@ -1,23 +1,110 @@
 package com.mycorp;
 
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.TimeoutException;
 
+import com.mycorp.resilience.CircuitOpenException;
 
 public class ZendeskException  extends RuntimeException {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Clasificacion de los fallos de Zendesk, para decidir si se reintenta y si cuentan como caida.
+     */
+    public enum Kind {
+        /** Error de red o timeout: no hay respuesta HTTP. */
+        IO,
+        /** Respuesta 5xx. */
+        SERVER_ERROR,
+        /** Respuesta 429. */
+        RATE_LIMITED,
+        /** Respuesta 4xx distinta de 429: la peticion es incorrecta, reintentar no sirve. */
+        CLIENT_ERROR,
+        /** No se ha llegado a llamar: el circuit breaker esta abierto. */
+        CIRCUIT_OPEN,
+        UNKNOWN
+    }
+
+    private final int statusCode;
+
     public ZendeskException(String message) {
         super(message);
+        this.statusCode = -1;
     }
 
     public ZendeskException() {
+        this.statusCode = -1;
     }
 
     public ZendeskException(Throwable cause) {
         super(cause);
+        this.statusCode = -1;
     }
 
     public ZendeskException(String message, Throwable cause) {
         super(message, cause);
+        this.statusCode = -1;
+    }
+
+    protected ZendeskException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return codigo HTTP de la respuesta de Zendesk, o -1 si el fallo no viene de una respuesta
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public Kind getKind() {
+        if (statusCode == 429) {
+            return Kind.RATE_LIMITED;
+        } else if (statusCode >= 500) {
+            return Kind.SERVER_ERROR;
+        } else if (statusCode >= 400) {
+            return Kind.CLIENT_ERROR;
+        } else if (hasCause(CircuitOpenException.class)) {
+            return Kind.CIRCUIT_OPEN;
+        } else if (hasCause(IOException.class) || hasCause(TimeoutException.class)) {
+            return Kind.IO;
+        }
+        return Kind.UNKNOWN;
+    }
+
+    /**
+     * Indica si tiene sentido reintentar la peticion que ha fallado.
+     *
+     * <p>Si la peticion no es idempotente solo se reintentan los fallos en los que Zendesk seguro que
+     * no la ha procesado: 503 y errores de conexion. Un timeout o un 500 pueden llegar despues de que
+     * el ticket se haya creado.
+     *
+     * <p>Los 429 no: {@link Zendesk} ya los reintenta respetando <code>Retry-After</code>, asi que
+     * cuando llegan aqui se han agotado esos reintentos o el limitador del cliente ha rechazado la
+     * peticion porque tendria que esperar demasiado.
+     *
+     * @param idempotent si repetir la peticion no puede duplicar su efecto
+     */
+    public boolean isRetryable(boolean idempotent) {
+        switch (getKind()) {
+        case SERVER_ERROR:
+            return idempotent || statusCode == 503;
+        case IO:
+            return idempotent || hasCause(ConnectException.class);
+        default:
+            return false;
+        }
+    }
+
+    private boolean hasCause(Class<? extends Throwable> type) {
+        for (Throwable t = getCause(); t != null && t != t.getCause(); t = t.getCause()) {
+            if (type.isInstance(t)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
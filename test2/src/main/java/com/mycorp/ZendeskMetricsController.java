@@ -0,0 +1,44 @@
+package com.mycorp;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.mycorp.cache.CacheStats;
+import com.mycorp.metrics.AltaTicketMetrics;
+
+/**
+ * Expone las metricas de {@link ZendeskService}: en formato Prometheus para el scraper y como
+ * JSON con los percentiles de cada etapa y los contadores de las caches para consultas puntuales.
+ */
+@RestController
+@RequestMapping("/metrics/zendesk")
+public class ZendeskMetricsController {
+
+    private static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Autowired
+    private ZendeskService zendeskService;
+
+    @RequestMapping(method = RequestMethod.GET, produces = PROMETHEUS_TEXT)
+    public String prometheus() throws IOException {
+        StringWriter out = new StringWriter();
+        zendeskService.getMetrics().writePrometheus(out);
+        return out.toString();
+    }
+
+    @RequestMapping(value = "/snapshot", method = RequestMethod.GET, produces = "application/json")
+    public Map<String, AltaTicketMetrics.StageSnapshot> snapshot() {
+        return zendeskService.getMetrics().snapshot();
+    }
+
+    @RequestMapping(value = "/caches", method = RequestMethod.GET, produces = "application/json")
+    public Map<String, CacheStats> caches() {
+        return zendeskService.getMetrics().cacheSnapshot();
+    }
+}
@@ -0,0 +1,221 @@
+package com.mycorp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mycorp.outbox.Outbox;
+import com.mycorp.resilience.CircuitBreaker;
+import com.mycorp.support.Ticket;
+
+/**
+ * <p>Reenvia a Zendesk los tickets guardados en el {@link Outbox}.
+ *
+ * <p>Se ejecuta periodicamente en un hilo propio y solo mientras el circuit breaker de Zendesk no
+ * esta abierto. Envia los tickets de uno en uno, en orden, a un ritmo maximo configurable, y
+ * confirma cada uno en el outbox cuando Zendesk lo ha creado. Ante un fallo transitorio deja el
+ * ticket en el outbox y espera a la siguiente pasada. Si Zendesk lo rechaza (4xx), reintentar no
+ * sirve: lo pasa al {@link RejectedTicketHandler}, p.ej. el mail de error de las altas, y lo confirma.
+ * Si el registro no se puede leer, lo descarta dejando traza del contenido.
+ *
+ * <p>Cada registro lleva la clave de idempotencia del alta en la primera linea y el JSON del ticket
+ * a continuacion (ver {@link #encode(String, byte[])}), de modo que un reenvio de un ticket que
+ * Zendesk si llego a crear no lo duplica.
+ */
+public class ZendeskOutboxDrainer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( ZendeskOutboxDrainer.class );
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Destino de los tickets que Zendesk rechaza definitivamente, para no perder el alta.
+     */
+    public interface RejectedTicketHandler {
+        void rejected(Ticket ticket, ZendeskException error);
+    }
+
+    private final Outbox outbox;
+    private final ResilientZendesk zendesk;
+    private final ObjectMapper mapper = Zendesk.createMapper();
+    private final long intervalMillis;
+    private final long pauseMillis;
+    private final int batchSize;
+    private final RejectedTicketHandler rejectedTicketHandler;
+    private final ScheduledExecutorService scheduler;
+
+    private ZendeskOutboxDrainer(Builder builder) {
+        this.outbox = builder.outbox;
+        this.zendesk = builder.zendesk;
+        this.intervalMillis = builder.intervalMillis;
+        this.pauseMillis = builder.maxPerSecond > 0 ? 1000L / builder.maxPerSecond : 0;
+        this.batchSize = builder.batchSize;
+        this.rejectedTicketHandler = builder.rejectedTicketHandler;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("zendesk-outbox-");
+        threadFactory.setDaemon(true);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    /**
+     * Arranca el vaciado periodico del outbox.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    LOG.error("Error al vaciar el outbox de Zendesk", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reenvia lo pendiente hasta vaciar el outbox, abrirse el circuito o fallar un envio.
+     *
+     * @return numero de tickets creados en Zendesk
+     */
+    public int drain() throws IOException, InterruptedException {
+        int sent = 0;
+        while (zendesk.getCircuitBreaker().getState() != CircuitBreaker.State.OPEN) {
+            List<Outbox.Entry> entries = outbox.read(batchSize);
+            if (entries.isEmpty()) {
+                break;
+            }
+            for (Outbox.Entry entry : entries) {
+                byte[] payload = entry.getPayload();
+                int separador = indexOf(payload, (byte) '\n');
+                String idempotencyKey = separador > 0 ? new String(payload, 0, separador, UTF_8) : null;
+                Ticket ticket;
+                try {
+                    ticket = mapper.readValue(payload, separador + 1, payload.length - separador - 1, Ticket.class);
+                } catch (IOException e) {
+                    LOG.error("Descartando ticket ilegible del outbox: " + new String(payload, UTF_8), e);
+                    outbox.commit(entry);
+                    continue;
+                }
+                try {
+                    zendesk.createTicket(ticket, idempotencyKey);
+                } catch (ZendeskException e) {
+                    if (e.getKind() != ZendeskException.Kind.CLIENT_ERROR) {
+                        LOG.warn("Zendesk sigue sin aceptar tickets ({}); {} pendientes en el outbox", e.getKind(),
+                                outbox.getPendingCount());
+                        return sent;
+                    }
+                    LOG.error("Zendesk rechaza el ticket del outbox, se descarta: " + new String(payload, UTF_8), e);
+                    rechazado(ticket, e);
+                }
+                outbox.commit(entry);
+                sent++;
+                if (pauseMillis > 0) {
+                    Thread.sleep(pauseMillis);
+                }
+            }
+        }
+        if (sent > 0) {
+            LOG.info("Reenviados {} tickets desde el outbox; {} pendientes", sent, outbox.getPendingCount());
+        }
+        return sent;
+    }
+
+    private void rechazado(Ticket ticket, ZendeskException error) {
+        if (rejectedTicketHandler == null) {
+            return;
+        }
+        try {
+            rejectedTicketHandler.rejected(ticket, error);
+        } catch (RuntimeException e) {
+            LOG.error("Error al tratar el ticket rechazado del outbox", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Compone el registro del outbox para un ticket.
+     *
+     * @param idempotencyKey clave de idempotencia del alta, o null si no tiene
+     * @param ticketJson JSON del ticket
+     */
+    public static byte[] encode(String idempotencyKey, byte[] ticketJson) {
+        byte[] clave = (idempotencyKey == null ? "" : idempotencyKey).getBytes(UTF_8);
+        byte[] registro = new byte[clave.length + 1 + ticketJson.length];
+        System.arraycopy(clave, 0, registro, 0, clave.length);
+        registro[clave.length] = '\n';
+        System.arraycopy(ticketJson, 0, registro, clave.length + 1, ticketJson.length);
+        return registro;
+    }
+
+    private static int indexOf(byte[] data, byte value) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static class Builder {
+        private final Outbox outbox;
+        private final ResilientZendesk zendesk;
+        private long intervalMillis = 5000;
+        private int maxPerSecond = 5;
+        private int batchSize = 50;
+        private RejectedTicketHandler rejectedTicketHandler = null;
+
+        public Builder(Outbox outbox, ResilientZendesk zendesk) {
+            this.outbox = outbox;
+            this.zendesk = zendesk;
+        }
+
+        /**
+         * @param intervalMillis espera entre pasadas de vaciado
+         */
+        public Builder setIntervalMillis(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * @param maxPerSecond tickets por segundo como maximo al reenviar; 0 sin limite
+         */
+        public Builder setMaxPerSecond(int maxPerSecond) {
+            this.maxPerSecond = maxPerSecond;
+            return this;
+        }
+
+        public Builder setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * @param rejectedTicketHandler destino de los tickets que Zendesk rechaza (4xx); sin el solo
+         *                              quedan en la traza
+         */
+        public Builder setRejectedTicketHandler(RejectedTicketHandler rejectedTicketHandler) {
+            this.rejectedTicketHandler = rejectedTicketHandler;
+            return this;
+        }
+
+        public ZendeskOutboxDrainer build() {
+            return new ZendeskOutboxDrainer(this);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.mycorp;
+
+/**
+ * Zendesk ha rechazado la peticion por exceso de llamadas (HTTP 429).
+ */
+public class ZendeskRateLimitException extends ZendeskResponseException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+    private final int remaining;
+
+    /**
+     * @param retryAfterMillis espera indicada en <code>Retry-After</code>, o -1 si no viene
+     * @param remaining valor de <code>X-Rate-Limit-Remaining</code>, o -1 si no viene
+     */
+    public ZendeskRateLimitException(int statusCode, String statusText, String body, long retryAfterMillis,
+            int remaining) {
+        super(statusCode, statusText, body);
+        this.retryAfterMillis = retryAfterMillis;
+        this.remaining = remaining;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+}
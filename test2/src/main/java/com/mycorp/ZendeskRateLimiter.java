@@ -0,0 +1,200 @@
+package com.mycorp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Limitador de tipo token bucket que marca el ritmo de las peticiones a Zendesk.
+ *
+ * <p>El ritmo se ajusta con las cabeceras de cada respuesta: <code>X-Rate-Limit</code> fija la
+ * tasa de reposicion (peticiones por minuto, aplicando un factor de seguridad) y
+ * <code>X-Rate-Limit-Remaining</code> recorta los permisos disponibles, de forma que el cliente
+ * frena antes de que Zendesk empiece a rechazar. Un 429 con <code>Retry-After</code> congela la
+ * reposicion hasta que vence la espera indicada.
+ *
+ * <p>{@link #reserve()} no bloquea: devuelve cuanto debe esperar el llamante antes de enviar.
+ */
+public class ZendeskRateLimiter {
+
+    private static final long NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    /** Espera tras un 429 que no trae <code>Retry-After</code>, si no se configura otra. */
+    public static final long DEFAULT_RETRY_AFTER_MILLIS = 10000;
+
+    private final double safetyFactor;
+    private final long maxQueueDelayNanos;
+    private final long defaultRetryAfterMillis;
+
+    private double permitsPerNano;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;		// instante (nanoTime) hasta el que se han repuesto permisos; puede ser futuro
+    private int limit;
+    private int remaining = -1;
+    private long throttled;
+    private long rejected;
+    private long rateLimited;
+
+    private ZendeskRateLimiter(Builder builder) {
+        this.safetyFactor = builder.safetyFactor;
+        this.maxQueueDelayNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxQueueDelayMillis);
+        this.defaultRetryAfterMillis = builder.defaultRetryAfterMillis;
+        this.lastRefill = System.nanoTime();
+        setLimit(builder.requestsPerMinute);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Reserva un permiso.
+     *
+     * @return nanosegundos que hay que esperar antes de enviar la peticion (0 si puede salir ya)
+     * @throws ZendeskRateLimitException si la espera supera el maximo de encolado configurado
+     */
+    public synchronized long reserve() {
+        long now = System.nanoTime();
+        refill(now);
+        long wait = Math.max(0, lastRefill - now);
+        if (tokens < 1) {
+            wait += (long) Math.ceil((1 - tokens) / permitsPerNano);
+        }
+        if (wait > maxQueueDelayNanos) {
+            rejected++;
+            throw new ZendeskRateLimitException(429, "Client-side rate limit", null,
+                    TimeUnit.NANOSECONDS.toMillis(wait), remaining);
+        }
+        if (wait > 0) {
+            throttled++;
+        }
+        tokens -= 1;
+        return wait;
+    }
+
+    /**
+     * Actualiza el limitador con las cabeceras de una respuesta.
+     *
+     * @param limit valor de <code>X-Rate-Limit</code>, o un valor no positivo si no viene
+     * @param remaining valor de <code>X-Rate-Limit-Remaining</code>, o negativo si no viene
+     */
+    public synchronized void onResponse(int limit, int remaining) {
+        refill(System.nanoTime());
+        if (limit > 0 && limit != this.limit) {
+            setLimit(limit);
+        }
+        if (remaining >= 0) {
+            this.remaining = remaining;
+            double allowed = remaining - (1 - safetyFactor) * this.limit;
+            tokens = Math.min(tokens, allowed);
+        }
+    }
+
+    /**
+     * Registra un 429: deja de reponer permisos hasta que venza la espera indicada.
+     *
+     * @param retryAfterMillis espera indicada por Zendesk, o negativo si no la indica
+     */
+    public synchronized void onRateLimited(long retryAfterMillis) {
+        long now = System.nanoTime();
+        refill(now);
+        rateLimited++;
+        long espera = TimeUnit.MILLISECONDS.toNanos(retryAfterMillis >= 0 ? retryAfterMillis : defaultRetryAfterMillis);
+        lastRefill = Math.max(lastRefill, now + espera);
+        tokens = Math.min(tokens, 0);
+        remaining = 0;
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+            lastRefill = now;
+        }
+    }
+
+    private void setLimit(int requestsPerMinute) {
+        this.limit = requestsPerMinute;
+        this.permitsPerNano = requestsPerMinute * safetyFactor / NANOS_PER_MINUTE;
+        this.capacity = Math.max(1, requestsPerMinute * safetyFactor / 10);
+        this.tokens = Math.min(tokens, capacity);
+    }
+
+    /**
+     * @return ultimo <code>X-Rate-Limit-Remaining</code> conocido, o -1 si aun no se ha recibido
+     */
+    public synchronized int getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * @return limite de peticiones por minuto en vigor
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return permisos disponibles ahora mismo (negativo si hay peticiones encoladas)
+     */
+    public synchronized double getAvailablePermits() {
+        refill(System.nanoTime());
+        return tokens;
+    }
+
+    /** @return peticiones que han tenido que esperar */
+    public synchronized long getThrottledCount() {
+        return throttled;
+    }
+
+    /** @return peticiones rechazadas en cliente por superar la espera maxima */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /** @return respuestas 429 recibidas */
+    public synchronized long getRateLimitedCount() {
+        return rateLimited;
+    }
+
+    public static class Builder {
+        private int requestsPerMinute = 700;
+        private double safetyFactor = 0.9;
+        private long maxQueueDelayMillis = 30000;
+        private long defaultRetryAfterMillis = DEFAULT_RETRY_AFTER_MILLIS;
+
+        /**
+         * @param requestsPerMinute limite inicial, hasta que Zendesk informe del suyo
+         */
+        public Builder setRequestsPerMinute(int requestsPerMinute) {
+            if (requestsPerMinute <= 0) {
+                throw new IllegalArgumentException("requestsPerMinute must be positive");
+            }
+            this.requestsPerMinute = requestsPerMinute;
+            return this;
+        }
+
+        /**
+         * @param safetyFactor fraccion (0, 1] del limite de Zendesk que se permite consumir
+         */
+        public Builder setSafetyFactor(double safetyFactor) {
+            if (safetyFactor <= 0 || safetyFactor > 1) {
+                throw new IllegalArgumentException("safetyFactor must be in (0, 1]");
+            }
+            this.safetyFactor = safetyFactor;
+            return this;
+        }
+
+        public Builder setMaxQueueDelayMillis(long maxQueueDelayMillis) {
+            this.maxQueueDelayMillis = maxQueueDelayMillis;
+            return this;
+        }
+
+        /**
+         * @param defaultRetryAfterMillis espera tras un 429 que no trae <code>Retry-After</code>
+         */
+        public Builder setDefaultRetryAfterMillis(long defaultRetryAfterMillis) {
+            this.defaultRetryAfterMillis = defaultRetryAfterMillis;
+            return this;
+        }
+
+        public ZendeskRateLimiter build() {
+            return new ZendeskRateLimiter(this);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.mycorp;
+
+/**
+ * Error devuelto por Zendesk como respuesta HTTP distinta de 2xx, conservando el codigo de estado.
+ */
+public class ZendeskResponseException extends ZendeskException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String statusText;
+    private final String body;
+
+    public ZendeskResponseException(int statusCode, String statusText, String body) {
+        super("HTTP/" + statusCode + ": " + statusText + (body == null ? "" : " - " + body), statusCode);
+        this.statusText = statusText;
+        this.body = body;
+    }
+
+    public String getStatusText() {
+        return statusText;
+    }
+
+    public String getBody() {
+        return body;
+    }
+}
@@ -1,17 +1,30 @@
 package com.mycorp;
 
-import java.io.StringWriter;
-import java.io.Writer;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.velocity.Template;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.Velocity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -19,21 +32,54 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureAdapter;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.ListenableFutureTask;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mycorp.cache.CachingProxy;
+import com.mycorp.cache.LongLruCache;
+import com.mycorp.cache.MeteredCache;
+import com.mycorp.cache.SingleFlight;
+import com.mycorp.cache.TtlCache;
+import com.mycorp.cache.ValueCodeRegistry;
+import com.mycorp.enrichment.Enricher;
+import com.mycorp.enrichment.EnrichmentContext;
+import com.mycorp.enrichment.EnrichmentEngine;
+import com.mycorp.enrichment.EnrichmentResult;
+import com.mycorp.idempotency.IdempotencyKeys;
+import com.mycorp.idempotency.IdempotencyStore;
+import com.mycorp.metrics.AltaTicketMetrics;
+import com.mycorp.metrics.AltaTicketMetrics.Stage;
+import com.mycorp.outbox.Outbox;
+import com.mycorp.resilience.Bulkhead;
+import com.mycorp.resilience.BulkheadFullException;
+import com.mycorp.resilience.Deadline;
 import com.mycorp.support.CorreoElectronico;
 import com.mycorp.support.DatosCliente;
 import com.mycorp.support.MensajeriaService;
 import com.mycorp.support.Poliza;
 import com.mycorp.support.PolizaBasicoFromPolizaBuilder;
+import com.mycorp.support.ResumenBravo;
+import com.mycorp.support.ResumenPoliza;
 import com.mycorp.support.Ticket;
 import com.mycorp.support.ValueCode;
+import com.mycorp.template.TicketModel;
+import com.mycorp.template.TicketModel.Campo;
+import com.mycorp.template.TicketRenderer;
+import com.mycorp.template.TicketTemplates;
+import com.mycorp.text.TicketSanitizer;
 
 import portalclientesweb.ejb.interfaces.PortalClientesWebEJBRemote;
-import util.datos.DatosPersonales;
 import util.datos.DetallePoliza;
 import util.datos.PolizaBasico;
 import util.datos.UsuarioAlta;
@@ -44,8 +90,8 @@ public class ZendeskService {
     private static final Logger LOG = LoggerFactory.getLogger( ZendeskService.class );
 
     private static final String ESCAPED_LINE_SEPARATOR = "\\n";
-    private static final String ESCAPE_ER = "\\";
-    private static final String HTML_BR = "<br/>";
+    private static final ObjectReader TICKET_READER = Zendesk.createMapper().readerFor(Ticket.class);
+    private static final String[] HUECOS_PLANTILLA = { "@@nombre@@", "@@email@@", "@@comentario@@" };
     @Value("#{envPC['zendesk.ticket']}")
     public String PETICION_ZENDESK= "";
 
@@ -64,13 +110,193 @@ public class ZendeskService {
     @Value("#{envPC['cliente.getDatos']}")
     public String CLIENTE_GETDATOS = "";
 
+    @Value("#{envPC['bravo.getDatos'] ?: 'http://localhost:8080/test-endpoint'}")
+    public String BRAVO_GETDATOS = "http://localhost:8080/test-endpoint";
+
     @Value("#{envPC['zendesk.error.mail.funcionalidad']}")
     public String ZENDESK_ERROR_MAIL_FUNCIONALIDAD = "";
 
     @Value("#{envPC['zendesk.error.destinatario']}")
     public String ZENDESK_ERROR_DESTINATARIO = "";
 
-    private SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yyyy");
+    @Value("#{envPC['zendesk.pool.maxConnections'] ?: 100}")
+    public int ZENDESK_POOL_MAX_CONNECTIONS = 100;
+
+    @Value("#{envPC['zendesk.pool.maxConnectionsPerHost'] ?: 20}")
+    public int ZENDESK_POOL_MAX_CONNECTIONS_PER_HOST = 20;
+
+    @Value("#{envPC['zendesk.pool.connectTimeout'] ?: 5000}")
+    public int ZENDESK_POOL_CONNECT_TIMEOUT = 5000;
+
+    @Value("#{envPC['zendesk.pool.requestTimeout'] ?: 30000}")
+    public int ZENDESK_POOL_REQUEST_TIMEOUT = 30000;
+
+    @Value("#{envPC['zendesk.pool.idleTimeout'] ?: 60000}")
+    public int ZENDESK_POOL_IDLE_TIMEOUT = 60000;
+
+    @Value("#{envPC['zendesk.callback.threads'] ?: 4}")
+    public int ZENDESK_CALLBACK_THREADS = 4;
+
+    @Value("#{envPC['zendesk.rateLimit.requestsPerMinute'] ?: 700}")
+    public int ZENDESK_RATE_LIMIT_RPM = 700;
+
+    @Value("#{envPC['zendesk.rateLimit.maxQueueDelay'] ?: 30000}")
+    public long ZENDESK_RATE_LIMIT_MAX_QUEUE_DELAY = 30000;
+
+    @Value("#{envPC['zendesk.retry.maxAttempts'] ?: 3}")
+    public int ZENDESK_RETRY_MAX_ATTEMPTS = 3;
+
+    @Value("#{envPC['zendesk.retry.baseDelay'] ?: 200}")
+    public long ZENDESK_RETRY_BASE_DELAY = 200;
+
+    @Value("#{envPC['zendesk.retry.maxDelay'] ?: 5000}")
+    public long ZENDESK_RETRY_MAX_DELAY = 5000;
+
+    @Value("#{envPC['zendesk.circuit.failureThreshold'] ?: 5}")
+    public int ZENDESK_CIRCUIT_FAILURE_THRESHOLD = 5;
+
+    @Value("#{envPC['zendesk.circuit.openTime'] ?: 30000}")
+    public long ZENDESK_CIRCUIT_OPEN_TIME = 30000;
+
+    @Value("#{envPC['zendesk.batch.enabled'] ?: false}")
+    public boolean ZENDESK_BATCH_ENABLED = false;
+
+    @Value("#{envPC['zendesk.batch.maxSize'] ?: 100}")
+    public int ZENDESK_BATCH_MAX_SIZE = 100;
+
+    @Value("#{envPC['zendesk.batch.maxDelay'] ?: 200}")
+    public long ZENDESK_BATCH_MAX_DELAY = 200;
+
+    @Value("#{envPC['zendesk.idempotency.file'] ?: ''}")
+    public String ZENDESK_IDEMPOTENCY_FILE = "";
+
+    @Value("#{envPC['zendesk.idempotency.maxEntries'] ?: 10000}")
+    public int ZENDESK_IDEMPOTENCY_MAX_ENTRIES = 10000;
+
+    @Value("#{envPC['zendesk.outbox.dir'] ?: ''}")
+    public String ZENDESK_OUTBOX_DIR = "";
+
+    @Value("#{envPC['zendesk.outbox.segmentSize'] ?: 16777216}")
+    public int ZENDESK_OUTBOX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    @Value("#{envPC['zendesk.outbox.drain.interval'] ?: 5000}")
+    public long ZENDESK_OUTBOX_DRAIN_INTERVAL = 5000;
+
+    @Value("#{envPC['zendesk.outbox.drain.maxPerSecond'] ?: 5}")
+    public int ZENDESK_OUTBOX_DRAIN_MAX_PER_SECOND = 5;
+
+    @Value("#{envPC['tarjetas.cache.ttl'] ?: 600000}")
+    public long TARJETAS_CACHE_TTL = 600000;
+
+    @Value("#{envPC['tarjetas.cache.negativeTtl'] ?: 60000}")
+    public long TARJETAS_CACHE_NEGATIVE_TTL = 60000;
+
+    @Value("#{envPC['tarjetas.cache.refreshAhead'] ?: 120000}")
+    public long TARJETAS_CACHE_REFRESH_AHEAD = 120000;
+
+    @Value("#{envPC['tarjetas.cache.maxEntries'] ?: 10000}")
+    public int TARJETAS_CACHE_MAX_ENTRIES = 10000;
+
+    @Value("#{envPC['polizas.cache.ttl'] ?: 600000}")
+    public long POLIZAS_CACHE_TTL = 600000;
+
+    @Value("#{envPC['polizas.cache.maxEntries'] ?: 5000}")
+    public int POLIZAS_CACHE_MAX_ENTRIES = 5000;
+
+    @Value("#{envPC['bravo.cache.ttl'] ?: 300000}")
+    public long BRAVO_CACHE_TTL = 300000;
+
+    @Value("#{envPC['bravo.cache.negativeTtl'] ?: 30000}")
+    public long BRAVO_CACHE_NEGATIVE_TTL = 30000;
+
+    @Value("#{envPC['bravo.cache.refreshAhead'] ?: 60000}")
+    public long BRAVO_CACHE_REFRESH_AHEAD = 60000;
+
+    @Value("#{envPC['bravo.cache.maxStale'] ?: 600000}")
+    public long BRAVO_CACHE_MAX_STALE = 600000;
+
+    @Value("#{envPC['bravo.cache.maxEntries'] ?: 10000}")
+    public int BRAVO_CACHE_MAX_ENTRIES = 10000;
+
+    @Value("#{envPC['referencia.refresh.interval'] ?: 3600000}")
+    public long REFERENCIA_REFRESH_INTERVAL = 3600000;
+
+    @Value("#{envPC['zendesk.enrichment.threads'] ?: 8}")
+    public int ZENDESK_ENRICHMENT_THREADS = 8;
+
+    @Value("#{envPC['zendesk.enrichment.queue'] ?: 64}")
+    public int ZENDESK_ENRICHMENT_QUEUE = 64;
+
+    @Value("#{envPC['zendesk.enrichment.cliente.timeout'] ?: 10000}")
+    public long ZENDESK_ENRICHMENT_CLIENTE_TIMEOUT = 10000;
+
+    @Value("#{envPC['zendesk.enrichment.bravo.timeout'] ?: 10000}")
+    public long ZENDESK_ENRICHMENT_BRAVO_TIMEOUT = 10000;
+
+    @Value("#{envPC['zendesk.lookups.async'] ?: false}")
+    public boolean ZENDESK_LOOKUPS_ASYNC = false;
+
+    @Value("#{envPC['servicios.async.maxConnections'] ?: 100}")
+    public int SERVICIOS_ASYNC_MAX_CONNECTIONS = 100;
+
+    @Value("#{envPC['servicios.async.connectTimeout'] ?: 2000}")
+    public int SERVICIOS_ASYNC_CONNECT_TIMEOUT = 2000;
+
+    @Value("#{envPC['servicios.async.requestTimeout'] ?: 5000}")
+    public int SERVICIOS_ASYNC_REQUEST_TIMEOUT = 5000;
+
+    @Value("#{envPC['zendesk.alta.budget'] ?: 0}")
+    public long ZENDESK_ALTA_BUDGET = 0;
+
+    @Value("#{envPC['zendesk.alta.zendeskReserve'] ?: 1000}")
+    public long ZENDESK_ALTA_ZENDESK_RESERVE = 1000;
+
+    @Value("#{envPC['zendesk.bulkhead.tarjeta'] ?: '10:20:5000'}")
+    public String ZENDESK_BULKHEAD_TARJETA = "10:20:5000";
+
+    @Value("#{envPC['zendesk.bulkhead.bravo'] ?: '10:20:5000'}")
+    public String ZENDESK_BULKHEAD_BRAVO = "10:20:5000";
+
+    @Value("#{envPC['zendesk.bulkhead.ejb'] ?: '10:20:5000'}")
+    public String ZENDESK_BULKHEAD_EJB = "10:20:5000";
+
+    @Value("#{envPC['zendesk.bulkhead.zendesk'] ?: '20:40:60000'}")
+    public String ZENDESK_BULKHEAD_ZENDESK = "20:40:60000";
+
+    @Value("#{envPC['zendesk.bulkhead.email'] ?: '4:20:10000'}")
+    public String ZENDESK_BULKHEAD_EMAIL = "4:20:10000";
+
+    @Value("#{envPC['zendesk.cache.refreshThreads'] ?: 2}")
+    public int ZENDESK_CACHE_REFRESH_THREADS = 2;
+
+    @Value("#{envPC['zendesk.templates.compiled'] ?: false}")
+    public boolean ZENDESK_TEMPLATES_COMPILED = false;
+
+    private static final int COMPANIA_POLIZA = 1;
+    static final String TABLA_TIPOS_DOCUMENTO = "tiposDocumento";
+
+    // sistemas remotos, cada uno con su Bulkhead
+    private static final String SISTEMA_TARJETA = "tarjeta";
+    private static final String SISTEMA_BRAVO = "bravo";
+    private static final String SISTEMA_EJB = "ejb";
+    private static final String SISTEMA_ZENDESK = "zendesk";
+    private static final String SISTEMA_EMAIL = "email";
+
+    // claves de los datos que reunen los enriquecedores
+    private static final String DATO_USUARIO_ALTA = "usuarioAlta";
+    private static final String DATO_ID_CLIENTE = "idCliente";
+    private static final String DATO_CLIENTE = "cliente";
+    private static final String DATO_BRAVO = "datosBravo";
+
+    private static final ObjectMapper SERVICIO_MAPPER = new ObjectMapper()	// mapeador Jackson: Objetos <-> JSON
+            .enable(SerializationFeature.INDENT_OUTPUT);
+    private static final int MAX_BUFFER_PLANTILLAS = 16 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFER_PLANTILLAS = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(2048);
+        }
+    };
 
 
     /** The portalclientes web ejb remote. */
@@ -78,6 +304,10 @@ public class ZendeskService {
     // @Qualifier("portalclientesWebEJB")
     private PortalClientesWebEJBRemote portalclientesWebEJBRemote;
 
+    /** Cache de las consultas de referencia del EJB; ver {@link PortalClientesCacheConfiguration}. */
+    @Autowired(required = false)
+    private CachingProxy<PortalClientesWebEJBRemote> portalClientesCache;
+
     /** The rest template. */
     @Autowired
     @Qualifier("restTemplateUTF8")
@@ -87,10 +317,80 @@ public class ZendeskService {
     @Qualifier( "emailService" )
     MensajeriaService emailService;
     
-	private VelocityContext ctx;		// contexto de Velocity que se usara para el merge con las plantillas
-	private Template tplDatosUsuario;	// plantilla de datos Usuario
-	private Template tplDatosBravo;		// plantilla de datos Bravo
-	private Writer writer;				// Writer para almacenar la salida del merge de contexto y plantilla
+	private final TicketTemplates plantillas = TicketTemplates.load();	// plantillas compiladas una vez; cada peticion usa su propio contexto
+
+	private ZendeskConnectionPool zendeskPool;	// pool de conexiones HTTP compartido con Zendesk
+	private ExecutorService zendeskCallbackExecutor;	// hilos para los callbacks asincronos (p.ej. mail de error)
+	private volatile Zendesk zendesk;			// cliente Zendesk de larga duracion, creado en el primer uso
+	private volatile ZendeskTicketBatcher ticketBatcher;	// agrupador de tickets para create_many
+	private volatile ResilientZendesk resilientZendesk;	// reintentos y circuit breaker sobre el cliente Zendesk
+	private final AltaTicketMetrics metrics = new AltaTicketMetrics();	// latencias y errores por etapa
+	private volatile PlantillaTicket plantillaTicket;	// ticket base leido de PETICION_ZENDESK
+	private volatile TtlCache<String, String> cacheTarjetas;	// idCliente de cada tarjeta
+	private volatile LongLruCache<ResumenPoliza> cachePolizas;	// datos de tomador de cada poliza
+	private volatile TtlCache<String, ResumenBravo> cacheBravo;	// datos BRAVO de cada idCliente
+	private final SingleFlight<String, String> vuelosTarjeta = new SingleFlight<String, String>();	// consultas de tarjeta en curso
+	private final SingleFlight<Long, ResumenPoliza> vuelosPoliza = new SingleFlight<Long, ResumenPoliza>();	// consultas de poliza en curso
+	private final SingleFlight<String, ResumenBravo> vuelosBravo = new SingleFlight<String, ResumenBravo>();	// consultas de BRAVO en curso
+	private volatile PortalClientesWebEJBRemote portalClientes;	// EJB limitado por su Bulkhead
+	private volatile EnrichmentEngine enrichmentEngine;	// recolecta en paralelo los datos de los servicios externos
+	private ThreadPoolExecutor enrichmentExecutor;	// hilos acotados para los enriquecedores
+	private ZendeskConnectionPool lookupPool;	// pool de conexiones HTTP de las consultas no bloqueantes
+	private volatile AsyncLookupClient asyncLookupClient;	// consultas no bloqueantes a tarjetas y BRAVO
+	private volatile ValueCodeRegistry registroReferencia;	// tablas de referencia indexadas por codigo
+	private volatile Map<String, Bulkhead> bulkheads;	// hilos, cola y tiempo maximo de cada sistema remoto
+	private ExecutorService cacheRefreshExecutor;	// hilos para refrescar las caches por adelantado
+	private IdempotencyStore idempotencyStore;	// claves de idempotencia de las altas ya creadas
+	private volatile Outbox outbox;				// tickets pendientes de reenviar cuando Zendesk no esta disponible
+	private ZendeskOutboxDrainer outboxDrainer;	// reenvio en segundo plano de lo guardado en el outbox
+
+    /**
+     * Lee y valida la plantilla <code>zendesk.ticket</code>, para que un error en ella se vea al
+     * arrancar. Publica las caches del EJB y lanza en segundo plano su precarga. Abre el
+     * outbox de tickets pendientes, si esta configurado, y arranca su reenvio; lo que quedara
+     * pendiente de una ejecucion anterior se reenvia en cuanto Zendesk responda.
+     */
+    @PostConstruct
+    public synchronized void init() {
+        getPlantillaTicket();
+        final CachingProxy<PortalClientesWebEJBRemote> proxy = portalClientesCache;
+        if (proxy != null) {
+            for (Map.Entry<String, MeteredCache> cache : proxy.getCaches().entrySet()) {
+                metrics.registerCache("ejb." + cache.getKey(), cache.getValue());
+            }
+            getCacheRefreshExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    int precargadas = proxy.preload();
+                    LOG.info("Precargadas {} consultas de referencia de PortalClientesWeb", precargadas);
+                }
+            });
+        }
+        if (StringUtils.isBlank(ZENDESK_OUTBOX_DIR)) {
+            return;
+        }
+        try {
+            outbox = new Outbox.Builder(new File(ZENDESK_OUTBOX_DIR))
+                    .setSegmentSize(ZENDESK_OUTBOX_SEGMENT_SIZE)
+                    .build();
+        } catch (IOException e) {
+            LOG.error("No se ha podido abrir el outbox de Zendesk en " + ZENDESK_OUTBOX_DIR
+                    + "; los tickets fallidos se notificaran por mail", e);
+            return;
+        }
+        outboxDrainer = new ZendeskOutboxDrainer.Builder(outbox, getResilientZendesk())
+                .setIntervalMillis(ZENDESK_OUTBOX_DRAIN_INTERVAL)
+                .setMaxPerSecond(ZENDESK_OUTBOX_DRAIN_MAX_PER_SECOND)
+                .setRejectedTicketHandler(new ZendeskOutboxDrainer.RejectedTicketHandler() {
+                    @Override
+                    public void rejected(Ticket ticket, ZendeskException error) {
+                        String comentario = ticket.getComment() == null ? null : ticket.getComment().getBody();
+                        enviarMailError(new PeticionTicket(ticket, StringUtils.defaultString(comentario), "", null));
+                    }
+                })
+                .build();
+        outboxDrainer.start();
+    }
 
     /**
      * <p>Crea un ticket en Zendesk, recolectando información de distintas fuentes:
@@ -99,167 +399,987 @@ public class ZendeskService {
      * <li>servicio externo de polizas
      * <li>servicio externo de BRAVO
      * 
-     * <p>Si se produce un error en la generación del ticket, se envia un mail
+     * <p>Si se produce un error en la generación del ticket, se envia un mail. Si el error es
+     * transitorio y hay outbox configurado, el ticket se guarda en el outbox para reenviarlo despues.
      * 
      * @param usuarioAlta
      * @param userAgent
      * @return String 
      */
     public String altaTicketZendesk(UsuarioAlta usuarioAlta, String userAgent){
+        return altaTicketZendesk(usuarioAlta, userAgent, null);
+    }
+
+    /**
+     * <p>Igual que {@link #altaTicketZendesk(UsuarioAlta, String)}, pero con el identificador de
+     * peticion que asigna el cliente. La misma alta enviada de nuevo con el mismo identificador
+     * no crea un segundo ticket.
+     *
+     * @param usuarioAlta
+     * @param userAgent
+     * @param requestId identificador de la peticion; si es null se genera uno nuevo
+     * @return String
+     */
+    public String altaTicketZendesk(UsuarioAlta usuarioAlta, String userAgent, String requestId){
+        return altaTicketZendesk(usuarioAlta, userAgent, requestId, ZENDESK_ALTA_BUDGET);
+    }
+
+    /**
+     * <p>Igual que {@link #altaTicketZendesk(UsuarioAlta, String, String)}, pero sin pasar de
+     * <code>budgetMillis</code> en total. Cada llamada remota recibe solo el tiempo que queda (ver
+     * {@link Deadline}) y lo que no puede terminar a tiempo se cancela. Las consultas de tarjeta,
+     * poliza y BRAVO dejan <code>zendesk.alta.zendeskReserve</code> para crear el ticket; si aun asi
+     * no queda tiempo para Zendesk, el ticket se trata como un fallo transitorio (outbox o mail).
+     *
+     * @param usuarioAlta
+     * @param userAgent
+     * @param requestId identificador de la peticion; si es null se genera uno nuevo
+     * @param budgetMillis tiempo total disponible; 0 o negativo para no limitarlo
+     * @return String
+     */
+    public String altaTicketZendesk(UsuarioAlta usuarioAlta, String userAgent, String requestId, long budgetMillis){
+        Deadline anterior = Deadline.enter(budgetMillis > 0 ? Deadline.after(budgetMillis) : Deadline.current());
+        try {
+            final PeticionTicket peticion = prepararPeticion(usuarioAlta, userAgent, requestId);
 
-        ObjectMapper mapper = new ObjectMapper();	// mapeador Jackson: Objetos <-> JSON
-        mapper.enable(SerializationFeature.INDENT_OUTPUT);
+            long inicio = System.nanoTime();
+            try{
+                //Ticket: en este hilo, que esperaria la respuesta de todos modos
+                getBulkhead(SISTEMA_ZENDESK).callInCaller(new Callable<Ticket>() {
+                    @Override
+                    public Ticket call() {
+                        return getResilientZendesk().createTicket(peticion.ticket, peticion.idempotencyKey);
+                    }
+                });
+                metrics.record(Stage.ZENDESK, inicio, true);
 
-        String idCliente = null;
+            }catch(Exception e){
+                metrics.record(Stage.ZENDESK, inicio, false);
+                LOG.error("Error al crear ticket ZENDESK", e);
+                tratarFallo(peticion, e);
+            }
 
-        StringBuilder clientName = new StringBuilder();
-        
+            return peticion.getDatos();
+        } finally {
+            Deadline.restore(anterior);
+        }
+    }
+
+    /**
+     * <p>Version asincrona de {@link #altaTicketZendesk(UsuarioAlta, String)}.
+     *
+     * <p>La recoleccion de datos se hace en el hilo llamante; el envio a Zendesk no lo bloquea.
+     * El futuro se completa con los mismos datos que devuelve la version sincrona cuando Zendesk
+     * responde o, si falla, tras enviar el mail de error. Si <code>zendesk.batch.enabled</code>
+     * esta activo, el ticket se agrupa con otros en una peticion <code>create_many</code>.
+     *
+     * @param usuarioAlta
+     * @param userAgent
+     * @return ListenableFuture<String>
+     */
+    public ListenableFuture<String> altaTicketZendeskAsync(UsuarioAlta usuarioAlta, String userAgent){
+        return altaTicketZendeskAsync(usuarioAlta, userAgent, null);
+    }
+
+    /**
+     * Version asincrona de {@link #altaTicketZendesk(UsuarioAlta, String, String)}. Con
+     * <code>zendesk.lookups.async</code> tampoco las consultas de tarjeta y BRAVO ocupan un hilo
+     * mientras esperan: todo el alta se encadena por callbacks (ver {@link AltaAsync}).
+     *
+     * @param usuarioAlta
+     * @param userAgent
+     * @param requestId identificador de la peticion; si es null se genera uno nuevo
+     * @return ListenableFuture<String>
+     */
+    public ListenableFuture<String> altaTicketZendeskAsync(UsuarioAlta usuarioAlta, String userAgent, String requestId){
+        if (ZENDESK_LOOKUPS_ASYNC) {
+            return new AltaAsync(usuarioAlta, userAgent, requestId).iniciar();
+        }
+        return enviarAsync(prepararPeticion(usuarioAlta, userAgent, requestId));
+    }
+
+    /**
+     * Envia a Zendesk una peticion ya compuesta sin esperar la respuesta.
+     */
+    private ListenableFuture<String> enviarAsync(final PeticionTicket peticion){
+        final SettableListenableFuture<String> resultado = new SettableListenableFuture<String>();
+
+        final long inicio = System.nanoTime();
+        ListenableFuture<?> envio;
+        try{
+            Ticket petiZendesk = peticion.ticket;
+            envio = ZENDESK_BATCH_ENABLED ? enviarEnLote(petiZendesk, peticion.idempotencyKey)
+                    : getResilientZendesk().createTicketAsync(petiZendesk, peticion.idempotencyKey);
+        }catch(Exception e){
+            metrics.record(Stage.ZENDESK, inicio, false);
+            LOG.error("Error al crear ticket ZENDESK", e);
+            enviarMailError(peticion);
+            resultado.set(peticion.getDatos());
+            return resultado;
+        }
+
+        envio.addCallback(new ListenableFutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object creado) {
+                metrics.record(Stage.ZENDESK, inicio, true);
+                resultado.set(peticion.getDatos());
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                metrics.record(Stage.ZENDESK, inicio, false);
+                LOG.error("Error al crear ticket ZENDESK", e);
+                tratarFallo(peticion, e);
+                resultado.set(peticion.getDatos());
+            }
+        });
+        return resultado;
+    }
+
+    /**
+     * Agrupa el ticket con otros en un <code>create_many</code>. Como Zendesk no admite clave de
+     * idempotencia por ticket en los lotes, la comprobacion y el registro de la clave se hacen aqui.
+     */
+    private ListenableFuture<Long> enviarEnLote(Ticket ticket, final String idempotencyKey) {
+        final IdempotencyStore store = getResilientZendesk().getIdempotencyStore();
+        Long existente = store == null ? null : store.get(idempotencyKey);
+        if (existente != null) {
+            SettableListenableFuture<Long> creado = new SettableListenableFuture<Long>();
+            creado.set(existente);
+            return creado;
+        }
+        ListenableFuture<Long> envio = getTicketBatcher().submit(ticket);
+        if (store != null) {
+            envio.addCallback(new ListenableFutureCallback<Long>() {
+                @Override
+                public void onSuccess(Long id) {
+                    store.put(idempotencyKey, id);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                }
+            });
+        }
+        return envio;
+    }
+
+    /**
+     * Recolecta los datos de todas las fuentes y compone la peticion de ticket.
+     */
+    private PeticionTicket prepararPeticion(UsuarioAlta usuarioAlta, String userAgent, String requestId){
+
+        //===============================================================
+        // recolecta de datos de TARJETA o POLIZA y de BRAVO de servicios externos, en paralelo
+        // donde no dependen unos de otros (ver getEnrichmentEngine)
+
+        Map<String, Object> entrada = new HashMap<String, Object>();
+        entrada.put(DATO_USUARIO_ALTA, usuarioAlta);
+        Deadline deadline = Deadline.current();
+        Deadline anterior = Deadline.enter(deadline == null ? null : deadline.minusMillis(ZENDESK_ALTA_ZENDESK_RESERVE));
+        EnrichmentResult datos;
         try {
-			initVelocity();
-		} catch (Exception e) {
-			LOG.error("Error on Velocity initialization", e);
-		}
+            datos = getEnrichmentEngine().run(entrada);
+        } finally {
+            Deadline.restore(anterior);
+        }
+
+        return componerPeticion(usuarioAlta, userAgent, requestId, datos.get(DATO_CLIENTE, Cliente.class),
+                datos.get(DATO_BRAVO, ResumenBravo.class));
+    }
+
+    /**
+     * Compone la peticion de ticket con los datos del formulario y los ya obtenidos de los servicios.
+     *
+     * @param cliente cliente de la tarjeta o de la poliza, o null si no se ha obtenido
+     * @param bravo datos BRAVO del cliente, o null si no se han obtenido
+     */
+    private PeticionTicket componerPeticion(UsuarioAlta usuarioAlta, String userAgent, String requestId,
+            Cliente cliente, ResumenBravo bravo){
+
+        String idempotencyKey = IdempotencyKeys.of(usuarioAlta,
+                requestId != null ? requestId : UUID.randomUUID().toString());
+
+        TicketModel modelo = componerModelo(usuarioAlta, userAgent, bravo);
+
+        //====================================================================
+        // MERGE de plantillas
+        
+        String datosUsuarioStr = mergeTemplate(plantillas.getDatosUsuarioRenderer(ZENDESK_TEMPLATES_COMPILED), modelo);
+        String datosBravoStr = mergeTemplate(plantillas.getDatosBravoRenderer(ZENDESK_TEMPLATES_COMPILED), modelo);
+        
+        //====================================================================
+        // composicion y GENERACION del TICKET. Envio de mail en caso de error
+
+        String clientName = cliente == null ? "" : cliente.nombre;
+        String datosServicio = cliente == null ? "" : cliente.datosServicio;
+        long inicioTicket = System.nanoTime();
+        Ticket ticket = new Ticket.Builder(getPlantillaTicket())
+                .setRequester(clientName, usuarioAlta.getEmail())
+                .setComment(TicketSanitizer.comentarioTicket(datosUsuarioStr, datosBravoStr, datosServicio))
+                .build();
+        metrics.record(Stage.TICKET, inicioTicket, true);
+
+        return new PeticionTicket(ticket, datosUsuarioStr, datosBravoStr, idempotencyKey);
+    }
+
+    /**
+     * Datos de una peticion para las plantillas del ticket: los del formulario y los de BRAVO.
+     *
+     * @param bravo datos BRAVO del cliente, o null si no se han obtenido
+     * @return TicketModel
+     */
+    TicketModel componerModelo(UsuarioAlta usuarioAlta, String userAgent, ResumenBravo bravo) {
+        TicketModel modelo = new TicketModel();
 
         //===============================================================
         // recolecta de DATOS DE ENTRADA: usuarioAlta & userAgent
         
         boolean isPoliza = StringUtils.isNotBlank(usuarioAlta.getNumPoliza());
-        ctx.put("isPoliza", isPoliza);
+        modelo.put(Campo.IS_POLIZA, isPoliza);
         // Añade los datos del formulario
         if(isPoliza){
-        	ctx.put("numPoliza", usuarioAlta.getNumPoliza());
-        	ctx.put("numDocAcreditativo", usuarioAlta.getNumDocAcreditativo());
+        	modelo.put(Campo.NUM_POLIZA, usuarioAlta.getNumPoliza());
+        	modelo.put(Campo.NUM_DOC_ACREDITATIVO, usuarioAlta.getNumDocAcreditativo());
         }else{
-        	ctx.put("numTarjeta", usuarioAlta.getNumTarjeta());
+        	modelo.put(Campo.NUM_TARJETA, usuarioAlta.getNumTarjeta());
         }
-        ctx.put("tipoDocAcreditativo", usuarioAlta.getTipoDocAcreditativo());
-        ctx.put("numDocAcreditativo", usuarioAlta.getNumDocAcreditativo());
-        ctx.put("email", usuarioAlta.getEmail());
-        ctx.put("numeroTelefono", usuarioAlta.getNumeroTelefono());
-        ctx.put("userAgent", userAgent);
+        modelo.put(Campo.TIPO_DOC_ACREDITATIVO, usuarioAlta.getTipoDocAcreditativo());
+        modelo.put(Campo.NUM_DOC_ACREDITATIVO, usuarioAlta.getNumDocAcreditativo());
+        modelo.put(Campo.EMAIL, usuarioAlta.getEmail());
+        modelo.put(Campo.NUMERO_TELEFONO, usuarioAlta.getNumeroTelefono());
+        modelo.put(Campo.USER_AGENT, userAgent);
 
         //===============================================================
-        // recolecta de datos de TARJETA y POLIZA de servicios externos
+        // datos de BRAVO ya recolectados
 
-        StringBuilder datosServicio = new StringBuilder();
-        // Obtiene el idCliente de la tarjeta
-        if(StringUtils.isNotBlank(usuarioAlta.getNumTarjeta())){
-            try{
-                String urlToRead = TARJETAS_GETDATOS + usuarioAlta.getNumTarjeta();
-                ResponseEntity<String> res = restTemplate.getForEntity( urlToRead, String.class);
-                if(res.getStatusCode() == HttpStatus.OK){
-                	idCliente = res.getBody();
-                    clientName.append(idCliente);
-                    datosServicio.append("Datos recuperados del servicio de tarjeta:").append(ESCAPED_LINE_SEPARATOR).append(mapper.writeValueAsString(idCliente));
-                }
-            }catch(Exception e)
-            {
-                LOG.error("Error al obtener los datos de la tarjeta", e);
-            }
+        if (bravo != null) {
+            modelo.put(Campo.GEN_T_GRUPO_TMK, bravo.getGenTGrupoTmk());
+            modelo.put(Campo.FECHA_NACIMIENTO, bravo.getFechaNacimiento());
+            modelo.put(Campo.TIPOS_DOCUMENTOS_CLIENTE,
+                    getRegistroReferencia().valores(TABLA_TIPOS_DOCUMENTO, bravo.getGenCTipoDocumento()));
+            modelo.put(Campo.NUMERO_DOC_ACRED, bravo.getNumeroDocAcred());
+            modelo.put(Campo.TIPO_CLIENTE, bravo.getTipoCliente());
+            modelo.put(Campo.GEN_T_STATUS, bravo.getGenTStatus());
+            modelo.put(Campo.ID_MOTIVO_ALTA, bravo.getIdMotivoAlta());
+            modelo.put(Campo.F_INACTIVO_WEB, bravo.isInactivoWeb() ? "No" : "SÍ");
         }
-        else if(StringUtils.isNotBlank(usuarioAlta.getNumPoliza())){
-            try
-            {
-                Poliza poliza = new Poliza();
-                poliza.setNumPoliza(Integer.valueOf(usuarioAlta.getNumPoliza()));
-                poliza.setNumColectivo(Integer.valueOf(usuarioAlta.getNumDocAcreditativo()));
-                poliza.setCompania(1);
-
-                PolizaBasico polizaBasicoConsulta = new PolizaBasicoFromPolizaBuilder().withPoliza( poliza ).build();
-
-                final DetallePoliza detallePolizaResponse = portalclientesWebEJBRemote.recuperarDatosPoliza(polizaBasicoConsulta);
-                DatosPersonales tomador = detallePolizaResponse.getTomador();
-                clientName.append(tomador.getNombre()).append(" ").append(tomador.getApellido1()).append(" ").append(tomador.getApellido2());
-                idCliente = tomador.getIdentificador();
-                datosServicio.append("Datos recuperados del servicio de tarjeta:").append(ESCAPED_LINE_SEPARATOR).append(mapper.writeValueAsString(detallePolizaResponse));
-            }catch(Exception e)
-            {
-                LOG.error("Error al obtener los datos de la poliza", e);
+        return modelo;
+    }
+
+    /**
+     * Guarda el ticket en el outbox si el fallo es transitorio; si no, o si no se puede guardar,
+     * envia el mail de error.
+     */
+    private void tratarFallo(PeticionTicket peticion, Throwable e) {
+        Outbox actual = outbox;
+        if (actual != null && esTransitorio(e)) {
+            try {
+                actual.append(ZendeskOutboxDrainer.encode(peticion.idempotencyKey, getZendesk().json(peticion.ticket)));
+                LOG.info("Ticket guardado en el outbox para reenviarlo a Zendesk");
+                return;
+            } catch (Exception ex) {
+                LOG.error("Error al guardar el ticket en el outbox", ex);
             }
         }
+        enviarMailError(peticion);
+    }
 
-        //===============================================================
-        // recolecta de DATOS BRAVO de servicio externo
-        
+    private static boolean esTransitorio(Throwable e) {
+        if (e instanceof BulkheadFullException || e instanceof TimeoutException) {
+            return true;
+        }
+        if (!(e instanceof ZendeskException)) {
+            return false;
+        }
+        switch (((ZendeskException) e).getKind()) {
+        case IO:
+        case SERVER_ERROR:
+        case RATE_LIMITED:
+        case CIRCUIT_OPEN:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Envia el mail de aviso con los datos del ticket que no se ha podido crear. Es el ultimo
+     * recurso para no perder el alta, asi que no se limita al deadline de la peticion.
+     */
+    private void enviarMailError(PeticionTicket peticion) {
+        Deadline anterior = Deadline.enter(null);
+        try {
+            enviarMail(peticion);
+        } finally {
+            Deadline.restore(anterior);
+        }
+    }
+
+    private void enviarMail(PeticionTicket peticion) {
+        final CorreoElectronico correo = new CorreoElectronico( Long.parseLong(ZENDESK_ERROR_MAIL_FUNCIONALIDAD), "es" )
+                .addParam(TicketSanitizer.html(peticion.datosUsuario))
+                .addParam(TicketSanitizer.html(peticion.datosBravo));
+        correo.setEmailA( ZENDESK_ERROR_DESTINATARIO );
+        long inicio = System.nanoTime();
         try
         {
-            // Obtenemos los datos del cliente
-            DatosCliente cliente = restTemplate.getForObject("http://localhost:8080/test-endpoint", DatosCliente.class, idCliente);
-
-            ctx.put("genTGrupoTmk", cliente.getGenTGrupoTmk());
-            ctx.put("fechaNacimiento", formatter.format(formatter.parse(cliente.getFechaNacimiento())));
-
-            List< ValueCode > tiposDocumentos = getTiposDocumentosRegistro();
-            String genCTipoDDocumento = cliente.getGenCTipoDocumento().toString();
-            List<String> tiposDocumentosCliente = new ArrayList<String>();
-            for (ValueCode vc: tiposDocumentos) {
-            	if (vc.getCode().equals(genCTipoDDocumento) ) {
-            		tiposDocumentosCliente.add(vc.getValue());
-            	}
+            getBulkhead(SISTEMA_EMAIL).call(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    emailService.enviar( correo );
+                    return null;
+                }
+            });
+            metrics.record(Stage.EMAIL, inicio, true);
+        }catch(Exception ex){
+            metrics.record(Stage.EMAIL, inicio, false);
+            LOG.error("Error al enviar mail", ex);
+        }
+    }
+
+    /**
+     * Devuelve el cliente Zendesk compartido, creandolo junto a su pool de conexiones en el primer uso.
+     *
+     * @return Zendesk
+     */
+    Zendesk getZendesk() {
+        Zendesk result = zendesk;
+        if (result == null) {
+            synchronized (this) {
+                result = zendesk;
+                if (result == null) {
+                    zendeskPool = new ZendeskConnectionPool.Builder()
+                            .setMaxConnections(ZENDESK_POOL_MAX_CONNECTIONS)
+                            .setMaxConnectionsPerHost(ZENDESK_POOL_MAX_CONNECTIONS_PER_HOST)
+                            .setConnectTimeout(ZENDESK_POOL_CONNECT_TIMEOUT)
+                            .setRequestTimeout(ZENDESK_POOL_REQUEST_TIMEOUT)
+                            .setPooledConnectionIdleTimeout(ZENDESK_POOL_IDLE_TIMEOUT)
+                            .build();
+                    zendeskCallbackExecutor = Executors.newFixedThreadPool(ZENDESK_CALLBACK_THREADS,
+                            new CustomizableThreadFactory("zendesk-callback-"));
+                    result = new Zendesk.Builder(URL_ZENDESK).setConnectionPool(zendeskPool)
+                            .setCallbackExecutor(zendeskCallbackExecutor)
+                            .setRateLimiter(new ZendeskRateLimiter.Builder()
+                                    .setRequestsPerMinute(ZENDESK_RATE_LIMIT_RPM)
+                                    .setMaxQueueDelayMillis(ZENDESK_RATE_LIMIT_MAX_QUEUE_DELAY)
+                                    .build())
+                            .setUsername(ZENDESK_USER).setToken(TOKEN_ZENDESK).build();
+                    zendesk = result;
+                }
             }
-            ctx.put("tiposDocumentosCliente", tiposDocumentosCliente);
-            ctx.put("numeroDocAcred", cliente.getNumeroDocAcred());
-
-            String tipoCliente;
-            switch (cliente.getGenTTipoCliente()) {
-            case 1:
-            	tipoCliente = "POTENCIAL";
-                break;
-            case 2:
-            	tipoCliente = "REAL";
-                break;
-            case 3:
-            	tipoCliente = "PROSPECTO";
-                break;
-            default: 
-            	tipoCliente = "";  // TODO: Validar
+        }
+        return result;
+    }
+
+    /**
+     * Devuelve el cliente Zendesk con reintentos y circuit breaker, creandolo en el primer uso.
+     *
+     * @return ResilientZendesk
+     */
+    ResilientZendesk getResilientZendesk() {
+        ResilientZendesk result = resilientZendesk;
+        if (result == null) {
+            Zendesk cliente = getZendesk();
+            synchronized (this) {
+                result = resilientZendesk;
+                if (result == null) {
+                    idempotencyStore = crearIdempotencyStore();
+                    result = new ResilientZendesk.Builder(cliente)
+                            .setIdempotencyStore(idempotencyStore)
+                            .setMaxAttempts(ZENDESK_RETRY_MAX_ATTEMPTS)
+                            .setBaseDelayMillis(ZENDESK_RETRY_BASE_DELAY)
+                            .setMaxDelayMillis(ZENDESK_RETRY_MAX_DELAY)
+                            .setFailureThreshold(ZENDESK_CIRCUIT_FAILURE_THRESHOLD)
+                            .setOpenMillis(ZENDESK_CIRCUIT_OPEN_TIME)
+                            .build();
+                    resilientZendesk = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private IdempotencyStore crearIdempotencyStore() {
+        IdempotencyStore.Builder builder = new IdempotencyStore.Builder().setMaxEntries(ZENDESK_IDEMPOTENCY_MAX_ENTRIES);
+        if (StringUtils.isNotBlank(ZENDESK_IDEMPOTENCY_FILE)) {
+            try {
+                return builder.setFile(new File(ZENDESK_IDEMPOTENCY_FILE)).build();
+            } catch (IOException e) {
+                LOG.error("No se ha podido abrir " + ZENDESK_IDEMPOTENCY_FILE
+                        + "; las claves de idempotencia se guardaran solo en memoria", e);
+                builder.setFile(null);
             }
-            ctx.put("tipoCliente", tipoCliente);
-            ctx.put("genTStatus", cliente.getGenTStatus());
-            ctx.put("idMotivoAlta", cliente.getIdMotivoAlta());
-            ctx.put("fInactivoWeb", cliente.getfInactivoWeb() == null ? "SÍ" : "No");
+        }
+        try {
+            return builder.build();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);	// sin fichero no hay E/S
+        }
+    }
 
+    /**
+     * Devuelve la cache tarjeta -> idCliente, creandola en el primer uso. Las tarjetas que el
+     * servicio no reconoce se recuerdan como negativas durante <code>tarjetas.cache.negativeTtl</code>.
+     * Los fallos de cache simultaneos de la misma tarjeta se agrupan en una sola consulta.
+     *
+     * @return TtlCache
+     */
+    TtlCache<String, String> getCacheTarjetas() {
+        TtlCache<String, String> result = cacheTarjetas;
+        if (result == null) {
+            synchronized (this) {
+                result = cacheTarjetas;
+                if (result == null) {
+                    result = new TtlCache.Builder<String, String>("tarjeta", new TtlCache.Loader<String, String>() {
+                        @Override
+                        public String load(final String numTarjeta) throws Exception {
+                            return vuelosTarjeta.execute(numTarjeta, new Callable<String>() {
+                                @Override
+                                public String call() throws Exception {
+                                    return consultarTarjeta(numTarjeta);
+                                }
+                            });
+                        }
+                    })
+                            .setMaxEntries(TARJETAS_CACHE_MAX_ENTRIES)
+                            .setTtlMillis(TARJETAS_CACHE_TTL)
+                            .setNegativeTtlMillis(TARJETAS_CACHE_NEGATIVE_TTL)
+                            .setRefreshAheadMillis(TARJETAS_CACHE_REFRESH_AHEAD)
+                            .setRefreshExecutor(getCacheRefreshExecutor())
+                            .build();
+                    metrics.registerCache("tarjeta", result);
+                    metrics.registerSingleFlight("tarjeta", vuelosTarjeta);
+                    cacheTarjetas = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Devuelve la cache de polizas, creandola en el primer uso. La clave es la poliza empaquetada
+     * con {@link ResumenPoliza#clave(int, int, int)}.
+     *
+     * @return LongLruCache
+     */
+    LongLruCache<ResumenPoliza> getCachePolizas() {
+        LongLruCache<ResumenPoliza> result = cachePolizas;
+        if (result == null) {
+            synchronized (this) {
+                result = cachePolizas;
+                if (result == null) {
+                    result = new LongLruCache<ResumenPoliza>(POLIZAS_CACHE_MAX_ENTRIES, POLIZAS_CACHE_TTL);
+                    metrics.registerCache("poliza", result);
+                    metrics.registerSingleFlight("poliza", vuelosPoliza);
+                    cachePolizas = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Consulta el idCliente de la tarjeta en el servicio de tarjetas.
+     *
+     * @return idCliente, o null si el servicio no conoce la tarjeta
+     */
+    private String consultarTarjeta(final String numTarjeta) throws Exception {
+        return getBulkhead(SISTEMA_TARJETA).call(new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    ResponseEntity<String> res = restTemplate.getForEntity( TARJETAS_GETDATOS + numTarjeta, String.class);
+                    return res.getStatusCode() == HttpStatus.OK && StringUtils.isNotBlank(res.getBody()) ? res.getBody() : null;
+                } catch (HttpClientErrorException e) {
+                    if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                        return null;
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Devuelve la cache idCliente -> datos BRAVO, creandola en el primer uso. Las entradas se
+     * refrescan en segundo plano antes de caducar y, si BRAVO no responde, se siguen sirviendo
+     * durante <code>bravo.cache.maxStale</code>.
+     * Los fallos de cache simultaneos del mismo cliente se agrupan en una sola consulta.
+     *
+     * @return TtlCache
+     */
+    TtlCache<String, ResumenBravo> getCacheBravo() {
+        TtlCache<String, ResumenBravo> result = cacheBravo;
+        if (result == null) {
+            synchronized (this) {
+                result = cacheBravo;
+                if (result == null) {
+                    result = new TtlCache.Builder<String, ResumenBravo>("bravo", new TtlCache.Loader<String, ResumenBravo>() {
+                        @Override
+                        public ResumenBravo load(final String idCliente) throws Exception {
+                            return vuelosBravo.execute(idCliente, new Callable<ResumenBravo>() {
+                                @Override
+                                public ResumenBravo call() throws Exception {
+                                    return consultarBravo(idCliente);
+                                }
+                            });
+                        }
+                    })
+                            .setMaxEntries(BRAVO_CACHE_MAX_ENTRIES)
+                            .setTtlMillis(BRAVO_CACHE_TTL)
+                            .setNegativeTtlMillis(BRAVO_CACHE_NEGATIVE_TTL)
+                            .setRefreshAheadMillis(BRAVO_CACHE_REFRESH_AHEAD)
+                            .setMaxStaleMillis(BRAVO_CACHE_MAX_STALE)
+                            .setRefreshExecutor(getCacheRefreshExecutor())
+                            .build();
+                    metrics.registerCache("bravo", result);
+                    metrics.registerSingleFlight("bravo", vuelosBravo);
+                    cacheBravo = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Consulta los datos del cliente en BRAVO.
+     *
+     * @return los datos que usa el ticket, o null si BRAVO no devuelve el cliente
+     */
+    private ResumenBravo consultarBravo(final String idCliente) throws Exception {
+        DatosCliente cliente = getBulkhead(SISTEMA_BRAVO).call(new Callable<DatosCliente>() {
+            @Override
+            public DatosCliente call() {
+                return restTemplate.getForObject(BRAVO_GETDATOS, DatosCliente.class, idCliente);
+            }
+        });
+        return cliente == null ? null : ResumenBravo.of(cliente);
+    }
+
+    /**
+     * Consulta el tomador de la poliza del formulario en el EJB, o en la cache de polizas. Las
+     * consultas simultaneas de la misma poliza se agrupan en una sola llamada al EJB.
+     *
+     * @return el cliente, o null si no se ha podido obtener
+     */
+    private Cliente consultarPoliza(UsuarioAlta usuarioAlta) {
+        long inicio = System.nanoTime();
+        try
+        {
+            final int numPoliza = Integer.parseInt(usuarioAlta.getNumPoliza());
+            final int numColectivo = Integer.parseInt(usuarioAlta.getNumDocAcreditativo());
+            final long clave = ResumenPoliza.clave(COMPANIA_POLIZA, numPoliza, numColectivo);
+            ResumenPoliza resumen;
+            if (clave == ResumenPoliza.SIN_CLAVE) {
+                resumen = recuperarDatosPoliza(numPoliza, numColectivo);
+            } else {
+                resumen = getCachePolizas().get(clave);
+                if (resumen == null) {
+                    resumen = vuelosPoliza.execute(clave, new Callable<ResumenPoliza>() {
+                        @Override
+                        public ResumenPoliza call() throws Exception {
+                            ResumenPoliza consultado = recuperarDatosPoliza(numPoliza, numColectivo);
+                            getCachePolizas().put(clave, consultado);
+                            return consultado;
+                        }
+                    });
+                }
+            }
+            metrics.record(Stage.POLIZA, inicio, true);
+            return Cliente.dePoliza(resumen);
         }catch(Exception e)
         {
-            LOG.error("Error al obtener los datos en BRAVO del cliente", e);
+            metrics.record(Stage.POLIZA, inicio, false);
+            LOG.error("Error al obtener los datos de la poliza", e);
+            return null;
         }
+    }
 
-        //====================================================================
-        // MERGE de plantillas
-        
-        String datosUsuarioStr = mergeTemplate(tplDatosUsuario, ctx);
-        String datosBravoStr = mergeTemplate(tplDatosBravo, ctx);
-        
-        //====================================================================
-        // composicion y GENERACION del TICKET. Envio de mail en caso de error
+    private ResumenPoliza recuperarDatosPoliza(int numPoliza, int numColectivo) throws JsonProcessingException {
+        Poliza poliza = new Poliza();
+        poliza.setNumPoliza(numPoliza);
+        poliza.setNumColectivo(numColectivo);
+        poliza.setCompania(COMPANIA_POLIZA);
 
-        String ticket = String.format(PETICION_ZENDESK, clientName.toString(), usuarioAlta.getEmail(), datosUsuarioStr + datosBravoStr +
-                parseJsonBravo(datosServicio));
-        ticket = ticket.replaceAll("["+ESCAPED_LINE_SEPARATOR+"]", " ");
+        PolizaBasico polizaBasicoConsulta = new PolizaBasicoFromPolizaBuilder().withPoliza( poliza ).build();
 
-        try(Zendesk zendesk = new Zendesk.Builder(URL_ZENDESK).setUsername(ZENDESK_USER).setToken(TOKEN_ZENDESK).build()){
-            //Ticket
-            Ticket petiZendesk = mapper.readValue(ticket, Ticket.class);
-            zendesk.createTicket(petiZendesk);
+        final DetallePoliza detallePolizaResponse = getPortalClientes().recuperarDatosPoliza(polizaBasicoConsulta);
+        return ResumenPoliza.of(detallePolizaResponse, SERVICIO_MAPPER);
+    }
 
-        }catch(Exception e){
-            LOG.error("Error al crear ticket ZENDESK", e);
-            
-            // Send email
-            CorreoElectronico correo = new CorreoElectronico( Long.parseLong(ZENDESK_ERROR_MAIL_FUNCIONALIDAD), "es" )
-                    .addParam(datosUsuarioStr.replaceAll(ESCAPE_ER+ESCAPED_LINE_SEPARATOR, HTML_BR))
-                    .addParam(datosBravoStr.replaceAll(ESCAPE_ER+ESCAPED_LINE_SEPARATOR, HTML_BR));
-            correo.setEmailA( ZENDESK_ERROR_DESTINATARIO );
-            try
-            {
-                emailService.enviar( correo );
-            }catch(Exception ex){
-                LOG.error("Error al enviar mail", ex);
+    /**
+     * Version no bloqueante de la consulta del cliente: la tarjeta se consulta con
+     * {@link AsyncLookupClient}; la poliza, que es una llamada al EJB, en los hilos de los
+     * enriquecedores. Nunca falla: si no se puede obtener el cliente el futuro se completa con null.
+     */
+    private ListenableFuture<Cliente> consultarClienteAsync(final UsuarioAlta usuarioAlta) {
+        final SettableListenableFuture<Cliente> result = new SettableListenableFuture<Cliente>();
+        if (StringUtils.isNotBlank(usuarioAlta.getNumTarjeta())) {
+            final long inicio = System.nanoTime();
+            final TtlCache.AsyncLoader<String, String> servicio = new TtlCache.AsyncLoader<String, String>() {
+                @Override
+                public ListenableFuture<String> load(String numTarjeta) {
+                    return getAsyncLookupClient().consultarTarjeta(numTarjeta);
+                }
+            };
+            ListenableFuture<String> idCliente = getCacheTarjetas().getAsync(usuarioAlta.getNumTarjeta(),
+                    new TtlCache.AsyncLoader<String, String>() {
+                        @Override
+                        public ListenableFuture<String> load(String numTarjeta) {
+                            return vuelosTarjeta.executeAsync(numTarjeta, servicio);
+                        }
+                    });
+            idCliente.addCallback(new ListenableFutureCallback<String>() {
+                @Override
+                public void onSuccess(String idCliente) {
+                    try {
+                        result.set(idCliente == null ? null : Cliente.deTarjeta(idCliente));
+                        metrics.record(Stage.TARJETA, inicio, idCliente != null);
+                    } catch (Exception e) {
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    metrics.record(Stage.TARJETA, inicio, false);
+                    LOG.error("Error al obtener los datos de la tarjeta", e);
+                    result.set(null);
+                }
+            });
+        } else if (StringUtils.isNotBlank(usuarioAlta.getNumPoliza())) {
+            ListenableFutureTask<Cliente> consulta = new ListenableFutureTask<Cliente>(new Callable<Cliente>() {
+                @Override
+                public Cliente call() {
+                    return consultarPoliza(usuarioAlta);
+                }
+            });
+            try {
+                getEnrichmentExecutor().execute(consulta);
+            } catch (RejectedExecutionException e) {
+                consulta.run();
+            }
+            return consulta;
+        } else {
+            result.set(null);
+        }
+        return result;
+    }
+
+    /**
+     * Version no bloqueante de la consulta de BRAVO, a traves de la cache. Nunca falla: si no se
+     * pueden obtener los datos el futuro se completa con null.
+     */
+    private ListenableFuture<ResumenBravo> consultarBravoAsync(final String idCliente) {
+        final SettableListenableFuture<ResumenBravo> result = new SettableListenableFuture<ResumenBravo>();
+        final long inicio = System.nanoTime();
+        final TtlCache.AsyncLoader<String, ResumenBravo> servicio = new TtlCache.AsyncLoader<String, ResumenBravo>() {
+            @Override
+            public ListenableFuture<ResumenBravo> load(String id) {
+                return new ListenableFutureAdapter<ResumenBravo, DatosCliente>(getAsyncLookupClient().consultarBravo(id)) {
+                    @Override
+                    protected ResumenBravo adapt(DatosCliente cliente) throws ExecutionException {
+                        try {
+                            return cliente == null ? null : ResumenBravo.of(cliente);
+                        } catch (ParseException e) {
+                            throw new ExecutionException(e);
+                        }
+                    }
+                };
+            }
+        };
+        ListenableFuture<ResumenBravo> consulta = idCliente == null ? servicio.load(null)
+                : getCacheBravo().getAsync(idCliente, new TtlCache.AsyncLoader<String, ResumenBravo>() {
+                    @Override
+                    public ListenableFuture<ResumenBravo> load(String id) {
+                        return vuelosBravo.executeAsync(id, servicio);
+                    }
+                });
+        consulta.addCallback(new ListenableFutureCallback<ResumenBravo>() {
+            @Override
+            public void onSuccess(ResumenBravo cliente) {
+                metrics.record(Stage.BRAVO, inicio, cliente != null);
+                if (cliente == null) {
+                    LOG.warn("BRAVO no tiene datos del cliente {}", idCliente);
+                }
+                result.set(cliente);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                metrics.record(Stage.BRAVO, inicio, false);
+                LOG.error("Error al obtener los datos en BRAVO del cliente", e);
+                result.set(null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Devuelve el cliente no bloqueante de tarjetas y BRAVO, creandolo en el primer uso. Tiene su
+     * propio pool de conexiones, con tiempos mas cortos que el de Zendesk, y completa los futuros
+     * en los hilos de callback de Zendesk.
+     *
+     * @return AsyncLookupClient
+     */
+    AsyncLookupClient getAsyncLookupClient() {
+        AsyncLookupClient result = asyncLookupClient;
+        if (result == null) {
+            getZendesk();	// crea los hilos de callback
+            synchronized (this) {
+                result = asyncLookupClient;
+                if (result == null) {
+                    lookupPool = new ZendeskConnectionPool.Builder()
+                            .setMaxConnections(SERVICIOS_ASYNC_MAX_CONNECTIONS)
+                            .setMaxConnectionsPerHost(SERVICIOS_ASYNC_MAX_CONNECTIONS)
+                            .setConnectTimeout(SERVICIOS_ASYNC_CONNECT_TIMEOUT)
+                            .setRequestTimeout(SERVICIOS_ASYNC_REQUEST_TIMEOUT)
+                            .setPooledConnectionIdleTimeout(ZENDESK_POOL_IDLE_TIMEOUT)
+                            .build();
+                    result = new AsyncLookupClient(lookupPool, zendeskCallbackExecutor, TARJETAS_GETDATOS, BRAVO_GETDATOS);
+                    asyncLookupClient = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Devuelve el motor de enriquecimiento, creandolo en el primer uso. El cliente (por tarjeta o
+     * por poliza) va primero porque BRAVO necesita su idCliente; cada uno tiene su tiempo maximo y
+     * si lo agota el ticket se crea sin sus datos.
+     *
+     * @return EnrichmentEngine
+     */
+    EnrichmentEngine getEnrichmentEngine() {
+        EnrichmentEngine result = enrichmentEngine;
+        if (result == null) {
+            synchronized (this) {
+                result = enrichmentEngine;
+                if (result == null) {
+                    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("zendesk-enrich-");
+                    threadFactory.setDaemon(true);
+                    enrichmentExecutor = new ThreadPoolExecutor(ZENDESK_ENRICHMENT_THREADS, ZENDESK_ENRICHMENT_THREADS,
+                            60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(ZENDESK_ENRICHMENT_QUEUE), threadFactory);
+                    enrichmentExecutor.allowCoreThreadTimeOut(true);
+                    result = new EnrichmentEngine.Builder(enrichmentExecutor)
+                            .add(new ClienteEnricher(), ZENDESK_ENRICHMENT_CLIENTE_TIMEOUT)
+                            .add(new BravoEnricher(), ZENDESK_ENRICHMENT_BRAVO_TIMEOUT)
+                            .build();
+                    enrichmentEngine = result;
+                }
             }
+        }
+        return result;
+    }
+
+    /**
+     * @return los hilos acotados de los enriquecedores
+     */
+    private Executor getEnrichmentExecutor() {
+        getEnrichmentEngine();
+        return enrichmentExecutor;
+    }
 
+    /**
+     * Devuelve el EJB de PortalClientesWeb limitado por el compartimento de su sistema, creandolo
+     * en el primer uso. Las llamadas al EJB son sincronas, asi que se hacen en el hilo llamante.
+     *
+     * @return PortalClientesWebEJBRemote
+     */
+    PortalClientesWebEJBRemote getPortalClientes() {
+        PortalClientesWebEJBRemote result = portalClientes;
+        if (result == null) {
+            synchronized (this) {
+                result = portalClientes;
+                if (result == null) {
+                    result = getBulkhead(SISTEMA_EJB).proxyInCaller(PortalClientesWebEJBRemote.class, portalclientesWebEJBRemote);
+                    portalClientes = result;
+                }
+            }
         }
+        return result;
+    }
 
-        return datosUsuarioStr + datosBravoStr;
+    /**
+     * Devuelve el registro de datos de referencia, cargandolo en el primer uso. Se recarga cada
+     * <code>referencia.refresh.interval</code>.
+     *
+     * @return ValueCodeRegistry
+     */
+    ValueCodeRegistry getRegistroReferencia() {
+        ValueCodeRegistry result = registroReferencia;
+        if (result == null) {
+            synchronized (this) {
+                result = registroReferencia;
+                if (result == null) {
+                    result = new ValueCodeRegistry.Builder()
+                            .addTable(TABLA_TIPOS_DOCUMENTO, new ValueCodeRegistry.Source() {
+                                @Override
+                                public List<ValueCode> load() {
+                                    return getTiposDocumentosRegistro();
+                                }
+                            })
+                            .setRefreshIntervalMillis(REFERENCIA_REFRESH_INTERVAL)
+                            .build();
+                    registroReferencia = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Devuelve el compartimento del sistema remoto, creandolos todos en el primer uso. Cada
+     * <code>zendesk.bulkhead.*</code> es <code>hilos:cola:timeout</code>: llamadas simultaneas,
+     * llamadas que pueden esperar hilo libre y tiempo maximo de cada llamada en milisegundos.
+     *
+     * @param sistema uno de los <code>SISTEMA_*</code>
+     * @return Bulkhead
+     */
+    Bulkhead getBulkhead(String sistema) {
+        Map<String, Bulkhead> result = bulkheads;
+        if (result == null) {
+            synchronized (this) {
+                result = bulkheads;
+                if (result == null) {
+                    result = new HashMap<String, Bulkhead>();
+                    crearBulkhead(result, SISTEMA_TARJETA, ZENDESK_BULKHEAD_TARJETA);
+                    crearBulkhead(result, SISTEMA_BRAVO, ZENDESK_BULKHEAD_BRAVO);
+                    crearBulkhead(result, SISTEMA_EJB, ZENDESK_BULKHEAD_EJB);
+                    crearBulkhead(result, SISTEMA_ZENDESK, ZENDESK_BULKHEAD_ZENDESK);
+                    crearBulkhead(result, SISTEMA_EMAIL, ZENDESK_BULKHEAD_EMAIL);
+                    bulkheads = result;
+                }
+            }
+        }
+        return result.get(sistema);
+    }
+
+    private void crearBulkhead(Map<String, Bulkhead> bulkheads, String sistema, String config) {
+        String[] partes = config.split(":");
+        if (partes.length != 3) {
+            throw new IllegalArgumentException("zendesk.bulkhead." + sistema + " must be threads:queue:timeoutMillis");
+        }
+        Bulkhead bulkhead = new Bulkhead(sistema, Integer.parseInt(partes[0].trim()), Integer.parseInt(partes[1].trim()),
+                Long.parseLong(partes[2].trim()));
+        metrics.registerBulkhead(bulkhead);
+        bulkheads.put(sistema, bulkhead);
+    }
+
+    private synchronized ExecutorService getCacheRefreshExecutor() {
+        if (cacheRefreshExecutor == null) {
+            cacheRefreshExecutor = Executors.newFixedThreadPool(ZENDESK_CACHE_REFRESH_THREADS,
+                    new CustomizableThreadFactory("zendesk-cache-"));
+        }
+        return cacheRefreshExecutor;
+    }
+
+    /**
+     * Devuelve el agrupador de tickets compartido, creandolo en el primer uso. Sus lotes pasan por
+     * el mismo circuit breaker y compartimento que las altas sueltas.
+     *
+     * @return ZendeskTicketBatcher
+     */
+    ZendeskTicketBatcher getTicketBatcher() {
+        ZendeskTicketBatcher result = ticketBatcher;
+        if (result == null) {
+            ResilientZendesk cliente = getResilientZendesk();
+            Bulkhead bulkhead = getBulkhead(SISTEMA_ZENDESK);
+            synchronized (this) {
+                result = ticketBatcher;
+                if (result == null) {
+                    result = new ZendeskTicketBatcher.Builder(cliente)
+                            .setBulkhead(bulkhead)
+                            .setMaxBatchSize(ZENDESK_BATCH_MAX_SIZE)
+                            .setMaxDelayMillis(ZENDESK_BATCH_MAX_DELAY)
+                            .build();
+                    ticketBatcher = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cierra el outbox, el cliente Zendesk y libera el pool de conexiones al destruir el bean.
+     */
+    @PreDestroy
+    public synchronized void destroy() {
+        if (outboxDrainer != null) {
+            outboxDrainer.close();
+            outboxDrainer = null;
+        }
+        if (outbox != null) {
+            try {
+                outbox.close();
+            } catch (IOException e) {
+                LOG.error("Error al cerrar el outbox de Zendesk", e);
+            }
+            outbox = null;
+        }
+        if (ticketBatcher != null) {
+            ticketBatcher.close();
+            ticketBatcher = null;
+        }
+        if (resilientZendesk != null) {
+            resilientZendesk.close();
+            resilientZendesk = null;
+        }
+        if (idempotencyStore != null) {
+            try {
+                idempotencyStore.close();
+            } catch (IOException e) {
+                LOG.error("Error al cerrar el registro de claves de idempotencia", e);
+            }
+            idempotencyStore = null;
+        }
+        if (asyncLookupClient != null) {
+            asyncLookupClient.close();
+            asyncLookupClient = null;
+        }
+        if (lookupPool != null) {
+            lookupPool.close();
+            lookupPool = null;
+        }
+        if (zendesk != null) {
+            zendesk.close();
+            zendesk = null;
+        }
+        if (zendeskPool != null) {
+            zendeskPool.close();
+            zendeskPool = null;
+        }
+        if (zendeskCallbackExecutor != null) {
+            zendeskCallbackExecutor.shutdown();
+            zendeskCallbackExecutor = null;
+        }
+        if (enrichmentExecutor != null) {
+            enrichmentExecutor.shutdownNow();
+            enrichmentExecutor = null;
+        }
+        if (registroReferencia != null) {
+            registroReferencia.close();
+            registroReferencia = null;
+        }
+        if (cacheRefreshExecutor != null) {
+            cacheRefreshExecutor.shutdown();
+            cacheRefreshExecutor = null;
+        }
+        if (bulkheads != null) {
+            for (Bulkhead bulkhead : bulkheads.values()) {
+                bulkhead.close();
+            }
+            bulkheads = null;
+        }
+    }
+
+    /**
+     * @return latencias y errores de cada etapa del alta de tickets
+     */
+    public AltaTicketMetrics getMetrics() {
+        return metrics;
     }
 
     public List< ValueCode > getTiposDocumentosRegistro() {
@@ -272,30 +1392,312 @@ public class ZendeskService {
      * @param resBravo
      * @return
      */
-    private String parseJsonBravo(StringBuilder resBravo)
+    String parseJsonBravo(StringBuilder resBravo)
     {
-        return resBravo.toString().replaceAll("[\\[\\]\\{\\}\\\"\\r]", "").replaceAll(ESCAPED_LINE_SEPARATOR, ESCAPE_ER + ESCAPED_LINE_SEPARATOR);
+        return TicketSanitizer.servicio(resBravo);
     }
     
-	private void initVelocity() throws Exception {
-		LOG.info("Inicializando Velocity");
-		Properties prop = new Properties();
-		prop.load(getClass().getResourceAsStream("/velocity.properties"));
-		Velocity.init(prop);
-		ctx = new VelocityContext();
-        tplDatosUsuario = Velocity.getTemplate("datosUsuario.vm");
-        tplDatosBravo = Velocity.getTemplate("datosBravo.vm");
-	}
-	
-	private String mergeTemplate(Template tpl, VelocityContext ctx) {
-		Writer writer = new StringWriter();
+	/**
+	 * Mezcla la plantilla en el buffer del hilo, que se reutiliza entre peticiones.
+	 */
+	String mergeTemplate(TicketRenderer tpl, TicketModel modelo) {
+		StringBuilder out = BUFFER_PLANTILLAS.get();
+		out.setLength(0);
 
+		long inicio = System.nanoTime();
 		try {
-			tpl.merge(ctx, writer);
+			tpl.render(modelo, out);
+			metrics.record(Stage.PLANTILLAS, inicio, true);
 		} catch (Exception e) {
+			metrics.record(Stage.PLANTILLAS, inicio, false);
 			LOG.error("Error al hacer el merge de la plantilla " + tpl.getName());
 		}
-		
-		return writer.toString();
+
+		String resultado = out.toString();
+		if (out.capacity() > MAX_BUFFER_PLANTILLAS) {
+			BUFFER_PLANTILLAS.remove();	// no retener buffers de una peticion excepcional
+		}
+		return resultado;
+	}
+
+	/**
+	 * Devuelve el ticket base de <code>zendesk.ticket</code> (asunto, etiquetas, campos
+	 * personalizados...), leido una sola vez mientras la propiedad no cambie. Los huecos del
+	 * solicitante y del comentario se dejan vacios: se rellenan en cada alta.
+	 */
+	Ticket getPlantillaTicket() {
+		String fuente = PETICION_ZENDESK;
+		PlantillaTicket actual = plantillaTicket;
+		if (actual == null || !actual.fuente.equals(fuente)) {
+			Ticket ticket;
+			try {
+				ticket = StringUtils.isBlank(fuente) ? new Ticket() : leerPlantillaTicket(fuente);
+			} catch (Exception e) {
+				LOG.error("La plantilla de ticket zendesk.ticket no es valida; se usara un ticket vacio", e);
+				ticket = new Ticket();
+			}
+			actual = new PlantillaTicket(fuente == null ? "" : fuente, ticket);
+			plantillaTicket = actual;
+		}
+		return actual.ticket;
+	}
+
+	/**
+	 * Cliente de la peticion: idCliente del servicio de tarjetas o, si no hay tarjeta, tomador de la
+	 * poliza del EJB.
+	 */
+	private final class ClienteEnricher implements Enricher {
+
+		@Override
+		public String getName() {
+			return "cliente";
+		}
+
+		@Override
+		public Collection<String> getInputs() {
+			return Collections.singleton(DATO_USUARIO_ALTA);
+		}
+
+		@Override
+		public Collection<String> getOutputs() {
+			return Arrays.asList(DATO_ID_CLIENTE, DATO_CLIENTE);
+		}
+
+		@Override
+		public void enrich(EnrichmentContext context) {
+			UsuarioAlta usuarioAlta = context.get(DATO_USUARIO_ALTA, UsuarioAlta.class);
+			Cliente cliente = null;
+			// Obtiene el idCliente de la tarjeta
+			if(StringUtils.isNotBlank(usuarioAlta.getNumTarjeta())){
+				long inicio = System.nanoTime();
+				try{
+					String idCliente = getCacheTarjetas().get(usuarioAlta.getNumTarjeta());
+					if(idCliente != null){
+						cliente = Cliente.deTarjeta(idCliente);
+					}
+					metrics.record(Stage.TARJETA, inicio, idCliente != null);
+				}catch(Exception e)
+				{
+					metrics.record(Stage.TARJETA, inicio, false);
+					LOG.error("Error al obtener los datos de la tarjeta", e);
+				}
+			}
+			else if(StringUtils.isNotBlank(usuarioAlta.getNumPoliza())){
+				cliente = consultarPoliza(usuarioAlta);
+			}
+			if (cliente != null) {
+				context.put(DATO_ID_CLIENTE, cliente.idCliente);
+				context.put(DATO_CLIENTE, cliente);
+			}
+		}
+	}
+
+	/**
+	 * Datos BRAVO del cliente; se consulta aunque no se haya podido obtener su idCliente.
+	 */
+	private final class BravoEnricher implements Enricher {
+
+		@Override
+		public String getName() {
+			return "bravo";
+		}
+
+		@Override
+		public Collection<String> getInputs() {
+			return Collections.singleton(DATO_ID_CLIENTE);
+		}
+
+		@Override
+		public Collection<String> getOutputs() {
+			return Collections.singleton(DATO_BRAVO);
+		}
+
+		@Override
+		public void enrich(EnrichmentContext context) {
+			String idCliente = context.get(DATO_ID_CLIENTE, String.class);
+			long inicioBravo = System.nanoTime();
+			try
+			{
+				// Obtenemos los datos del cliente
+				ResumenBravo cliente = idCliente == null ? consultarBravo(null) : getCacheBravo().get(idCliente);
+				metrics.record(Stage.BRAVO, inicioBravo, cliente != null);
+				if (cliente != null) {
+					context.put(DATO_BRAVO, cliente);
+				} else {
+					LOG.warn("BRAVO no tiene datos del cliente {}", idCliente);
+				}
+			}catch(Exception e)
+			{
+				metrics.record(Stage.BRAVO, inicioBravo, false);
+				LOG.error("Error al obtener los datos en BRAVO del cliente", e);
+			}
+		}
+	}
+
+	/**
+	 * Alta asincrona de principio a fin: cliente, BRAVO y envio a Zendesk se encadenan por callbacks,
+	 * sin que ningun hilo quede esperando una respuesta. BRAVO espera al cliente porque necesita
+	 * su idCliente.
+	 */
+	private final class AltaAsync {
+		private final UsuarioAlta usuarioAlta;
+		private final String userAgent;
+		private final String requestId;
+		private final SettableListenableFuture<String> resultado = new SettableListenableFuture<String>();
+
+		AltaAsync(UsuarioAlta usuarioAlta, String userAgent, String requestId) {
+			this.usuarioAlta = usuarioAlta;
+			this.userAgent = userAgent;
+			this.requestId = requestId;
+		}
+
+		ListenableFuture<String> iniciar() {
+			consultarClienteAsync(usuarioAlta).addCallback(new ListenableFutureCallback<Cliente>() {
+				@Override
+				public void onSuccess(Cliente cliente) {
+					conCliente(cliente);
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					conCliente(null);
+				}
+			});
+			return resultado;
+		}
+
+		private void conCliente(final Cliente cliente) {
+			consultarBravoAsync(cliente == null ? null : cliente.idCliente).addCallback(new ListenableFutureCallback<ResumenBravo>() {
+				@Override
+				public void onSuccess(ResumenBravo bravo) {
+					enviar(cliente, bravo);
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					enviar(cliente, null);
+				}
+			});
+		}
+
+		private void enviar(Cliente cliente, ResumenBravo bravo) {
+			ListenableFuture<String> envio;
+			try {
+				envio = enviarAsync(componerPeticion(usuarioAlta, userAgent, requestId, cliente, bravo));
+			} catch (RuntimeException e) {
+				LOG.error("Error al componer el ticket ZENDESK", e);
+				avisarError(e);
+				return;
+			}
+			envio.addCallback(new ListenableFutureCallback<String>() {
+				@Override
+				public void onSuccess(String datos) {
+					resultado.set(datos);
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					resultado.setException(e);
+				}
+			});
+		}
+
+		/**
+		 * El ticket no se ha podido componer con los datos de los servicios: como cuando falla
+		 * Zendesk, se envia el mail de error, aqui solo con los datos del formulario, y se devuelven.
+		 */
+		private void avisarError(RuntimeException e) {
+			PeticionTicket peticion;
+			try {
+				peticion = componerPeticion(usuarioAlta, userAgent, requestId, null, null);
+			} catch (RuntimeException ex) {
+				resultado.setException(e);
+				return;
+			}
+			enviarMailError(peticion);
+			resultado.set(peticion.getDatos());
+		}
+	}
+
+	/**
+	 * Cliente de la peticion, por tarjeta o por poliza.
+	 */
+	private static final class Cliente {
+		private final String idCliente;
+		private final String nombre;
+		private final String datosServicio;	// datos del servicio ya serializados para el comentario
+
+		private Cliente(String idCliente, String nombre, String datosServicio) {
+			this.idCliente = idCliente;
+			this.nombre = nombre;
+			this.datosServicio = datosServicio;
+		}
+
+		/**
+		 * El servicio de tarjetas solo devuelve el idCliente, que hace tambien de nombre.
+		 */
+		static Cliente deTarjeta(String idCliente) throws JsonProcessingException {
+			return new Cliente(idCliente, idCliente, "Datos recuperados del servicio de tarjeta:"
+					+ ESCAPED_LINE_SEPARATOR + SERVICIO_MAPPER.writeValueAsString(idCliente));
+		}
+
+		static Cliente dePoliza(ResumenPoliza resumen) {
+			return new Cliente(resumen.getIdCliente(), resumen.getNombreTomador(),
+					"Datos recuperados del servicio de tarjeta:" + ESCAPED_LINE_SEPARATOR + resumen.getDetalle());
+		}
+	}
+
+	/**
+	 * Lee el ticket base comprobando antes que los tres huecos <code>%s</code> de la plantilla son,
+	 * en este orden, el nombre y el email del solicitante y el cuerpo del comentario, que es lo que
+	 * el alta rellena despues. Con marcas en los huecos se ve donde cae cada uno.
+	 */
+	static Ticket leerPlantillaTicket(String fuente) throws IOException {
+		String marcada = String.format(fuente, (Object[]) HUECOS_PLANTILLA);
+		for (String hueco : HUECOS_PLANTILLA) {
+			if (StringUtils.countMatches(marcada, hueco) != 1) {
+				throw new IllegalArgumentException("zendesk.ticket must contain exactly three %s placeholders");
+			}
+		}
+		Ticket marcado = TICKET_READER.readValue(marcada);
+		if (marcado.getRequester() == null || marcado.getComment() == null
+				|| !HUECOS_PLANTILLA[0].equals(marcado.getRequester().getName())
+				|| !HUECOS_PLANTILLA[1].equals(marcado.getRequester().getEmail())
+				|| !HUECOS_PLANTILLA[2].equals(marcado.getComment().getBody())) {
+			throw new IllegalArgumentException(
+					"zendesk.ticket placeholders must be requester.name, requester.email and comment.body, in that order");
+		}
+		return TICKET_READER.readValue(String.format(fuente, "", "", ""));
+	}
+
+	private static final class PlantillaTicket {
+		private final String fuente;
+		private final Ticket ticket;
+
+		PlantillaTicket(String fuente, Ticket ticket) {
+			this.fuente = fuente;
+			this.ticket = ticket;
+		}
+	}
+
+	/**
+	 * Peticion de ticket ya compuesta: ticket y datos mergeados de las plantillas.
+	 */
+	private static class PeticionTicket {
+		private final Ticket ticket;
+		private final String datosUsuario;
+		private final String datosBravo;
+		private final String idempotencyKey;
+
+		PeticionTicket(Ticket ticket, String datosUsuario, String datosBravo, String idempotencyKey) {
+			this.ticket = ticket;
+			this.datosUsuario = datosUsuario;
+			this.datosBravo = datosBravo;
+			this.idempotencyKey = idempotencyKey;
+		}
+
+		String getDatos() {
+			return datosUsuario + datosBravo;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,323 @@
+package com.mycorp;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import com.mycorp.resilience.Bulkhead;
+import com.mycorp.resilience.BulkheadFullException;
+import com.mycorp.support.JobResult;
+import com.mycorp.support.JobStatus;
+import com.mycorp.support.Ticket;
+
+/**
+ * <p>Agrupa los tickets enviados en una ventana corta de tiempo (o hasta un tamaño maximo)
+ * y los crea con una unica peticion a <code>tickets/create_many.json</code>.
+ *
+ * <p>Tras encolar el lote, consulta periodicamente el <code>job_status</code> resultante y
+ * completa el futuro de cada llamante con el id de su propio ticket, o con una
+ * {@link ZendeskException} si Zendesk no pudo crearlo.
+ *
+ * <p>Las llamadas pasan por el circuit breaker de {@link ResilientZendesk} y, si se indica, por el
+ * {@link Bulkhead} de Zendesk. Si el circuito esta abierto o el compartimento lleno al enviar el
+ * lote, fallan todos sus tickets; al consultar el trabajo, que ya puede haber creado los tickets, se
+ * vuelve a intentar en la siguiente consulta.
+ */
+public class ZendeskTicketBatcher implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( ZendeskTicketBatcher.class );
+
+    /** Numero maximo de tickets que admite Zendesk en un create_many. */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    private final ResilientZendesk zendesk;
+    private final Bulkhead bulkhead;
+    private final ScheduledExecutorService scheduler;
+    private final boolean shutdownScheduler;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final long pollIntervalMillis;
+    private final long jobTimeoutMillis;
+
+    private List<Pendiente> pendientes = new ArrayList<Pendiente>();
+    private ScheduledFuture<?> flushProgramado;
+    private boolean closed = false;
+
+    private ZendeskTicketBatcher(Builder builder) {
+        this.zendesk = builder.zendesk;
+        this.bulkhead = builder.bulkhead;
+        this.shutdownScheduler = builder.scheduler == null;
+        this.scheduler = builder.scheduler == null
+                ? Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("zendesk-batcher-"))
+                : builder.scheduler;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxDelayMillis = builder.maxDelayMillis;
+        this.pollIntervalMillis = builder.pollIntervalMillis;
+        this.jobTimeoutMillis = builder.jobTimeoutMillis;
+    }
+
+    /**
+     * Encola un ticket para el siguiente lote.
+     *
+     * @param ticket ticket a crear
+     * @return futuro con el id del ticket creado en Zendesk
+     */
+    public ListenableFuture<Long> submit(Ticket ticket) {
+        Pendiente pendiente = new Pendiente(ticket);
+        List<Pendiente> lote = null;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Zendesk ticket batcher is closed");
+            }
+            pendientes.add(pendiente);
+            if (pendientes.size() >= maxBatchSize) {
+                lote = extraerLote();
+            } else if (flushProgramado == null) {
+                flushProgramado = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (lote != null) {
+            enviar(lote);
+        }
+        return pendiente.future;
+    }
+
+    /**
+     * Envia inmediatamente los tickets pendientes, sin esperar a que venza la ventana.
+     */
+    public void flush() {
+        List<Pendiente> lote;
+        synchronized (this) {
+            lote = extraerLote();
+        }
+        if (!lote.isEmpty()) {
+            enviar(lote);
+        }
+    }
+
+    private List<Pendiente> extraerLote() {
+        List<Pendiente> lote = pendientes;
+        pendientes = new ArrayList<Pendiente>();
+        if (flushProgramado != null) {
+            flushProgramado.cancel(false);
+            flushProgramado = null;
+        }
+        return lote;
+    }
+
+    private void enviar(final List<Pendiente> lote) {
+        final List<Ticket> tickets = new ArrayList<Ticket>(lote.size());
+        for (Pendiente pendiente : lote) {
+            tickets.add(pendiente.ticket);
+        }
+        LOG.debug("Enviando lote de {} tickets a Zendesk", tickets.size());
+
+        final long limite = System.currentTimeMillis() + jobTimeoutMillis;
+        try {
+            llamar(new Callable<ListenableFuture<JobStatus>>() {
+                @Override
+                public ListenableFuture<JobStatus> call() {
+                    return zendesk.createTicketsAsync(tickets);
+                }
+            }).addCallback(new JobCallback(lote, limite, null));
+        } catch (Exception e) {
+            fallarTodos(lote, e);
+        }
+    }
+
+    private void consultar(final JobStatus status, final List<Pendiente> lote, final long limite) {
+        if (System.currentTimeMillis() > limite) {
+            fallarTodos(lote, new ZendeskException("Timeout waiting for job status " + status.getId()));
+            return;
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        llamar(new Callable<ListenableFuture<JobStatus>>() {
+                            @Override
+                            public ListenableFuture<JobStatus> call() {
+                                return zendesk.getJobStatusAsync(status);
+                            }
+                        }).addCallback(new JobCallback(lote, limite, status));
+                    } catch (BulkheadFullException e) {
+                        LOG.debug("Sin turno para consultar el trabajo {}; se reintenta", status.getId());
+                        consultar(status, lote, limite);
+                    } catch (Exception e) {
+                        fallarTodos(lote, e);
+                    }
+                }
+            }, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            fallarTodos(lote, new ZendeskException("Batcher closed while polling job status " + status.getId(), e));
+        }
+    }
+
+    private ListenableFuture<JobStatus> llamar(Callable<ListenableFuture<JobStatus>> llamada) throws Exception {
+        return bulkhead == null ? llamada.call() : bulkhead.callAsync(llamada);
+    }
+
+    private void completar(JobStatus status, List<Pendiente> lote) {
+        if (!JobStatus.COMPLETED.equals(status.getStatus())) {
+            fallarTodos(lote, new ZendeskException("Job " + status.getId() + " " + status.getStatus()
+                    + ": " + status.getMessage()));
+            return;
+        }
+        if (status.getResults() != null) {
+            for (JobResult result : status.getResults()) {
+                Integer index = result.getIndex();
+                if (index == null || index < 0 || index >= lote.size()) {
+                    continue;
+                }
+                if (result.isOk()) {
+                    lote.get(index).future.set(result.getId());
+                } else {
+                    lote.get(index).future.setException(new ZendeskException("Ticket " + index + " of job "
+                            + status.getId() + " not created: " + result.getError() + " " + result.getDetails()));
+                }
+            }
+        }
+        // los que no aparecen en los resultados no se han creado
+        fallarTodos(lote, new ZendeskException("Job " + status.getId() + " returned no result for ticket"));
+    }
+
+    private static void fallarTodos(List<Pendiente> lote, Throwable e) {
+        for (Pendiente pendiente : lote) {
+            pendiente.future.setException(e);
+        }
+    }
+
+    /**
+     * Envia lo pendiente y deja de aceptar tickets. Si el scheduler es propio se apaga, y los lotes
+     * cuyo trabajo aun se estuviera consultando fallan con {@link ZendeskException}.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+        if (shutdownScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    private class JobCallback implements ListenableFutureCallback<JobStatus> {
+        private final List<Pendiente> lote;
+        private final long limite;
+        private final JobStatus consultado;	// trabajo que se esta consultando, o null al enviar el lote
+
+        JobCallback(List<Pendiente> lote, long limite, JobStatus consultado) {
+            this.lote = lote;
+            this.limite = limite;
+            this.consultado = consultado;
+        }
+
+        @Override
+        public void onSuccess(JobStatus status) {
+            if (status == null) {
+                fallarTodos(lote, new ZendeskException("Job status not found"));
+            } else if (status.isFinished()) {
+                completar(status, lote);
+            } else {
+                consultar(status, lote, limite);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            if (consultado != null && e instanceof ZendeskException
+                    && ((ZendeskException) e).getKind() == ZendeskException.Kind.CIRCUIT_OPEN) {
+                consultar(consultado, lote, limite);
+            } else {
+                fallarTodos(lote, e);
+            }
+        }
+    }
+
+    private static class Pendiente {
+        private final Ticket ticket;
+        private final SettableListenableFuture<Long> future = new SettableListenableFuture<Long>();
+
+        Pendiente(Ticket ticket) {
+            this.ticket = ticket;
+        }
+    }
+
+    public static class Builder {
+        private final ResilientZendesk zendesk;
+        private Bulkhead bulkhead = null;
+        private ScheduledExecutorService scheduler = null;
+        private int maxBatchSize = MAX_BATCH_SIZE;
+        private long maxDelayMillis = 200;
+        private long pollIntervalMillis = 1000;
+        private long jobTimeoutMillis = 60000;
+
+        public Builder(ResilientZendesk zendesk) {
+            this.zendesk = zendesk;
+        }
+
+        /**
+         * Compartimento de Zendesk por el que pasan el envio de los lotes y la consulta de sus
+         * trabajos. Si no se indica no se limitan.
+         */
+        public Builder setBulkhead(Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+            return this;
+        }
+
+        /**
+         * Scheduler para las ventanas y el sondeo de los trabajos. Si no se indica se crea uno propio.
+         */
+        public Builder setScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public Builder setMaxBatchSize(int maxBatchSize) {
+            if (maxBatchSize < 1 || maxBatchSize > MAX_BATCH_SIZE) {
+                throw new IllegalArgumentException("maxBatchSize must be between 1 and " + MAX_BATCH_SIZE);
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Builder setMaxDelayMillis(long maxDelayMillis) {
+            this.maxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        public Builder setPollIntervalMillis(long pollIntervalMillis) {
+            this.pollIntervalMillis = pollIntervalMillis;
+            return this;
+        }
+
+        public Builder setJobTimeoutMillis(long jobTimeoutMillis) {
+            this.jobTimeoutMillis = jobTimeoutMillis;
+            return this;
+        }
+
+        public ZendeskTicketBatcher build() {
+            return new ZendeskTicketBatcher(this);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.mycorp.cache;
+
+/**
+ * Contadores de una cache en un instante dado.
+ */
+public final class CacheStats {
+    private final long hits;
+    private final long negativeHits;
+    private final long staleHits;
+    private final long misses;
+    private final long loadErrors;
+    private final long refreshes;
+    private final long evictions;
+    private final int size;
+
+    public CacheStats(long hits, long negativeHits, long staleHits, long misses, long loadErrors, long refreshes,
+            long evictions, int size) {
+        this.hits = hits;
+        this.negativeHits = negativeHits;
+        this.staleHits = staleHits;
+        this.misses = misses;
+        this.loadErrors = loadErrors;
+        this.refreshes = refreshes;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    /**
+     * @return consultas resueltas con un valor de la cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return consultas resueltas con una entrada negativa (la clave no existe)
+     */
+    public long getNegativeHits() {
+        return negativeHits;
+    }
+
+    /**
+     * @return consultas resueltas con un valor ya caducado, dentro del margen de obsolescencia
+     */
+    public long getStaleHits() {
+        return staleHits;
+    }
+
+    /**
+     * @return consultas que han tenido que llamar al servicio
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return llamadas al servicio, normales o de refresco, que han fallado
+     */
+    public long getLoadErrors() {
+        return loadErrors;
+    }
+
+    /**
+     * @return entradas refrescadas en segundo plano antes de caducar
+     */
+    public long getRefreshes() {
+        return refreshes;
+    }
+
+    /**
+     * @return entradas expulsadas por falta de sitio
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return fraccion de consultas resueltas sin llamar al servicio
+     */
+    public double getHitRatio() {
+        long total = hits + negativeHits + staleHits + misses;
+        return total == 0 ? 0 : (double) (hits + negativeHits + staleHits) / total;
+    }
+}
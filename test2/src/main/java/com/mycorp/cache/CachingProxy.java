@@ -0,0 +1,368 @@
+package com.mycorp.cache;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Decorador de un interfaz que guarda en cache el resultado de los metodos configurados.
+ *
+ * <p>Pensado para los metodos de consulta de un servicio remoto cuyos datos casi no cambian
+ * (tablas generales, provincias, paises...). Cada metodo configurado tiene su propia
+ * {@link TtlCache}, con su TTL y su tamaño maximo, cuya clave son los argumentos de la llamada:
+ * los arrays se comparan por contenido, y el resto de argumentos con su <code>equals</code>.
+ * Las llamadas simultaneas con los mismos argumentos se agrupan en una sola con
+ * {@link SingleFlight}. Los metodos no configurados se delegan sin mas.
+ *
+ * <p>El resultado guardado se comparte entre todas las llamadas: si el metodo devuelve
+ * {@link List} o {@link Map} se entrega envuelto como no modificable. Los argumentos array,
+ * {@link List}, {@link Set} o {@link Map} se copian al formar la clave, asi que modificarlos despues
+ * no la altera.
+ *
+ * <p>Las llamadas de {@link Builder#preload(String, Object...)} se pueden lanzar con
+ * {@link #preload()} al arrancar para que las primeras peticiones ya encuentren los datos.
+ */
+public class CachingProxy<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger( CachingProxy.class );
+
+    private final T target;
+    private final T proxy;
+    private final Map<Method, TtlCache<Clave, Object>> caches;
+    private final List<Precarga> precargas;
+
+    private CachingProxy(Builder<T> builder) {
+        this.target = builder.target;
+        this.precargas = new ArrayList<Precarga>(builder.precargas);
+        Map<Method, TtlCache<Clave, Object>> result = new LinkedHashMap<Method, TtlCache<Clave, Object>>();
+        for (Map.Entry<String, Config> config : builder.configs.entrySet()) {
+            List<Method> sobrecargas = metodos(builder.iface, config.getKey());
+            for (Method method : sobrecargas) {
+                String nombre = sobrecargas.size() == 1 ? method.getName() : firma(method);
+                result.put(method, crearCache(nombre, method, config.getValue()));
+            }
+        }
+        this.caches = result;
+        this.proxy = builder.iface.cast(Proxy.newProxyInstance(builder.iface.getClassLoader(),
+                new Class<?>[] { builder.iface }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        return invocar(proxy, method, args);
+                    }
+                }));
+    }
+
+    /**
+     * @return el interfaz decorado
+     */
+    public T getProxy() {
+        return proxy;
+    }
+
+    /**
+     * @return la cache de cada metodo configurado, por nombre (<code>metodo(Tipo,Tipo)</code> si
+     *         esta sobrecargado)
+     */
+    public Map<String, MeteredCache> getCaches() {
+        Map<String, MeteredCache> result = new LinkedHashMap<String, MeteredCache>();
+        for (TtlCache<Clave, Object> cache : caches.values()) {
+            result.put(cache.getName(), cache);
+        }
+        return result;
+    }
+
+    /**
+     * Ejecuta las llamadas de precarga. Los errores se registran y no impiden el resto.
+     *
+     * @return llamadas precargadas sin error
+     */
+    public int preload() {
+        int ok = 0;
+        for (Precarga precarga : precargas) {
+            try {
+                invocar(proxy, precarga.method, precarga.args);
+                ok++;
+            } catch (Throwable e) {
+                LOG.warn("Error al precargar {}: {}", precarga.method.getName(), e.toString());
+            }
+        }
+        return ok;
+    }
+
+    private Object invocar(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            }
+            return "CachingProxy(" + target + ")";
+        }
+        TtlCache<Clave, Object> cache = caches.get(method);
+        if (cache == null) {
+            return delegar(method, args);
+        }
+        return cache.get(new Clave(copia(method, args)));
+    }
+
+    private Object delegar(Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UndeclaredThrowableException(cause);
+        }
+    }
+
+    private TtlCache<Clave, Object> crearCache(String nombre, final Method method, Config config) {
+        final SingleFlight<Clave, Object> llamadas = new SingleFlight<Clave, Object>();
+        final Class<?> tipo = method.getReturnType();
+        return new TtlCache.Builder<Clave, Object>(nombre, new TtlCache.Loader<Clave, Object>() {
+            @Override
+            public Object load(final Clave key) throws Exception {
+                return llamadas.execute(key, new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return noModificable(tipo, delegar(method, copia(method, key.args)));
+                    }
+                });
+            }
+        })
+                .setMaxEntries(config.maxEntries)
+                .setTtlMillis(config.ttlMillis)
+                .setNegativeTtlMillis(config.ttlMillis)
+                .build();
+    }
+
+    /**
+     * Copia los argumentos que el llamante puede modificar despues: arrays y colecciones que el
+     * metodo declara como interfaz. La copia se usa tanto para la clave como para cada llamada al
+     * servicio, que asi no puede alterar la clave guardada.
+     */
+    private static Object[] copia(Method method, Object[] args) {
+        if (args == null || args.length == 0) {
+            return new Object[0];
+        }
+        Object[] result = args.clone();
+        Class<?>[] tipos = method.getParameterTypes();
+        for (int i = 0; i < result.length; i++) {
+            result[i] = copia(tipos[i], result[i]);
+        }
+        return result;
+    }
+
+    private static Object copia(Class<?> tipo, Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            Object result = Array.newInstance(value.getClass().getComponentType(), length);
+            for (int i = 0; i < length; i++) {
+                Object elemento = Array.get(value, i);
+                Array.set(result, i, elemento != null && elemento.getClass().isArray()
+                        ? copia(elemento.getClass(), elemento) : elemento);
+            }
+            return result;
+        }
+        if (value instanceof List && tipo.isAssignableFrom(ArrayList.class)) {
+            return new ArrayList<Object>((List<?>) value);
+        }
+        if (value instanceof Set && tipo.isAssignableFrom(HashSet.class)) {
+            return new HashSet<Object>((Set<?>) value);
+        }
+        if (value instanceof Map && tipo.isAssignableFrom(HashMap.class)) {
+            return new HashMap<Object, Object>((Map<?, ?>) value);
+        }
+        return value;
+    }
+
+    /**
+     * @return <code>metodo(Tipo,Tipo)</code>, con el nombre simple de cada tipo
+     */
+    private static String firma(Method method) {
+        StringBuilder result = new StringBuilder(method.getName()).append('(');
+        Class<?>[] tipos = method.getParameterTypes();
+        for (int i = 0; i < tipos.length; i++) {
+            result.append(i == 0 ? "" : ",").append(tipos[i].getSimpleName());
+        }
+        return result.append(')').toString();
+    }
+
+    /**
+     * @return el tipo que puede recibir un argumento de <code>tipo</code>, con los primitivos como su envoltorio
+     */
+    private static Class<?> envoltorio(Class<?> tipo) {
+        if (!tipo.isPrimitive()) {
+            return tipo;
+        }
+        return Array.get(Array.newInstance(tipo, 1), 0).getClass();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object noModificable(Class<?> tipo, Object value) {
+        if (value != null && tipo == List.class) {
+            return Collections.unmodifiableList((List<Object>) value);
+        }
+        if (value != null && tipo == Map.class) {
+            return Collections.unmodifiableMap((Map<Object, Object>) value);
+        }
+        return value;
+    }
+
+    private static List<Method> metodos(Class<?> iface, String nombre) {
+        List<Method> result = new ArrayList<Method>();
+        for (Method method : iface.getMethods()) {
+            if (method.getName().equals(nombre) && method.getReturnType() != void.class) {
+                result.add(method);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException(iface.getName() + " has no method " + nombre);
+        }
+        return result;
+    }
+
+    private static final class Config {
+        private final long ttlMillis;
+        private final int maxEntries;
+
+        Config(long ttlMillis, int maxEntries) {
+            this.ttlMillis = ttlMillis;
+            this.maxEntries = maxEntries;
+        }
+    }
+
+    /**
+     * Argumentos de una llamada como clave de la cache; los arrays, tambien anidados, se comparan
+     * por contenido.
+     */
+    private static final class Clave {
+        private final Object[] args;
+        private final int hash;
+
+        Clave(Object[] args) {
+            this.args = args;
+            this.hash = Arrays.deepHashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Clave && Arrays.deepEquals(args, ((Clave) obj).args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Precarga {
+        private final Method method;
+        private final Object[] args;
+
+        Precarga(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+    }
+
+    public static class Builder<T> {
+        private final Class<T> iface;
+        private final T target;
+        private final Map<String, Config> configs = new LinkedHashMap<String, Config>();
+        private final List<Precarga> precargas = new ArrayList<Precarga>();
+
+        /**
+         * @param iface interfaz a decorar
+         * @param target implementacion a la que se delega
+         */
+        public Builder(Class<T> iface, T target) {
+            if (!iface.isInterface()) {
+                throw new IllegalArgumentException(iface.getName() + " is not an interface");
+            }
+            this.iface = iface;
+            this.target = target;
+        }
+
+        /**
+         * Guarda en cache el resultado del metodo (de todas sus sobrecargas).
+         *
+         * @param metodo nombre del metodo
+         * @param ttlMillis vida de cada resultado
+         * @param maxEntries combinaciones de argumentos distintas que se guardan como maximo
+         */
+        public Builder<T> cache(String metodo, long ttlMillis, int maxEntries) {
+            metodos(iface, metodo);
+            if (ttlMillis < 1 || maxEntries < 1) {
+                throw new IllegalArgumentException("ttlMillis and maxEntries must be positive");
+            }
+            configs.put(metodo, new Config(ttlMillis, maxEntries));
+            return this;
+        }
+
+        /**
+         * Añade una llamada que {@link CachingProxy#preload()} ejecuta para llenar la cache.
+         *
+         * @param metodo nombre del metodo; se usa la unica sobrecarga que admite los argumentos
+         * @param args argumentos de la llamada
+         */
+        public Builder<T> preload(String metodo, Object... args) {
+            Method elegido = null;
+            for (Method method : metodos(iface, metodo)) {
+                if (admite(method, args)) {
+                    if (elegido != null) {
+                        throw new IllegalArgumentException(metodo + " is ambiguous for " + Arrays.toString(args)
+                                + ": " + firma(elegido) + " and " + firma(method));
+                    }
+                    elegido = method;
+                }
+            }
+            if (elegido == null) {
+                throw new IllegalArgumentException(metodo + " does not take " + Arrays.toString(args));
+            }
+            precargas.add(new Precarga(elegido, args.clone()));
+            return this;
+        }
+
+        private static boolean admite(Method method, Object[] args) {
+            Class<?>[] tipos = method.getParameterTypes();
+            if (tipos.length != args.length) {
+                return false;
+            }
+            for (int i = 0; i < tipos.length; i++) {
+                if (args[i] == null ? tipos[i].isPrimitive() : !envoltorio(tipos[i]).isInstance(args[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public CachingProxy<T> build() {
+            return new CachingProxy<T>(this);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.mycorp.cache;
+
+import java.util.Arrays;
+
+/**
+ * <p>Cache LRU con TTL para claves <code>long</code>, sin objetos por clave ni boxing.
+ *
+ * <p>Las entradas viven en arrays paralelos de tamaño fijo (<code>maxEntries</code>) y se localizan
+ * con una tabla hash de direccionamiento abierto (sondeo lineal, ocupacion maxima del 50%) que
+ * guarda el indice de la entrada. El orden de uso es una lista doblemente enlazada sobre esos
+ * mismos indices: un acierto mueve la entrada al principio y, si no hay sitio, se reutiliza la del
+ * final. Al borrar se desplazan hacia atras las claves de la misma cadena, asi que no hay lapidas
+ * y las busquedas no se degradan con el tiempo.
+ *
+ * <p>Todas las operaciones son O(1) y estan sincronizadas.
+ */
+public class LongLruCache<V> implements MeteredCache {
+
+    private static final int NIL = -1;
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    /** indice de entrada + 1 en cada hueco; 0 si esta libre */
+    private final int[] table;
+    private final int mask;
+    private final long[] keys;
+    private final Object[] values;
+    private final long[] expiresAt;
+    private final int[] prev;
+    private final int[] next;
+    /** entrada usada mas recientemente */
+    private int head = NIL;
+    /** entrada usada hace mas tiempo */
+    private int tail = NIL;
+    /** primera entrada libre; las libres se encadenan con <code>next</code> */
+    private int free;
+    private int size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries entradas como maximo
+     * @param ttlMillis vida de cada entrada desde que se guarda
+     */
+    public LongLruCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1 || maxEntries > 1 << 29) {
+            throw new IllegalArgumentException("maxEntries out of range: " + maxEntries);
+        }
+        if (ttlMillis < 1) {
+            throw new IllegalArgumentException("ttlMillis must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1000000L;
+        int tableSize = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+        this.table = new int[tableSize];
+        this.mask = tableSize - 1;
+        this.keys = new long[maxEntries];
+        this.values = new Object[maxEntries];
+        this.expiresAt = new long[maxEntries];
+        this.prev = new int[maxEntries];
+        this.next = new int[maxEntries];
+        for (int i = 0; i < maxEntries; i++) {
+            next[i] = i + 1 < maxEntries ? i + 1 : NIL;
+        }
+        this.free = 0;
+    }
+
+    /**
+     * @return el valor vigente de la clave, o null si no esta o ha caducado
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V get(long key) {
+        int entry = find(key);
+        if (entry == NIL) {
+            misses++;
+            return null;
+        }
+        if (System.nanoTime() - expiresAt[entry] >= 0) {
+            remove(entry);
+            misses++;
+            return null;
+        }
+        moveToHead(entry);
+        hits++;
+        return (V) values[entry];
+    }
+
+    /**
+     * Guarda el valor; si la cache esta llena expulsa la entrada usada hace mas tiempo.
+     */
+    public synchronized void put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value is null");
+        }
+        int entry = find(key);
+        if (entry == NIL) {
+            if (size == maxEntries) {
+                remove(tail);
+                evictions++;
+            }
+            entry = free;
+            free = next[entry];
+            keys[entry] = key;
+            int slot = slot(key);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry + 1;
+            addHead(entry);
+            size++;
+        } else {
+            moveToHead(entry);
+        }
+        values[entry] = value;
+        expiresAt[entry] = System.nanoTime() + ttlNanos;
+    }
+
+    public synchronized void invalidate(long key) {
+        int entry = find(key);
+        if (entry != NIL) {
+            remove(entry);
+        }
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(values, null);
+        for (int i = 0; i < maxEntries; i++) {
+            next[i] = i + 1 < maxEntries ? i + 1 : NIL;
+        }
+        head = NIL;
+        tail = NIL;
+        free = 0;
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized CacheStats getStats() {
+        return new CacheStats(hits, 0, 0, misses, 0, 0, evictions, size);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        for (int slot = slot(key); table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (keys[entry] == key) {
+                return entry;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Quita la entrada de la tabla, de la lista de uso y la deja libre.
+     */
+    private void remove(int entry) {
+        int hole = slot(keys[entry]);
+        while (table[hole] != entry + 1) {
+            hole = (hole + 1) & mask;
+        }
+        // desplaza hacia atras las claves de la cadena que quedarian inalcanzables
+        for (int slot = (hole + 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int home = slot(keys[table[slot] - 1]);
+            boolean alcanzable = hole <= slot ? (home > hole && home <= slot) : (home > hole || home <= slot);
+            if (!alcanzable) {
+                table[hole] = table[slot];
+                hole = slot;
+            }
+        }
+        table[hole] = 0;
+
+        unlink(entry);
+        values[entry] = null;
+        next[entry] = free;
+        free = entry;
+        size--;
+    }
+
+    private void addHead(int entry) {
+        prev[entry] = NIL;
+        next[entry] = head;
+        if (head != NIL) {
+            prev[head] = entry;
+        }
+        head = entry;
+        if (tail == NIL) {
+            tail = entry;
+        }
+    }
+
+    private void unlink(int entry) {
+        if (prev[entry] != NIL) {
+            next[prev[entry]] = next[entry];
+        } else {
+            head = next[entry];
+        }
+        if (next[entry] != NIL) {
+            prev[next[entry]] = prev[entry];
+        } else {
+            tail = prev[entry];
+        }
+    }
+
+    private void moveToHead(int entry) {
+        if (head != entry) {
+            unlink(entry);
+            addHead(entry);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.mycorp.cache;
+
+/**
+ * Cache que publica sus contadores de aciertos y fallos.
+ */
+public interface MeteredCache {
+
+    CacheStats getStats();
+}
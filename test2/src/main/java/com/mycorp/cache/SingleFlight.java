@@ -0,0 +1,174 @@
+package com.mycorp.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import com.mycorp.resilience.Deadline;
+
+/**
+ * <p>Agrupa las llamadas simultaneas con la misma clave: la primera ejecuta la llamada y las que
+ * llegan mientras tanto esperan y reciben su mismo resultado o su mismo error.
+ *
+ * <p>No guarda nada: en cuanto la llamada termina, la siguiente con esa clave vuelve a ejecutarse.
+ * Se usa delante del servicio, p.ej. dentro del {@link TtlCache.Loader} de una cache, para que
+ * una clave que caduca bajo carga no dispare una llamada por peticion.
+ *
+ * <p>Cada llamada que espera lo hace como mucho hasta su propio {@link Deadline}, sin afectar a la
+ * que esta en curso. Si a la que esta en curso la interrumpen (se cancela quien la hizo) o falla
+ * con {@link TimeoutException} porque se ha acabado el deadline de quien la hizo, las que esperaban
+ * no heredan ese fallo: una de las que aun tienen tiempo vuelve a ejecutar la llamada.
+ */
+public class SingleFlight<K, V> {
+
+    // Las llamadas bloqueantes y las no bloqueantes no se agrupan entre si: una bloqueante se ejecuta
+    // en el hilo y con el deadline de quien la hace, y las que la esperan la repiten si ese hilo se
+    // cancela o se queda sin tiempo; una no bloqueante no depende de ningun hilo y no se repite.
+    private final ConcurrentMap<K, Vuelo<V>> enCurso = new ConcurrentHashMap<K, Vuelo<V>>();
+    private final ConcurrentMap<K, SettableListenableFuture<V>> enCursoAsync = new ConcurrentHashMap<K, SettableListenableFuture<V>>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param key clave de la llamada; no puede ser null
+     * @return el resultado de <code>call</code>, propio o de la llamada en curso con la misma clave
+     * @throws Exception el error de <code>call</code>
+     * @throws TimeoutException si el deadline del hilo pasa mientras espera la llamada en curso
+     */
+    public V execute(K key, Callable<V> call) throws Exception {
+        while (true) {
+            Vuelo<V> task = new Vuelo<V>(call);
+            Vuelo<V> actual = enCurso.putIfAbsent(key, task);
+            if (actual == null) {
+                try {
+                    task.run();
+                } finally {
+                    enCurso.remove(key, task);
+                }
+                try {
+                    return task.get();
+                } catch (ExecutionException e) {
+                    throw desenvolver(e);
+                }
+            }
+            coalesced.incrementAndGet();
+            Deadline deadline = Deadline.current();
+            try {
+                return deadline == null ? actual.get() : actual.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                throw new TimeoutException("Deadline expired waiting for the call in flight for " + key);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof InterruptedException)
+                        && !(e.getCause() instanceof TimeoutException && actual.sinTiempoAntesQue(deadline))) {
+                    throw desenvolver(e);
+                }
+                // quien hacia la llamada se ha cancelado o se ha quedado sin tiempo, no esta: se repite
+            }
+        }
+    }
+
+    /**
+     * Version no bloqueante de {@link #execute(Object, Callable)}. Cada llamada recibe su propio
+     * futuro: cancelarlo no afecta a las demas ni a la consulta en curso.
+     *
+     * @param key clave de la llamada; no puede ser null
+     * @param loader consulta que se lanza si no hay otra en curso con la misma clave
+     */
+    public ListenableFuture<V> executeAsync(final K key, TtlCache.AsyncLoader<K, V> loader) {
+        final SettableListenableFuture<V> nuevo = new SettableListenableFuture<V>();
+        SettableListenableFuture<V> actual = enCursoAsync.putIfAbsent(key, nuevo);
+        if (actual != null) {
+            coalesced.incrementAndGet();
+            return copia(actual);
+        }
+        ListenableFuture<V> carga;
+        try {
+            carga = loader.load(key);
+        } catch (RuntimeException e) {
+            enCursoAsync.remove(key, nuevo);
+            nuevo.setException(e);
+            return copia(nuevo);
+        }
+        carga.addCallback(new ListenableFutureCallback<V>() {
+            @Override
+            public void onSuccess(V value) {
+                enCursoAsync.remove(key, nuevo);
+                nuevo.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                enCursoAsync.remove(key, nuevo);
+                nuevo.setException(e);
+            }
+        });
+        return copia(nuevo);
+    }
+
+    /**
+     * @return llamadas que se han unido a otra en curso en lugar de ejecutarse
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return claves con una llamada en curso
+     */
+    public int getInFlight() {
+        return enCurso.size() + enCursoAsync.size();
+    }
+
+    private static <V> ListenableFuture<V> copia(ListenableFuture<V> compartido) {
+        final SettableListenableFuture<V> result = new SettableListenableFuture<V>();
+        compartido.addCallback(new ListenableFutureCallback<V>() {
+            @Override
+            public void onSuccess(V value) {
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                result.setException(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Llamada bloqueante en curso, con el deadline del hilo que la ejecuta.
+     */
+    private static final class Vuelo<V> extends FutureTask<V> {
+        private final Deadline deadline = Deadline.current();
+
+        Vuelo(Callable<V> call) {
+            super(call);
+        }
+
+        /**
+         * @return true si el deadline de quien hace la llamada ha pasado y el de quien espera no
+         */
+        boolean sinTiempoAntesQue(Deadline espera) {
+            return deadline != null && deadline.isExpired() && (espera == null || !espera.isExpired());
+        }
+    }
+
+    private static Exception desenvolver(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return e;
+    }
+}
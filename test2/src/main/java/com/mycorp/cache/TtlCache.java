@@ -0,0 +1,429 @@
+package com.mycorp.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+/**
+ * <p>Cache acotada delante de una consulta a un servicio externo.
+ *
+ * <ul>
+ * <li>Guarda como mucho <code>maxEntries</code> claves; al llenarse expulsa la menos usada (LRU).
+ * <li>Cada valor caduca a los <code>ttlMillis</code> de cargarse.
+ * <li>Si el {@link Loader} devuelve null (la clave no existe), se recuerda durante
+ * <code>negativeTtlMillis</code> para no repetir la consulta en cada peticion.
+ * <li>Si una entrada se usa cuando le quedan menos de <code>refreshAheadMillis</code> de vida, se
+ * recarga en segundo plano con el {@link Executor} configurado mientras se sigue sirviendo el valor
+ * actual; las claves que se usan a menudo no llegan a caducar.
+ * <li>Un valor caducado se sigue sirviendo durante <code>maxStaleMillis</code> mas: con
+ * {@link Executor} de refresco se devuelve al momento y se recarga en segundo plano; sin el, solo
+ * si la recarga falla. Pasado ese margen la consulta espera al servicio.
+ * </ul>
+ *
+ * <p>Los errores del {@link Loader} no se guardan: se propagan (salvo que haya un valor obsoleto que
+ * servir) y la siguiente consulta lo reintenta.
+ * Dos consultas simultaneas de la misma clave ausente llaman ambas al servicio.
+ * Un refresco que termina cuando su entrada ya se ha invalidado o sustituido se descarta.
+ */
+public class TtlCache<K, V> implements MeteredCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger( TtlCache.class );
+
+    /**
+     * Consulta al servicio que hay detras de la cache.
+     */
+    public interface Loader<K, V> {
+        /**
+         * @return el valor, o null si la clave no existe
+         * @throws Exception si no se ha podido consultar; el error no se guarda en la cache
+         */
+        V load(K key) throws Exception;
+    }
+
+    /**
+     * Consulta no bloqueante al servicio que hay detras de la cache.
+     */
+    public interface AsyncLoader<K, V> {
+        /**
+         * @return futuro con el valor, o con null si la clave no existe
+         */
+        ListenableFuture<V> load(K key);
+    }
+
+    /**
+     * Reloj de la cache en nanosegundos; los tests lo sustituyen para no esperar a que caduquen las
+     * entradas.
+     */
+    interface Ticker {
+        long read();
+    }
+
+    private static final Ticker SYSTEM_TICKER = new Ticker() {
+        @Override
+        public long read() {
+            return System.nanoTime();
+        }
+    };
+
+    private final String name;
+    private final Loader<K, V> loader;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long refreshAheadNanos;
+    private final long maxStaleNanos;
+    private final Executor refreshExecutor;
+    private final Ticker ticker;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loadErrors = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private TtlCache(Builder<K, V> builder) {
+        this.name = builder.name;
+        this.loader = builder.loader;
+        this.ttlNanos = builder.ttlMillis * 1000000L;
+        this.negativeTtlNanos = builder.negativeTtlMillis * 1000000L;
+        this.refreshAheadNanos = builder.refreshExecutor == null ? 0 : Math.min(builder.refreshAheadMillis, builder.ttlMillis) * 1000000L;
+        this.maxStaleNanos = builder.maxStaleMillis * 1000000L;
+        this.refreshExecutor = builder.refreshExecutor;
+        this.ticker = builder.ticker;
+        final int maxEntries = builder.maxEntries;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Devuelve el valor de la clave, de la cache si esta vigente o del {@link Loader} si no.
+     *
+     * @return el valor, o null si la clave no existe
+     * @throws Exception el error del {@link Loader}
+     */
+    public V get(K key) throws Exception {
+        long now = ticker.read();
+        Entry<V> entry = buscar(key, now);
+        if (entry != null && servir(key, entry, now)) {
+            return entry.value;
+        }
+        V value;
+        try {
+            value = loader.load(key);
+        } catch (Exception e) {
+            loadErrors.incrementAndGet();
+            if (entry != null) {
+                return obsoleta(key, entry, e);
+            }
+            misses.incrementAndGet();
+            throw e;
+        }
+        misses.incrementAndGet();
+        put(key, value);
+        return value;
+    }
+
+    /**
+     * Igual que {@link #get(Object)}, pero si hay que ir al servicio no bloquea: carga la clave con
+     * <code>asyncLoader</code> y guarda el resultado al completarse. Los refrescos en segundo plano
+     * siguen usando el {@link Loader} de la cache.
+     *
+     * @return futuro ya completado si el valor esta en la cache
+     */
+    public ListenableFuture<V> getAsync(final K key, AsyncLoader<K, V> asyncLoader) {
+        long now = ticker.read();
+        final Entry<V> entry = buscar(key, now);
+        final SettableListenableFuture<V> result = new SettableListenableFuture<V>();
+        if (entry != null && servir(key, entry, now)) {
+            result.set(entry.value);
+            return result;
+        }
+        ListenableFuture<V> carga;
+        try {
+            carga = asyncLoader.load(key);
+        } catch (RuntimeException e) {
+            fallida(key, entry, e, result);
+            return result;
+        }
+        carga.addCallback(new ListenableFutureCallback<V>() {
+            @Override
+            public void onSuccess(V value) {
+                misses.incrementAndGet();
+                put(key, value);
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                fallida(key, entry, e, result);
+            }
+        });
+        return result;
+    }
+
+    private void fallida(K key, Entry<V> entry, Throwable e, SettableListenableFuture<V> result) {
+        loadErrors.incrementAndGet();
+        if (entry != null) {
+            result.set(obsoleta(key, entry, e));
+        } else {
+            misses.incrementAndGet();
+            result.setException(e);
+        }
+    }
+
+    /**
+     * @return la entrada de la clave si aun se puede servir, vigente o dentro del margen de
+     *         obsolescencia; las que lo han superado se eliminan
+     */
+    private synchronized Entry<V> buscar(K key, long now) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && now - entry.staleUntil >= 0) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Cuenta el acierto y lanza el refresco que toque.
+     *
+     * @return false si la entrada esta caducada y, sin hilos de refresco, hay que recargarla en
+     *         esta llamada
+     */
+    private boolean servir(K key, Entry<V> entry, long now) {
+        if (now - entry.expiresAt >= 0) {
+            // caducada, pero aun dentro del margen de obsolescencia
+            if (refreshExecutor == null) {
+                return false;
+            }
+            staleHits.incrementAndGet();
+            if (entry.refreshing.compareAndSet(false, true)) {
+                refresh(key, entry);
+            }
+            return true;
+        }
+        if (entry.value == null) {
+            negativeHits.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+            if (refreshAheadNanos > 0 && now - (entry.expiresAt - refreshAheadNanos) >= 0
+                    && entry.refreshing.compareAndSet(false, true)) {
+                refresh(key, entry);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sirve la entrada caducada porque no se ha podido recargar. Cuenta como acierto obsoleto, no
+     * como fallo: cada consulta se cuenta una sola vez.
+     */
+    private V obsoleta(K key, Entry<V> entry, Throwable e) {
+        staleHits.incrementAndGet();
+        LOG.warn("Error al recargar la entrada {} de la cache {}, se sirve el valor caducado: {}", key, name,
+                e.toString());
+        return entry.value;
+    }
+
+    /**
+     * Guarda un valor ya conocido; null guarda la entrada negativa.
+     */
+    public void put(K key, V value) {
+        Entry<V> entry = nueva(value);
+        synchronized (this) {
+            if (entry == null) {
+                entries.remove(key);
+            } else {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Guarda el valor de un refresco solo si la entrada refrescada sigue en la cache; si entretanto
+     * se ha invalidado o sustituido, el valor ya no vale.
+     */
+    private void reemplazar(K key, Entry<V> anterior, V value) {
+        Entry<V> entry = nueva(value);
+        synchronized (this) {
+            if (entries.get(key) != anterior) {
+                return;
+            }
+            if (entry == null) {
+                entries.remove(key);
+            } else {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * @return la entrada para el valor, o null si es negativo y las negativas no se guardan
+     */
+    private Entry<V> nueva(V value) {
+        if (value == null && negativeTtlNanos == 0) {
+            return null;
+        }
+        long expiresAt = ticker.read() + (value == null ? negativeTtlNanos : ttlNanos);
+        return new Entry<V>(value, expiresAt, value == null ? expiresAt : expiresAt + maxStaleNanos);
+    }
+
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return new CacheStats(hits.get(), negativeHits.get(), staleHits.get(), misses.get(), loadErrors.get(), refreshes.get(),
+                evictions.get(), size());
+    }
+
+    private void refresh(final K key, final Entry<V> entry) {
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reemplazar(key, entry, loader.load(key));
+                        refreshes.incrementAndGet();
+                    } catch (Exception e) {
+                        loadErrors.incrementAndGet();
+                        entry.refreshing.set(false);
+                        LOG.warn("Error al refrescar la entrada {} de la cache {}: {}", key, name, e.toString());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+        private final long staleUntil;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(V value, long expiresAt, long staleUntil) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    public static class Builder<K, V> {
+        private final String name;
+        private final Loader<K, V> loader;
+        private int maxEntries = 10000;
+        private long ttlMillis = 300000;
+        private long negativeTtlMillis = 30000;
+        private long refreshAheadMillis = 0;
+        private long maxStaleMillis = 0;
+        private Executor refreshExecutor = null;
+        private Ticker ticker = SYSTEM_TICKER;
+
+        /**
+         * @param name nombre de la cache en logs y metricas
+         * @param loader consulta al servicio
+         */
+        public Builder(String name, Loader<K, V> loader) {
+            this.name = name;
+            this.loader = loader;
+        }
+
+        public Builder<K, V> setMaxEntries(int maxEntries) {
+            if (maxEntries < 1) {
+                throw new IllegalArgumentException("maxEntries must be positive");
+            }
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * @param ttlMillis vida de un valor desde que se carga
+         */
+        public Builder<K, V> setTtlMillis(long ttlMillis) {
+            if (ttlMillis < 1) {
+                throw new IllegalArgumentException("ttlMillis must be positive");
+            }
+            this.ttlMillis = ttlMillis;
+            return this;
+        }
+
+        /**
+         * @param negativeTtlMillis vida de una entrada negativa; 0 para no guardarlas
+         */
+        public Builder<K, V> setNegativeTtlMillis(long negativeTtlMillis) {
+            this.negativeTtlMillis = Math.max(0, negativeTtlMillis);
+            return this;
+        }
+
+        /**
+         * @param refreshAheadMillis vida restante por debajo de la cual un acierto recarga la entrada
+         *                           en segundo plano; 0 para no refrescar
+         */
+        public Builder<K, V> setRefreshAheadMillis(long refreshAheadMillis) {
+            this.refreshAheadMillis = Math.max(0, refreshAheadMillis);
+            return this;
+        }
+
+        /**
+         * @param maxStaleMillis tiempo que se sigue sirviendo un valor despues de caducar mientras se
+         *                       recarga; 0 para no servir valores caducados
+         */
+        public Builder<K, V> setMaxStaleMillis(long maxStaleMillis) {
+            this.maxStaleMillis = Math.max(0, maxStaleMillis);
+            return this;
+        }
+
+        /**
+         * @param refreshExecutor hilos para los refrescos; sin el no se refresca por adelantado
+         */
+        public Builder<K, V> setRefreshExecutor(Executor refreshExecutor) {
+            this.refreshExecutor = refreshExecutor;
+            return this;
+        }
+
+        Builder<K, V> setTicker(Ticker ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        public TtlCache<K, V> build() {
+            return new TtlCache<K, V>(this);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.mycorp.cache;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.mycorp.support.ValueCode;
+
+/**
+ * <p>Tablas de datos de referencia ({@link ValueCode}) indexadas por codigo.
+ *
+ * <p>Cada tabla se carga de su {@link Source} al crear el registro y se indexa en un mapa
+ * inmutable codigo -> valores. Las consultas leen la ultima foto publicada sin bloquear ni crear
+ * objetos. Un hilo propio recarga las tablas periodicamente; cada recarga construye una foto nueva
+ * y la publica de golpe, asi que una consulta ve la tabla entera antigua o la entera nueva. Si una
+ * recarga falla se mantiene la foto anterior.
+ *
+ * <p>Si alguna tabla no se ha podido cargar nunca, no se espera a la siguiente recarga periodica:
+ * se reintenta enseguida, doblando la pausa entre intentos hasta que se carga.
+ *
+ * <p>Las listas de valores son inmutables y compartidas: los codigos con los mismos valores usan la
+ * misma lista y los textos se guardan internados.
+ */
+public class ValueCodeRegistry implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( ValueCodeRegistry.class );
+
+    private static final long MAX_RETRY_MILLIS = 60000;
+
+    /**
+     * Servicio del que se lee una tabla.
+     */
+    public interface Source {
+        List<ValueCode> load() throws Exception;
+    }
+
+    private final Map<String, Tabla> tablas;
+    private final long refreshIntervalMillis;
+    private final long maxRetryMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private ValueCodeRegistry(Builder builder) {
+        Map<String, Tabla> result = new HashMap<String, Tabla>();
+        for (Map.Entry<String, Source> source : builder.sources.entrySet()) {
+            result.put(source.getKey(), new Tabla(source.getKey(), source.getValue()));
+        }
+        this.tablas = result;
+        this.refreshIntervalMillis = builder.refreshIntervalMillis;
+        this.maxRetryMillis = refreshIntervalMillis > 0 ? Math.min(refreshIntervalMillis, MAX_RETRY_MILLIS) : MAX_RETRY_MILLIS;
+        if (refreshIntervalMillis > 0 || !cargadas()) {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("zendesk-refdata-");
+            threadFactory.setDaemon(true);
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+            programar(cargadas() ? refreshIntervalMillis : Math.min(builder.initialRetryMillis, maxRetryMillis));
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * @return los valores del codigo en la tabla, en el orden en que los devuelve el servicio;
+     *         vacio si la tabla o el codigo no existen. La lista no se puede modificar.
+     */
+    public List<String> valores(String tabla, String code) {
+        Tabla result = tablas.get(tabla);
+        if (result == null || code == null) {
+            return Collections.emptyList();
+        }
+        List<String> valores = result.indice.get(code);
+        return valores != null ? valores : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return codigos distintos de la tabla en la foto actual
+     */
+    public int size(String tabla) {
+        Tabla result = tablas.get(tabla);
+        return result == null ? 0 : result.indice.size();
+    }
+
+    /**
+     * Recarga todas las tablas y publica las que se han podido leer.
+     *
+     * @return true si se han recargado todas
+     */
+    public boolean refresh() {
+        boolean ok = true;
+        for (Tabla tabla : tablas.values()) {
+            ok &= tabla.refresh();
+        }
+        return ok;
+    }
+
+    /**
+     * @return true si todas las tablas se han cargado al menos una vez
+     */
+    private boolean cargadas() {
+        for (Tabla tabla : tablas.values()) {
+            if (!tabla.cargada) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void programar(final long esperaMillis) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    recargar(esperaMillis);
+                }
+            }, esperaMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // cerrado
+        }
+    }
+
+    /**
+     * Recarga y programa la siguiente: reintento con la pausa doblada mientras falte alguna tabla por
+     * cargar, recarga periodica despues.
+     */
+    private void recargar(long esperaMillis) {
+        refresh();
+        if (!cargadas()) {
+            programar(Math.min(esperaMillis * 2, maxRetryMillis));
+        } else if (refreshIntervalMillis > 0) {
+            programar(refreshIntervalMillis);
+        } else {
+            scheduler.shutdown();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Indexa la tabla: codigo -> valores, con las listas de valores iguales compartidas.
+     */
+    static Map<String, List<String>> indexar(List<ValueCode> tabla) {
+        Map<String, List<String>> porCodigo = new LinkedHashMap<String, List<String>>();
+        for (ValueCode vc : tabla) {
+            if (vc == null || vc.getCode() == null) {
+                continue;
+            }
+            String code = vc.getCode().intern();
+            List<String> valores = porCodigo.get(code);
+            if (valores == null) {
+                valores = new ArrayList<String>(1);
+                porCodigo.put(code, valores);
+            }
+            valores.add(vc.getValue() == null ? null : vc.getValue().intern());
+        }
+        Map<List<String>, List<String>> compartidas = new HashMap<List<String>, List<String>>();
+        Map<String, List<String>> indice = new HashMap<String, List<String>>(porCodigo.size() * 2);
+        for (Map.Entry<String, List<String>> entrada : porCodigo.entrySet()) {
+            List<String> valores = compartidas.get(entrada.getValue());
+            if (valores == null) {
+                valores = Collections.unmodifiableList(entrada.getValue());
+                compartidas.put(entrada.getValue(), valores);
+            }
+            indice.put(entrada.getKey(), valores);
+        }
+        return Collections.unmodifiableMap(indice);
+    }
+
+    private static final class Tabla {
+        private final String nombre;
+        private final Source source;
+        private volatile Map<String, List<String>> indice = Collections.emptyMap();
+        private volatile boolean cargada;
+
+        Tabla(String nombre, Source source) {
+            this.nombre = nombre;
+            this.source = source;
+            refresh();
+        }
+
+        boolean refresh() {
+            try {
+                List<ValueCode> tabla = source.load();
+                indice = indexar(tabla == null ? Collections.<ValueCode>emptyList() : tabla);
+                cargada = true;
+                return true;
+            } catch (Exception e) {
+                LOG.error("Error al cargar la tabla de referencia " + nombre + "; se mantiene la anterior", e);
+                return false;
+            }
+        }
+    }
+
+    public static class Builder {
+        private final Map<String, Source> sources = new LinkedHashMap<String, Source>();
+        private long refreshIntervalMillis = 0;
+        private long initialRetryMillis = 1000;
+
+        /**
+         * @param tabla nombre con el que se consulta la tabla
+         * @param source servicio del que se lee
+         */
+        public Builder addTable(String tabla, Source source) {
+            sources.put(tabla, source);
+            return this;
+        }
+
+        /**
+         * @param refreshIntervalMillis pausa entre recargas; 0 para no recargar las tablas ya cargadas
+         */
+        public Builder setRefreshIntervalMillis(long refreshIntervalMillis) {
+            this.refreshIntervalMillis = Math.max(0, refreshIntervalMillis);
+            return this;
+        }
+
+        /**
+         * @param initialRetryMillis pausa antes del primer reintento de una tabla que no se ha podido
+         *                           cargar; se dobla en cada intento hasta un minuto como mucho
+         */
+        public Builder setInitialRetryMillis(long initialRetryMillis) {
+            this.initialRetryMillis = Math.max(1, initialRetryMillis);
+            return this;
+        }
+
+        /**
+         * Crea el registro y carga las tablas.
+         */
+        public ValueCodeRegistry build() {
+            return new ValueCodeRegistry(this);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.mycorp.enrichment;
+
+import java.util.Collection;
+
+/**
+ * <p>Una fuente de datos del ticket: lee sus entradas del {@link EnrichmentContext} y escribe en el
+ * sus salidas.
+ *
+ * <p>El {@link EnrichmentEngine} lo ejecuta cuando han terminado (bien, mal o por tiempo) los
+ * enriquecedores que producen sus entradas, asi que una entrada puede faltar si su productor ha
+ * fallado. Las entradas que no produce ningun enriquecedor son los datos iniciales de la peticion.
+ */
+public interface Enricher {
+
+    /**
+     * @return nombre en logs y en {@link EnrichmentResult#getOutcome(String)}
+     */
+    String getName();
+
+    /**
+     * @return claves que lee
+     */
+    Collection<String> getInputs();
+
+    /**
+     * @return claves que escribe; cada clave la produce un solo enriquecedor
+     */
+    Collection<String> getOutputs();
+
+    /**
+     * @throws Exception si no se han podido obtener los datos; lo escrito hasta entonces se descarta
+     */
+    void enrich(EnrichmentContext context) throws Exception;
+}
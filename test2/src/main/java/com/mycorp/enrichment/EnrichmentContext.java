@@ -0,0 +1,47 @@
+package com.mycorp.enrichment;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Vista de los datos de la peticion para un {@link Enricher}: lee lo que ya hay y guarda aparte lo
+ * que escribe, que el {@link EnrichmentEngine} solo publica si el enriquecedor termina bien y a
+ * tiempo.
+ */
+public final class EnrichmentContext {
+
+    private final Map<String, Object> datos;
+    private final Collection<String> salidas;
+    private final Map<String, Object> escritos = new HashMap<String, Object>();
+
+    EnrichmentContext(Map<String, Object> datos, Collection<String> salidas) {
+        this.datos = datos;
+        this.salidas = salidas;
+    }
+
+    /**
+     * @return el valor de la clave, o null si no esta (p.ej. porque su productor ha fallado)
+     */
+    public Object get(String key) {
+        return datos.get(key);
+    }
+
+    public <T> T get(String key, Class<T> type) {
+        return type.cast(datos.get(key));
+    }
+
+    /**
+     * @throws IllegalArgumentException si la clave no es una salida declarada del enriquecedor
+     */
+    public void put(String key, Object value) {
+        if (!salidas.contains(key)) {
+            throw new IllegalArgumentException(key + " is not a declared output");
+        }
+        escritos.put(key, value);
+    }
+
+    Map<String, Object> getEscritos() {
+        return escritos;
+    }
+}
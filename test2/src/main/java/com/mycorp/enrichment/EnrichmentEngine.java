@@ -0,0 +1,319 @@
+package com.mycorp.enrichment;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mycorp.enrichment.EnrichmentResult.Outcome;
+import com.mycorp.resilience.Deadline;
+
+/**
+ * <p>Ejecuta un conjunto de {@link Enricher} respetando sus dependencias: cada uno arranca en cuanto
+ * terminan los que producen sus entradas, y los que no dependen entre si van a la vez en el
+ * {@link Executor}. La duracion total es la de la cadena de dependencias mas larga, no la suma.
+ *
+ * <p>Cada enriquecedor tiene su tiempo maximo, contado desde que arranca en un hilo del
+ * {@link Executor} y no desde que se encola; si lo supera se cancela (se interrumpe su hilo), sus
+ * salidas se descartan y los que dependen de el arrancan sin ellas. Un error tiene el mismo efecto.
+ * Si espera en la cola del {@link Executor} mas de ese mismo tiempo sin llegar a arrancar, se da
+ * por agotado sin ejecutarlo. Si el {@link Executor} rechaza una tarea por estar lleno, el
+ * enriquecedor se ejecuta en el hilo que llama a {@link #run(Map)}.
+ *
+ * <p>Si el hilo que llama a {@link #run(Map)} tiene {@link Deadline}, ningun enriquecedor pasa de
+ * el: su tiempo maximo se acota a lo que queda, los que no han empezado cuando pasa se dan por
+ * agotados sin ejecutarlos, y cada enriquecedor se ejecuta con ese mismo deadline.
+ *
+ * <p>El grafo se valida al construir el motor: cada clave la produce un solo enriquecedor y no puede
+ * haber ciclos. El motor no tiene estado por peticion y se puede compartir entre hilos.
+ */
+public class EnrichmentEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger( EnrichmentEngine.class );
+
+    private final Executor executor;
+    private final Nodo[] nodos;
+
+    private EnrichmentEngine(Builder builder) {
+        this.executor = builder.executor;
+        this.nodos = new Nodo[builder.nodos.size()];
+        for (int i = 0; i < nodos.length; i++) {
+            Nodo nodo = builder.nodos.get(i);
+            nodos[i] = new Nodo(i, nodo.enricher, nodo.timeoutMillis);
+        }
+        Map<String, Nodo> productores = new HashMap<String, Nodo>();
+        for (Nodo nodo : nodos) {
+            for (String salida : nodo.enricher.getOutputs()) {
+                Nodo anterior = productores.put(salida, nodo);
+                if (anterior != null) {
+                    throw new IllegalArgumentException(salida + " is produced by both " + anterior.enricher.getName()
+                            + " and " + nodo.enricher.getName());
+                }
+            }
+        }
+        for (Nodo nodo : nodos) {
+            for (String entrada : nodo.enricher.getInputs()) {
+                Nodo productor = productores.get(entrada);
+                if (productor == nodo) {
+                    throw new IllegalArgumentException(nodo.enricher.getName() + " depends on itself");
+                }
+                if (productor != null && !productor.dependientes.contains(nodo)) {
+                    productor.dependientes.add(nodo);
+                    nodo.dependencias++;
+                }
+            }
+        }
+        validarCiclos();
+    }
+
+    /**
+     * Ejecuta todos los enriquecedores y espera a que terminen o agoten su tiempo.
+     *
+     * @param iniciales datos de la peticion; las claves con valor null se ignoran
+     * @return los datos iniciales mas las salidas de los enriquecedores que han terminado bien
+     */
+    public EnrichmentResult run(Map<String, Object> iniciales) {
+        Map<String, Object> datos = new ConcurrentHashMap<String, Object>();
+        publicar(datos, iniciales);
+        Map<String, Outcome> outcomes = new LinkedHashMap<String, Outcome>();
+
+        int[] pendientes = new int[nodos.length];
+        Deque<Nodo> listos = new ArrayDeque<Nodo>();
+        for (Nodo nodo : nodos) {
+            pendientes[nodo.indice] = nodo.dependencias;
+            if (nodo.dependencias == 0) {
+                listos.add(nodo);
+            }
+        }
+        BlockingQueue<Tarea> eventos = new LinkedBlockingQueue<Tarea>();	// tareas que arrancan o terminan
+        Map<Tarea, Nodo> enCurso = new IdentityHashMap<Tarea, Nodo>();
+        long[] limites = new long[nodos.length];
+        Deadline deadline = Deadline.current();
+
+        try {
+            while (outcomes.size() < nodos.length) {
+                while (!listos.isEmpty()) {
+                    Nodo nodo = listos.poll();
+                    long plazo = deadline == null ? nodo.timeoutNanos : Math.min(nodo.timeoutNanos, deadline.remainingNanos());
+                    if (plazo <= 0) {
+                        LOG.warn("No queda tiempo para el enriquecedor {}; se continua sin sus datos", nodo.enricher.getName());
+                        completar(nodo, Outcome.TIMEOUT, outcomes, pendientes, listos);
+                        continue;
+                    }
+                    Callable<EnrichmentContext> llamada = llamada(nodo, datos, deadline);
+                    Tarea tarea = new Tarea(llamada, eventos);
+                    limites[nodo.indice] = System.nanoTime() + plazo;	// hasta que arranque
+                    try {
+                        executor.execute(tarea);
+                        enCurso.put(tarea, nodo);
+                    } catch (RejectedExecutionException e) {
+                        FutureTask<EnrichmentContext> enEsteHilo = new FutureTask<EnrichmentContext>(llamada);
+                        enEsteHilo.run();
+                        terminar(nodo, enEsteHilo, datos, outcomes, pendientes, listos);
+                    }
+                }
+                if (enCurso.isEmpty()) {
+                    continue;
+                }
+                long espera = Long.MAX_VALUE;
+                for (Nodo nodo : enCurso.values()) {
+                    espera = Math.min(espera, limites[nodo.indice] - System.nanoTime());
+                }
+                Tarea evento = espera > 0 ? eventos.poll(espera, TimeUnit.NANOSECONDS) : eventos.poll();
+                if (evento != null) {
+                    Nodo nodo = enCurso.get(evento);
+                    if (nodo == null) {
+                        continue;	// ya terminada o cancelada por tiempo
+                    }
+                    if (evento.isDone()) {
+                        enCurso.remove(evento);
+                        terminar(nodo, evento, datos, outcomes, pendientes, listos);
+                    } else {
+                        limites[nodo.indice] = evento.inicio + nodo.timeoutNanos;	// desde que arranca
+                        long hastaDeadline = deadline == null ? 0 : System.nanoTime() + deadline.remainingNanos();
+                        if (deadline != null && hastaDeadline - limites[nodo.indice] < 0) {
+                            limites[nodo.indice] = hastaDeadline;
+                        }
+                    }
+                    continue;
+                }
+                long ahora = System.nanoTime();
+                for (Tarea tarea : new ArrayList<Tarea>(enCurso.keySet())) {
+                    Nodo nodo = enCurso.get(tarea);
+                    if (ahora - limites[nodo.indice] >= 0) {
+                        tarea.cancel(true);
+                        enCurso.remove(tarea);
+                        LOG.warn("El enriquecedor {} no ha {} a tiempo (maximo {} ms); se continua sin sus datos",
+                                nodo.enricher.getName(), tarea.inicio == 0 ? "arrancado" : "terminado", nodo.timeoutMillis);
+                        completar(nodo, Outcome.TIMEOUT, outcomes, pendientes, listos);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Map.Entry<Tarea, Nodo> pendiente : enCurso.entrySet()) {
+                pendiente.getKey().cancel(true);
+                outcomes.put(pendiente.getValue().enricher.getName(), Outcome.TIMEOUT);
+            }
+        }
+        return new EnrichmentResult(datos, outcomes);
+    }
+
+    private static Callable<EnrichmentContext> llamada(final Nodo nodo, Map<String, Object> datos, final Deadline deadline) {
+        final EnrichmentContext context = new EnrichmentContext(datos, nodo.enricher.getOutputs());
+        return new Callable<EnrichmentContext>() {
+            @Override
+            public EnrichmentContext call() throws Exception {
+                Deadline anterior = Deadline.enter(deadline);
+                try {
+                    nodo.enricher.enrich(context);
+                } finally {
+                    Deadline.restore(anterior);
+                }
+                return context;
+            }
+        };
+    }
+
+    private void terminar(Nodo nodo, Future<EnrichmentContext> hecho, Map<String, Object> datos,
+            Map<String, Outcome> outcomes, int[] pendientes, Deque<Nodo> listos) throws InterruptedException {
+        Outcome outcome;
+        try {
+            publicar(datos, hecho.get().getEscritos());
+            outcome = Outcome.OK;
+        } catch (ExecutionException e) {
+            LOG.error("Error en el enriquecedor " + nodo.enricher.getName(), e.getCause());
+            outcome = Outcome.ERROR;
+        }
+        completar(nodo, outcome, outcomes, pendientes, listos);
+    }
+
+    private static void completar(Nodo nodo, Outcome outcome, Map<String, Outcome> outcomes, int[] pendientes,
+            Deque<Nodo> listos) {
+        outcomes.put(nodo.enricher.getName(), outcome);
+        for (Nodo dependiente : nodo.dependientes) {
+            if (--pendientes[dependiente.indice] == 0) {
+                listos.add(dependiente);
+            }
+        }
+    }
+
+    private static void publicar(Map<String, Object> datos, Map<String, Object> valores) {
+        for (Map.Entry<String, Object> valor : valores.entrySet()) {
+            if (valor.getValue() != null) {
+                datos.put(valor.getKey(), valor.getValue());
+            }
+        }
+    }
+
+    private void validarCiclos() {
+        int[] pendientes = new int[nodos.length];
+        Deque<Nodo> listos = new ArrayDeque<Nodo>();
+        for (Nodo nodo : nodos) {
+            pendientes[nodo.indice] = nodo.dependencias;
+            if (nodo.dependencias == 0) {
+                listos.add(nodo);
+            }
+        }
+        int ordenados = 0;
+        while (!listos.isEmpty()) {
+            ordenados++;
+            for (Nodo dependiente : listos.poll().dependientes) {
+                if (--pendientes[dependiente.indice] == 0) {
+                    listos.add(dependiente);
+                }
+            }
+        }
+        if (ordenados < nodos.length) {
+            throw new IllegalArgumentException("enricher dependencies contain a cycle");
+        }
+    }
+
+    /**
+     * Enriquecedor enviado al {@link Executor}. Avisa al arrancar, para contar su tiempo maximo desde
+     * ese momento, y al terminar.
+     */
+    private static final class Tarea extends FutureTask<EnrichmentContext> {
+        private final BlockingQueue<Tarea> eventos;
+        private volatile long inicio;	// System.nanoTime() al arrancar; 0 mientras espera en la cola
+
+        Tarea(Callable<EnrichmentContext> llamada, BlockingQueue<Tarea> eventos) {
+            super(llamada);
+            this.eventos = eventos;
+        }
+
+        @Override
+        public void run() {
+            if (!isDone()) {
+                inicio = System.nanoTime();
+                eventos.add(this);
+            }
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            eventos.add(this);
+        }
+    }
+
+    private static final class Nodo {
+        private final int indice;
+        private final Enricher enricher;
+        private final long timeoutMillis;
+        private final long timeoutNanos;
+        private final List<Nodo> dependientes = new ArrayList<Nodo>();
+        private int dependencias;
+
+        Nodo(int indice, Enricher enricher, long timeoutMillis) {
+            this.indice = indice;
+            this.enricher = enricher;
+            this.timeoutMillis = timeoutMillis;
+            this.timeoutNanos = timeoutMillis * 1000000L;
+        }
+    }
+
+    public static class Builder {
+        private final Executor executor;
+        private final List<Nodo> nodos = new ArrayList<Nodo>();
+
+        /**
+         * @param executor hilos en los que se ejecutan los enriquecedores; conviene que sea acotado
+         */
+        public Builder(Executor executor) {
+            this.executor = executor;
+        }
+
+        /**
+         * @param timeoutMillis tiempo maximo desde que arranca hasta que termina
+         */
+        public Builder add(Enricher enricher, long timeoutMillis) {
+            if (timeoutMillis < 1) {
+                throw new IllegalArgumentException("timeoutMillis must be positive");
+            }
+            nodos.add(new Nodo(nodos.size(), enricher, timeoutMillis));
+            return this;
+        }
+
+        public EnrichmentEngine build() {
+            return new EnrichmentEngine(this);
+        }
+    }
+}
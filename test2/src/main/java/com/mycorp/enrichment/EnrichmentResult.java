@@ -0,0 +1,50 @@
+package com.mycorp.enrichment;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Datos reunidos por una ejecucion del {@link EnrichmentEngine} y como ha terminado cada
+ * enriquecedor.
+ */
+public final class EnrichmentResult {
+
+    public enum Outcome {
+        /** ha terminado bien y sus salidas estan en el resultado */
+        OK,
+        /** ha lanzado una excepcion */
+        ERROR,
+        /** no ha terminado dentro de su tiempo maximo y se ha cancelado */
+        TIMEOUT
+    }
+
+    private final Map<String, Object> datos;
+    private final Map<String, Outcome> outcomes;
+
+    EnrichmentResult(Map<String, Object> datos, Map<String, Outcome> outcomes) {
+        this.datos = Collections.unmodifiableMap(datos);
+        this.outcomes = Collections.unmodifiableMap(outcomes);
+    }
+
+    /**
+     * @return el valor de la clave, o null si ningun enriquecedor la ha producido
+     */
+    public Object get(String key) {
+        return datos.get(key);
+    }
+
+    public <T> T get(String key, Class<T> type) {
+        return type.cast(datos.get(key));
+    }
+
+    /**
+     * @return como ha terminado el enriquecedor, o null si no existe
+     */
+    public Outcome getOutcome(String enricher) {
+        return outcomes.get(enricher);
+    }
+
+    public Map<String, Outcome> getOutcomes() {
+        return outcomes;
+    }
+}
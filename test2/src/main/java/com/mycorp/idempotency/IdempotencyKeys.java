@@ -0,0 +1,62 @@
+package com.mycorp.idempotency;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import util.datos.UsuarioAlta;
+
+/**
+ * <p>Calcula las claves de idempotencia de las altas de ticket.
+ *
+ * <p>La clave es un SHA-256 de los datos del formulario de alta y del identificador de peticion
+ * que envia el cliente: la misma alta repetida (reintentos, reenvios desde el outbox, doble
+ * click...) produce la misma clave y Zendesk no crea un segundo ticket.
+ */
+public final class IdempotencyKeys {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private IdempotencyKeys() {
+    }
+
+    /**
+     * @param usuarioAlta datos del formulario de alta
+     * @param requestId identificador de la peticion asignado por el cliente
+     * @return clave de idempotencia (64 caracteres hexadecimales)
+     */
+    public static String of(UsuarioAlta usuarioAlta, String requestId) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, requestId);
+        update(digest, usuarioAlta.getNumPoliza());
+        update(digest, usuarioAlta.getNumTarjeta());
+        update(digest, usuarioAlta.getTipoDocAcreditativo());
+        update(digest, usuarioAlta.getNumDocAcreditativo());
+        update(digest, usuarioAlta.getEmail());
+        update(digest, usuarioAlta.getNumeroTelefono());
+        return hex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, Object value) {
+        if (value != null) {
+            digest.update(String.valueOf(value).getBytes(UTF_8));
+        }
+        // separador para que ("ab", "c") y ("a", "bc") no den la misma clave
+        digest.update((byte) 0);
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
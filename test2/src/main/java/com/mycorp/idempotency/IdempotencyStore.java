@@ -0,0 +1,181 @@
+package com.mycorp.idempotency;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Registro acotado de las claves de idempotencia ya completadas y el id del ticket que crearon.
+ *
+ * <p>En memoria se guardan las <code>maxEntries</code> claves mas recientes (LRU). Si se indica un
+ * fichero, cada alta se añade tambien a el (<code>clave TAB id</code> por linea) y se recarga al
+ * arrancar, de forma que un reenvio tras un reinicio tampoco duplica el ticket. El fichero se
+ * compacta cuando acumula el doble de lineas que entradas admite la memoria.
+ */
+public class IdempotencyStore implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( IdempotencyStore.class );
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxEntries;
+    private final File file;
+    private final LinkedHashMap<String, Long> entries;
+    private Writer writer;
+    private int lines;
+
+    private IdempotencyStore(Builder builder) throws IOException {
+        this.maxEntries = builder.maxEntries;
+        this.file = builder.file;
+        this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (file != null) {
+            load();
+            compact();
+        }
+    }
+
+    /**
+     * @return id del ticket creado con esta clave, o null si no consta
+     */
+    public synchronized Long get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Registra que la clave ha creado el ticket indicado.
+     */
+    public synchronized void put(String key, Long ticketId) {
+        if (key == null || ticketId == null || ticketId.equals(entries.put(key, ticketId)) || writer == null) {
+            return;
+        }
+        try {
+            writer.write(key);
+            writer.write('\t');
+            writer.write(ticketId.toString());
+            writer.write('\n');
+            writer.flush();
+            if (++lines > 2 * maxEntries) {
+                compact();
+            }
+        } catch (IOException e) {
+            LOG.error("Error al guardar la clave de idempotencia en " + file, e);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Compacta el fichero con las entradas que hay en memoria y lo cierra.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            compact();
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                try {
+                    entries.put(line.substring(0, tab), Long.valueOf(line.substring(tab + 1)));
+                } catch (NumberFormatException e) {
+                    // linea escrita a medias
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        LOG.info("Cargadas {} claves de idempotencia de {}", entries.size(), file);
+    }
+
+    /**
+     * Reescribe el fichero con las entradas en memoria y lo deja abierto para añadir.
+     */
+    private void compact() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+        try {
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                out.write(entry.getKey());
+                out.write('\t');
+                out.write(entry.getValue().toString());
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Cannot replace " + file);
+        }
+        lines = entries.size();
+        writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+    }
+
+    public static class Builder {
+        private int maxEntries = 10000;
+        private File file = null;
+
+        /**
+         * @param maxEntries claves que se recuerdan como maximo
+         */
+        public Builder setMaxEntries(int maxEntries) {
+            if (maxEntries < 1) {
+                throw new IllegalArgumentException("maxEntries must be positive");
+            }
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * @param file fichero donde persistir las claves; si no se indica solo se guardan en memoria
+         */
+        public Builder setFile(File file) {
+            this.file = file;
+            return this;
+        }
+
+        public IdempotencyStore build() throws IOException {
+            return new IdempotencyStore(this);
+        }
+    }
+}
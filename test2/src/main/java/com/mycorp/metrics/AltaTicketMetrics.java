@@ -0,0 +1,334 @@
+package com.mycorp.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mycorp.cache.CacheStats;
+import com.mycorp.cache.MeteredCache;
+import com.mycorp.cache.SingleFlight;
+import com.mycorp.resilience.Bulkhead;
+
+/**
+ * <p>Latencias y errores de cada etapa del alta de tickets en Zendesk.
+ *
+ * <p>Cada {@link Stage} tiene un {@link LatencyHistogram} y un contador de errores. Los datos se
+ * consultan con {@link #snapshot()} o se exportan en el formato de texto de Prometheus con
+ * {@link #writePrometheus(Writer)}.
+ *
+ * <p>Tambien exporta los contadores de las caches de consultas registradas con
+ * {@link #registerCache(String, MeteredCache)} y las llamadas rechazadas o canceladas por tiempo
+ * de los compartimentos registrados con {@link #registerBulkhead(Bulkhead)}, y las consultas
+ * agrupadas de los {@link SingleFlight} registrados con {@link #registerSingleFlight(String, SingleFlight)}.
+ */
+public class AltaTicketMetrics {
+
+    /**
+     * Etapas instrumentadas de {@link com.mycorp.ZendeskService#altaTicketZendesk}.
+     */
+    public enum Stage {
+        /** consulta REST del cliente de la tarjeta */
+        TARJETA("tarjeta"),
+        /** llamada EJB recuperarDatosPoliza */
+        POLIZA("poliza"),
+        /** consulta REST de DatosCliente en BRAVO */
+        BRAVO("bravo"),
+        /** merge de las plantillas */
+        PLANTILLAS("plantillas"),
+        /** composicion del JSON del ticket */
+        TICKET("ticket"),
+        /** creacion del ticket en Zendesk, con reintentos */
+        ZENDESK("zendesk"),
+        /** envio del mail de error */
+        EMAIL("email");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /** Limites (segundos) de las cubetas exportadas a Prometheus. */
+    private static final double[] PROMETHEUS_BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    private static final String PREFIX = "zendesk_alta_stage";
+    private static final String CACHE_PREFIX = "zendesk_cache";
+    private static final String BULKHEAD_PREFIX = "zendesk_bulkhead";
+    private static final String SINGLEFLIGHT_PREFIX = "zendesk_singleflight";
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+    private final Map<Stage, AtomicLong> errors = new EnumMap<Stage, AtomicLong>(Stage.class);
+    private final Map<String, MeteredCache> caches = new LinkedHashMap<String, MeteredCache>();
+    private final Map<String, Bulkhead> bulkheads = new LinkedHashMap<String, Bulkhead>();
+    private final Map<String, SingleFlight<?, ?>> singleFlights = new LinkedHashMap<String, SingleFlight<?, ?>>();
+
+    public AltaTicketMetrics() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+            errors.put(stage, new AtomicLong());
+        }
+    }
+
+    /**
+     * Registra una ejecucion de la etapa.
+     *
+     * @param stage etapa
+     * @param startNanos <code>System.nanoTime()</code> al empezar la etapa
+     * @param ok false si la etapa ha terminado con error
+     */
+    public void record(Stage stage, long startNanos, boolean ok) {
+        histograms.get(stage).record(System.nanoTime() - startNanos);
+        if (!ok) {
+            errors.get(stage).incrementAndGet();
+        }
+    }
+
+    /**
+     * Incluye la cache en las metricas exportadas.
+     *
+     * @param name nombre de la cache, p.ej. <code>tarjeta</code>
+     */
+    public void registerCache(String name, MeteredCache cache) {
+        synchronized (caches) {
+            caches.put(name, cache);
+        }
+    }
+
+    /**
+     * Incluye el compartimento en las metricas exportadas, con su nombre.
+     */
+    public void registerBulkhead(Bulkhead bulkhead) {
+        synchronized (bulkheads) {
+            bulkheads.put(bulkhead.getName(), bulkhead);
+        }
+    }
+
+    /**
+     * Incluye las consultas agrupadas en las metricas exportadas.
+     *
+     * @param name sistema consultado, p.ej. <code>tarjeta</code>
+     */
+    public void registerSingleFlight(String name, SingleFlight<?, ?> singleFlight) {
+        synchronized (singleFlights) {
+            singleFlights.put(name, singleFlight);
+        }
+    }
+
+    /**
+     * @return contadores de cada cache registrada en este instante
+     */
+    public Map<String, CacheStats> cacheSnapshot() {
+        Map<String, CacheStats> result = new LinkedHashMap<String, CacheStats>();
+        synchronized (caches) {
+            for (Map.Entry<String, MeteredCache> cache : caches.entrySet()) {
+                result.put(cache.getKey(), cache.getValue().getStats());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return resumen de cada etapa en este instante
+     */
+    public Map<String, StageSnapshot> snapshot() {
+        Map<String, StageSnapshot> result = new LinkedHashMap<String, StageSnapshot>();
+        for (Stage stage : Stage.values()) {
+            result.put(stage.getLabel(), new StageSnapshot(histograms.get(stage).snapshot(), errors.get(stage).get()));
+        }
+        return result;
+    }
+
+    /**
+     * Escribe las metricas en el formato de texto de Prometheus (version 0.0.4): un histograma
+     * <code>zendesk_alta_stage_duration_seconds</code> y un contador
+     * <code>zendesk_alta_stage_errors_total</code>, ambos con la etiqueta <code>stage</code>. De
+     * cada cache, <code>zendesk_cache_requests_total</code> por resultado (<code>hit</code>,
+     * <code>negative_hit</code>, <code>stale_hit</code>, <code>miss</code>), <code>zendesk_cache_load_errors_total</code>,
+     * <code>zendesk_cache_refreshes_total</code>, <code>zendesk_cache_evictions_total</code> y
+     * <code>zendesk_cache_size</code>, con la etiqueta <code>cache</code>. De cada compartimento,
+     * <code>zendesk_bulkhead_rejected_total</code>, <code>zendesk_bulkhead_timeouts_total</code>,
+     * <code>zendesk_bulkhead_active</code> y <code>zendesk_bulkhead_queued</code>, con la etiqueta
+     * <code>bulkhead</code>. De cada {@link SingleFlight}, <code>zendesk_singleflight_coalesced_total</code>
+     * y <code>zendesk_singleflight_in_flight</code>, con la etiqueta <code>flight</code>.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP " + PREFIX + "_duration_seconds Duracion de cada etapa del alta de tickets.\n");
+        out.write("# TYPE " + PREFIX + "_duration_seconds histogram\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = histograms.get(stage).snapshot();
+            for (double le : PROMETHEUS_BUCKETS) {
+                long micros = (long) (le * 1000000);
+                out.write(PREFIX + "_duration_seconds_bucket{stage=\"" + stage.getLabel() + "\",le=\""
+                        + format(le) + "\"} " + snapshot.getCountAtOrBelow(micros) + "\n");
+            }
+            out.write(PREFIX + "_duration_seconds_bucket{stage=\"" + stage.getLabel() + "\",le=\"+Inf\"} "
+                    + snapshot.getCount() + "\n");
+            out.write(PREFIX + "_duration_seconds_sum{stage=\"" + stage.getLabel() + "\"} "
+                    + format(snapshot.getSumMicros() / 1e6) + "\n");
+            out.write(PREFIX + "_duration_seconds_count{stage=\"" + stage.getLabel() + "\"} "
+                    + snapshot.getCount() + "\n");
+        }
+        out.write("# HELP " + PREFIX + "_errors_total Ejecuciones de cada etapa terminadas con error.\n");
+        out.write("# TYPE " + PREFIX + "_errors_total counter\n");
+        for (Stage stage : Stage.values()) {
+            out.write(PREFIX + "_errors_total{stage=\"" + stage.getLabel() + "\"} " + errors.get(stage).get() + "\n");
+        }
+        writeCaches(out);
+        writeBulkheads(out);
+        writeSingleFlights(out);
+        out.flush();
+    }
+
+    private void writeCaches(Writer out) throws IOException {
+        Map<String, CacheStats> stats = cacheSnapshot();
+        if (stats.isEmpty()) {
+            return;
+        }
+        out.write("# HELP " + CACHE_PREFIX + "_requests_total Consultas a cada cache por resultado.\n");
+        out.write("# TYPE " + CACHE_PREFIX + "_requests_total counter\n");
+        for (Map.Entry<String, CacheStats> cache : stats.entrySet()) {
+            String label = "cache=\"" + cache.getKey() + "\"";
+            out.write(CACHE_PREFIX + "_requests_total{" + label + ",result=\"hit\"} " + cache.getValue().getHits() + "\n");
+            out.write(CACHE_PREFIX + "_requests_total{" + label + ",result=\"negative_hit\"} "
+                    + cache.getValue().getNegativeHits() + "\n");
+            out.write(CACHE_PREFIX + "_requests_total{" + label + ",result=\"stale_hit\"} "
+                    + cache.getValue().getStaleHits() + "\n");
+            out.write(CACHE_PREFIX + "_requests_total{" + label + ",result=\"miss\"} " + cache.getValue().getMisses() + "\n");
+        }
+        Map<String, Long> loadErrors = new LinkedHashMap<String, Long>();
+        Map<String, Long> refreshes = new LinkedHashMap<String, Long>();
+        Map<String, Long> evictions = new LinkedHashMap<String, Long>();
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, CacheStats> cache : stats.entrySet()) {
+            loadErrors.put(cache.getKey(), cache.getValue().getLoadErrors());
+            refreshes.put(cache.getKey(), cache.getValue().getRefreshes());
+            evictions.put(cache.getKey(), cache.getValue().getEvictions());
+            sizes.put(cache.getKey(), (long) cache.getValue().getSize());
+        }
+        writeCacheMetric(out, "_load_errors_total", "counter", "Consultas al servicio fallidas.", loadErrors);
+        writeCacheMetric(out, "_refreshes_total", "counter", "Entradas refrescadas antes de caducar.", refreshes);
+        writeCacheMetric(out, "_evictions_total", "counter", "Entradas expulsadas por falta de sitio.", evictions);
+        writeCacheMetric(out, "_size", "gauge", "Entradas en la cache.", sizes);
+    }
+
+    private void writeBulkheads(Writer out) throws IOException {
+        Map<String, Long> rejected = new LinkedHashMap<String, Long>();
+        Map<String, Long> timeouts = new LinkedHashMap<String, Long>();
+        Map<String, Long> active = new LinkedHashMap<String, Long>();
+        Map<String, Long> queued = new LinkedHashMap<String, Long>();
+        synchronized (bulkheads) {
+            for (Bulkhead bulkhead : bulkheads.values()) {
+                rejected.put(bulkhead.getName(), bulkhead.getRejectedCount());
+                timeouts.put(bulkhead.getName(), bulkhead.getTimeoutCount());
+                active.put(bulkhead.getName(), (long) bulkhead.getActiveCount());
+                queued.put(bulkhead.getName(), (long) bulkhead.getQueuedCount());
+            }
+        }
+        if (rejected.isEmpty()) {
+            return;
+        }
+        writeMetric(out, BULKHEAD_PREFIX + "_rejected_total", "counter", "bulkhead",
+                "Llamadas rechazadas por no haber hilo libre ni sitio en la cola.", rejected);
+        writeMetric(out, BULKHEAD_PREFIX + "_timeouts_total", "counter", "bulkhead",
+                "Llamadas canceladas por superar el tiempo maximo.", timeouts);
+        writeMetric(out, BULKHEAD_PREFIX + "_active", "gauge", "bulkhead", "Llamadas en curso.", active);
+        writeMetric(out, BULKHEAD_PREFIX + "_queued", "gauge", "bulkhead", "Llamadas esperando hilo libre.", queued);
+    }
+
+    private void writeSingleFlights(Writer out) throws IOException {
+        Map<String, Long> coalesced = new LinkedHashMap<String, Long>();
+        Map<String, Long> inFlight = new LinkedHashMap<String, Long>();
+        synchronized (singleFlights) {
+            for (Map.Entry<String, SingleFlight<?, ?>> singleFlight : singleFlights.entrySet()) {
+                coalesced.put(singleFlight.getKey(), singleFlight.getValue().getCoalesced());
+                inFlight.put(singleFlight.getKey(), (long) singleFlight.getValue().getInFlight());
+            }
+        }
+        if (coalesced.isEmpty()) {
+            return;
+        }
+        writeMetric(out, SINGLEFLIGHT_PREFIX + "_coalesced_total", "counter", "flight",
+                "Consultas que se han unido a otra igual en curso.", coalesced);
+        writeMetric(out, SINGLEFLIGHT_PREFIX + "_in_flight", "gauge", "flight", "Claves con una consulta en curso.", inFlight);
+    }
+
+    private static void writeCacheMetric(Writer out, String suffix, String type, String help, Map<String, Long> values)
+            throws IOException {
+        writeMetric(out, CACHE_PREFIX + suffix, type, "cache", help, values);
+    }
+
+    private static void writeMetric(Writer out, String name, String type, String label, String help,
+            Map<String, Long> values) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+        for (Map.Entry<String, Long> value : values.entrySet()) {
+            out.write(name + "{" + label + "=\"" + value.getKey() + "\"} " + value.getValue() + "\n");
+        }
+    }
+
+    private static String format(double value) {
+        String text = String.format(Locale.ROOT, "%.6f", value);
+        text = text.replaceAll("0+$", "");
+        return text.endsWith(".") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Resumen de una etapa, en milisegundos.
+     */
+    public static final class StageSnapshot {
+        private final long count;
+        private final long errors;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double p999Millis;
+        private final double maxMillis;
+
+        StageSnapshot(LatencyHistogram.Snapshot histogram, long errors) {
+            this.count = histogram.getCount();
+            this.errors = errors;
+            this.meanMillis = histogram.getMeanMicros() / 1000;
+            this.p50Millis = histogram.getPercentileMicros(50) / 1000.0;
+            this.p90Millis = histogram.getPercentileMicros(90) / 1000.0;
+            this.p99Millis = histogram.getPercentileMicros(99) / 1000.0;
+            this.p999Millis = histogram.getPercentileMicros(99.9) / 1000.0;
+            this.maxMillis = histogram.getMaxMicros() / 1000.0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+        public long getErrors() {
+            return errors;
+        }
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+        public double getP50Millis() {
+            return p50Millis;
+        }
+        public double getP90Millis() {
+            return p90Millis;
+        }
+        public double getP99Millis() {
+            return p99Millis;
+        }
+        public double getP999Millis() {
+            return p999Millis;
+        }
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.mycorp.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Histograma de latencias con cubetas log-lineales, al estilo de HdrHistogram.
+ *
+ * <p>Los valores se registran en microsegundos. Por debajo de 16 µs cada microsegundo tiene su
+ * cubeta; por encima, cada potencia de dos se divide en 16 cubetas iguales, de modo que el error
+ * relativo de cualquier percentil es como maximo del 6,25% sea cual sea la magnitud. Con exponentes
+ * hasta 2^44 cubre de 1 µs a unos 200 dias en 672 cubetas de tamaño fijo.
+ *
+ * <p>El registro no bloquea (contadores atomicos) y puede hacerse desde cualquier hilo.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 44;		// 2^44 µs ~ 200 dias
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Registra una duracion.
+     *
+     * @param nanos duracion en nanosegundos
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // reintento
+        }
+    }
+
+    /**
+     * @return copia de los contadores en este instante
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sumMicros.get(), maxMicros.get());
+    }
+
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return limite superior (exclusivo, en µs) de los valores que caen en la cubeta
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift);
+    }
+
+    /**
+     * Estado del histograma en un instante.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sumMicros;
+        private final long maxMicros;
+
+        Snapshot(long[] counts, long count, long sumMicros, long maxMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSumMicros() {
+            return sumMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        public double getMeanMicros() {
+            return count == 0 ? 0 : (double) sumMicros / count;
+        }
+
+        /**
+         * @param percentile percentil entre 0 y 100
+         * @return valor (µs) por debajo del cual queda el percentil indicado de las muestras
+         */
+        public long getPercentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(upperBound(i) - 1, maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        /**
+         * @return muestras con valor menor o igual que <code>micros</code> (aproximado a la cubeta)
+         */
+        public long getCountAtOrBelow(long micros) {
+            long seen = 0;
+            for (int i = 0; i < counts.length && upperBound(i) - 1 <= micros; i++) {
+                seen += counts[i];
+            }
+            return seen;
+        }
+    }
+}
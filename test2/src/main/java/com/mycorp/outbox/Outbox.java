@@ -0,0 +1,418 @@
+package com.mycorp.outbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * <p>Registro durable de solo escritura al final (append-only) en disco local.
+ *
+ * <p>Los registros se escriben en segmentos de tamaño fijo proyectados en memoria
+ * (<code>outbox-NNNNNNNNNNNNNNNNNNNN.seg</code>). Cada registro lleva su longitud y un CRC32 del
+ * contenido: <code>[int longitud][int crc][contenido]</code>. Una longitud 0 marca el final de lo
+ * escrito en el segmento, y un CRC incorrecto (escritura a medias por una caida) tambien.
+ *
+ * <p>Los <code>force()</code> a disco se agrupan: se hacen cada <code>syncEvery</code> registros o
+ * cada <code>syncIntervalMillis</code>, lo que ocurra antes; una caida del sistema puede perder como
+ * mucho lo escrito en esa ventana.
+ *
+ * <p>La posicion de lectura se guarda en <code>outbox.checkpoint</code> al confirmar registros
+ * con {@link #commit(Entry)}; los segmentos ya consumidos se borran.
+ */
+public class Outbox implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( Outbox.class );
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT = "outbox.checkpoint";
+    private static final int HEADER = 8;
+
+    /**
+     * Registro leido del outbox, con la posicion que hay que confirmar para consumirlo.
+     */
+    public static final class Entry {
+        private final byte[] payload;
+        private final long segment;
+        private final int end;
+
+        Entry(byte[] payload, long segment, int end) {
+            this.payload = payload;
+            this.segment = segment;
+            this.end = end;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final int syncEvery;
+    private final ScheduledExecutorService syncer;
+    private final TreeSet<Long> segments = new TreeSet<Long>();
+
+    private long writeSegment;
+    private RandomAccessFile writeFile;
+    private MappedByteBuffer writeBuffer;
+    private int writePos;
+    private int unsynced;
+
+    private long readSegment;
+    private int readPos;
+    private long cachedReadSegment = -1;
+    private ByteBuffer cachedReadBuffer;
+    private RandomAccessFile checkpointFile;
+    private boolean checkpointDirty;
+
+    private long pending;
+    private boolean closed;
+
+    private Outbox(Builder builder) throws IOException {
+        this.dir = builder.dir;
+        this.segmentSize = builder.segmentSize;
+        this.syncEvery = builder.syncEvery;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create outbox directory " + dir);
+        }
+        recover();
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("outbox-sync-");
+        threadFactory.setDaemon(true);
+        this.syncer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.syncer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    LOG.error("Error al sincronizar el outbox " + Outbox.this.dir, e);
+                }
+            }
+        }, builder.syncIntervalMillis, builder.syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Añade un registro al final del outbox.
+     *
+     * @param payload contenido del registro
+     * @throws IOException si no se puede escribir en disco
+     */
+    public synchronized void append(byte[] payload) throws IOException {
+        checkOpen();
+        if (payload.length == 0 || payload.length > segmentSize - HEADER) {
+            throw new IllegalArgumentException("Outbox record size must be between 1 and " + (segmentSize - HEADER));
+        }
+        if (writePos + HEADER + payload.length > segmentSize) {
+            roll();
+        }
+        writeBuffer.position(writePos + HEADER);
+        writeBuffer.put(payload);
+        // la longitud se escribe la ultima; si una caida deja el registro a medias lo detecta el CRC
+        writeBuffer.putInt(writePos + 4, crc(payload, 0, payload.length));
+        writeBuffer.putInt(writePos, payload.length);
+        writePos += HEADER + payload.length;
+        pending++;
+        if (++unsynced >= syncEvery) {
+            sync();
+        }
+    }
+
+    /**
+     * Lee hasta <code>max</code> registros desde la posicion de lectura, sin consumirlos.
+     */
+    public synchronized List<Entry> read(int max) throws IOException {
+        checkOpen();
+        List<Entry> entries = new ArrayList<Entry>();
+        scan(max, entries);
+        return entries;
+    }
+
+    /**
+     * Recorre registros desde la posicion de lectura; si <code>entries</code> es null solo los cuenta.
+     */
+    private int scan(int max, List<Entry> entries) throws IOException {
+        int count = 0;
+        long segment = readSegment;
+        int pos = readPos;
+        while (count < max) {
+            ByteBuffer buffer = readBuffer(segment);
+            int limit = segment == writeSegment ? writePos : segmentSize;
+            byte[] payload = buffer == null ? null : readRecord(buffer, pos, limit);
+            if (payload != null) {
+                pos += HEADER + payload.length;
+                count++;
+                if (entries != null) {
+                    entries.add(new Entry(payload, segment, pos));
+                }
+                continue;
+            }
+            Long next = segments.higher(segment);
+            if (next == null) {
+                break;
+            }
+            segment = next;
+            pos = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Confirma que un registro se ha consumido. Los registros se confirman en el orden en que se leen.
+     */
+    public synchronized void commit(Entry entry) throws IOException {
+        checkOpen();
+        if (entry.segment < readSegment || (entry.segment == readSegment && entry.end <= readPos)) {
+            return;
+        }
+        readSegment = entry.segment;
+        readPos = entry.end;
+        pending = Math.max(0, pending - 1);
+        writeCheckpoint();
+        while (!segments.isEmpty() && segments.first() < readSegment) {
+            long consumed = segments.pollFirst();
+            if (consumed == cachedReadSegment) {
+                cachedReadSegment = -1;
+                cachedReadBuffer = null;
+            }
+            File file = segmentFile(consumed);
+            if (!file.delete()) {
+                LOG.warn("No se ha podido borrar el segmento consumido {}", file);
+            }
+        }
+    }
+
+    /**
+     * Fuerza a disco lo escrito y la posicion de lectura.
+     */
+    public synchronized void sync() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (unsynced > 0) {
+            writeBuffer.force();
+            unsynced = 0;
+        }
+        if (checkpointDirty) {
+            checkpointFile.getChannel().force(false);
+            checkpointDirty = false;
+        }
+    }
+
+    /**
+     * @return registros pendientes de consumir
+     */
+    public synchronized long getPendingCount() {
+        return pending;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        syncer.shutdown();
+        sync();
+        closed = true;
+        writeFile.close();
+        checkpointFile.close();
+        writeBuffer = null;
+        cachedReadBuffer = null;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Outbox " + dir + " is closed");
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            try {
+                segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignorando fichero desconocido en el outbox: {}", file);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            openWriteSegment(1);
+        } else {
+            openWriteSegment(segments.last());
+            // fin de lo escrito: ultimo registro valido; se limpia lo que haya detras (escritura a medias)
+            int pos = 0;
+            byte[] payload;
+            while ((payload = readRecord(writeBuffer, pos, segmentSize)) != null) {
+                pos += HEADER + payload.length;
+            }
+            writePos = pos;
+            for (int i = pos; i < segmentSize && writeBuffer.get(i) != 0; i++) {
+                writeBuffer.put(i, (byte) 0);
+            }
+        }
+
+        checkpointFile = new RandomAccessFile(new File(dir, CHECKPOINT), "rw");
+        readSegment = segments.first();
+        readPos = 0;
+        if (checkpointFile.length() >= 16) {
+            long segment = checkpointFile.readLong();
+            int pos = checkpointFile.readInt();
+            int crc = checkpointFile.readInt();
+            ByteBuffer check = ByteBuffer.allocate(12).putLong(segment).putInt(pos);
+            if (crc == crc(check.array(), 0, 12) && segments.contains(segment)) {
+                readSegment = segment;
+                readPos = pos;
+            } else {
+                LOG.warn("Checkpoint del outbox {} no valido; se relee desde el principio", dir);
+            }
+        }
+        pending = scan(Integer.MAX_VALUE, null);
+        LOG.info("Outbox {} abierto con {} registros pendientes", dir, pending);
+    }
+
+    private void roll() throws IOException {
+        writeBuffer.force();
+        unsynced = 0;
+        writeFile.close();
+        openWriteSegment(writeSegment + 1);
+    }
+
+    private void openWriteSegment(long segment) throws IOException {
+        File file = segmentFile(segment);
+        writeFile = new RandomAccessFile(file, "rw");
+        if (writeFile.length() < segmentSize) {
+            writeFile.setLength(segmentSize);
+        }
+        writeBuffer = writeFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        writeSegment = segment;
+        writePos = 0;
+        segments.add(segment);
+    }
+
+    private ByteBuffer readBuffer(long segment) throws IOException {
+        if (segment == writeSegment) {
+            return writeBuffer.duplicate();
+        }
+        if (segment != cachedReadSegment) {
+            File file = segmentFile(segment);
+            if (!file.exists()) {
+                return null;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                cachedReadBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(raf.length(), segmentSize));
+                cachedReadSegment = segment;
+            } finally {
+                raf.close();
+            }
+        }
+        return cachedReadBuffer.duplicate();
+    }
+
+    /**
+     * @return el contenido del registro en <code>pos</code>, o null si no hay un registro valido
+     */
+    private static byte[] readRecord(ByteBuffer buffer, int pos, int limit) {
+        limit = Math.min(limit, buffer.capacity());
+        if (pos + HEADER > limit) {
+            return null;
+        }
+        int length = buffer.getInt(pos);
+        if (length <= 0 || pos + HEADER + length > limit) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(pos + HEADER);
+        view.get(payload);
+        if (buffer.getInt(pos + 4) != crc(payload, 0, length)) {
+            LOG.warn("Registro del outbox con CRC incorrecto en la posicion {}", pos);
+            return null;
+        }
+        return payload;
+    }
+
+    private void writeCheckpoint() throws IOException {
+        ByteBuffer check = ByteBuffer.allocate(16).putLong(readSegment).putInt(readPos);
+        check.putInt(crc(check.array(), 0, 12));
+        checkpointFile.seek(0);
+        checkpointFile.write(check.array());
+        checkpointDirty = true;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static int crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    public static class Builder {
+        private final File dir;
+        private int segmentSize = 16 * 1024 * 1024;
+        private int syncEvery = 32;
+        private long syncIntervalMillis = 200;
+
+        public Builder(File dir) {
+            this.dir = dir;
+        }
+
+        public Builder setSegmentSize(int segmentSize) {
+            if (segmentSize <= HEADER) {
+                throw new IllegalArgumentException("segmentSize too small");
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * @param syncEvery registros escritos tras los que se fuerza a disco
+         */
+        public Builder setSyncEvery(int syncEvery) {
+            this.syncEvery = Math.max(1, syncEvery);
+            return this;
+        }
+
+        /**
+         * @param syncIntervalMillis tiempo maximo que lo escrito puede estar sin forzar a disco
+         */
+        public Builder setSyncIntervalMillis(long syncIntervalMillis) {
+            this.syncIntervalMillis = syncIntervalMillis;
+            return this;
+        }
+
+        public Outbox build() throws IOException {
+            return new Outbox(this);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.mycorp.resilience;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Espera exponencial entre reintentos con jitter completo: la espera del intento <i>n</i> es un
+ * valor aleatorio entre 0 y <code>min(maxDelay, baseDelay * 2^(n-1))</code>, para que los clientes
+ * que fallan a la vez no reintenten todos al mismo tiempo.
+ */
+public class Backoff {
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public Backoff(long baseDelayMillis, long maxDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param attempt numero del reintento, empezando en 1
+     * @return milisegundos a esperar antes del reintento
+     */
+    public long delayMillis(int attempt) {
+        long techo = baseDelayMillis << Math.min(Math.max(attempt - 1, 0), 30);
+        if (techo <= 0 || techo > maxDelayMillis) {
+            techo = maxDelayMillis;
+        }
+        return techo <= 0 ? 0 : ThreadLocalRandom.current().nextLong(techo + 1);
+    }
+}
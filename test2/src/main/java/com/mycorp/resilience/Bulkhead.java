@@ -0,0 +1,356 @@
+package com.mycorp.resilience;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+
+/**
+ * <p>Compartimento estanco para las llamadas bloqueantes a un sistema remoto.
+ *
+ * <p>Las llamadas se ejecutan en un pool de hilos propio del sistema, con una cola acotada, y el
+ * hilo llamante espera como mucho el tiempo maximo. Asi un sistema lento solo agota sus hilos:
+ * cuando estan todos ocupados y la cola llena las llamadas se rechazan al momento con
+ * {@link BulkheadFullException}, y las que no terminan a tiempo se cancelan (se interrumpe su
+ * hilo) con {@link TimeoutException}. Los errores de la llamada se propagan tal cual.
+ *
+ * <p>Las llamadas sincronas, en las que el llamante se quedaria bloqueado esperando de todos modos,
+ * pueden ejecutarse en su propio hilo con {@link #callInCaller(Callable)}: se limitan con semaforos
+ * a los mismos hilos y cola, contados aparte, sin ocupar un segundo hilo por llamada. Las llamadas
+ * asincronas, con {@link #callAsync(Callable)}, ocupan uno de esos turnos hasta que se completa su
+ * futuro.
+ */
+public class Bulkhead implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( Bulkhead.class );
+
+    private final String name;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore permisos;	// hilos + cola: llamadas admitidas cuyo hilo aun no ha terminado con ellas
+    private final Semaphore admitidasLlamante;	// hilos + cola de las llamadas en el hilo llamante
+    private final Semaphore enCursoLlamante;	// hilos: llamadas en el hilo llamante ejecutandose
+    private final int threads;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param name nombre del sistema protegido, para hilos, trazas y errores
+     * @param threads llamadas simultaneas como maximo
+     * @param queue llamadas que pueden esperar hilo libre; 0 para rechazar en cuanto esten todos ocupados
+     * @param timeoutMillis tiempo maximo de cada llamada, incluida la espera en la cola
+     */
+    public Bulkhead(String name, int threads, int queue, long timeoutMillis) {
+        if (threads < 1 || queue < 0 || timeoutMillis < 1) {
+            throw new IllegalArgumentException("threads and timeoutMillis must be positive and queue not negative");
+        }
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("zendesk-" + name + "-");
+        threadFactory.setDaemon(true);
+        this.permisos = new Semaphore(threads + queue);
+        this.admitidasLlamante = new Semaphore(threads + queue);
+        this.enCursoLlamante = new Semaphore(threads, true);
+        this.threads = threads;
+        // Los permisos deciden la admision. La cola tiene sitio para todas las llamadas admitidas,
+        // tambien las que llegan mientras un hilo que acaba de terminar vuelve a por trabajo, y la
+        // acota por si acaso.
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads + queue), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Ejecuta la llamada en los hilos del compartimento y espera su resultado. Si el hilo tiene
+     * {@link Deadline}, el tiempo maximo se acota a lo que le queda y la llamada lo hereda.
+     *
+     * @throws BulkheadFullException si no hay hilo libre ni sitio en la cola
+     * @throws TimeoutException si no termina en el tiempo maximo o el deadline ya ha pasado
+     */
+    public <T> T call(final Callable<T> llamada) throws Exception {
+        final Deadline deadline = Deadline.current();
+        long timeout = Deadline.remainingMillis(timeoutMillis);
+        if (timeout <= 0) {
+            timeouts.incrementAndGet();
+            throw new TimeoutException("Deadline expired before calling " + name);
+        }
+        if (!permisos.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new BulkheadFullException(name);
+        }
+        Llamada<T> future = new Llamada<T>(llamada, deadline);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            future.liberar();
+            rejected.incrementAndGet();
+            throw new BulkheadFullException(name);
+        }
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            if (executor.remove(future)) {
+                future.liberar();	// no llego a empezar
+            }
+            timeouts.incrementAndGet();
+            LOG.warn("La llamada a {} no ha terminado en {} ms; se cancela", name, timeout);
+            throw new TimeoutException("Call to " + name + " timed out after " + timeout + " ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            if (executor.remove(future)) {
+                future.liberar();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UndeclaredThrowableException(cause);
+        }
+    }
+
+    /**
+     * Ejecuta la llamada en el hilo llamante. Si ya hay tantas llamadas asi como hilos, espera turno
+     * hasta el tiempo maximo, acotado al {@link Deadline}; si ademas la cola esta llena se rechaza al
+     * momento. Una vez empezada la llamada no se interrumpe: tiene que acotar ella misma su duracion
+     * con el {@link Deadline} del hilo. Si el hilo no tiene, la llamada se hace con uno del tiempo
+     * maximo.
+     *
+     * @throws BulkheadFullException si la cola esta llena o no llega el turno en el tiempo maximo
+     * @throws TimeoutException si el deadline ya ha pasado
+     */
+    public <T> T callInCaller(Callable<T> llamada) throws Exception {
+        if (Deadline.current() != null) {
+            return callInCallerConDeadline(llamada);
+        }
+        Deadline anterior = Deadline.enter(Deadline.after(timeoutMillis));
+        try {
+            return callInCallerConDeadline(llamada);
+        } finally {
+            Deadline.restore(anterior);
+        }
+    }
+
+    private <T> T callInCallerConDeadline(Callable<T> llamada) throws Exception {
+        long timeout = Deadline.remainingMillis(timeoutMillis);
+        if (timeout <= 0) {
+            timeouts.incrementAndGet();
+            throw new TimeoutException("Deadline expired before calling " + name);
+        }
+        if (!admitidasLlamante.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new BulkheadFullException(name);
+        }
+        try {
+            if (!enCursoLlamante.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                LOG.warn("La llamada a {} no ha tenido turno en {} ms; se rechaza", name, timeout);
+                throw new BulkheadFullException(name);
+            }
+            try {
+                return llamada.call();
+            } finally {
+                enCursoLlamante.release();
+            }
+        } finally {
+            admitidasLlamante.release();
+        }
+    }
+
+    /**
+     * Inicia una llamada asincrona si hay turno libre entre los de {@link #callInCaller(Callable)}, y
+     * lo ocupa hasta que se completa el futuro que devuelve. No espera turno: si estan todos ocupados,
+     * o hay llamadas esperandolo, se rechaza al momento. El tiempo maximo no se aplica; la llamada
+     * tiene que acotar ella misma su duracion.
+     *
+     * @return el futuro de la llamada
+     * @throws BulkheadFullException si no hay turno libre
+     */
+    public <T> ListenableFuture<T> callAsync(Callable<ListenableFuture<T>> llamada) throws Exception {
+        if (!enCursoLlamante.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+            rejected.incrementAndGet();
+            throw new BulkheadFullException(name);
+        }
+        ListenableFuture<T> future;
+        try {
+            future = llamada.call();
+        } catch (Exception e) {
+            enCursoLlamante.release();
+            throw e;
+        } catch (Error e) {
+            enCursoLlamante.release();
+            throw e;
+        }
+        future.addCallback(new ListenableFutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                enCursoLlamante.release();
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                enCursoLlamante.release();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Decora un interfaz para que todas sus llamadas pasen por el compartimento. Las excepciones
+     * comprobadas que el metodo no declara, como {@link TimeoutException}, llegan envueltas en
+     * {@link UndeclaredThrowableException}; {@link BulkheadFullException} llega tal cual.
+     */
+    public <T> T proxy(Class<T> iface, T target) {
+        return proxy(iface, target, false);
+    }
+
+    /**
+     * Igual que {@link #proxy(Class, Object)}, pero cada llamada se ejecuta en el hilo llamante con
+     * {@link #callInCaller(Callable)}.
+     */
+    public <T> T proxyInCaller(Class<T> iface, T target) {
+        return proxy(iface, target, true);
+    }
+
+    private <T> T proxy(Class<T> iface, final T target, final boolean enLlamante) {
+        return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(target, args);
+                        }
+                        Callable<Object> llamada = new Callable<Object>() {
+                            @Override
+                            public Object call() throws Exception {
+                                try {
+                                    return method.invoke(target, args);
+                                } catch (InvocationTargetException e) {
+                                    Throwable cause = e.getCause();
+                                    if (cause instanceof Exception) {
+                                        throw (Exception) cause;
+                                    }
+                                    throw (Error) cause;
+                                }
+                            }
+                        };
+                        return enLlamante ? callInCaller(llamada) : call(llamada);
+                    }
+                }));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return llamadas rechazadas por no haber hilo libre ni sitio en la cola, o por no llegarles el turno
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return llamadas canceladas por superar el tiempo maximo, o no hechas por haber pasado el deadline
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return llamadas en curso en este instante, en los hilos del compartimento o en el llamante
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount() + threads - enCursoLlamante.availablePermits();
+    }
+
+    /**
+     * @return llamadas esperando hilo libre o turno en este instante
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size() + enCursoLlamante.getQueueLength();
+    }
+
+    /**
+     * Interrumpe las llamadas en curso y rechaza las nuevas.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Llamada admitida. Devuelve su permiso cuando su hilo termina con ella: antes de publicar el
+     * resultado, para que quien lo recibe pueda volver a llamar, o al salir de {@link #run()}. Una
+     * llamada cancelada que sigue bloqueada en algo que no atiende la interrupcion conserva su
+     * permiso, porque sigue ocupando el hilo.
+     */
+    private final class Llamada<T> extends FutureTask<T> {
+        private final AtomicBoolean liberada = new AtomicBoolean();
+
+        Llamada(final Callable<T> llamada, final Deadline deadline) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    Deadline anterior = Deadline.enter(deadline);
+                    try {
+                        return llamada.call();
+                    } finally {
+                        Deadline.restore(anterior);
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected void set(T value) {
+            liberar();
+            super.set(value);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            liberar();
+            super.setException(t);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                liberar();
+            }
+        }
+
+        void liberar() {
+            if (liberada.compareAndSet(false, true)) {
+                permisos.release();
+            }
+        }
+    }
+}
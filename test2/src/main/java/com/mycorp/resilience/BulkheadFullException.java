@@ -0,0 +1,21 @@
+package com.mycorp.resilience;
+
+/**
+ * La llamada no se ha hecho porque el {@link Bulkhead} del sistema remoto no tiene hilo libre ni
+ * sitio en la cola.
+ */
+public class BulkheadFullException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String bulkhead;
+
+    public BulkheadFullException(String bulkhead) {
+        super("Bulkhead '" + bulkhead + "' is full");
+        this.bulkhead = bulkhead;
+    }
+
+    public String getBulkhead() {
+        return bulkhead;
+    }
+}
@@ -0,0 +1,126 @@
+package com.mycorp.resilience;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Circuit breaker para las llamadas a un sistema remoto.
+ *
+ * <p>Se abre tras un numero de fallos consecutivos y, mientras esta abierto, rechaza las llamadas
+ * sin hacerlas. Pasado el tiempo de apertura deja pasar una llamada de prueba (semiabierto): si
+ * va bien se cierra y si falla vuelve a abrirse.
+ *
+ * <p>Uso: {@link #tryAcquire()} antes de llamar y, si devuelve true, exactamente uno de
+ * {@link #onSuccess()}, {@link #onFailure()} o {@link #onIgnored()} con el resultado.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger( CircuitBreaker.class );
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long rejected;
+
+    /**
+     * @param name nombre del sistema protegido, para trazas y errores
+     * @param failureThreshold fallos consecutivos que abren el circuito
+     * @param openMillis tiempo que permanece abierto antes de dejar pasar una llamada de prueba
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return true si la llamada puede hacerse
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() - openedAt >= openMillis) {
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                return true;
+            }
+            break;
+        case HALF_OPEN:
+            if (!probeInFlight) {
+                probeInFlight = true;
+                return true;
+            }
+            break;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Como {@link #tryAcquire()}, pero lanzando {@link CircuitOpenException} si el circuito no deja pasar.
+     */
+    public void acquire() {
+        if (!tryAcquire()) {
+            throw new CircuitOpenException(name);
+        }
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state != State.CLOSED) {
+            LOG.info("Circuit breaker '{}' closed", name);
+            state = State.CLOSED;
+        }
+    }
+
+    public synchronized void onFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            LOG.warn("Circuit breaker '{}' opened after {} consecutive failures", name, consecutiveFailures);
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * La llamada ha terminado con un resultado que no dice nada de la salud del sistema remoto
+     * (p.ej. un 429): no cuenta como fallo ni como exito, pero libera la llamada de prueba.
+     */
+    public synchronized void onIgnored() {
+        probeInFlight = false;
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /** @return llamadas rechazadas sin hacerse por estar el circuito abierto */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,20 @@
+package com.mycorp.resilience;
+
+/**
+ * La llamada no se ha hecho porque el {@link CircuitBreaker} del sistema remoto esta abierto.
+ */
+public class CircuitOpenException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String circuit;
+
+    public CircuitOpenException(String circuit) {
+        super("Circuit breaker '" + circuit + "' is open");
+        this.circuit = circuit;
+    }
+
+    public String getCircuit() {
+        return circuit;
+    }
+}
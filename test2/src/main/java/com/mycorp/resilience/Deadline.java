@@ -0,0 +1,90 @@
+package com.mycorp.resilience;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Instante limite de una peticion, para que cada etapa use solo el tiempo que le queda.
+ *
+ * <p>El deadline de la peticion en curso va en el hilo: se establece con {@link #enter(Deadline)},
+ * se consulta con {@link #current()} y se restaura con {@link #restore(Deadline)} en un
+ * <code>finally</code>. Quien pasa trabajo a otro hilo ({@link Bulkhead},
+ * {@link com.mycorp.enrichment.EnrichmentEngine}) lo establece tambien alli, asi que las llamadas
+ * remotas acotan su tiempo maximo al que queda y no empiezan si ya ha pasado.
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Deadline> ACTUAL = new ThreadLocal<Deadline>();
+
+    private final long limitNanos;
+
+    private Deadline(long limitNanos) {
+        this.limitNanos = limitNanos;
+    }
+
+    /**
+     * @param millis tiempo disponible desde ahora
+     */
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * @return el deadline del hilo, o null si la peticion en curso no tiene
+     */
+    public static Deadline current() {
+        return ACTUAL.get();
+    }
+
+    /**
+     * Establece el deadline del hilo.
+     *
+     * @param deadline el nuevo deadline, o null para quitarlo
+     * @return el anterior, para pasarselo a {@link #restore(Deadline)}
+     */
+    public static Deadline enter(Deadline deadline) {
+        Deadline anterior = ACTUAL.get();
+        if (deadline == null) {
+            ACTUAL.remove();
+        } else {
+            ACTUAL.set(deadline);
+        }
+        return anterior;
+    }
+
+    /**
+     * Vuelve a dejar el deadline que habia antes de {@link #enter(Deadline)}.
+     */
+    public static void restore(Deadline anterior) {
+        enter(anterior);
+    }
+
+    /**
+     * @param timeoutMillis tiempo maximo propio de una etapa
+     * @return el menor entre <code>timeoutMillis</code> y lo que le queda al deadline del hilo, si
+     *         lo hay; 0 o negativo si ya ha pasado
+     */
+    public static long remainingMillis(long timeoutMillis) {
+        Deadline actual = ACTUAL.get();
+        return actual == null ? timeoutMillis : Math.min(timeoutMillis, actual.remainingMillis());
+    }
+
+    /**
+     * @return un deadline <code>millis</code> antes que este, para reservar ese tiempo a las etapas
+     *         posteriores
+     */
+    public Deadline minusMillis(long millis) {
+        return new Deadline(limitNanos - TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    public long remainingNanos() {
+        return limitNanos - System.nanoTime();
+    }
+
+    public long remainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(remainingNanos());
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+}
@@ -0,0 +1,67 @@
+package com.mycorp.support;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Resultado individual de un elemento de un {@link JobStatus}.
+ */
+public class JobResult {
+    private Long id;
+    private Integer index;
+    private String action;
+    private String status;
+    private Boolean success;
+    private String error;
+    private String details;
+
+    /**
+     * @return true si el elemento se ha procesado correctamente
+     */
+    @JsonIgnore
+    public boolean isOk() {
+        return error == null && !Boolean.FALSE.equals(success) && id != null;
+    }
+
+    public Long getId() {
+        return id;
+    }
+    public void setId(Long id) {
+        this.id = id;
+    }
+    public Integer getIndex() {
+        return index;
+    }
+    public void setIndex(Integer index) {
+        this.index = index;
+    }
+    public String getAction() {
+        return action;
+    }
+    public void setAction(String action) {
+        this.action = action;
+    }
+    public String getStatus() {
+        return status;
+    }
+    public void setStatus(String status) {
+        this.status = status;
+    }
+    public Boolean getSuccess() {
+        return success;
+    }
+    public void setSuccess(Boolean success) {
+        this.success = success;
+    }
+    public String getError() {
+        return error;
+    }
+    public void setError(String error) {
+        this.error = error;
+    }
+    public String getDetails() {
+        return details;
+    }
+    public void setDetails(String details) {
+        this.details = details;
+    }
+}
@@ -0,0 +1,75 @@
+package com.mycorp.support;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Estado de un trabajo asincrono de Zendesk (p.ej. <code>tickets/create_many</code>).
+ */
+public class JobStatus {
+    public static final String QUEUED = "queued";
+    public static final String WORKING = "working";
+    public static final String FAILED = "failed";
+    public static final String COMPLETED = "completed";
+    public static final String KILLED = "killed";
+
+    private String id;
+    private String url;
+    private Integer total;
+    private Integer progress;
+    private String status;
+    private String message;
+    private List<JobResult> results;
+
+    /**
+     * @return true si el trabajo ha terminado, con o sin exito
+     */
+    @JsonIgnore
+    public boolean isFinished() {
+        return COMPLETED.equals(status) || FAILED.equals(status) || KILLED.equals(status);
+    }
+
+    public String getId() {
+        return id;
+    }
+    public void setId(String id) {
+        this.id = id;
+    }
+    public String getUrl() {
+        return url;
+    }
+    public void setUrl(String url) {
+        this.url = url;
+    }
+    public Integer getTotal() {
+        return total;
+    }
+    public void setTotal(Integer total) {
+        this.total = total;
+    }
+    public Integer getProgress() {
+        return progress;
+    }
+    public void setProgress(Integer progress) {
+        this.progress = progress;
+    }
+    public String getStatus() {
+        return status;
+    }
+    public void setStatus(String status) {
+        this.status = status;
+    }
+    public String getMessage() {
+        return message;
+    }
+    public void setMessage(String message) {
+        this.message = message;
+    }
+    public List<JobResult> getResults() {
+        return results;
+    }
+    public void setResults(List<JobResult> results) {
+        this.results = results;
+    }
+}
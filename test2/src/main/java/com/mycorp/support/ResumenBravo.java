@@ -0,0 +1,119 @@
+package com.mycorp.support;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * <p>Los campos de {@link DatosCliente} que usa la plantilla de datos BRAVO, ya convertidos a lo que
+ * se pinta en el ticket.
+ *
+ * <p>Es lo que se guarda en la cache de BRAVO en lugar del {@link DatosCliente} completo. Los textos
+ * que se repiten entre clientes (fecha de nacimiento, tipo de documento, tipo de cliente) se guardan
+ * internados, asi que miles de entradas comparten unas pocas instancias.
+ */
+public final class ResumenBravo {
+
+    private static final String FORMATO_FECHA = "dd/MM/yyyy";
+
+    private final Integer genTGrupoTmk;
+    private final String fechaNacimiento;
+    private final String genCTipoDocumento;
+    private final String numeroDocAcred;
+    private final String tipoCliente;
+    private final Integer genTStatus;
+    private final Integer idMotivoAlta;
+    private final boolean inactivoWeb;
+
+    public ResumenBravo(Integer genTGrupoTmk, String fechaNacimiento, String genCTipoDocumento, String numeroDocAcred,
+            String tipoCliente, Integer genTStatus, Integer idMotivoAlta, boolean inactivoWeb) {
+        this.genTGrupoTmk = genTGrupoTmk;
+        this.fechaNacimiento = intern(fechaNacimiento);
+        this.genCTipoDocumento = intern(genCTipoDocumento);
+        this.numeroDocAcred = numeroDocAcred;
+        this.tipoCliente = intern(tipoCliente);
+        this.genTStatus = genTStatus;
+        this.idMotivoAlta = idMotivoAlta;
+        this.inactivoWeb = inactivoWeb;
+    }
+
+    /**
+     * @param cliente respuesta de BRAVO
+     * @throws ParseException si la fecha de nacimiento no es dd/MM/yyyy
+     */
+    public static ResumenBravo of(DatosCliente cliente) throws ParseException {
+        SimpleDateFormat formatter = new SimpleDateFormat(FORMATO_FECHA);
+        String fechaNacimiento = formatter.format(formatter.parse(cliente.getFechaNacimiento()));
+        return new ResumenBravo(cliente.getGenTGrupoTmk(), fechaNacimiento,
+                cliente.getGenCTipoDocumento() == null ? null : cliente.getGenCTipoDocumento().toString(),
+                cliente.getNumeroDocAcred(), tipoCliente(cliente.getGenTTipoCliente()), cliente.getGenTStatus(),
+                cliente.getIdMotivoAlta(), cliente.getfInactivoWeb() != null);
+    }
+
+    /**
+     * Solo se conocen los codigos 1 a 3. Cualquier otro codigo, o su ausencia, se pinta vacio en el
+     * ticket, como se ha hecho siempre, en lugar de inventar un texto.
+     */
+    private static String tipoCliente(Integer genTTipoCliente) {
+        if (genTTipoCliente == null) {
+            return "";
+        }
+        switch (genTTipoCliente) {
+        case 1:
+            return "POTENCIAL";
+        case 2:
+            return "REAL";
+        case 3:
+            return "PROSPECTO";
+        default:
+            return "";
+        }
+    }
+
+    private static String intern(String text) {
+        return text == null ? null : text.intern();
+    }
+
+    public Integer getGenTGrupoTmk() {
+        return genTGrupoTmk;
+    }
+
+    /**
+     * @return fecha de nacimiento en dd/MM/yyyy
+     */
+    public String getFechaNacimiento() {
+        return fechaNacimiento;
+    }
+
+    /**
+     * @return codigo del tipo de documento, para buscarlo entre los tipos de documento del registro
+     */
+    public String getGenCTipoDocumento() {
+        return genCTipoDocumento;
+    }
+
+    public String getNumeroDocAcred() {
+        return numeroDocAcred;
+    }
+
+    /**
+     * @return POTENCIAL, REAL, PROSPECTO o vacio
+     */
+    public String getTipoCliente() {
+        return tipoCliente;
+    }
+
+    public Integer getGenTStatus() {
+        return genTStatus;
+    }
+
+    public Integer getIdMotivoAlta() {
+        return idMotivoAlta;
+    }
+
+    /**
+     * @return true si el cliente tiene fecha de baja en la web
+     */
+    public boolean isInactivoWeb() {
+        return inactivoWeb;
+    }
+}
@@ -0,0 +1,91 @@
+package com.mycorp.support;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import util.datos.DatosPersonales;
+import util.datos.DetallePoliza;
+
+/**
+ * <p>Lo que el alta de ticket usa de un {@link DetallePoliza}: el nombre y el identificador del
+ * tomador y el detalle ya serializado para el comentario del ticket.
+ *
+ * <p>Es lo que se guarda en la cache de polizas en lugar del {@link DetallePoliza} completo, que
+ * arrastra todo el grafo de asegurados, coberturas, etc.
+ */
+public final class ResumenPoliza {
+
+    /** valor de {@link #clave(int, int, int)} para las polizas que no caben en un long */
+    public static final long SIN_CLAVE = -1;
+
+    private static final int BITS_NUMERO = 28;
+    private static final int MAX_COMPANIA = (1 << 7) - 1;
+    private static final int MAX_NUMERO = (1 << BITS_NUMERO) - 1;
+
+    private final String nombreTomador;
+    private final String idCliente;
+    private final String detalle;
+
+    public ResumenPoliza(String nombreTomador, String idCliente, String detalle) {
+        this.nombreTomador = nombreTomador;
+        this.idCliente = idCliente;
+        this.detalle = detalle;
+    }
+
+    /**
+     * @param detallePoliza respuesta de <code>recuperarDatosPoliza</code>
+     * @param mapper mapeador con el que se serializa el detalle para el ticket
+     */
+    public static ResumenPoliza of(DetallePoliza detallePoliza, ObjectMapper mapper) throws JsonProcessingException {
+        DatosPersonales tomador = detallePoliza.getTomador();
+        String nombre = tomador.getNombre() + " " + tomador.getApellido1() + " " + tomador.getApellido2();
+        return new ResumenPoliza(nombre, tomador.getIdentificador(), mapper.writeValueAsString(detallePoliza));
+    }
+
+    /**
+     * Empaqueta la poliza en un long: compania en 7 bits y numero de poliza y de colectivo en 28 bits
+     * cada uno. El resultado nunca es negativo.
+     *
+     * @return la clave, o {@link #SIN_CLAVE} si algun valor es negativo o no cabe en sus bits
+     */
+    public static long clave(int compania, int numPoliza, int numColectivo) {
+        if (compania < 0 || compania > MAX_COMPANIA || numPoliza < 0 || numPoliza > MAX_NUMERO
+                || numColectivo < 0 || numColectivo > MAX_NUMERO) {
+            return SIN_CLAVE;
+        }
+        return (long) compania << (2 * BITS_NUMERO) | (long) numPoliza << BITS_NUMERO | numColectivo;
+    }
+
+    public static int compania(long clave) {
+        return (int) (clave >>> (2 * BITS_NUMERO));
+    }
+
+    public static int numPoliza(long clave) {
+        return (int) (clave >>> BITS_NUMERO) & MAX_NUMERO;
+    }
+
+    public static int numColectivo(long clave) {
+        return (int) clave & MAX_NUMERO;
+    }
+
+    /**
+     * @return nombre y apellidos del tomador
+     */
+    public String getNombreTomador() {
+        return nombreTomador;
+    }
+
+    /**
+     * @return identificador del tomador
+     */
+    public String getIdCliente() {
+        return idCliente;
+    }
+
+    /**
+     * @return el {@link DetallePoliza} en JSON
+     */
+    public String getDetalle() {
+        return detalle;
+    }
+}
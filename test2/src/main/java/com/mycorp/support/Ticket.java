@@ -1,7 +1,240 @@
 package com.mycorp.support;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
+
+/**
+ * <p>Ticket de Zendesk con los campos que rellena el alta: solicitante, asunto, comentario,
+ * etiquetas y campos personalizados.
+ *
+ * <p>Cualquier otro atributo que venga en el JSON (p.ej. de la plantilla <code>zendesk.ticket</code>)
+ * se conserva tal cual y se vuelve a escribir al serializar.
+ */
 public class Ticket {
 
+    private Long id;
+    private Requester requester;
+    private String subject;
+    private Comment comment;
+    private List<String> tags;
+    private List<CustomField> customFields;
+    private Map<String, Object> otros;
+
+    public Long getId() {
+        return id;
+    }
+    public void setId(Long id) {
+        this.id = id;
+    }
+    public Requester getRequester() {
+        return requester;
+    }
+    public void setRequester(Requester requester) {
+        this.requester = requester;
+    }
+    public String getSubject() {
+        return subject;
+    }
+    public void setSubject(String subject) {
+        this.subject = subject;
+    }
+    public Comment getComment() {
+        return comment;
+    }
+    public void setComment(Comment comment) {
+        this.comment = comment;
+    }
+    public List<String> getTags() {
+        return tags;
+    }
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+    @JsonProperty("custom_fields")
+    public List<CustomField> getCustomFields() {
+        return customFields;
+    }
+    @JsonProperty("custom_fields")
+    public void setCustomFields(List<CustomField> customFields) {
+        this.customFields = customFields;
+    }
+
+    @JsonAnyGetter
+    public Map<String, Object> getOtros() {
+        return otros == null ? Collections.<String, Object>emptyMap() : otros;
+    }
+
+    @JsonAnySetter
+    public void setOtro(String name, Object value) {
+        if (otros == null) {
+            otros = new LinkedHashMap<String, Object>();
+        }
+        otros.put(name, value);
+    }
+
+    /**
+     * Solicitante del ticket.
+     */
+    public static class Requester {
+        private String name;
+        private String email;
+
+        public Requester() {
+        }
+
+        public Requester(String name, String email) {
+            this.name = name;
+            this.email = email;
+        }
+
+        public String getName() {
+            return name;
+        }
+        public void setName(String name) {
+            this.name = name;
+        }
+        public String getEmail() {
+            return email;
+        }
+        public void setEmail(String email) {
+            this.email = email;
+        }
+    }
+
+    /**
+     * Comentario inicial del ticket.
+     */
+    public static class Comment {
+        private String body;
+
+        public Comment() {
+        }
+
+        public Comment(String body) {
+            this.body = body;
+        }
+
+        public String getBody() {
+            return body;
+        }
+        public void setBody(String body) {
+            this.body = body;
+        }
+    }
+
+    /**
+     * Valor de un campo personalizado del ticket.
+     */
+    public static class CustomField {
+        private Long id;
+        private Object value;
+
+        public CustomField() {
+        }
+
+        public CustomField(Long id, Object value) {
+            this.id = id;
+            this.value = value;
+        }
+
+        public Long getId() {
+            return id;
+        }
+        public void setId(Long id) {
+            this.id = id;
+        }
+        public Object getValue() {
+            return value;
+        }
+        public void setValue(Object value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Construye un ticket, partiendo de cero o de una plantilla que no se modifica.
+     */
+    public static class Builder {
+        private final Ticket ticket = new Ticket();
+
+        public Builder() {
+        }
+
+        /**
+         * @param plantilla ticket del que se copian todos los campos salvo el id
+         */
+        public Builder(Ticket plantilla) {
+            if (plantilla.requester != null) {
+                ticket.requester = new Requester(plantilla.requester.name, plantilla.requester.email);
+            }
+            ticket.subject = plantilla.subject;
+            if (plantilla.comment != null) {
+                ticket.comment = new Comment(plantilla.comment.body);
+            }
+            if (plantilla.tags != null) {
+                ticket.tags = new ArrayList<String>(plantilla.tags);
+            }
+            if (plantilla.customFields != null) {
+                ticket.customFields = new ArrayList<CustomField>(plantilla.customFields.size());
+                for (CustomField campo : plantilla.customFields) {
+                    ticket.customFields.add(new CustomField(campo.id, campo.value));
+                }
+            }
+            if (plantilla.otros != null) {
+                ticket.otros = new LinkedHashMap<String, Object>(plantilla.otros);
+            }
+        }
+
+        public Builder setRequester(String name, String email) {
+            ticket.requester = new Requester(name, email);
+            return this;
+        }
+
+        public Builder setSubject(String subject) {
+            ticket.subject = subject;
+            return this;
+        }
+
+        public Builder setComment(String body) {
+            ticket.comment = new Comment(body);
+            return this;
+        }
+
+        public Builder addTag(String tag) {
+            if (ticket.tags == null) {
+                ticket.tags = new ArrayList<String>();
+            }
+            ticket.tags.add(tag);
+            return this;
+        }
+
+        /**
+         * Da valor a un campo personalizado, sustituyendo el que tuviera.
+         */
+        public Builder setCustomField(long id, Object value) {
+            if (ticket.customFields == null) {
+                ticket.customFields = new ArrayList<CustomField>();
+            }
+            for (CustomField campo : ticket.customFields) {
+                if (campo.id != null && campo.id.longValue() == id) {
+                    campo.value = value;
+                    return this;
+                }
+            }
+            ticket.customFields.add(new CustomField(id, value));
+            return this;
+        }
+
+        public Ticket build() {
+            return ticket;
+        }
+    }
 }
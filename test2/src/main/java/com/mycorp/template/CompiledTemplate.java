@@ -0,0 +1,413 @@
+package com.mycorp.template;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * <p>Plantilla de ticket traducida a un arbol de nodos que escriben directamente en un
+ * {@link StringBuilder}. Cada referencia se resuelve al compilar a su posicion en el
+ * {@link TicketModel}, asi que al mezclar no hay contexto, ni busquedas por nombre, ni reflexion,
+ * ni {@link java.io.Writer} intermedio.
+ *
+ * <p>Solo admite lo que usan las plantillas de ticket: texto, referencias <code>$x</code> y
+ * <code>${x}</code>, <code>#if</code>/<code>#else</code>/<code>#end</code> sobre una referencia y
+ * <code>#foreach</code> sobre una lista. La salida es la misma que la de Velocity 1.6: las
+ * referencias sin valor se escriben tal cual y las directivas consumen los espacios y el salto de
+ * linea que las siguen. Cualquier otra construccion se rechaza al compilar.
+ *
+ * <p>Es inmutable y se puede usar desde varios hilos a la vez.
+ */
+public final class CompiledTemplate implements TicketRenderer {
+
+    private final String name;
+    private final Nodo[] nodos;
+    private final int variablesBucle;
+
+    private CompiledTemplate(String name, Nodo[] nodos, int variablesBucle) {
+        this.name = name;
+        this.nodos = nodos;
+        this.variablesBucle = variablesBucle;
+    }
+
+    /**
+     * Compila el texto de una plantilla.
+     *
+     * @throws IllegalArgumentException si la plantilla usa algo que no se admite
+     */
+    public static CompiledTemplate compile(String name, String source) {
+        Compilador compilador = new Compilador(name, source);
+        Nodo[] nodos = compilador.bloque();
+        if (compilador.cierre != null) {
+            throw compilador.error("#" + compilador.cierre + " sin directiva que cerrar");
+        }
+        return new CompiledTemplate(name, nodos, compilador.variablesBucle);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void render(TicketModel modelo, StringBuilder out) {
+        render(nodos, modelo, variablesBucle == 0 ? null : new Object[variablesBucle], out);
+    }
+
+    private static void render(Nodo[] nodos, TicketModel modelo, Object[] bucle, StringBuilder out) {
+        for (Nodo nodo : nodos) {
+            nodo.render(modelo, bucle, out);
+        }
+    }
+
+    private abstract static class Nodo {
+        abstract void render(TicketModel modelo, Object[] bucle, StringBuilder out);
+    }
+
+    private static final class Texto extends Nodo {
+        private final String texto;
+
+        Texto(String texto) {
+            this.texto = texto;
+        }
+
+        @Override
+        void render(TicketModel modelo, Object[] bucle, StringBuilder out) {
+            out.append(texto);
+        }
+    }
+
+    /**
+     * Referencia a un campo del modelo o a la variable de un <code>#foreach</code>.
+     */
+    private static final class Referencia extends Nodo {
+        private final int campo;
+        private final int variable;
+        private final String literal;
+
+        Referencia(int campo, int variable, String literal) {
+            this.campo = campo;
+            this.variable = variable;
+            this.literal = literal;
+        }
+
+        Object valor(TicketModel modelo, Object[] bucle) {
+            if (variable >= 0) {
+                return bucle[variable];
+            }
+            return campo >= 0 ? modelo.get(campo) : null;
+        }
+
+        @Override
+        void render(TicketModel modelo, Object[] bucle, StringBuilder out) {
+            Object valor = valor(modelo, bucle);
+            if (valor instanceof String) {
+                out.append((String) valor);
+            } else if (valor instanceof Integer) {
+                out.append(((Integer) valor).intValue());
+            } else if (valor instanceof Long) {
+                out.append(((Long) valor).longValue());
+            } else {
+                String texto = valor == null ? null : valor.toString();
+                out.append(texto == null ? literal : texto);
+            }
+        }
+    }
+
+    private static final class Si extends Nodo {
+        private final Referencia condicion;
+        private final Nodo[] si;
+        private final Nodo[] sino;
+
+        Si(Referencia condicion, Nodo[] si, Nodo[] sino) {
+            this.condicion = condicion;
+            this.si = si;
+            this.sino = sino;
+        }
+
+        @Override
+        void render(TicketModel modelo, Object[] bucle, StringBuilder out) {
+            Object valor = condicion.valor(modelo, bucle);
+            boolean cierto = valor instanceof Boolean ? ((Boolean) valor).booleanValue() : valor != null;
+            CompiledTemplate.render(cierto ? si : sino, modelo, bucle, out);
+        }
+    }
+
+    private static final class ParaCada extends Nodo {
+        private final int variable;
+        private final Referencia lista;
+        private final Nodo[] cuerpo;
+
+        ParaCada(int variable, Referencia lista, Nodo[] cuerpo) {
+            this.variable = variable;
+            this.lista = lista;
+            this.cuerpo = cuerpo;
+        }
+
+        @Override
+        void render(TicketModel modelo, Object[] bucle, StringBuilder out) {
+            Object valor = lista.valor(modelo, bucle);
+            if (valor instanceof List && valor instanceof RandomAccess) {
+                List<?> elementos = (List<?>) valor;
+                for (int i = 0; i < elementos.size(); i++) {
+                    vuelta(elementos.get(i), modelo, bucle, out);
+                }
+            } else if (valor instanceof Object[]) {
+                for (Object elemento : (Object[]) valor) {
+                    vuelta(elemento, modelo, bucle, out);
+                }
+            } else if (valor instanceof Iterable || valor instanceof Map || valor instanceof Iterator) {
+                Iterator<?> it = valor instanceof Iterable ? ((Iterable<?>) valor).iterator()
+                        : valor instanceof Map ? ((Map<?, ?>) valor).values().iterator() : (Iterator<?>) valor;
+                while (it.hasNext()) {
+                    vuelta(it.next(), modelo, bucle, out);
+                }
+            }
+            bucle[variable] = null;
+        }
+
+        private void vuelta(Object elemento, TicketModel modelo, Object[] bucle, StringBuilder out) {
+            bucle[variable] = elemento;
+            CompiledTemplate.render(cuerpo, modelo, bucle, out);
+        }
+    }
+
+    /**
+     * Analizador de una sola pasada sobre el texto de la plantilla.
+     */
+    private static final class Compilador {
+        private final String name;
+        private final String src;
+        private int pos;
+        /** variables de los <code>#foreach</code> abiertos, la mas interna al final */
+        private final List<String> ambito = new ArrayList<String>();
+        private final List<Integer> ambitoPosiciones = new ArrayList<Integer>();
+        private int variablesBucle;
+        /** directiva que ha terminado el ultimo bloque: "else", "end" o null al final del texto */
+        private String cierre;
+
+        Compilador(String name, String src) {
+            this.name = name;
+            this.src = src;
+        }
+
+        Nodo[] bloque() {
+            List<Nodo> nodos = new ArrayList<Nodo>();
+            StringBuilder texto = new StringBuilder();
+            cierre = null;
+            while (pos < src.length()) {
+                char c = src.charAt(pos);
+                if (c == '$') {
+                    Referencia ref = referencia();
+                    if (ref == null) {
+                        texto.append(c);
+                        pos++;
+                    } else if (ref.campo < 0 && ref.variable < 0) {
+                        texto.append(ref.literal);
+                    } else {
+                        agregarTexto(nodos, texto);
+                        nodos.add(ref);
+                    }
+                } else if (c == '#' && pos + 1 < src.length() && esLetra(src.charAt(pos + 1))) {
+                    int inicio = ++pos;
+                    while (pos < src.length() && esLetra(src.charAt(pos))) {
+                        pos++;
+                    }
+                    String directiva = src.substring(inicio, pos);
+                    if ("else".equals(directiva) || "end".equals(directiva)) {
+                        consumirFinDeLinea();
+                        agregarTexto(nodos, texto);
+                        cierre = directiva;
+                        return nodos.toArray(new Nodo[nodos.size()]);
+                    }
+                    agregarTexto(nodos, texto);
+                    if ("if".equals(directiva)) {
+                        nodos.add(si());
+                    } else if ("foreach".equals(directiva)) {
+                        nodos.add(paraCada());
+                    } else {
+                        throw error("directiva #" + directiva + " no admitida");
+                    }
+                } else if (c == '#' && pos + 1 < src.length() && "#*{".indexOf(src.charAt(pos + 1)) >= 0) {
+                    throw error("comentarios y directivas #{...} no admitidos");
+                } else if (c == '\\' && pos + 1 < src.length() && "$#".indexOf(src.charAt(pos + 1)) >= 0) {
+                    throw error("caracteres escapados no admitidos");
+                } else {
+                    texto.append(c);
+                    pos++;
+                }
+            }
+            agregarTexto(nodos, texto);
+            return nodos.toArray(new Nodo[nodos.size()]);
+        }
+
+        private Nodo si() {
+            abrirParentesis();
+            Referencia condicion = referenciaObligatoria();
+            cerrarParentesis();
+            Nodo[] si = bloque();
+            Nodo[] sino = new Nodo[0];
+            if ("else".equals(cierre)) {
+                sino = bloque();
+            }
+            if (!"end".equals(cierre)) {
+                throw error("#if sin #end");
+            }
+            cierre = null;
+            return new Si(condicion, si, sino);
+        }
+
+        private Nodo paraCada() {
+            abrirParentesis();
+            String nombre = nombre(referenciaObligatoria().literal);
+            saltarEspacios();
+            if (!src.startsWith("in", pos)) {
+                throw error("se esperaba 'in' en #foreach");
+            }
+            pos += 2;
+            saltarEspacios();
+            Referencia lista = referenciaObligatoria();
+            cerrarParentesis();
+            int posicion = variablesBucle++;
+            ambito.add(nombre);
+            ambitoPosiciones.add(posicion);
+            Nodo[] cuerpo = bloque();
+            ambito.remove(ambito.size() - 1);
+            ambitoPosiciones.remove(ambitoPosiciones.size() - 1);
+            if (!"end".equals(cierre)) {
+                throw error("#foreach sin #end");
+            }
+            cierre = null;
+            return new ParaCada(posicion, lista, cuerpo);
+        }
+
+        /**
+         * Lee <code>$nombre</code> o <code>${nombre}</code> en la posicion actual.
+         *
+         * @return la referencia, o null si el <code>$</code> es texto
+         */
+        private Referencia referencia() {
+            int inicio = pos;
+            int i = pos + 1;
+            boolean llaves = i < src.length() && src.charAt(i) == '{';
+            if (llaves) {
+                i++;
+            }
+            if (i < src.length() && src.charAt(i) == '!') {
+                throw error("referencias silenciosas no admitidas");
+            }
+            if (i >= src.length() || !esInicioIdentificador(src.charAt(i))) {
+                if (llaves) {
+                    throw error("referencia no valida");
+                }
+                return null;
+            }
+            int inicioNombre = i;
+            while (i < src.length() && esIdentificador(src.charAt(i))) {
+                i++;
+            }
+            String nombre = src.substring(inicioNombre, i);
+            if (llaves) {
+                if (i >= src.length() || src.charAt(i) != '}') {
+                    throw error("referencia no valida");
+                }
+                i++;
+            } else if (i + 1 < src.length() && src.charAt(i) == '.' && esInicioIdentificador(src.charAt(i + 1))) {
+                throw error("propiedades y metodos no admitidos");
+            }
+            pos = i;
+            return resolver(nombre, src.substring(inicio, i));
+        }
+
+        private Referencia referenciaObligatoria() {
+            saltarEspacios();
+            Referencia ref = pos < src.length() && src.charAt(pos) == '$' ? referencia() : null;
+            if (ref == null) {
+                throw error("se esperaba una referencia");
+            }
+            saltarEspacios();
+            return ref;
+        }
+
+        private Referencia resolver(String nombre, String literal) {
+            for (int i = ambito.size() - 1; i >= 0; i--) {
+                if (ambito.get(i).equals(nombre)) {
+                    return new Referencia(-1, ambitoPosiciones.get(i), literal);
+                }
+            }
+            if (!ambito.isEmpty() && nombre.startsWith("velocity")) {
+                throw error("variables de bucle de Velocity no admitidas");
+            }
+            TicketModel.Campo campo = TicketModel.Campo.porNombre(nombre);
+            return new Referencia(campo == null ? -1 : campo.ordinal(), -1, literal);
+        }
+
+        private static String nombre(String literal) {
+            return literal.startsWith("${") ? literal.substring(2, literal.length() - 1) : literal.substring(1);
+        }
+
+        private void abrirParentesis() {
+            saltarEspacios();
+            if (pos >= src.length() || src.charAt(pos) != '(') {
+                throw error("se esperaba '('");
+            }
+            pos++;
+        }
+
+        private void cerrarParentesis() {
+            saltarEspacios();
+            if (pos >= src.length() || src.charAt(pos) != ')') {
+                throw error("se esperaba ')'");
+            }
+            pos++;
+            consumirFinDeLinea();
+        }
+
+        /**
+         * Como Velocity 1.6, una directiva seguida solo de espacios hasta el fin de linea se come
+         * esos espacios y el salto de linea.
+         */
+        private void consumirFinDeLinea() {
+            int i = pos;
+            while (i < src.length() && (src.charAt(i) == ' ' || src.charAt(i) == '\t')) {
+                i++;
+            }
+            if (i < src.length() && src.charAt(i) == '\n') {
+                pos = i + 1;
+            } else if (i < src.length() && src.charAt(i) == '\r') {
+                pos = i + 1 < src.length() && src.charAt(i + 1) == '\n' ? i + 2 : i + 1;
+            }
+        }
+
+        private void saltarEspacios() {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private static void agregarTexto(List<Nodo> nodos, StringBuilder texto) {
+            if (texto.length() > 0) {
+                nodos.add(new Texto(texto.toString()));
+                texto.setLength(0);
+            }
+        }
+
+        private static boolean esLetra(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+
+        private static boolean esInicioIdentificador(char c) {
+            return esLetra(c) || c == '_';
+        }
+
+        private static boolean esIdentificador(char c) {
+            return esInicioIdentificador(c) || (c >= '0' && c <= '9') || c == '-';
+        }
+
+        IllegalArgumentException error(String mensaje) {
+            return new IllegalArgumentException(name + ", posicion " + pos + ": " + mensaje);
+        }
+    }
+}
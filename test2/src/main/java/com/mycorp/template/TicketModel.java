@@ -0,0 +1,98 @@
+package com.mycorp.template;
+
+import org.apache.velocity.VelocityContext;
+
+/**
+ * <p>Datos de un alta que se mezclan con las plantillas de ticket.
+ *
+ * <p>Los campos son fijos y se guardan en un array indexado por {@link Campo}: las plantillas
+ * compiladas ({@link CompiledTemplate}) leen cada valor por posicion, sin buscar por nombre. Para
+ * las plantillas Velocity se vuelcan a un {@link VelocityContext} con los nombres de siempre.
+ *
+ * <p>No es thread-safe: cada peticion usa su propio modelo.
+ */
+public final class TicketModel {
+
+    /**
+     * Variables que pueden usar las plantillas de ticket, con el nombre que tienen en ellas.
+     */
+    public enum Campo {
+        IS_POLIZA("isPoliza"),
+        NUM_POLIZA("numPoliza"),
+        NUM_TARJETA("numTarjeta"),
+        TIPO_DOC_ACREDITATIVO("tipoDocAcreditativo"),
+        NUM_DOC_ACREDITATIVO("numDocAcreditativo"),
+        EMAIL("email"),
+        NUMERO_TELEFONO("numeroTelefono"),
+        USER_AGENT("userAgent"),
+        GEN_T_GRUPO_TMK("genTGrupoTmk"),
+        FECHA_NACIMIENTO("fechaNacimiento"),
+        TIPOS_DOCUMENTOS_CLIENTE("tiposDocumentosCliente"),
+        NUMERO_DOC_ACRED("numeroDocAcred"),
+        TIPO_CLIENTE("tipoCliente"),
+        GEN_T_STATUS("genTStatus"),
+        ID_MOTIVO_ALTA("idMotivoAlta"),
+        F_INACTIVO_WEB("fInactivoWeb");
+
+        private final String nombre;
+
+        Campo(String nombre) {
+            this.nombre = nombre;
+        }
+
+        /**
+         * @return nombre de la variable en las plantillas
+         */
+        public String getNombre() {
+            return nombre;
+        }
+
+        /**
+         * @return el campo con ese nombre en las plantillas, o null si no hay ninguno
+         */
+        public static Campo porNombre(String nombre) {
+            for (Campo campo : CAMPOS) {
+                if (campo.nombre.equals(nombre)) {
+                    return campo;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final Campo[] CAMPOS = Campo.values();
+
+    private final Object[] valores = new Object[CAMPOS.length];
+    private VelocityContext ctx;
+
+    public TicketModel put(Campo campo, Object valor) {
+        valores[campo.ordinal()] = valor;
+        ctx = null;
+        return this;
+    }
+
+    public Object get(Campo campo) {
+        return valores[campo.ordinal()];
+    }
+
+    Object get(int posicion) {
+        return valores[posicion];
+    }
+
+    /**
+     * @return contexto Velocity con los campos que tienen valor; se reutiliza mientras no cambie el modelo
+     */
+    public VelocityContext toVelocityContext() {
+        if (ctx == null) {
+            VelocityContext nuevo = new VelocityContext();
+            for (Campo campo : CAMPOS) {
+                Object valor = valores[campo.ordinal()];
+                if (valor != null) {
+                    nuevo.put(campo.nombre, valor);
+                }
+            }
+            ctx = nuevo;
+        }
+        return ctx;
+    }
+}
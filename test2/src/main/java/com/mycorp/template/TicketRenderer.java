@@ -0,0 +1,19 @@
+package com.mycorp.template;
+
+/**
+ * Plantilla de ticket lista para mezclar con un {@link TicketModel}.
+ */
+public interface TicketRenderer {
+
+    /**
+     * @return nombre de la plantilla, p.ej. {@link TicketTemplates#DATOS_USUARIO}
+     */
+    String getName();
+
+    /**
+     * Añade a <code>out</code> el resultado de mezclar la plantilla con el modelo.
+     *
+     * @throws Exception si falla el merge; lo escrito hasta entonces queda en <code>out</code>
+     */
+    void render(TicketModel modelo, StringBuilder out) throws Exception;
+}
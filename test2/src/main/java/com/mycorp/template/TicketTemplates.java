@@ -0,0 +1,179 @@
+package com.mycorp.template;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Properties;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Plantillas Velocity de los tickets, cargadas y compiladas una sola vez.
+ *
+ * <p>Usa un {@link VelocityEngine} propio, configurado con <code>/velocity.properties</code>, en
+ * lugar del singleton {@link org.apache.velocity.app.Velocity}. Las {@link Template} ya analizadas
+ * son inmutables y se pueden mezclar a la vez desde varios hilos, siempre que cada peticion use
+ * su propio contexto; no hay bloqueos ni estado compartido por peticion.
+ *
+ * <p>Las mismas plantillas se compilan tambien a {@link CompiledTemplate}, que mezcla sin pasar
+ * por Velocity. Si alguna usa algo que el compilador no admite, para ella se usa siempre Velocity.
+ */
+public final class TicketTemplates {
+
+    private static final Logger LOG = LoggerFactory.getLogger( TicketTemplates.class );
+
+    public static final String DATOS_USUARIO = "datosUsuario.vm";
+    public static final String DATOS_BRAVO = "datosBravo.vm";
+
+    private final Template datosUsuario;
+    private final Template datosBravo;
+    private final TicketRenderer datosUsuarioVelocity;
+    private final TicketRenderer datosBravoVelocity;
+    private final TicketRenderer datosUsuarioCompilada;
+    private final TicketRenderer datosBravoCompilada;
+
+    private TicketTemplates(Template datosUsuario, Template datosBravo, String encoding) {
+        this.datosUsuario = datosUsuario;
+        this.datosBravo = datosBravo;
+        this.datosUsuarioVelocity = new VelocityRenderer(datosUsuario);
+        this.datosBravoVelocity = new VelocityRenderer(datosBravo);
+        this.datosUsuarioCompilada = compilar(DATOS_USUARIO, encoding);
+        this.datosBravoCompilada = compilar(DATOS_BRAVO, encoding);
+    }
+
+    /**
+     * Inicializa Velocity y compila las plantillas de ticket.
+     *
+     * @throws IllegalStateException si falta la configuracion o alguna plantilla no es valida
+     */
+    public static TicketTemplates load() {
+        LOG.info("Inicializando Velocity");
+        Properties prop = new Properties();
+        InputStream in = TicketTemplates.class.getResourceAsStream("/velocity.properties");
+        try {
+            if (in == null) {
+                throw new IllegalStateException("velocity.properties not found in classpath");
+            }
+            prop.load(in);
+            // las plantillas no cambian en ejecucion: no hay que comprobar si se han modificado
+            prop.setProperty("classpath.resource.loader.modificationCheckInterval", "0");
+            VelocityEngine engine = new VelocityEngine(prop);
+            engine.init();
+            return new TicketTemplates(engine.getTemplate(DATOS_USUARIO), engine.getTemplate(DATOS_BRAVO),
+                    (String) engine.getProperty("input.encoding"));
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Error on Velocity initialization", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignorado
+                }
+            }
+        }
+    }
+
+    public Template getDatosUsuario() {
+        return datosUsuario;
+    }
+
+    public Template getDatosBravo() {
+        return datosBravo;
+    }
+
+    /**
+     * @param compilada si se quiere la version compilada; si no la hay se devuelve la de Velocity
+     */
+    public TicketRenderer getDatosUsuarioRenderer(boolean compilada) {
+        return compilada && datosUsuarioCompilada != null ? datosUsuarioCompilada : datosUsuarioVelocity;
+    }
+
+    /**
+     * @param compilada si se quiere la version compilada; si no la hay se devuelve la de Velocity
+     */
+    public TicketRenderer getDatosBravoRenderer(boolean compilada) {
+        return compilada && datosBravoCompilada != null ? datosBravoCompilada : datosBravoVelocity;
+    }
+
+    /**
+     * Compila la plantilla leyendola del classpath con la misma codificacion que Velocity.
+     *
+     * @return la plantilla compilada, o null si no se puede compilar
+     */
+    private static CompiledTemplate compilar(String name, String encoding) {
+        InputStream in = TicketTemplates.class.getResourceAsStream("/" + name);
+        if (in == null) {
+            LOG.warn("Plantilla {} no encontrada en el classpath; se mezclara con Velocity", name);
+            return null;
+        }
+        try {
+            Reader reader = new InputStreamReader(in, encoding == null ? "ISO-8859-1" : encoding);
+            StringBuilder source = new StringBuilder();
+            char[] buffer = new char[4096];
+            int leidos;
+            while ((leidos = reader.read(buffer)) != -1) {
+                source.append(buffer, 0, leidos);
+            }
+            return CompiledTemplate.compile(name, source.toString());
+        } catch (IOException e) {
+            LOG.warn("Error al leer la plantilla " + name + "; se mezclara con Velocity", e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            LOG.warn("La plantilla {} no se puede compilar ({}); se mezclara con Velocity", name, e.getMessage());
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignorado
+            }
+        }
+    }
+
+    /**
+     * Mezcla una {@link Template} de Velocity con el contexto que genera el modelo.
+     */
+    private static final class VelocityRenderer implements TicketRenderer {
+        private final Template template;
+
+        VelocityRenderer(Template template) {
+            this.template = template;
+        }
+
+        @Override
+        public String getName() {
+            return template.getName();
+        }
+
+        @Override
+        public void render(TicketModel modelo, final StringBuilder out) throws Exception {
+            template.merge(modelo.toVelocityContext(), new Writer() {
+                @Override
+                public void write(char[] cbuf, int off, int len) {
+                    out.append(cbuf, off, len);
+                }
+
+                @Override
+                public void write(String str, int off, int len) {
+                    out.append(str, off, off + len);
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.mycorp.text;
+
+/**
+ * <p>Limpieza y escapado del texto de los tickets en una sola pasada, sin expresiones regulares.
+ *
+ * <p>Cada operacion recorre la entrada una vez y escribe en un buffer del hilo que se reutiliza
+ * entre llamadas; solo se crea el {@link String} del resultado. Los caracteres a eliminar se
+ * comprueban con una mascara de bits calculada al cargar la clase. Las operaciones
+ * <code>append*</code> escriben en el buffer que se les pase, para componer varios textos sin
+ * copias intermedias.
+ *
+ * <p>Equivalencias con las expresiones regulares a las que sustituye:
+ * <ul>
+ * <li>{@link #servicio(CharSequence)}: <code>replaceAll("[\\[\\]\\{\\}\\\"\\r]", "").replaceAll("\\n", "\\\\n")</code>
+ * <li>{@link #html(CharSequence)}: <code>replaceAll("\\\\n", "&lt;br/&gt;")</code>
+ * <li>{@link #appendComentario(CharSequence, StringBuilder)}: lo que hacia la lectura como JSON del
+ * ticket compuesto con <code>replaceAll("[\\n]", " ")</code>: los saltos de linea pasan a ser
+ * espacios y los escapes de JSON (<code>\n</code>, <code>\t</code>, <code>\"</code>...) el caracter
+ * que representan, salvo <code>\</code><code>uXXXX</code>, que se deja tal cual.
+ * </ul>
+ */
+public final class TicketSanitizer {
+
+    private static final String ELIMINADOS_SERVICIO = "[]{}\"\r";
+    private static final long ELIMINADOS_BAJOS;
+    private static final long ELIMINADOS_ALTOS;
+    static {
+        long bajos = 0;
+        long altos = 0;
+        for (int i = 0; i < ELIMINADOS_SERVICIO.length(); i++) {
+            char c = ELIMINADOS_SERVICIO.charAt(i);
+            if (c < 64) {
+                bajos |= 1L << c;
+            } else {
+                altos |= 1L << (c - 64);
+            }
+        }
+        ELIMINADOS_BAJOS = bajos;
+        ELIMINADOS_ALTOS = altos;
+    }
+
+    private static final String HTML_BR = "<br/>";
+    private static final int MAX_BUFFER = 64 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(4096);
+        }
+    };
+
+    private TicketSanitizer() {
+    }
+
+    /**
+     * Limpia la respuesta de los servicios de tarjeta/poliza: quita corchetes, llaves, comillas y
+     * retornos de carro y escapa los saltos de linea como <code>\n</code>.
+     */
+    public static String servicio(CharSequence texto) {
+        StringBuilder out = buffer();
+        appendServicio(texto, out);
+        return resultado(out);
+    }
+
+    public static void appendServicio(CharSequence texto, StringBuilder out) {
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (c == '\n') {
+                out.append('\\').append('n');
+            } else if (!eliminado(c)) {
+                out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Texto del comentario del ticket: los datos mergeados de las plantillas seguidos de la
+     * respuesta de los servicios de tarjeta/poliza, que se limpia aqui mismo.
+     */
+    public static String comentarioTicket(CharSequence datosUsuario, CharSequence datosBravo, CharSequence servicio) {
+        StringBuilder out = buffer();
+        appendComentario(datosUsuario, out);
+        appendComentario(datosBravo, out);
+        appendComentarioServicio(servicio, out);
+        return resultado(out);
+    }
+
+    /**
+     * Añade el texto con los saltos de linea como espacios y las secuencias escapadas decodificadas.
+     */
+    public static void appendComentario(CharSequence texto, StringBuilder out) {
+        boolean escape = false;
+        for (int i = 0; i < texto.length(); i++) {
+            escape = comentario(texto.charAt(i), escape, out);
+        }
+        if (escape) {
+            out.append('\\');
+        }
+    }
+
+    /**
+     * Igual que <code>appendComentario(servicio(texto), out)</code>, sin pasar por el texto intermedio.
+     */
+    public static void appendComentarioServicio(CharSequence texto, StringBuilder out) {
+        boolean escape = false;
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (c == '\n') {
+                escape = comentario('n', comentario('\\', escape, out), out);
+            } else if (!eliminado(c)) {
+                escape = comentario(c, escape, out);
+            }
+        }
+        if (escape) {
+            out.append('\\');
+        }
+    }
+
+    /**
+     * Sustituye las secuencias <code>\n</code> por <code>&lt;br/&gt;</code> para el cuerpo del mail.
+     */
+    public static String html(CharSequence texto) {
+        StringBuilder out = buffer();
+        int longitud = texto.length();
+        for (int i = 0; i < longitud; i++) {
+            char c = texto.charAt(i);
+            if (c == '\\' && i + 1 < longitud && texto.charAt(i + 1) == 'n') {
+                out.append(HTML_BR);
+                i++;
+            } else {
+                out.append(c);
+            }
+        }
+        return resultado(out);
+    }
+
+    /**
+     * Escribe un caracter del comentario.
+     *
+     * @param escape si el caracter anterior era una barra invertida aun sin escribir
+     * @return si este caracter es una barra invertida que queda pendiente
+     */
+    private static boolean comentario(char c, boolean escape, StringBuilder out) {
+        if (escape) {
+            switch (c) {
+            case 'n':
+                out.append('\n');
+                break;
+            case 't':
+                out.append('\t');
+                break;
+            case 'r':
+                out.append('\r');
+                break;
+            case 'b':
+                out.append('\b');
+                break;
+            case 'f':
+                out.append('\f');
+                break;
+            case '"':
+            case '\\':
+            case '/':
+                out.append(c);
+                break;
+            default:
+                out.append('\\').append(c);
+            }
+            return false;
+        }
+        if (c == '\\') {
+            return true;
+        }
+        out.append(c == '\n' ? ' ' : c);
+        return false;
+    }
+
+    private static boolean eliminado(char c) {
+        if (c < 64) {
+            return (ELIMINADOS_BAJOS & (1L << c)) != 0;
+        }
+        return c < 128 && (ELIMINADOS_ALTOS & (1L << (c - 64))) != 0;
+    }
+
+    private static StringBuilder buffer() {
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        return out;
+    }
+
+    private static String resultado(StringBuilder out) {
+        String resultado = out.toString();
+        if (out.capacity() > MAX_BUFFER) {
+            BUFFER.remove();	// no retener buffers de un texto excepcional
+        }
+        return resultado;
+    }
+}
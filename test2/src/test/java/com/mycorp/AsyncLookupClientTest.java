@@ -0,0 +1,114 @@
+package com.mycorp;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestClientException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.mycorp.fake.FakeZendeskServer;
+import com.mycorp.support.DatosCliente;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link AsyncLookupClient} contra los servicios de tarjetas y BRAVO de {@link FakeZendeskServer}.
+ */
+public class AsyncLookupClientTest extends TestCase {
+
+    private FakeZendeskServer server;
+    private ZendeskConnectionPool pool;
+    private ExecutorService callbacks;
+    private AsyncLookupClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new FakeZendeskServer();
+        pool = new ZendeskConnectionPool.Builder().build();
+        callbacks = Executors.newSingleThreadExecutor();
+        client = new AsyncLookupClient(pool, callbacks, server.getUrl() + "/tarjetas/", server.getUrl() + "/bravo");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.close();
+        pool.close();
+        callbacks.shutdownNow();
+        server.close();
+    }
+
+    private static Throwable error(ListenableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void testTarjetaConocidaYDesconocida() throws Exception {
+        server.stub("/tarjetas/1234", 200, "987");
+        server.stub("/tarjetas/vacia", 200, "  ");
+        server.stub("/tarjetas/12 34", 200, "654");
+        assertEquals("987", client.consultarTarjeta("1234").get(5, TimeUnit.SECONDS));
+        assertNull(client.consultarTarjeta("9999").get(5, TimeUnit.SECONDS));	// 404
+        assertNull(client.consultarTarjeta("vacia").get(5, TimeUnit.SECONDS));
+        assertEquals("654", client.consultarTarjeta("12 34").get(5, TimeUnit.SECONDS));	// se codifica en la URL
+    }
+
+    @Test
+    public void testErroresComoRestTemplate() throws Exception {
+        server.stub("/tarjetas/prohibida", 403, "{}");
+        server.stub("/tarjetas/caida", 503, "{}");
+        server.stub("/tarjetas/rara", 599, "{}");
+
+        Throwable cliente = error(client.consultarTarjeta("prohibida"));
+        assertTrue(cliente instanceof HttpClientErrorException);
+        assertEquals(HttpStatus.FORBIDDEN, ((HttpClientErrorException) cliente).getStatusCode());
+
+        Throwable servidor = error(client.consultarTarjeta("caida"));
+        assertTrue(servidor instanceof HttpServerErrorException);
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((HttpServerErrorException) servidor).getStatusCode());
+
+        Throwable desconocido = error(client.consultarTarjeta("rara"));
+        assertEquals(RestClientException.class, desconocido.getClass());
+        assertTrue(desconocido.getMessage().contains("599"));
+    }
+
+    @Test
+    public void testDecodificaBravoDelFlujo() throws Exception {
+        server.stub("/bravo", 200, "{\"idCliente\": 42, \"fechaNacimiento\": \"01/02/1980\", \"campoNuevo\": [1, 2]}");
+        DatosCliente cliente = client.consultarBravo("42").get(5, TimeUnit.SECONDS);
+        assertEquals(Long.valueOf(42), cliente.getIdCliente());
+        assertEquals("01/02/1980", cliente.getFechaNacimiento());
+
+        server.stub("/bravo", 200, "");
+        assertNull(client.consultarBravo("42").get(5, TimeUnit.SECONDS));
+
+        server.stub("/bravo", 200, "{\"idCliente\": 42, \"fechaNacimiento\": ");
+        assertTrue(error(client.consultarBravo("42")) instanceof JsonProcessingException);
+    }
+
+    @Test
+    public void testCancelarAbortaLaConsulta() throws Exception {
+        server.stub("/tarjetas/1234", 200, "987").setLatency(FakeZendeskServer.fixed(5000));
+        ListenableFuture<String> consulta = client.consultarTarjeta("1234");
+        long inicio = System.nanoTime();
+        assertTrue(consulta.cancel(true));
+        assertTrue(consulta.isCancelled());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio) < 1000);
+
+        server.setLatency(FakeZendeskServer.fixed(0));
+        assertEquals("987", client.consultarTarjeta("1234").get(5, TimeUnit.SECONDS));
+    }
+}
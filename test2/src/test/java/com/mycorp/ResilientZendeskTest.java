@@ -0,0 +1,164 @@
+package com.mycorp;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import com.mycorp.resilience.CircuitBreaker;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link ResilientZendesk}: que se reintenta, con que espera, y como interactua con el
+ * circuit breaker. Las respuestas de Zendesk se simulan con una {@link ResilientZendesk.Operation}.
+ */
+public class ResilientZendeskTest extends TestCase {
+
+    private Zendesk zendesk;
+    private final List<Long> esperas = new CopyOnWriteArrayList<Long>();
+    private final AtomicInteger intentos = new AtomicInteger();
+
+    /**
+     * Apunta la espera de cada reintento y lo lanza al momento.
+     */
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1) {
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            esperas.add(unit.toMillis(delay));
+            return super.schedule(command, 0, unit);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        zendesk = new Zendesk.Builder("http://localhost:1").build();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.shutdownNow();
+        zendesk.close();
+    }
+
+    private ResilientZendesk.Builder builder() {
+        return new ResilientZendesk.Builder(zendesk).setScheduler(scheduler);
+    }
+
+    /**
+     * Operacion que responde, por orden, con cada error y despues con "ok".
+     */
+    private ResilientZendesk.Operation<String> respuestas(final ZendeskException... errores) {
+        final LinkedList<ZendeskException> pendientes = new LinkedList<ZendeskException>();
+        for (ZendeskException error : errores) {
+            pendientes.add(error);
+        }
+        return new ResilientZendesk.Operation<String>() {
+            @Override
+            public ListenableFuture<String> execute() {
+                intentos.incrementAndGet();
+                SettableListenableFuture<String> result = new SettableListenableFuture<String>();
+                ZendeskException error = pendientes.poll();
+                if (error == null) {
+                    result.set("ok");
+                } else {
+                    result.setException(error);
+                }
+                return result;
+            }
+        };
+    }
+
+    private static ZendeskException respuesta(int status) {
+        return new ZendeskResponseException(status, "status", null);
+    }
+
+    private static ZendeskException error(ListenableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+            return null;
+        } catch (ExecutionException e) {
+            return (ZendeskException) e.getCause();
+        }
+    }
+
+    @Test
+    public void testReintentaConEsperaExponencialAcotada() throws Exception {
+        ResilientZendesk resilient = builder().setMaxAttempts(4).setBaseDelayMillis(100).setMaxDelayMillis(150)
+                .setFailureThreshold(10).build();
+        assertEquals("ok", resilient.execute(respuestas(respuesta(503), respuesta(503), respuesta(503)), false)
+                .get(5, TimeUnit.SECONDS));
+        assertEquals(4, intentos.get());
+        assertEquals(3, esperas.size());
+        assertTrue(esperas.get(0) <= 100);
+        assertTrue(esperas.get(1) <= 150);	// 200 recortado al maximo
+        assertTrue(esperas.get(2) <= 150);
+        assertEquals(CircuitBreaker.State.CLOSED, resilient.getCircuitBreaker().getState());
+        assertEquals(0, resilient.getCircuitBreaker().getConsecutiveFailures());
+    }
+
+    @Test
+    public void testAgotaLosIntentos() throws Exception {
+        ResilientZendesk resilient = builder().setMaxAttempts(2).setBaseDelayMillis(1).setFailureThreshold(10).build();
+        ZendeskException error = error(resilient.execute(respuestas(respuesta(503), respuesta(502)), false));
+        assertEquals(502, error.getStatusCode());
+        assertEquals(2, intentos.get());
+        assertEquals(2, resilient.getCircuitBreaker().getConsecutiveFailures());
+    }
+
+    @Test
+    public void testLosFallosAmbiguosSoloSiEsIdempotente() throws Exception {
+        ResilientZendesk resilient = builder().setBaseDelayMillis(1).build();
+        assertEquals(500, error(resilient.execute(respuestas(respuesta(500)), false)).getStatusCode());
+        assertEquals(1, intentos.get());
+
+        assertEquals("ok", resilient.execute(respuestas(respuesta(500)), true).get(5, TimeUnit.SECONDS));
+        assertEquals(3, intentos.get());
+    }
+
+    @Test
+    public void testNoReintentaLos429NiLosCuentaParaElCircuito() throws Exception {
+        ResilientZendesk resilient = builder().setBaseDelayMillis(1).setFailureThreshold(1).build();
+        ZendeskException error = error(resilient.execute(
+                respuestas(new ZendeskRateLimitException(429, "Too Many Requests", null, 1000, 0)), true));
+        assertEquals(ZendeskException.Kind.RATE_LIMITED, error.getKind());
+        assertEquals(1, intentos.get());
+        assertTrue(esperas.isEmpty());
+        assertEquals(CircuitBreaker.State.CLOSED, resilient.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testLos4xxNoSeReintentanYCierranLaRachaDeFallos() throws Exception {
+        ResilientZendesk resilient = builder().setMaxAttempts(2).setBaseDelayMillis(1).setFailureThreshold(3).build();
+        error(resilient.execute(respuestas(respuesta(503), respuesta(503)), true));
+        assertEquals(2, resilient.getCircuitBreaker().getConsecutiveFailures());
+
+        assertEquals(422, error(resilient.execute(respuestas(respuesta(422)), true)).getStatusCode());
+        assertEquals(3, intentos.get());
+        assertEquals(0, resilient.getCircuitBreaker().getConsecutiveFailures());
+    }
+
+    @Test
+    public void testElCircuitoAbiertoCortaLosReintentos() throws Exception {
+        ResilientZendesk resilient = builder().setMaxAttempts(5).setBaseDelayMillis(1).setFailureThreshold(2)
+                .setOpenMillis(60000).build();
+        ZendeskException error = error(resilient.execute(
+                respuestas(respuesta(503), respuesta(503), respuesta(503), respuesta(503)), true));
+        assertEquals(ZendeskException.Kind.CIRCUIT_OPEN, error.getKind());
+        assertEquals(2, intentos.get());
+        assertEquals(CircuitBreaker.State.OPEN, resilient.getCircuitBreaker().getState());
+
+        assertEquals(ZendeskException.Kind.CIRCUIT_OPEN, error(resilient.execute(respuestas(), true)).getKind());
+        assertEquals(2, intentos.get());
+    }
+}
@@ -0,0 +1,43 @@
+package com.mycorp;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests del conteo de referencias de {@link ZendeskConnectionPool}.
+ */
+public class ZendeskConnectionPoolTest extends TestCase {
+
+    @Test
+    public void testClienteSeCierraAlLiberarLaUltimaReferencia() {
+        ZendeskConnectionPool pool = new ZendeskConnectionPool.Builder().build();
+        Zendesk uno = new Zendesk.Builder("http://localhost").setConnectionPool(pool).build();
+        Zendesk dos = new Zendesk.Builder("http://localhost").setConnectionPool(pool).build();
+        assertEquals(3, pool.getReferenceCount());
+
+        uno.close();
+        uno.close();
+        assertEquals(2, pool.getReferenceCount());
+
+        pool.close();
+        assertFalse(pool.isClosed());
+        assertFalse(dos.isClosed());
+
+        dos.close();
+        assertTrue(pool.isClosed());
+    }
+
+    @Test
+    public void testNoSePuedeAdquirirUnPoolCerrado() {
+        ZendeskConnectionPool pool = new ZendeskConnectionPool.Builder().build();
+        pool.close();
+        try {
+            pool.acquire();
+            fail("El pool cerrado no debe entregar clientes");
+        } catch (IllegalStateException e) {
+            // esperado
+        }
+    }
+}
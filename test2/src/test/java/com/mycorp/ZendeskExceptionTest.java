@@ -0,0 +1,62 @@
+package com.mycorp;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import com.mycorp.resilience.CircuitOpenException;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de la clasificacion de errores de {@link ZendeskException} y de que se puede reintentar.
+ */
+public class ZendeskExceptionTest extends TestCase {
+
+    private static ZendeskException respuesta(int status) {
+        return new ZendeskResponseException(status, "status", null);
+    }
+
+    @Test
+    public void testClasificaPorRespuestaOCausa() {
+        assertEquals(ZendeskException.Kind.RATE_LIMITED,
+                new ZendeskRateLimitException(429, "Too Many Requests", null, 1000, 0).getKind());
+        assertEquals(ZendeskException.Kind.SERVER_ERROR, respuesta(503).getKind());
+        assertEquals(ZendeskException.Kind.CLIENT_ERROR, respuesta(422).getKind());
+        assertEquals(ZendeskException.Kind.IO, new ZendeskException(new SocketTimeoutException()).getKind());
+        assertEquals(ZendeskException.Kind.IO, new ZendeskException("deadline", new TimeoutException()).getKind());
+        assertEquals(ZendeskException.Kind.CIRCUIT_OPEN,
+                new ZendeskException("abierto", new CircuitOpenException("zendesk")).getKind());
+        assertEquals(ZendeskException.Kind.UNKNOWN, new ZendeskException("otro").getKind());
+    }
+
+    @Test
+    public void testSinIdempotenciaSoloLoQueZendeskNoHaProcesado() {
+        assertTrue(respuesta(503).isRetryable(false));
+        assertTrue(new ZendeskException(new ConnectException()).isRetryable(false));
+        assertFalse(respuesta(500).isRetryable(false));
+        assertFalse(new ZendeskException(new SocketTimeoutException()).isRetryable(false));
+    }
+
+    @Test
+    public void testConIdempotenciaTambienLosFallosAmbiguos() {
+        assertTrue(respuesta(500).isRetryable(true));
+        assertTrue(new ZendeskException(new SocketTimeoutException()).isRetryable(true));
+        assertTrue(new ZendeskException("deadline", new TimeoutException()).isRetryable(true));
+    }
+
+    @Test
+    public void testNuncaLos4xxNiLos429NiElCircuitoAbierto() {
+        for (boolean idempotent : new boolean[] { false, true }) {
+            assertFalse(respuesta(422).isRetryable(idempotent));
+            assertFalse(respuesta(401).isRetryable(idempotent));
+            assertFalse(new ZendeskRateLimitException(429, "Too Many Requests", null, 1000, 0).isRetryable(idempotent));
+            assertFalse(new ZendeskRateLimitException(429, "Client-side rate limit", null, 60000, -1).isRetryable(idempotent));
+            assertFalse(new ZendeskException("abierto", new CircuitOpenException("zendesk")).isRetryable(idempotent));
+            assertFalse(new ZendeskException("otro").isRetryable(idempotent));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.mycorp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests del ritmo que marca {@link ZendeskRateLimiter}.
+ */
+public class ZendeskRateLimiterTest extends TestCase {
+
+    @Test
+    public void testRafagaInicialSinEsperaYDespuesEspera() {
+        // 600 rpm -> 10 por segundo, rafaga de 60
+        ZendeskRateLimiter limiter = new ZendeskRateLimiter.Builder().setRequestsPerMinute(600).setSafetyFactor(1).build();
+        for (int i = 0; i < 60; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        long espera = limiter.reserve();
+        assertTrue(espera > 0);
+        assertTrue(espera <= TimeUnit.MILLISECONDS.toNanos(110));
+        assertEquals(1, limiter.getThrottledCount());
+    }
+
+    @Test
+    public void testCabecerasRecortanLosPermisos() {
+        ZendeskRateLimiter limiter = new ZendeskRateLimiter.Builder().setRequestsPerMinute(600).setSafetyFactor(1).build();
+        limiter.onResponse(600, 0);
+        assertEquals(0, limiter.getRemaining());
+        assertTrue(limiter.reserve() > 0);
+    }
+
+    @Test
+    public void testRetryAfterCongelaElLimitador() {
+        ZendeskRateLimiter limiter = new ZendeskRateLimiter.Builder().setRequestsPerMinute(600).build();
+        limiter.onRateLimited(2000);
+        assertTrue(limiter.reserve() >= TimeUnit.MILLISECONDS.toNanos(1900));
+        assertEquals(1, limiter.getRateLimitedCount());
+    }
+
+    @Test
+    public void testRechazaSiLaEsperaSuperaElMaximo() {
+        ZendeskRateLimiter limiter = new ZendeskRateLimiter.Builder().setMaxQueueDelayMillis(1000).build();
+        limiter.onRateLimited(5000);
+        try {
+            limiter.reserve();
+            fail("Debe rechazar peticiones que esperarian mas del maximo");
+        } catch (ZendeskRateLimitException e) {
+            assertEquals(429, e.getStatusCode());
+            assertTrue(e.getRetryAfterMillis() > 1000);
+        }
+        assertEquals(1, limiter.getRejectedCount());
+    }
+}
@@ -0,0 +1,243 @@
+package com.mycorp;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mycorp.cache.ValueCodeRegistry;
+import com.mycorp.fake.FakeZendeskServer;
+import com.mycorp.outbox.Outbox;
+import com.mycorp.support.CorreoElectronico;
+import com.mycorp.support.MensajeriaService;
+import com.mycorp.support.Ticket;
+
+import junit.framework.TestCase;
+import util.datos.UsuarioAlta;
+
+
+/**
+ * Tests del alta de tickets de {@link ZendeskService} contra {@link FakeZendeskServer}, que hace
+ * tambien de servicio de tarjetas y de BRAVO.
+ */
+public class ZendeskServiceTest extends TestCase {
+
+    private static final String BRAVO = "{\"idCliente\": 987, \"fechaNacimiento\": \"01/02/1980\", \"genTGrupoTmk\": 600111222}";
+
+    private FakeZendeskServer server;
+    private ZendeskService service;
+    private File outboxDir;
+    private final List<CorreoElectronico> correos = new CopyOnWriteArrayList<CorreoElectronico>();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new FakeZendeskServer();
+        server.stub("/tarjetas/1234", 200, "987").stub("/bravo/987", 200, BRAVO);
+        service = configurar(new ZendeskService());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        service.destroy();
+        server.close();
+        if (outboxDir != null) {
+            File[] files = outboxDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            outboxDir.delete();
+        }
+    }
+
+    private ZendeskService configurar(ZendeskService service) throws Exception {
+        service.URL_ZENDESK = server.getUrl();
+        service.ZENDESK_USER = "agente@example.com";
+        service.TOKEN_ZENDESK = "token";
+        service.TARJETAS_GETDATOS = server.getUrl() + "/tarjetas/";
+        service.BRAVO_GETDATOS = server.getUrl() + "/bravo/{idCliente}";
+        service.ZENDESK_ERROR_MAIL_FUNCIONALIDAD = "1";
+        service.ZENDESK_ERROR_DESTINATARIO = "soporte@example.com";
+        service.ZENDESK_RETRY_MAX_ATTEMPTS = 1;
+        service.REFERENCIA_REFRESH_INTERVAL = 0;
+        service.emailService = new MensajeriaService() {
+            @Override
+            public void enviar(CorreoElectronico correo) {
+                correos.add(correo);
+            }
+        };
+        Field restTemplate = ZendeskService.class.getDeclaredField("restTemplate");
+        restTemplate.setAccessible(true);
+        restTemplate.set(service, new RestTemplate());
+        return service;
+    }
+
+    /**
+     * Abre un outbox en un directorio temporal, sin el reenvio en segundo plano que arranca init().
+     */
+    private Outbox abrirOutbox() throws Exception {
+        outboxDir = File.createTempFile("outbox", "");
+        assertTrue(outboxDir.delete());
+        Outbox outbox = new Outbox.Builder(outboxDir).build();
+        Field campo = ZendeskService.class.getDeclaredField("outbox");
+        campo.setAccessible(true);
+        campo.set(service, outbox);
+        return outbox;
+    }
+
+    private static long desde(long inicio) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio);
+    }
+
+    private static UsuarioAlta alta() {
+        return alta("1234");
+    }
+
+    private static UsuarioAlta alta(String numTarjeta) {
+        UsuarioAlta usuarioAlta = new UsuarioAlta();
+        usuarioAlta.setNumTarjeta(numTarjeta);
+        usuarioAlta.setEmail("cliente@example.com");
+        return usuarioAlta;
+    }
+
+    @Test
+    public void testPlantillaDeTicket() throws Exception {
+        service.PETICION_ZENDESK = "{\"requester\":{\"name\":\"%s\",\"email\":\"%s\"},\"subject\":\"Alta web\","
+                + "\"comment\":{\"body\":\"%s\"}}";
+        Ticket plantilla = service.getPlantillaTicket();
+        assertEquals("Alta web", plantilla.getSubject());
+        assertEquals("", plantilla.getComment().getBody());
+
+        service.PETICION_ZENDESK = "{\"requester\":{\"name\":\"%s\",\"email\":\"%s\"},\"subject\":\"%s\"}";
+        assertNull(service.getPlantillaTicket().getSubject());	// el comentario iria al asunto: ticket vacio
+
+        service.PETICION_ZENDESK = "{\"requester\":{\"email\":\"%s\",\"name\":\"%s\"},\"subject\":\"Alta web\","
+                + "\"comment\":{\"body\":\"%s\"}}";
+        assertNull(service.getPlantillaTicket().getSubject());	// nombre y email cambiados
+
+        service.PETICION_ZENDESK = "{\"requester\":{\"name\":\"%s\",\"email\":\"%s\"},\"subject\":\"%3$s\","
+                + "\"comment\":{\"body\":\"%3$s\"}}";
+        assertNull(service.getPlantillaTicket().getSubject());	// el comentario tambien en el asunto
+
+        try {
+            ZendeskService.leerPlantillaTicket("{\"requester\":{\"name\":\"%s\",\"email\":\"%s\"}}");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("three"));
+        }
+    }
+
+    @Test
+    public void testAltaConPresupuestoReservaTiempoParaZendesk() throws Exception {
+        server.stub("/bravo/987", 200, BRAVO, 5000);
+        service.ZENDESK_ALTA_ZENDESK_RESERVE = 1000;
+        long inicio = System.nanoTime();
+        String datos = service.altaTicketZendesk(alta(), "Mozilla", "peticion-1", 1500);
+        assertTrue(desde(inicio) < 1500);
+        assertTrue(datos.contains("1234"));
+        assertFalse(datos.contains("01/02/1980"));	// BRAVO se cancela al agotar su parte del presupuesto
+        assertEquals(1, server.getTicketCount());	// y queda la reserva para crear el ticket
+        assertTrue(correos.isEmpty());
+    }
+
+    @Test
+    public void testAltaSinTiempoParaZendeskAvisaPorMail() throws Exception {
+        server.setLatency(FakeZendeskServer.fixed(3000));
+        service.ZENDESK_ALTA_ZENDESK_RESERVE = 1000;
+        long inicio = System.nanoTime();
+        String datos = service.altaTicketZendesk(alta(), "Mozilla", "peticion-1", 1300);
+        assertTrue(desde(inicio) < 2500);
+        assertTrue(datos.contains("1234"));
+        assertFalse(datos.contains("01/02/1980"));
+        assertEquals(1, correos.size());
+        assertEquals("soporte@example.com", correos.get(0).getEmailA());
+    }
+
+    @Test
+    public void testAltaSinTiempoParaZendeskVaAlOutbox() throws Exception {
+        Outbox outbox = abrirOutbox();
+        server.setLatency(FakeZendeskServer.fixed(3000));
+        service.ZENDESK_ALTA_ZENDESK_RESERVE = 1000;
+        long inicio = System.nanoTime();
+        service.altaTicketZendesk(alta(), "Mozilla", "peticion-1", 1300);
+        assertTrue(desde(inicio) < 2500);
+        assertEquals(1, outbox.getPendingCount());	// agotar el deadline es un fallo transitorio
+        assertTrue(correos.isEmpty());
+    }
+
+    @Test
+    public void testAltaAsincronaConConsultasBloqueantes() throws Exception {
+        String datos = service.altaTicketZendeskAsync(alta(), "Mozilla").get(5, TimeUnit.SECONDS);
+        assertTrue(datos.contains("1234"));
+        assertTrue(datos.contains("01/02/1980"));
+        assertEquals(1, server.getTicketCount());
+        assertEquals("987", server.getTickets().iterator().next().path("requester").path("name").asText());
+        assertTrue(correos.isEmpty());
+    }
+
+    @Test
+    public void testAltaAsincronaDeTarjetaYBravo() throws Exception {
+        service.ZENDESK_LOOKUPS_ASYNC = true;
+        String datos = service.altaTicketZendeskAsync(alta(), "Mozilla", "peticion-1").get(5, TimeUnit.SECONDS);
+        assertTrue(datos.contains("1234"));
+        assertTrue(datos.contains("01/02/1980"));
+
+        assertEquals(1, server.getTicketCount());
+        JsonNode ticket = server.getTickets().iterator().next();
+        assertEquals("987", ticket.path("requester").path("name").asText());
+        assertEquals("cliente@example.com", ticket.path("requester").path("email").asText());
+        assertTrue(ticket.path("comment").path("body").asText().contains("01/02/1980"));
+        assertTrue(correos.isEmpty());
+    }
+
+    @Test
+    public void testBravoSeConsultaConElIdDeCadaCliente() throws Exception {
+        server.stub("/tarjetas/5678", 200, "654")
+                .stub("/bravo/654", 200, "{\"idCliente\": 654, \"fechaNacimiento\": \"03/04/1990\"}");
+        for (boolean async : new boolean[] { false, true }) {
+            service.ZENDESK_LOOKUPS_ASYNC = async;
+            String primero = service.altaTicketZendeskAsync(alta("1234"), "Mozilla", "peticion-1" + async)
+                    .get(5, TimeUnit.SECONDS);
+            String segundo = service.altaTicketZendeskAsync(alta("5678"), "Mozilla", "peticion-2" + async)
+                    .get(5, TimeUnit.SECONDS);
+            assertTrue(primero.contains("01/02/1980"));
+            assertFalse(primero.contains("03/04/1990"));
+            assertTrue(segundo.contains("03/04/1990"));
+            assertFalse(segundo.contains("01/02/1980"));
+        }
+    }
+
+    @Test
+    public void testAltaAsincronaSinComponerElTicketAvisaPorMail() throws Exception {
+        service.destroy();
+        service = configurar(new ZendeskService() {
+            @Override
+            ValueCodeRegistry getRegistroReferencia() {
+                throw new IllegalStateException("tablas de referencia no disponibles");
+            }
+        });
+        service.ZENDESK_LOOKUPS_ASYNC = true;
+        String datos = service.altaTicketZendeskAsync(alta(), "Mozilla", "peticion-1").get(5, TimeUnit.SECONDS);
+        assertTrue(datos.contains("1234"));
+        assertFalse(datos.contains("01/02/1980"));
+        assertEquals(0, server.getTicketCount());
+        assertEquals(1, correos.size());
+        assertEquals("soporte@example.com", correos.get(0).getEmailA());
+    }
+
+    @Test
+    public void testAltaAsincronaConZendeskCaidoAvisaPorMail() throws Exception {
+        service.ZENDESK_LOOKUPS_ASYNC = true;
+        server.serverErrorStorm(10, 500);
+        String datos = service.altaTicketZendeskAsync(alta(), "Mozilla", "peticion-1").get(5, TimeUnit.SECONDS);
+        assertTrue(datos.contains("01/02/1980"));
+        assertEquals(0, server.getTicketCount());
+        assertEquals(1, correos.size());
+    }
+}
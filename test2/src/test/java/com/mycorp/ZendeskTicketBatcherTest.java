@@ -0,0 +1,184 @@
+package com.mycorp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import com.mycorp.fake.FakeZendeskServer;
+import com.mycorp.resilience.Bulkhead;
+import com.mycorp.resilience.BulkheadFullException;
+import com.mycorp.support.Ticket;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link ZendeskTicketBatcher} contra {@link FakeZendeskServer}: como se reparte el
+ * resultado del trabajo entre los tickets del lote y como pasa el lote por el circuit breaker y el
+ * compartimento de Zendesk.
+ */
+public class ZendeskTicketBatcherTest extends TestCase {
+
+    private FakeZendeskServer server;
+    private Zendesk zendesk;
+    private ResilientZendesk resilient;
+    private ZendeskTicketBatcher batcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new FakeZendeskServer();
+        zendesk = new Zendesk.Builder(server.getUrl()).build();
+        resilient = new ResilientZendesk.Builder(zendesk).setMaxAttempts(1).setFailureThreshold(1).build();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (batcher != null) {
+            batcher.close();
+        }
+        resilient.close();
+        zendesk.close();
+        server.close();
+    }
+
+    /**
+     * Agrupador que solo envia al llamar a flush, para controlar que tickets van en cada lote.
+     */
+    private ZendeskTicketBatcher.Builder builder() {
+        return new ZendeskTicketBatcher.Builder(resilient).setMaxDelayMillis(60000).setPollIntervalMillis(10);
+    }
+
+    /**
+     * Encola un lote con un ticket por asunto y lo envia.
+     */
+    private List<ListenableFuture<Long>> lote(String... asuntos) {
+        List<ListenableFuture<Long>> ids = new ArrayList<ListenableFuture<Long>>();
+        for (String asunto : asuntos) {
+            ids.add(batcher.submit(new Ticket.Builder().setSubject(asunto).build()));
+        }
+        batcher.flush();
+        return ids;
+    }
+
+    private static Throwable fallo(ListenableFuture<Long> id) throws Exception {
+        try {
+            id.get(5, TimeUnit.SECONDS);
+            fail();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void testCadaTicketRecibeSuResultado() throws Exception {
+        server.rejectInJobs("rechazar");
+        batcher = builder().build();
+        List<ListenableFuture<Long>> ids = lote("creado", "rechazar", "creado");
+
+        assertNotNull(server.getTicket(ids.get(0).get(5, TimeUnit.SECONDS)));
+        assertNotNull(server.getTicket(ids.get(2).get(5, TimeUnit.SECONDS)));
+        assertFalse(ids.get(0).get().equals(ids.get(2).get()));
+        Throwable e = fallo(ids.get(1));
+        assertTrue(e instanceof ZendeskException);
+        assertTrue(e.getMessage(), e.getMessage().contains("Ticket 1 of job"));
+        assertTrue(e.getMessage(), e.getMessage().contains("RecordInvalid"));
+        assertEquals(2, server.getTicketCount());
+    }
+
+    @Test
+    public void testTicketSinResultadoFalla() throws Exception {
+        server.dropFromJobs("omitir");
+        batcher = builder().build();
+        List<ListenableFuture<Long>> ids = lote("omitir", "creado");
+
+        assertNotNull(server.getTicket(ids.get(1).get(5, TimeUnit.SECONDS)));
+        Throwable e = fallo(ids.get(0));
+        assertTrue(e instanceof ZendeskException);
+        assertTrue(e.getMessage(), e.getMessage().contains("returned no result"));
+    }
+
+    @Test
+    public void testTrabajoFallidoFallaTodos() throws Exception {
+        server.failJobs(1);
+        batcher = builder().build();
+        for (ListenableFuture<Long> id : lote("uno", "dos")) {
+            Throwable e = fallo(id);
+            assertTrue(e instanceof ZendeskException);
+            assertTrue(e.getMessage(), e.getMessage().contains("failed: Job failed"));
+        }
+        assertEquals(0, server.getTicketCount());
+    }
+
+    @Test
+    public void testTrabajoQueNoTerminaFallaTodos() throws Exception {
+        server.setJobPollsToComplete(Integer.MAX_VALUE);
+        batcher = builder().setJobTimeoutMillis(100).build();
+        for (ListenableFuture<Long> id : lote("uno", "dos")) {
+            Throwable e = fallo(id);
+            assertTrue(e instanceof ZendeskException);
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Timeout waiting for job status"));
+        }
+    }
+
+    @Test
+    public void testLoteRechazadoFallaTodos() throws Exception {
+        server.serverErrorStorm(1, 422);
+        batcher = builder().build();
+        List<ListenableFuture<Long>> ids = lote("uno", "dos");
+
+        Throwable primero = fallo(ids.get(0));
+        assertTrue(primero instanceof ZendeskException);
+        assertEquals(ZendeskException.Kind.CLIENT_ERROR, ((ZendeskException) primero).getKind());
+        assertSame(primero, fallo(ids.get(1)));
+        assertEquals(0, server.getTicketCount());
+    }
+
+    @Test
+    public void testCircuitoAbiertoNoEnviaLotes() throws Exception {
+        server.serverErrorStorm(1, 503);
+        batcher = builder().build();
+        Throwable e = fallo(lote("uno").get(0));
+        assertEquals(ZendeskException.Kind.SERVER_ERROR, ((ZendeskException) e).getKind());
+
+        long peticiones = server.getRequestCount();
+        for (ListenableFuture<Long> id : lote("dos", "tres")) {
+            e = fallo(id);
+            assertEquals(ZendeskException.Kind.CIRCUIT_OPEN, ((ZendeskException) e).getKind());
+        }
+        assertEquals(peticiones, server.getRequestCount());
+    }
+
+    @Test
+    public void testCompartimentoLlenoRechazaLotes() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("zendesk", 1, 0, 1000);
+        try {
+            batcher = builder().setBulkhead(bulkhead).build();
+            final SettableListenableFuture<Object> ocupada = new SettableListenableFuture<Object>();
+            bulkhead.callAsync(new Callable<ListenableFuture<Object>>() {
+                @Override
+                public ListenableFuture<Object> call() {
+                    return ocupada;
+                }
+            });
+
+            for (ListenableFuture<Long> id : lote("uno", "dos")) {
+                assertTrue(fallo(id) instanceof BulkheadFullException);
+            }
+            assertEquals(0, server.getRequestCount());
+            assertEquals(1, bulkhead.getRejectedCount());
+
+            ocupada.set(null);
+            assertNotNull(server.getTicket(lote("tres").get(0).get(5, TimeUnit.SECONDS)));
+            assertEquals(0, bulkhead.getActiveCount());
+        } finally {
+            bulkhead.close();
+        }
+    }
+}
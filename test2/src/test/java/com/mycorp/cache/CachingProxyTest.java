@@ -0,0 +1,262 @@
+package com.mycorp.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link CachingProxy}: cache por argumentos, delegacion, agrupacion y precarga.
+ */
+public class CachingProxyTest extends TestCase {
+
+    public interface Referencia {
+        List<String> provincias(Map<String, Object> filtro);
+
+        List<String> tabla(int tabla, int version);
+
+        List<String> tabla(int tabla, String idioma);
+
+        String codigos(String[] codigos);
+
+        String lista(List<String> codigos);
+
+        String lento(String key);
+
+        int contador();
+    }
+
+    private final AtomicInteger llamadas = new AtomicInteger();
+    private volatile CountDownLatch espera = new CountDownLatch(0);
+    private final CountDownLatch dentro = new CountDownLatch(1);
+
+    private final Referencia servicio = new Referencia() {
+        @Override
+        public List<String> provincias(Map<String, Object> filtro) {
+            llamadas.incrementAndGet();
+            List<String> result = new ArrayList<String>();
+            result.add("Madrid-" + filtro.get("pais"));
+            return result;
+        }
+
+        @Override
+        public List<String> tabla(int tabla, int version) {
+            llamadas.incrementAndGet();
+            List<String> result = new ArrayList<String>();
+            result.add(tabla + "." + version);
+            return result;
+        }
+
+        @Override
+        public List<String> tabla(int tabla, String idioma) {
+            llamadas.incrementAndGet();
+            List<String> result = new ArrayList<String>();
+            result.add(tabla + "-" + idioma);
+            return result;
+        }
+
+        @Override
+        public String codigos(String[] codigos) {
+            llamadas.incrementAndGet();
+            return Arrays.toString(codigos);
+        }
+
+        @Override
+        public String lista(List<String> codigos) {
+            llamadas.incrementAndGet();
+            return codigos.toString();
+        }
+
+        @Override
+        public String lento(String key) {
+            llamadas.incrementAndGet();
+            dentro.countDown();
+            try {
+                espera.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return key;
+        }
+
+        @Override
+        public int contador() {
+            return llamadas.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void testCachePorArgumentos() {
+        CachingProxy<Referencia> caching = new CachingProxy.Builder<Referencia>(Referencia.class, servicio)
+                .cache("tabla", 60000, 10).cache("provincias", 60000, 10).build();
+        Referencia proxy = caching.getProxy();
+        assertEquals("1.2", proxy.tabla(1, 2).get(0));
+        assertEquals("1.2", proxy.tabla(1, 2).get(0));
+        assertEquals("2.1", proxy.tabla(2, 1).get(0));
+        assertEquals(2, llamadas.get());
+
+        Map<String, Object> filtro = new HashMap<String, Object>();
+        filtro.put("pais", "ES");
+        assertEquals("Madrid-ES", proxy.provincias(filtro).get(0));
+        filtro.put("pais", "PT");	// la clave guardada es una copia
+        assertEquals("Madrid-PT", proxy.provincias(filtro).get(0));
+        assertEquals(4, llamadas.get());
+
+        try {
+            proxy.tabla(1, 2).add("x");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // el resultado compartido no se puede modificar
+        }
+        assertEquals(2, caching.getCaches().get("tabla(int,int)").getStats().getHits());
+    }
+
+    @Test
+    public void testCadaSobrecargaTieneSuCache() {
+        CachingProxy<Referencia> caching = new CachingProxy.Builder<Referencia>(Referencia.class, servicio)
+                .cache("tabla", 60000, 10).build();
+        assertEquals(new HashSet<String>(Arrays.asList("tabla(int,int)", "tabla(int,String)")),
+                caching.getCaches().keySet());
+        Referencia proxy = caching.getProxy();
+        assertEquals("1.2", proxy.tabla(1, 2).get(0));
+        assertEquals("1-es", proxy.tabla(1, "es").get(0));
+        assertEquals("1-es", proxy.tabla(1, "es").get(0));
+        assertEquals(2, llamadas.get());
+        assertEquals(0, caching.getCaches().get("tabla(int,int)").getStats().getHits());
+        assertEquals(1, caching.getCaches().get("tabla(int,String)").getStats().getHits());
+    }
+
+    @Test
+    public void testArraysYListasPorContenido() {
+        Referencia proxy = new CachingProxy.Builder<Referencia>(Referencia.class, servicio)
+                .cache("codigos", 60000, 10).cache("lista", 60000, 10).build().getProxy();
+        String[] codigos = { "A", "B" };
+        assertEquals("[A, B]", proxy.codigos(codigos));
+        assertEquals("[A, B]", proxy.codigos(new String[] { "A", "B" }));
+        assertEquals(1, llamadas.get());
+        codigos[1] = "C";	// la clave guardada es una copia
+        assertEquals("[A, C]", proxy.codigos(codigos));
+        assertEquals("[A, B]", proxy.codigos(new String[] { "A", "B" }));
+        assertEquals(2, llamadas.get());
+
+        List<String> lista = new ArrayList<String>(Arrays.asList("A", "B"));
+        assertEquals("[A, B]", proxy.lista(lista));
+        lista.add("C");
+        assertEquals("[A, B, C]", proxy.lista(lista));
+        assertEquals("[A, B]", proxy.lista(Arrays.asList("A", "B")));
+        assertEquals(4, llamadas.get());
+    }
+
+    @Test
+    public void testDelegaLosMetodosSinCache() {
+        Referencia proxy = new CachingProxy.Builder<Referencia>(Referencia.class, servicio)
+                .cache("tabla", 60000, 10).build().getProxy();
+        assertEquals(1, proxy.contador());
+        assertEquals(2, proxy.contador());
+    }
+
+    @Test
+    public void testAgrupaLlamadasSimultaneas() throws Exception {
+        CachingProxy<Referencia> caching = new CachingProxy.Builder<Referencia>(Referencia.class, servicio)
+                .cache("lento", 60000, 10).build();
+        final Referencia proxy = caching.getProxy();
+        espera = new CountDownLatch(1);
+        final List<Thread> creados = new CopyOnWriteArrayList<Thread>();
+        ExecutorService hilos = Executors.newFixedThreadPool(4, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread hilo = new Thread(r);
+                creados.add(hilo);
+                return hilo;
+            }
+        });
+        try {
+            List<Future<String>> resultados = new ArrayList<Future<String>>();
+            for (int i = 0; i < 4; i++) {
+                resultados.add(hilos.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return proxy.lento("a");
+                    }
+                }));
+            }
+            assertTrue(dentro.await(5, TimeUnit.SECONDS));
+            // la primera llamada sigue en curso: las demas quedan esperando su resultado
+            long limite = System.currentTimeMillis() + 5000;
+            while (!esperando(creados, 4) && System.currentTimeMillis() < limite) {
+                Thread.yield();
+            }
+            assertTrue(esperando(creados, 4));
+            espera.countDown();
+            for (Future<String> resultado : resultados) {
+                assertEquals("a", resultado.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            hilos.shutdownNow();
+        }
+        assertEquals(4, caching.getCaches().get("lento").getStats().getMisses());
+        assertEquals(1, llamadas.get());
+    }
+
+    private static boolean esperando(List<Thread> hilos, int cuantos) {
+        if (hilos.size() < cuantos) {
+            return false;
+        }
+        for (Thread hilo : hilos) {
+            if (hilo.getState() != Thread.State.WAITING && hilo.getState() != Thread.State.TIMED_WAITING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void testPrecarga() {
+        CachingProxy<Referencia> caching = new CachingProxy.Builder<Referencia>(Referencia.class, servicio)
+                .cache("tabla", 60000, 10).preload("tabla", 7, 1).build();
+        assertEquals(1, caching.preload());
+        assertEquals("7.1", caching.getProxy().tabla(7, 1).get(0));
+        assertEquals(1, llamadas.get());
+    }
+
+    @Test
+    public void testPrecargaEligeLaSobrecargaPorLosTiposDeLosArgumentos() {
+        CachingProxy<Referencia> caching = new CachingProxy.Builder<Referencia>(Referencia.class, servicio)
+                .cache("tabla", 60000, 10).preload("tabla", 7, "es").build();
+        assertEquals(1, caching.preload());
+        assertEquals(1, caching.getCaches().get("tabla(int,String)").getStats().getMisses());
+        assertEquals(0, caching.getCaches().get("tabla(int,int)").getStats().getMisses());
+        try {
+            new CachingProxy.Builder<Referencia>(Referencia.class, servicio).preload("tabla", 7, 1L);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ninguna sobrecarga admite un long
+        }
+    }
+
+    @Test
+    public void testMetodoDesconocido() {
+        try {
+            new CachingProxy.Builder<Referencia>(Referencia.class, servicio).cache("noExiste", 60000, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // esperado
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.mycorp.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.mycorp.support.ResumenPoliza;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link LongLruCache} y del empaquetado de claves de {@link ResumenPoliza}.
+ */
+public class LongLruCacheTest extends TestCase {
+
+    @Test
+    public void testExpulsaLaMenosUsada() {
+        LongLruCache<String> cache = new LongLruCache<String>(2, 60000);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        assertEquals("a", cache.get(1));
+        cache.put(3, "c");
+        assertEquals(2, cache.size());
+        assertNull(cache.get(2));
+        assertEquals("a", cache.get(1));
+        assertEquals("c", cache.get(3));
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getEvictions());
+        assertEquals(3, stats.getHits());
+        assertEquals(1, stats.getMisses());
+    }
+
+    @Test
+    public void testCaduca() throws Exception {
+        LongLruCache<String> cache = new LongLruCache<String>(10, 50);
+        cache.put(7, "a");
+        assertEquals("a", cache.get(7));
+        Thread.sleep(70);
+        assertNull(cache.get(7));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSeComportaComoUnLinkedHashMapAcotado() {
+        final int max = 64;
+        LongLruCache<Long> cache = new LongLruCache<Long>(max, 60000);
+        Map<Long, Long> modelo = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > max;
+            }
+        };
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            // pocas claves distintas para forzar colisiones, expulsiones y borrados en mitad de cadena
+            long clave = random.nextInt(200) * 1024L;
+            switch (random.nextInt(3)) {
+            case 0:
+                cache.put(clave, (long) i);
+                modelo.put(clave, (long) i);
+                break;
+            case 1:
+                assertEquals(modelo.get(clave), cache.get(clave));
+                break;
+            default:
+                cache.invalidate(clave);
+                modelo.remove(clave);
+            }
+            assertEquals(modelo.size(), cache.size());
+        }
+        for (Map.Entry<Long, Long> entrada : modelo.entrySet()) {
+            assertEquals(entrada.getValue(), cache.get(entrada.getKey()));
+        }
+    }
+
+    @Test
+    public void testClaveDePoliza() {
+        long clave = ResumenPoliza.clave(1, 123456789, 268435455);
+        assertTrue(clave >= 0);
+        assertEquals(1, ResumenPoliza.compania(clave));
+        assertEquals(123456789, ResumenPoliza.numPoliza(clave));
+        assertEquals(268435455, ResumenPoliza.numColectivo(clave));
+        assertFalse(clave == ResumenPoliza.clave(1, 268435455, 123456789));
+
+        assertEquals(ResumenPoliza.SIN_CLAVE, ResumenPoliza.clave(1, 268435456, 0));
+        assertEquals(ResumenPoliza.SIN_CLAVE, ResumenPoliza.clave(1, 0, -1));
+        assertEquals(ResumenPoliza.SIN_CLAVE, ResumenPoliza.clave(128, 0, 0));
+    }
+}
@@ -0,0 +1,179 @@
+package com.mycorp.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import com.mycorp.resilience.Deadline;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link SingleFlight}: errores compartidos, cancelacion o deadline agotado de quien hace
+ * la llamada y agrupacion no bloqueante.
+ */
+public class SingleFlightTest extends TestCase {
+
+    private final SingleFlight<String, String> vuelos = new SingleFlight<String, String>();
+    private final AtomicInteger llamadas = new AtomicInteger();
+
+    /**
+     * Lanza en otro hilo <code>execute("a")</code> y guarda su resultado o su error.
+     */
+    private Thread lanzar(Callable<String> llamada, AtomicReference<Object> resultado) {
+        return lanzar(llamada, resultado, null);
+    }
+
+    /**
+     * Igual que {@link #lanzar(Callable, AtomicReference)}, con <code>deadline</code> en el hilo.
+     */
+    private Thread lanzar(final Callable<String> llamada, final AtomicReference<Object> resultado, final Deadline deadline) {
+        Thread hilo = new Thread() {
+            @Override
+            public void run() {
+                Deadline.enter(deadline);
+                try {
+                    resultado.set(vuelos.execute("a", llamada));
+                } catch (Exception e) {
+                    resultado.set(e);
+                }
+            }
+        };
+        hilo.start();
+        return hilo;
+    }
+
+    /**
+     * Espera a que otra llamada se haya agrupado con la que esta en curso.
+     */
+    private void esperarAgrupada() {
+        while (vuelos.getCoalesced() == 0) {
+            Thread.yield();
+        }
+    }
+
+    @Test
+    public void testLasQueEsperanRecibenElMismoError() throws Exception {
+        final CountDownLatch dentro = new CountDownLatch(1);
+        final CountDownLatch salida = new CountDownLatch(1);
+        Callable<String> fallida = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                llamadas.incrementAndGet();
+                dentro.countDown();
+                salida.await();
+                throw new IllegalStateException("servicio caido");
+            }
+        };
+        AtomicReference<Object> primera = new AtomicReference<Object>();
+        AtomicReference<Object> segunda = new AtomicReference<Object>();
+        Thread hilo1 = lanzar(fallida, primera);
+        assertTrue(dentro.await(5, TimeUnit.SECONDS));
+        Thread hilo2 = lanzar(fallida, segunda);
+        esperarAgrupada();
+        salida.countDown();
+        hilo1.join();
+        hilo2.join();
+
+        assertEquals(1, llamadas.get());
+        assertEquals(1, vuelos.getCoalesced());
+        assertTrue(primera.get() instanceof IllegalStateException);
+        assertSame(primera.get(), segunda.get());
+        assertEquals(0, vuelos.getInFlight());
+    }
+
+    @Test
+    public void testSiCancelanAQuienLlamaLaQueEsperaRepite() throws Exception {
+        final CountDownLatch dentro = new CountDownLatch(1);
+        final CountDownLatch salida = new CountDownLatch(1);
+        Callable<String> lenta = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                int llamada = llamadas.incrementAndGet();
+                if (llamada == 1) {
+                    dentro.countDown();
+                    salida.await();	// solo sale al interrumpirla
+                }
+                return "a-" + llamada;
+            }
+        };
+        AtomicReference<Object> cancelada = new AtomicReference<Object>();
+        AtomicReference<Object> espera = new AtomicReference<Object>();
+        Thread hilo1 = lanzar(lenta, cancelada);
+        assertTrue(dentro.await(5, TimeUnit.SECONDS));
+        Thread hilo2 = lanzar(lenta, espera);
+        esperarAgrupada();
+        hilo1.interrupt();
+        hilo1.join();
+        hilo2.join();
+
+        assertTrue(cancelada.get() instanceof InterruptedException);
+        assertEquals("a-2", espera.get());
+        assertEquals(2, llamadas.get());
+    }
+
+    @Test
+    public void testSiQuienLlamaSeQuedaSinTiempoLaQueEsperaRepite() throws Exception {
+        final CountDownLatch dentro = new CountDownLatch(1);
+        final CountDownLatch salida = new CountDownLatch(1);
+        Callable<String> llamada = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                int numero = llamadas.incrementAndGet();
+                if (numero == 1) {
+                    dentro.countDown();
+                    salida.await();
+                    throw new TimeoutException("Deadline expired before calling test");
+                }
+                return "a-" + numero;
+            }
+        };
+        AtomicReference<Object> sinTiempo = new AtomicReference<Object>();
+        AtomicReference<Object> conTiempo = new AtomicReference<Object>();
+        Thread hilo1 = lanzar(llamada, sinTiempo, Deadline.after(0));
+        assertTrue(dentro.await(5, TimeUnit.SECONDS));
+        Thread hilo2 = lanzar(llamada, conTiempo, Deadline.after(5000));
+        esperarAgrupada();
+        salida.countDown();
+        hilo1.join();
+        hilo2.join();
+
+        assertTrue(sinTiempo.get() instanceof TimeoutException);
+        assertEquals("a-2", conTiempo.get());
+        assertEquals(2, llamadas.get());
+    }
+
+    @Test
+    public void testAgrupaLasConsultasNoBloqueantes() throws Exception {
+        final SettableListenableFuture<String> respuesta = new SettableListenableFuture<String>();
+        TtlCache.AsyncLoader<String, String> servicio = new TtlCache.AsyncLoader<String, String>() {
+            @Override
+            public ListenableFuture<String> load(String key) {
+                llamadas.incrementAndGet();
+                return respuesta;
+            }
+        };
+        ListenableFuture<String> primera = vuelos.executeAsync("a", servicio);
+        ListenableFuture<String> segunda = vuelos.executeAsync("a", servicio);
+        ListenableFuture<String> tercera = vuelos.executeAsync("a", servicio);
+        assertEquals(1, llamadas.get());
+        assertEquals(2, vuelos.getCoalesced());
+
+        assertTrue(segunda.cancel(true));	// solo cancela su espera
+        respuesta.set("a-1");
+        assertEquals("a-1", primera.get(1, TimeUnit.SECONDS));
+        assertEquals("a-1", tercera.get(1, TimeUnit.SECONDS));
+        assertEquals(0, vuelos.getInFlight());
+
+        vuelos.executeAsync("a", servicio);
+        assertEquals(2, llamadas.get());
+    }
+}
@@ -0,0 +1,233 @@
+package com.mycorp.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link TtlCache}: caducidad, entradas negativas, expulsion LRU, refresco por adelantado, valores caducados y carga asincrona.
+ */
+public class TtlCacheTest extends TestCase {
+
+    private static final Executor MISMO_HILO = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final AtomicInteger llamadas = new AtomicInteger();
+    private final AtomicLong ahora = new AtomicLong();
+
+    private final TtlCache.Ticker reloj = new TtlCache.Ticker() {
+        @Override
+        public long read() {
+            return ahora.get();
+        }
+    };
+
+    private final TtlCache.Loader<String, String> servicio = new TtlCache.Loader<String, String>() {
+        @Override
+        public String load(String key) throws Exception {
+            int llamada = llamadas.incrementAndGet();
+            if (key.startsWith("error")) {
+                throw new IllegalStateException("servicio caido");
+            }
+            return key.startsWith("desconocida") ? null : key + "-" + llamada;
+        }
+    };
+
+    private TtlCache.Builder<String, String> builder(TtlCache.Loader<String, String> loader) {
+        return new TtlCache.Builder<String, String>("test", loader).setTicker(reloj);
+    }
+
+    private void avanzar(long millis) {
+        ahora.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void testAciertoHastaQueCaduca() throws Exception {
+        TtlCache<String, String> cache = builder(servicio).setTtlMillis(50).build();
+        assertEquals("a-1", cache.get("a"));
+        assertEquals("a-1", cache.get("a"));
+        assertEquals(1, llamadas.get());
+
+        avanzar(70);
+        assertEquals("a-2", cache.get("a"));
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(2, stats.getMisses());
+    }
+
+    @Test
+    public void testEntradaNegativaConSuPropioTtl() throws Exception {
+        TtlCache<String, String> cache = builder(servicio)
+                .setTtlMillis(60000).setNegativeTtlMillis(50).build();
+        assertNull(cache.get("desconocida"));
+        assertNull(cache.get("desconocida"));
+        assertEquals(1, llamadas.get());
+        assertEquals(1, cache.getStats().getNegativeHits());
+
+        avanzar(70);
+        assertNull(cache.get("desconocida"));
+        assertEquals(2, llamadas.get());
+    }
+
+    @Test
+    public void testLosErroresNoSeGuardan() throws Exception {
+        TtlCache<String, String> cache = builder(servicio).build();
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("error");
+                fail();
+            } catch (IllegalStateException e) {
+                // esperado
+            }
+        }
+        assertEquals(2, llamadas.get());
+        assertEquals(2, cache.getStats().getLoadErrors());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpulsaLaMenosUsada() throws Exception {
+        TtlCache<String, String> cache = builder(servicio).setMaxEntries(2).build();
+        cache.get("a");
+        cache.get("b");
+        cache.get("a");
+        cache.get("c");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getStats().getEvictions());
+        assertEquals("a-1", cache.get("a"));
+        assertEquals("b-4", cache.get("b"));
+    }
+
+    @Test
+    public void testRefrescaAntesDeCaducar() throws Exception {
+        TtlCache<String, String> cache = builder(servicio)
+                .setTtlMillis(100).setRefreshAheadMillis(80).setRefreshExecutor(MISMO_HILO).build();
+        assertEquals("a-1", cache.get("a"));
+        assertEquals("a-1", cache.get("a"));
+
+        avanzar(40);
+        assertEquals("a-1", cache.get("a"));	// sirve el valor actual y lo recarga
+        assertEquals("a-2", cache.get("a"));
+        assertEquals(1, cache.getStats().getRefreshes());
+
+        avanzar(80);
+        assertEquals("a-2", cache.get("a"));	// el refresco ha alargado su vida
+        assertEquals(1, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void testDescartaElRefrescoDeUnaEntradaInvalidada() throws Exception {
+        final List<Runnable> refrescos = new ArrayList<Runnable>();
+        Executor diferido = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                refrescos.add(command);
+            }
+        };
+        TtlCache<String, String> cache = builder(servicio)
+                .setTtlMillis(100).setRefreshAheadMillis(80).setRefreshExecutor(diferido).build();
+        assertEquals("a-1", cache.get("a"));
+        avanzar(40);
+        assertEquals("a-1", cache.get("a"));	// lanza el refresco
+        assertEquals(1, refrescos.size());
+
+        cache.invalidate("a");
+        refrescos.get(0).run();
+        assertEquals(0, cache.size());
+        assertEquals("a-3", cache.get("a"));
+
+        avanzar(40);
+        assertEquals("a-3", cache.get("a"));	// otro refresco, pero la entrada ya es otra
+        cache.put("a", "nueva");
+        refrescos.get(1).run();
+        assertEquals("nueva", cache.get("a"));
+    }
+
+    @Test
+    public void testSirveCaducadaMientrasRecarga() throws Exception {
+        final boolean[] caido = new boolean[1];
+        TtlCache<String, String> cache = builder(new TtlCache.Loader<String, String>() {
+            @Override
+            public String load(String key) throws Exception {
+                return servicio.load(caido[0] ? "error" : key);
+            }
+        }).setTtlMillis(50).setMaxStaleMillis(100).setRefreshExecutor(MISMO_HILO).build();
+        assertEquals("a-1", cache.get("a"));
+
+        avanzar(70);
+        caido[0] = true;
+        assertEquals("a-1", cache.get("a"));	// caducada: se sirve y el refresco falla
+        assertEquals("a-1", cache.get("a"));
+        caido[0] = false;
+        assertEquals("a-1", cache.get("a"));	// se sirve y el refresco la sustituye
+        assertEquals("a-4", cache.get("a"));
+        assertEquals(3, cache.getStats().getStaleHits());
+        assertEquals(2, cache.getStats().getLoadErrors());
+    }
+
+    @Test
+    public void testMargenDeObsolescenciaAcotado() throws Exception {
+        final boolean[] caido = new boolean[1];
+        TtlCache<String, String> cache = builder(new TtlCache.Loader<String, String>() {
+            @Override
+            public String load(String key) throws Exception {
+                return servicio.load(caido[0] ? "error" : key);
+            }
+        }).setTtlMillis(50).setMaxStaleMillis(50).build();
+        assertEquals("a-1", cache.get("a"));
+
+        avanzar(70);
+        caido[0] = true;
+        assertEquals("a-1", cache.get("a"));	// sin hilos de refresco, solo si la recarga falla
+        assertEquals(1, cache.getStats().getStaleHits());
+        assertEquals(1, cache.getStats().getMisses());	// la caducada servida no cuenta ademas como fallo
+        assertEquals(1, cache.getStats().getLoadErrors());
+
+        avanzar(50);
+        try {
+            cache.get("a");
+            fail();
+        } catch (IllegalStateException e) {
+            // pasado el margen ya no se sirve
+        }
+        assertEquals(1, cache.getStats().getStaleHits());
+        assertEquals(2, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void testCargaAsincrona() throws Exception {
+        final SettableListenableFuture<String> respuesta = new SettableListenableFuture<String>();
+        TtlCache.AsyncLoader<String, String> asincrono = new TtlCache.AsyncLoader<String, String>() {
+            @Override
+            public ListenableFuture<String> load(String key) {
+                llamadas.incrementAndGet();
+                return respuesta;
+            }
+        };
+        TtlCache<String, String> cache = builder(servicio).setTtlMillis(60000).build();
+        ListenableFuture<String> pendiente = cache.getAsync("a", asincrono);
+        assertFalse(pendiente.isDone());
+
+        respuesta.set("a-async");
+        assertEquals("a-async", pendiente.get());
+        ListenableFuture<String> guardado = cache.getAsync("a", asincrono);
+        assertTrue(guardado.isDone());
+        assertEquals("a-async", guardado.get());
+        assertEquals("a-async", cache.get("a"));
+        assertEquals(1, llamadas.get());
+    }
+}
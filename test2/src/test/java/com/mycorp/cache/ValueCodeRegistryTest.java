@@ -0,0 +1,103 @@
+package com.mycorp.cache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mycorp.support.ValueCode;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link ValueCodeRegistry}: indice por codigo, listas compartidas y recarga.
+ */
+public class ValueCodeRegistryTest extends TestCase {
+
+    private List<ValueCode> tabla;
+    private boolean caido;
+
+    private final ValueCodeRegistry.Source servicio = new ValueCodeRegistry.Source() {
+        @Override
+        public List<ValueCode> load() throws Exception {
+            if (caido) {
+                throw new IllegalStateException("servicio caido");
+            }
+            return tabla;
+        }
+    };
+
+    private static ValueCode vc(String code, String value) {
+        ValueCode result = new ValueCode();
+        result.setCode(code);
+        result.setValue(value);
+        return result;
+    }
+
+    @Test
+    public void testIndexaPorCodigo() {
+        tabla = Arrays.asList(vc("1", "NIF"), vc("2", "Pasaporte"), vc("1", "DNI"), vc(null, "sin codigo"),
+                vc("3", "NIF"), vc("4", "NIF"));
+        ValueCodeRegistry registro = new ValueCodeRegistry.Builder().addTable("docs", servicio).build();
+        assertEquals(Arrays.asList("NIF", "DNI"), registro.valores("docs", "1"));
+        assertEquals(Arrays.asList("Pasaporte"), registro.valores("docs", "2"));
+        assertTrue(registro.valores("docs", "9").isEmpty());
+        assertTrue(registro.valores("docs", null).isEmpty());
+        assertTrue(registro.valores("otra", "1").isEmpty());
+        assertSame(registro.valores("docs", "3"), registro.valores("docs", "4"));
+        assertEquals(4, registro.size("docs"));
+        try {
+            registro.valores("docs", "1").add("X");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // inmutable
+        }
+    }
+
+    @Test
+    public void testRecargaSoloSiElServicioResponde() {
+        tabla = Arrays.asList(vc("1", "NIF"));
+        ValueCodeRegistry registro = new ValueCodeRegistry.Builder().addTable("docs", servicio).build();
+
+        caido = true;
+        tabla = Arrays.asList(vc("1", "DNI"));
+        assertFalse(registro.refresh());
+        assertEquals(Arrays.asList("NIF"), registro.valores("docs", "1"));
+
+        caido = false;
+        assertTrue(registro.refresh());
+        assertEquals(Arrays.asList("DNI"), registro.valores("docs", "1"));
+    }
+
+    @Test
+    public void testReintentaLaPrimeraCargaHastaQueResponde() throws Exception {
+        final AtomicInteger intentos = new AtomicInteger();
+        ValueCodeRegistry registro = new ValueCodeRegistry.Builder()
+                .addTable("docs", new ValueCodeRegistry.Source() {
+                    @Override
+                    public List<ValueCode> load() throws Exception {
+                        if (intentos.incrementAndGet() < 3) {
+                            throw new IllegalStateException("servicio caido");
+                        }
+                        return Arrays.asList(vc("1", "NIF"));
+                    }
+                })
+                .setRefreshIntervalMillis(3600000)
+                .setInitialRetryMillis(1)
+                .build();
+        try {
+            assertEquals(0, registro.size("docs"));
+            long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (registro.size("docs") == 0 && System.nanoTime() - limite < 0) {
+                Thread.sleep(5);
+            }
+            assertEquals(Arrays.asList("NIF"), registro.valores("docs", "1"));
+            assertEquals(3, intentos.get());	// cargada: la siguiente recarga es dentro de una hora
+        } finally {
+            registro.close();
+        }
+    }
+}
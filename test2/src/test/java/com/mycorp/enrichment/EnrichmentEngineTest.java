@@ -0,0 +1,207 @@
+package com.mycorp.enrichment;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.mycorp.enrichment.EnrichmentResult.Outcome;
+import com.mycorp.resilience.Deadline;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link EnrichmentEngine}: orden por dependencias, paralelismo, errores, tiempos maximos y deadline.
+ */
+public class EnrichmentEngineTest extends TestCase {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Espera <code>millis</code> y escribe en su salida las entradas concatenadas.
+     */
+    private static Enricher enricher(final String salida, final long millis, final String... entradas) {
+        return new Enricher() {
+            @Override
+            public String getName() {
+                return salida;
+            }
+
+            @Override
+            public Collection<String> getInputs() {
+                return Arrays.asList(entradas);
+            }
+
+            @Override
+            public Collection<String> getOutputs() {
+                return Collections.singleton(salida);
+            }
+
+            @Override
+            public void enrich(EnrichmentContext context) throws Exception {
+                Thread.sleep(millis);
+                if (salida.startsWith("error")) {
+                    throw new IllegalStateException("servicio caido");
+                }
+                StringBuilder valor = new StringBuilder(salida);
+                for (String entrada : entradas) {
+                    valor.append('(').append(context.get(entrada)).append(')');
+                }
+                context.put(salida, valor.toString());
+            }
+        };
+    }
+
+    private static Map<String, Object> iniciales() {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("form", "f");
+        return result;
+    }
+
+    @Test
+    public void testIndependientesEnParaleloYDependientesEnOrden() {
+        EnrichmentEngine engine = new EnrichmentEngine.Builder(executor)
+                .add(enricher("bravo", 100, "cliente"), 1000)
+                .add(enricher("cliente", 100, "form"), 1000)
+                .add(enricher("tablas", 150), 1000)
+                .build();
+        long inicio = System.nanoTime();
+        EnrichmentResult result = engine.run(iniciales());
+        long millis = (System.nanoTime() - inicio) / 1000000;
+
+        assertEquals("bravo(cliente(f))", result.get("bravo"));
+        assertEquals("tablas", result.get("tablas"));
+        assertEquals("f", result.get("form"));
+        assertTrue("duracion " + millis, millis >= 200 && millis < 340);
+    }
+
+    @Test
+    public void testErrorYTiempoMaximoDejanSinDatosALosDependientes() {
+        EnrichmentEngine engine = new EnrichmentEngine.Builder(executor)
+                .add(enricher("error", 0, "form"), 1000)
+                .add(enricher("lento", 5000), 50)
+                .add(enricher("a", 0, "error"), 1000)
+                .add(enricher("b", 0, "lento"), 1000)
+                .build();
+        long inicio = System.nanoTime();
+        EnrichmentResult result = engine.run(iniciales());
+        long millis = (System.nanoTime() - inicio) / 1000000;
+
+        assertEquals(Outcome.ERROR, result.getOutcome("error"));
+        assertEquals(Outcome.TIMEOUT, result.getOutcome("lento"));
+        assertNull(result.get("lento"));
+        assertEquals("a(null)", result.get("a"));
+        assertEquals("b(null)", result.get("b"));
+        assertEquals(Outcome.OK, result.getOutcome("b"));
+        assertTrue("duracion " + millis, millis < 1000);
+    }
+
+    @Test
+    public void testElTiempoMaximoCuentaDesdeQueArranca() {
+        ExecutorService unHilo = Executors.newSingleThreadExecutor();
+        try {
+            EnrichmentEngine engine = new EnrichmentEngine.Builder(unHilo)
+                    .add(enricher("primero", 100), 1000)
+                    .add(enricher("encolado", 80), 120)	// 100 ms en la cola mas 80 ejecutandose
+                    .build();
+            EnrichmentResult result = engine.run(iniciales());
+            assertEquals(Outcome.OK, result.getOutcome("encolado"));
+            assertEquals("encolado", result.get("encolado"));
+        } finally {
+            unHilo.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testElQueNoArrancaATiempoNoSeEjecuta() throws Exception {
+        ExecutorService unHilo = Executors.newSingleThreadExecutor();
+        try {
+            final boolean[] ejecutado = new boolean[1];
+            Enricher encolado = new Enricher() {
+                @Override
+                public String getName() {
+                    return "encolado";
+                }
+
+                @Override
+                public Collection<String> getInputs() {
+                    return Collections.emptySet();
+                }
+
+                @Override
+                public Collection<String> getOutputs() {
+                    return Collections.singleton("encolado");
+                }
+
+                @Override
+                public void enrich(EnrichmentContext context) {
+                    ejecutado[0] = true;
+                }
+            };
+            EnrichmentEngine engine = new EnrichmentEngine.Builder(unHilo)
+                    .add(enricher("primero", 200), 1000)
+                    .add(encolado, 50)
+                    .build();
+            EnrichmentResult result = engine.run(iniciales());
+            assertEquals(Outcome.OK, result.getOutcome("primero"));
+            assertEquals(Outcome.TIMEOUT, result.getOutcome("encolado"));
+            unHilo.shutdown();
+            assertTrue(unHilo.awaitTermination(1, TimeUnit.SECONDS));
+            assertFalse(ejecutado[0]);
+        } finally {
+            unHilo.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testNoPasaDelDeadlineDelHilo() {
+        EnrichmentEngine engine = new EnrichmentEngine.Builder(executor)
+                .add(enricher("cliente", 50, "form"), 1000)
+                .add(enricher("lento", 5000, "cliente"), 5000)
+                .add(enricher("bravo", 0, "lento"), 1000)
+                .build();
+        Deadline anterior = Deadline.enter(Deadline.after(150));
+        long inicio = System.nanoTime();
+        EnrichmentResult result;
+        try {
+            result = engine.run(iniciales());
+        } finally {
+            Deadline.restore(anterior);
+        }
+        long millis = (System.nanoTime() - inicio) / 1000000;
+
+        assertEquals(Outcome.OK, result.getOutcome("cliente"));
+        assertEquals(Outcome.TIMEOUT, result.getOutcome("lento"));
+        assertEquals(Outcome.TIMEOUT, result.getOutcome("bravo"));	// sin tiempo no llega a ejecutarse
+        assertNull(result.get("bravo"));
+        assertTrue("duracion " + millis, millis >= 140 && millis < 400);
+    }
+
+    @Test
+    public void testGrafoInvalido() {
+        try {
+            new EnrichmentEngine.Builder(executor).add(enricher("a", 0, "b"), 100).add(enricher("b", 0, "a"), 100).build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ciclo
+        }
+        try {
+            new EnrichmentEngine.Builder(executor).add(enricher("a", 0), 100).add(enricher("a", 0), 100).build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // dos productores
+        }
+    }
+}
@@ -0,0 +1,621 @@
+package com.mycorp.fake;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>Servidor HTTP en proceso que imita el API REST de Zendesk, para probar y medir el cliente
+ * {@link com.mycorp.Zendesk} sin un tenant real.
+ *
+ * <p>Implementa <code>POST /api/v2/tickets.json</code> (respetando <code>Idempotency-Key</code>),
+ * <code>POST /api/v2/tickets/create_many.json</code>, <code>GET /api/v2/job_statuses/{id}.json</code>
+ * y <code>GET /api/v2/search.json?query=...</code>, y envia las cabeceras <code>X-Rate-Limit</code>
+ * y <code>X-Rate-Limit-Remaining</code>.
+ *
+ * <p>La degradacion se configura en caliente: latencia segun una {@link Latency}, rafagas de 429
+ * con <code>Retry-After</code>, tormentas de 5xx, cuerpos enviados poco a poco y cuerpos que no
+ * son JSON o que se cortan a medias, y trabajos de create_many que fallan o que no crean algunos
+ * tickets.
+ *
+ * <p>Fuera de <code>/api/v2/</code> imita tambien los otros servicios que consulta el alta de
+ * tickets (tarjetas, BRAVO) con las respuestas fijas de {@link #stub(String, int, String)}.
+ */
+public class FakeZendeskServer implements Closeable {
+
+    private static final Pattern JOB_STATUS = Pattern.compile("/api/v2/job_statuses/([^/]+)\\.json");
+
+    /**
+     * Distribucion de la latencia añadida a cada respuesta.
+     */
+    public interface Latency {
+        long nextMillis(Random random);
+    }
+
+    public static Latency fixed(final long millis) {
+        return new Latency() {
+            @Override
+            public long nextMillis(Random random) {
+                return millis;
+            }
+        };
+    }
+
+    public static Latency uniform(final long minMillis, final long maxMillis) {
+        return new Latency() {
+            @Override
+            public long nextMillis(Random random) {
+                return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+            }
+        };
+    }
+
+    /**
+     * Latencia con cola larga: la mayoria cerca de la mediana y algunas muy por encima.
+     *
+     * @param medianMillis mediana
+     * @param sigma dispersion del logaritmo (0.5 moderada, 1 cola muy larga)
+     */
+    public static Latency logNormal(final double medianMillis, final double sigma) {
+        return new Latency() {
+            @Override
+            public long nextMillis(Random random) {
+                return (long) (medianMillis * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final AtomicLong ids = new AtomicLong(1000);
+    private final Map<Long, JsonNode> tickets = new ConcurrentHashMap<Long, JsonNode>();
+    private final Map<String, Long> idempotencyKeys = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private final Map<String, Stub> stubs = new ConcurrentHashMap<String, Stub>();
+
+    private volatile Latency latency = fixed(0);
+    private volatile int rateLimit = 700;
+    private volatile int jobPollsToComplete = 1;
+    private volatile String jobRejectMarker = null;
+    private volatile String jobDropMarker = null;
+    private final AtomicInteger failedJobsLeft = new AtomicInteger();
+    private final AtomicInteger rateLimitedLeft = new AtomicInteger();
+    private volatile int retryAfterSeconds = 1;
+    private final AtomicInteger serverErrorsLeft = new AtomicInteger();
+    private volatile int serverErrorStatus = 503;
+    private volatile int dripChunkSize = 0;
+    private volatile long dripDelayMillis = 0;
+    private final AtomicInteger garbledLeft = new AtomicInteger();
+    private final AtomicInteger truncatedLeft = new AtomicInteger();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private long windowStart = System.currentTimeMillis();
+    private int windowCount;
+
+    /**
+     * Arranca el servidor en un puerto libre de localhost.
+     *
+     * @param threads hilos que atienden peticiones (la latencia simulada ocupa uno por peticion)
+     */
+    public FakeZendeskServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/api/v2/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    dispatch(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    dispatchStub(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public FakeZendeskServer() throws IOException {
+        this(32);
+    }
+
+    /**
+     * @return URL base para {@link com.mycorp.Zendesk.Builder}
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public FakeZendeskServer setLatency(Latency latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param rateLimit valor de <code>X-Rate-Limit</code>; se cuentan las peticiones por minuto
+     */
+    public FakeZendeskServer setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+        return this;
+    }
+
+    /**
+     * Las siguientes <code>count</code> peticiones reciben 429 con el <code>Retry-After</code> indicado.
+     */
+    public FakeZendeskServer rateLimitBurst(int count, int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        rateLimitedLeft.set(count);
+        return this;
+    }
+
+    /**
+     * Las siguientes <code>count</code> peticiones reciben el error de servidor indicado.
+     */
+    public FakeZendeskServer serverErrorStorm(int count, int status) {
+        this.serverErrorStatus = status;
+        serverErrorsLeft.set(count);
+        return this;
+    }
+
+    /**
+     * Envia los cuerpos de respuesta en trozos de <code>chunkSize</code> bytes con una pausa entre ellos;
+     * 0 los envia de una vez.
+     */
+    public FakeZendeskServer setSlowDrip(int chunkSize, long delayMillis) {
+        this.dripChunkSize = chunkSize;
+        this.dripDelayMillis = delayMillis;
+        return this;
+    }
+
+    /**
+     * Las siguientes <code>count</code> peticiones a <code>/api/v2/</code> reciben un 200 con un
+     * cuerpo que no es JSON.
+     */
+    public FakeZendeskServer garbledBodies(int count) {
+        garbledLeft.set(count);
+        return this;
+    }
+
+    /**
+     * Las siguientes <code>count</code> respuestas de <code>/api/v2/</code> anuncian el cuerpo
+     * completo en <code>Content-Length</code>, envian la mitad y cierran la conexion.
+     */
+    public FakeZendeskServer truncatedBodies(int count) {
+        truncatedLeft.set(count);
+        return this;
+    }
+
+    /**
+     * @param polls consultas de <code>job_status</code> que devuelven "working" antes de completar
+     */
+    public FakeZendeskServer setJobPollsToComplete(int polls) {
+        this.jobPollsToComplete = polls;
+        return this;
+    }
+
+    /**
+     * Los tickets de un create_many que contienen <code>marker</code> no se crean y salen en los
+     * resultados del trabajo con <code>success</code> a false; null para crearlos todos.
+     */
+    public FakeZendeskServer rejectInJobs(String marker) {
+        this.jobRejectMarker = marker;
+        return this;
+    }
+
+    /**
+     * Los tickets de un create_many que contienen <code>marker</code> no se crean ni salen en los
+     * resultados del trabajo; null para crearlos todos.
+     */
+    public FakeZendeskServer dropFromJobs(String marker) {
+        this.jobDropMarker = marker;
+        return this;
+    }
+
+    /**
+     * Los siguientes <code>count</code> create_many no crean nada y su trabajo termina como "failed".
+     */
+    public FakeZendeskServer failJobs(int count) {
+        failedJobsLeft.set(count);
+        return this;
+    }
+
+    /**
+     * Responde a <code>GET path</code>, fuera de <code>/api/v2/</code>, con el estado y el cuerpo
+     * indicados. Se aplica la latencia configurada, pero no el resto de la degradacion.
+     */
+    public FakeZendeskServer stub(String path, int status, String body) {
+        return stub(path, status, body, 0);
+    }
+
+    /**
+     * Igual que {@link #stub(String, int, String)}, pero tarda ademas <code>delayMillis</code> en
+     * responder, como un servicio lento.
+     */
+    public FakeZendeskServer stub(String path, int status, String body, long delayMillis) {
+        stubs.put(path, new Stub(status, body, delayMillis));
+        return this;
+    }
+
+    /**
+     * Quita toda la degradacion configurada; los tickets creados se conservan.
+     */
+    public FakeZendeskServer reset() {
+        latency = fixed(0);
+        rateLimitedLeft.set(0);
+        serverErrorsLeft.set(0);
+        dripChunkSize = 0;
+        dripDelayMillis = 0;
+        garbledLeft.set(0);
+        truncatedLeft.set(0);
+        jobPollsToComplete = 1;
+        jobRejectMarker = null;
+        jobDropMarker = null;
+        failedJobsLeft.set(0);
+        return this;
+    }
+
+    public int getTicketCount() {
+        return tickets.size();
+    }
+
+    public JsonNode getTicket(long id) {
+        return tickets.get(id);
+    }
+
+    public Collection<JsonNode> getTickets() {
+        return tickets.values();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getRateLimitedCount() {
+        return rateLimited.get();
+    }
+
+    public long getServerErrorCount() {
+        return serverErrors.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        byte[] body = readBody(exchange.getRequestBody());
+        sleep(latency.nextMillis(ThreadLocalRandom.current()));
+
+        int remaining = countInWindow();
+        exchange.getResponseHeaders().add("X-Rate-Limit", String.valueOf(rateLimit));
+        exchange.getResponseHeaders().add("X-Rate-Limit-Remaining", String.valueOf(remaining));
+
+        if (take(rateLimitedLeft) || remaining < 0) {
+            rateLimited.incrementAndGet();
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+            respond(exchange, 429, error("TooManyRequests", "Rate limit exceeded"));
+            return;
+        }
+        if (take(serverErrorsLeft)) {
+            serverErrors.incrementAndGet();
+            respond(exchange, serverErrorStatus, error("ServerError", "Simulated server error"));
+            return;
+        }
+
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        Matcher job = JOB_STATUS.matcher(path);
+        if (take(garbledLeft)) {
+            respond(exchange, 200, "<html><body>502 Bad Gateway</body></html>".getBytes("UTF-8"));
+        } else if ("POST".equals(method) && "/api/v2/tickets.json".equals(path)) {
+            createTicket(exchange, body);
+        } else if ("POST".equals(method) && "/api/v2/tickets/create_many.json".equals(path)) {
+            createMany(exchange, body);
+        } else if ("GET".equals(method) && job.matches()) {
+            jobStatus(exchange, job.group(1));
+        } else if ("GET".equals(method) && "/api/v2/search.json".equals(path)) {
+            search(exchange, query(exchange.getRequestURI().getRawQuery()).get("query"));
+        } else {
+            respond(exchange, 404, error("RecordNotFound", "Not found"));
+        }
+    }
+
+    private void dispatchStub(HttpExchange exchange) throws IOException {
+        readBody(exchange.getRequestBody());
+        sleep(latency.nextMillis(ThreadLocalRandom.current()));
+        Stub stub = "GET".equals(exchange.getRequestMethod()) ? stubs.get(exchange.getRequestURI().getPath()) : null;
+        if (stub == null) {
+            respond(exchange, 404, error("RecordNotFound", "Not found"));
+        } else {
+            sleep(stub.delayMillis);
+            respond(exchange, stub.status, stub.body.getBytes("UTF-8"));
+        }
+    }
+
+    private void createTicket(HttpExchange exchange, byte[] body) throws IOException {
+        JsonNode ticket = parse(body, "ticket");
+        if (ticket == null) {
+            respond(exchange, 422, error("RecordInvalid", "Record validation errors"));
+            return;
+        }
+        String key = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+        long id;
+        if (key == null) {
+            id = store(ticket);
+        } else {
+            synchronized (idempotencyKeys) {
+                Long existing = idempotencyKeys.get(key);
+                id = existing != null ? existing : store(ticket);
+                idempotencyKeys.put(key, id);
+            }
+        }
+        respond(exchange, 201, envelope("ticket", tickets.get(id)));
+    }
+
+    private void createMany(HttpExchange exchange, byte[] body) throws IOException {
+        JsonNode list = parse(body, "tickets");
+        if (list == null || !list.isArray() || list.size() > 100) {
+            respond(exchange, 422, error("RecordInvalid", "tickets must be an array of at most 100"));
+            return;
+        }
+        Job job = new Job("job" + ids.incrementAndGet(), take(failedJobsLeft));
+        for (JsonNode ticket : list) {
+            String json = ticket.toString();
+            if (job.failed) {
+                job.ids.add(null);
+            } else if (jobDropMarker != null && json.contains(jobDropMarker)) {
+                job.dropped.add(job.ids.size());
+                job.ids.add(null);
+            } else if (jobRejectMarker != null && json.contains(jobRejectMarker)) {
+                job.ids.add(null);
+            } else {
+                job.ids.add(store(ticket));
+            }
+        }
+        jobs.put(job.id, job);
+        respond(exchange, 200, envelope("job_status", job.toJson(false)));
+    }
+
+    private void jobStatus(HttpExchange exchange, String id) throws IOException {
+        Job job = jobs.get(id);
+        if (job == null) {
+            respond(exchange, 404, error("RecordNotFound", "Not found"));
+            return;
+        }
+        boolean completed = job.polls.incrementAndGet() >= jobPollsToComplete;
+        respond(exchange, 200, envelope("job_status", job.toJson(completed)));
+    }
+
+    private void search(HttpExchange exchange, String query) throws IOException {
+        List<JsonNode> results = new ArrayList<JsonNode>();
+        for (JsonNode ticket : tickets.values()) {
+            if (query == null || ticket.toString().contains(query)) {
+                ObjectNode result = ticket.deepCopy();
+                result.put("result_type", "ticket");
+                results.add(result);
+            }
+        }
+        Map<String, Object> response = new LinkedHashMap<String, Object>();
+        response.put("results", results);
+        response.put("count", results.size());
+        response.put("next_page", null);
+        respond(exchange, 200, mapper.writeValueAsBytes(response));
+    }
+
+    private long store(JsonNode ticket) {
+        long id = ids.incrementAndGet();
+        ObjectNode stored = ticket.isObject() ? ((ObjectNode) ticket).deepCopy() : mapper.createObjectNode();
+        stored.put("id", id);
+        stored.put("status", "new");
+        tickets.put(id, stored);
+        return id;
+    }
+
+    private synchronized int countInWindow() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= 60000) {
+            windowStart = now;
+            windowCount = 0;
+        }
+        return rateLimit - ++windowCount;
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        if (exchange.getRequestURI().getPath().startsWith("/api/v2/") && take(truncatedLeft)) {
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body, 0, body.length / 2);
+            exchange.getResponseBody().flush();
+            throw new IOException("Simulated truncated body");	// el servidor cierra la conexion
+        }
+        int chunk = dripChunkSize;
+        if (chunk <= 0) {
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+            return;
+        }
+        exchange.sendResponseHeaders(status, 0);	// chunked
+        OutputStream out = exchange.getResponseBody();
+        for (int i = 0; i < body.length; i += chunk) {
+            out.write(body, i, Math.min(chunk, body.length - i));
+            out.flush();
+            sleep(dripDelayMillis);
+        }
+    }
+
+    private JsonNode parse(byte[] body, String field) {
+        try {
+            return mapper.readTree(body).get(field);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private byte[] envelope(String field, Object value) throws IOException {
+        return mapper.writeValueAsBytes(Collections.singletonMap(field, value));
+    }
+
+    private byte[] error(String error, String description) throws IOException {
+        Map<String, String> body = new LinkedHashMap<String, String>();
+        body.put("error", error);
+        body.put("description", description);
+        return mapper.writeValueAsBytes(body);
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static boolean take(AtomicInteger left) {
+        for (;;) {
+            int n = left.get();
+            if (n <= 0) {
+                return false;
+            }
+            if (left.compareAndSet(n, n - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Stub {
+        private final int status;
+        private final String body;
+        private final long delayMillis;
+
+        Stub(int status, String body, long delayMillis) {
+            this.status = status;
+            this.body = body;
+            this.delayMillis = delayMillis;
+        }
+    }
+
+    /**
+     * Trabajo de create_many: se completa, o falla, tras el numero de consultas configurado.
+     */
+    private final class Job {
+        private final String id;
+        private final boolean failed;
+        private final List<Long> ids = new ArrayList<Long>();	// null si el ticket no se ha creado
+        private final Set<Integer> dropped = new HashSet<Integer>();	// indices que no salen en los resultados
+        private final AtomicInteger polls = new AtomicInteger();
+
+        Job(String id, boolean failed) {
+            this.id = id;
+            this.failed = failed;
+        }
+
+        Map<String, Object> toJson(boolean completed) {
+            Map<String, Object> json = new LinkedHashMap<String, Object>();
+            json.put("id", id);
+            json.put("url", getUrl() + "/api/v2/job_statuses/" + id + ".json");
+            json.put("total", ids.size());
+            json.put("progress", completed ? ids.size() : 0);
+            if (completed && failed) {
+                json.put("status", "failed");
+                json.put("message", "Job failed");
+                return json;
+            }
+            json.put("status", completed ? "completed" : polls.get() == 0 ? "queued" : "working");
+            if (completed) {
+                List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+                for (int i = 0; i < ids.size(); i++) {
+                    if (dropped.contains(i)) {
+                        continue;
+                    }
+                    Map<String, Object> result = new LinkedHashMap<String, Object>();
+                    result.put("index", i);
+                    result.put("action", "create");
+                    if (ids.get(i) != null) {
+                        result.put("id", ids.get(i));
+                        result.put("success", true);
+                    } else {
+                        result.put("success", false);
+                        result.put("error", "RecordInvalid");
+                        result.put("details", "Ticket rejected");
+                    }
+                    results.add(result);
+                }
+                json.put("results", results);
+            }
+            return json;
+        }
+    }
+}
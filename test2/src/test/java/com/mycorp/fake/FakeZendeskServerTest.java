@@ -0,0 +1,268 @@
+package com.mycorp.fake;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.mycorp.ResilientZendesk;
+import com.mycorp.Zendesk;
+import com.mycorp.ZendeskException;
+import com.mycorp.ZendeskOutboxDrainer;
+import com.mycorp.ZendeskTicketBatcher;
+import com.mycorp.outbox.Outbox;
+import com.mycorp.resilience.CircuitBreaker;
+import com.mycorp.support.Ticket;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests del cliente {@link Zendesk} contra {@link FakeZendeskServer} con Zendesk degradado.
+ */
+public class FakeZendeskServerTest extends TestCase {
+
+    private FakeZendeskServer server;
+    private Zendesk zendesk;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new FakeZendeskServer();
+        zendesk = new Zendesk.Builder(server.getUrl()).build();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        zendesk.close();
+        server.close();
+    }
+
+    @Test
+    public void testMismaClaveDeIdempotenciaNoDuplica() {
+        Ticket primero = zendesk.createTicket(new Ticket(), "clave");
+        Ticket segundo = zendesk.createTicket(new Ticket(), "clave");
+        assertNotNull(primero.getId());
+        assertEquals(primero.getId(), segundo.getId());
+        assertEquals(1, server.getTicketCount());
+    }
+
+    @Test
+    public void testCreateTicketAsyncNoBloquea() throws Exception {
+        server.setLatency(FakeZendeskServer.fixed(1000));
+        ListenableFuture<Ticket> creado = zendesk.createTicketAsync(new Ticket(), "clave");
+        assertFalse(creado.isDone());
+        assertNotNull(creado.get(5, TimeUnit.SECONDS).getId());
+        assertEquals(1, server.getTicketCount());
+
+        server.reset().serverErrorStorm(1, 503);
+        try {
+            zendesk.createTicketAsync(new Ticket()).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(ZendeskException.Kind.SERVER_ERROR, ((ZendeskException) e.getCause()).getKind());
+        }
+    }
+
+    @Test
+    public void testCancelarCreateTicketAsyncAbortaLaPeticion() throws Exception {
+        server.setLatency(FakeZendeskServer.fixed(5000));
+        ListenableFuture<Ticket> creado = zendesk.createTicketAsync(new Ticket());
+        assertTrue(creado.cancel(true));
+        assertTrue(creado.isCancelled());
+
+        server.reset();
+        assertNotNull(zendesk.createTicketAsync(new Ticket()).get(5, TimeUnit.SECONDS).getId());
+    }
+
+    @Test
+    public void testEsperaElRetryAfterTrasUn429() {
+        server.rateLimitBurst(1, 1);
+        long inicio = System.nanoTime();
+        assertNotNull(zendesk.createTicket(new Ticket()).getId());
+        assertTrue(System.nanoTime() - inicio >= TimeUnit.MILLISECONDS.toNanos(900));
+        assertEquals(1, server.getRateLimitedCount());
+        assertEquals(1, zendesk.getRateLimiter().getRateLimitedCount());
+    }
+
+    @Test
+    public void testEsperaElRetryAfterSinLimitador() {
+        Zendesk sinLimitador = new Zendesk.Builder(server.getUrl()).setRateLimiter(null).build();
+        server.rateLimitBurst(1, 1);
+        long inicio = System.nanoTime();
+        assertNotNull(sinLimitador.createTicket(new Ticket()).getId());
+        assertTrue(System.nanoTime() - inicio >= TimeUnit.MILLISECONDS.toNanos(900));
+        assertEquals(2, server.getRequestCount());
+        sinLimitador.close();
+    }
+
+    @Test
+    public void testCerrarFallaLosReintentosProgramados() throws Exception {
+        Zendesk sinLimitador = new Zendesk.Builder(server.getUrl()).setRateLimiter(null).build();
+        server.rateLimitBurst(1, 60);
+        ListenableFuture<Ticket> creado = sinLimitador.createTicketAsync(new Ticket());
+        while (server.getRateLimitedCount() == 0) {
+            Thread.sleep(10);
+        }
+        sinLimitador.close();
+        try {
+            creado.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ZendeskException);
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testCerrarFallaLasPeticionesEnCurso() throws Exception {
+        Zendesk propio = new Zendesk.Builder(server.getUrl()).build();
+        server.setLatency(FakeZendeskServer.fixed(5000));
+        ListenableFuture<Ticket> creado = propio.createTicketAsync(new Ticket());
+        propio.close();
+        try {
+            creado.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ZendeskException);
+        }
+        try {
+            propio.createTicketAsync(new Ticket()).get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ZendeskException);
+        }
+    }
+
+    @Test
+    public void testAbortaLasRespuestasDemasiadoGrandes() throws Exception {
+        Zendesk limitado = new Zendesk.Builder(server.getUrl()).setMaxResponseBodySize(256).build();
+        Ticket grande = new Ticket.Builder().setComment(StringUtils.repeat("x", 1024)).build();
+        try {
+            limitado.createTicket(grande);	// con Content-Length: se aborta al ver las cabeceras
+            fail();
+        } catch (ZendeskException e) {
+            assertTrue(e.getMessage().contains("256"));
+        }
+        server.setSlowDrip(128, 0);
+        try {
+            limitado.createTicket(grande);	// por trozos: se aborta al pasar del limite
+            fail();
+        } catch (ZendeskException e) {
+            assertTrue(e.getMessage().contains("256"));
+        }
+        assertNotNull(limitado.createTicket(new Ticket()).getId());
+        limitado.close();
+    }
+
+    @Test
+    public void testCuerposCortadosOQueNoSonJson() {
+        server.setSlowDrip(16, 1);
+        server.garbledBodies(1);
+        try {
+            zendesk.createTicket(new Ticket());
+            fail();
+        } catch (ZendeskException e) {
+            assertEquals(ZendeskException.Kind.IO, e.getKind());
+        }
+        server.reset().truncatedBodies(1);
+        try {
+            zendesk.createTicket(new Ticket());
+            fail();
+        } catch (ZendeskException e) {
+            assertEquals(ZendeskException.Kind.IO, e.getKind());
+        }
+        assertEquals(1, server.getTicketCount());	// AHC no reenvia el POST por su cuenta
+        server.reset();
+        Ticket creado = zendesk.createTicket(new Ticket.Builder().setSubject("después del fallo").build());
+        assertEquals("después del fallo", creado.getSubject());
+    }
+
+    @Test
+    public void testElOutboxPasaLosTicketsRechazadosAlHandler() throws Exception {
+        File dir = File.createTempFile("outbox", "");
+        assertTrue(dir.delete());
+        Outbox outbox = new Outbox.Builder(dir).build();
+        ResilientZendesk resilient = new ResilientZendesk.Builder(zendesk).setMaxAttempts(1).build();
+        final List<Ticket> rechazados = new ArrayList<Ticket>();
+        ZendeskOutboxDrainer drainer = new ZendeskOutboxDrainer.Builder(outbox, resilient)
+                .setMaxPerSecond(0)
+                .setRejectedTicketHandler(new ZendeskOutboxDrainer.RejectedTicketHandler() {
+                    @Override
+                    public void rejected(Ticket ticket, ZendeskException error) {
+                        assertEquals(422, error.getStatusCode());
+                        rechazados.add(ticket);
+                    }
+                })
+                .build();
+        try {
+            ObjectMapper mapper = Zendesk.createMapper();
+            outbox.append(ZendeskOutboxDrainer.encode("clave-1",
+                    mapper.writeValueAsBytes(new Ticket.Builder().setSubject("rechazado").build())));
+            outbox.append(ZendeskOutboxDrainer.encode("clave-2",
+                    mapper.writeValueAsBytes(new Ticket.Builder().setSubject("creado").build())));
+            server.serverErrorStorm(1, 422);
+
+            assertEquals(2, drainer.drain());
+            assertEquals(1, rechazados.size());
+            assertEquals("rechazado", rechazados.get(0).getSubject());
+            assertEquals(1, server.getTicketCount());
+            assertEquals(0, outbox.getPendingCount());
+        } finally {
+            drainer.close();
+            resilient.close();
+            outbox.close();
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testTormentaDe5xxAbreElCircuito() {
+        ResilientZendesk resilient = new ResilientZendesk.Builder(zendesk).setMaxAttempts(2)
+                .setBaseDelayMillis(1).setFailureThreshold(2).build();
+        server.serverErrorStorm(100, 503);
+        try {
+            resilient.createTicket(new Ticket());
+            fail();
+        } catch (ZendeskException e) {
+            assertEquals(ZendeskException.Kind.SERVER_ERROR, e.getKind());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, resilient.getCircuitBreaker().getState());
+        long peticiones = server.getRequestCount();
+        try {
+            resilient.createTicket(new Ticket());
+            fail();
+        } catch (ZendeskException e) {
+            assertEquals(ZendeskException.Kind.CIRCUIT_OPEN, e.getKind());
+        }
+        assertEquals(peticiones, server.getRequestCount());
+        resilient.close();
+    }
+
+    @Test
+    public void testLoteConSondeoDelJobYCuerpoLento() throws Exception {
+        server.setJobPollsToComplete(2).setSlowDrip(16, 1);
+        ResilientZendesk resilient = new ResilientZendesk.Builder(zendesk).build();
+        ZendeskTicketBatcher batcher = new ZendeskTicketBatcher.Builder(resilient).setMaxDelayMillis(10)
+                .setPollIntervalMillis(10).build();
+        List<ListenableFuture<Long>> ids = new ArrayList<ListenableFuture<Long>>();
+        for (int i = 0; i < 3; i++) {
+            ids.add(batcher.submit(new Ticket()));
+        }
+        for (ListenableFuture<Long> id : ids) {
+            assertNotNull(server.getTicket(id.get(5, TimeUnit.SECONDS)));
+        }
+        assertEquals(3, server.getTicketCount());
+        batcher.close();
+        resilient.close();
+    }
+}
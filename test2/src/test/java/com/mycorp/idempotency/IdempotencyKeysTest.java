@@ -0,0 +1,63 @@
+package com.mycorp.idempotency;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import util.datos.UsuarioAlta;
+
+
+/**
+ * Tests de {@link IdempotencyKeys}: la misma alta da la misma clave y cualquier cambio otra.
+ */
+public class IdempotencyKeysTest extends TestCase {
+
+    private static UsuarioAlta alta() {
+        UsuarioAlta usuarioAlta = new UsuarioAlta();
+        usuarioAlta.setNumPoliza("12345");
+        usuarioAlta.setNumTarjeta("9876543210");
+        usuarioAlta.setTipoDocAcreditativo(1);
+        usuarioAlta.setNumDocAcreditativo("00000000T");
+        usuarioAlta.setEmail("cliente@example.com");
+        usuarioAlta.setNumeroTelefono("600000000");
+        return usuarioAlta;
+    }
+
+    @Test
+    public void testLaMismaAltaDaLaMismaClave() {
+        String clave = IdempotencyKeys.of(alta(), "peticion-1");
+        assertEquals(64, clave.length());
+        assertTrue(clave.matches("[0-9a-f]{64}"));
+        assertEquals(clave, IdempotencyKeys.of(alta(), "peticion-1"));
+    }
+
+    @Test
+    public void testCualquierCambioDaOtraClave() {
+        String clave = IdempotencyKeys.of(alta(), "peticion-1");
+        assertFalse(clave.equals(IdempotencyKeys.of(alta(), "peticion-2")));
+
+        UsuarioAlta otroEmail = alta();
+        otroEmail.setEmail("otro@example.com");
+        assertFalse(clave.equals(IdempotencyKeys.of(otroEmail, "peticion-1")));
+
+        UsuarioAlta sinTelefono = alta();
+        sinTelefono.setNumeroTelefono(null);
+        assertFalse(clave.equals(IdempotencyKeys.of(sinTelefono, "peticion-1")));
+    }
+
+    @Test
+    public void testLosCamposNoSeMezclan() {
+        UsuarioAlta a = alta();
+        a.setNumPoliza("12");
+        a.setNumTarjeta("345");
+        UsuarioAlta b = alta();
+        b.setNumPoliza("123");
+        b.setNumTarjeta("45");
+        assertFalse(IdempotencyKeys.of(a, "peticion-1").equals(IdempotencyKeys.of(b, "peticion-1")));
+
+        UsuarioAlta vacio = alta();
+        vacio.setNumTarjeta("");
+        UsuarioAlta nulo = alta();
+        nulo.setNumTarjeta(null);
+        assertEquals(IdempotencyKeys.of(vacio, null), IdempotencyKeys.of(nulo, null));
+    }
+}
@@ -0,0 +1,61 @@
+package com.mycorp.idempotency;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests del registro de claves de {@link IdempotencyStore}.
+ */
+public class IdempotencyStoreTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("idempotency", ".log");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testLasClavesSobrevivenAlReinicio() throws Exception {
+        IdempotencyStore store = new IdempotencyStore.Builder().setFile(file).build();
+        store.put("a", 1L);
+        store.put("b", 2L);
+        store.close();
+
+        store = new IdempotencyStore.Builder().setFile(file).build();
+        assertEquals(Long.valueOf(1), store.get("a"));
+        assertEquals(Long.valueOf(2), store.get("b"));
+        assertNull(store.get("c"));
+        store.close();
+    }
+
+    @Test
+    public void testSeOlvidanLasMenosRecientes() throws Exception {
+        IdempotencyStore store = new IdempotencyStore.Builder().setFile(file).setMaxEntries(2).build();
+        store.put("a", 1L);
+        store.put("b", 2L);
+        store.get("a");
+        store.put("c", 3L);
+        for (int i = 0; i < 10; i++) {
+            store.put("c", 3L);	// repetir la misma entrada no hace crecer el fichero
+        }
+        assertEquals(2, store.size());
+        assertNull(store.get("b"));
+        store.close();
+
+        store = new IdempotencyStore.Builder().setFile(file).setMaxEntries(2).build();
+        assertEquals(Long.valueOf(1), store.get("a"));
+        assertEquals(Long.valueOf(3), store.get("c"));
+        assertNull(store.get("b"));
+        store.close();
+    }
+}
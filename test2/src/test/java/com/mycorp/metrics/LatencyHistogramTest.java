@@ -0,0 +1,62 @@
+package com.mycorp.metrics;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de precision de {@link LatencyHistogram} y de la exportacion de {@link AltaTicketMetrics}.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    @Test
+    public void testCubetasContiguas() {
+        for (int i = 1; i < 600; i++) {
+            assertEquals(LatencyHistogram.upperBound(i - 1), lowerBound(i));
+            assertEquals(i, LatencyHistogram.index(lowerBound(i)));
+            assertEquals(i, LatencyHistogram.index(LatencyHistogram.upperBound(i) - 1));
+        }
+    }
+
+    @Test
+    public void testPercentilesConErrorAcotado() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMaxMicros());
+        assertClose(500000, snapshot.getPercentileMicros(50));
+        assertClose(990000, snapshot.getPercentileMicros(99));
+        assertEquals(1000000, snapshot.getPercentileMicros(100));
+    }
+
+    @Test
+    public void testExportacionPrometheus() throws Exception {
+        AltaTicketMetrics metrics = new AltaTicketMetrics();
+        long inicio = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20);
+        metrics.record(AltaTicketMetrics.Stage.BRAVO, inicio, true);
+        metrics.record(AltaTicketMetrics.Stage.BRAVO, inicio, false);
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        String text = out.toString();
+        assertTrue(text.contains("zendesk_alta_stage_duration_seconds_bucket{stage=\"bravo\",le=\"0.01\"} 0\n"));
+        assertTrue(text.contains("zendesk_alta_stage_duration_seconds_bucket{stage=\"bravo\",le=\"0.025\"} 2\n"));
+        assertTrue(text.contains("zendesk_alta_stage_duration_seconds_count{stage=\"bravo\"} 2\n"));
+        assertTrue(text.contains("zendesk_alta_stage_errors_total{stage=\"bravo\"} 1\n"));
+        assertEquals(1, metrics.snapshot().get("bravo").getErrors());
+    }
+
+    private static long lowerBound(int index) {
+        return index == 0 ? 0 : LatencyHistogram.upperBound(index - 1);
+    }
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue(actual + " !~ " + expected, Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,76 @@
+package com.mycorp.outbox;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de escritura, lectura y recuperacion de {@link Outbox}.
+ */
+public class OutboxTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("outbox", "");
+        assertTrue(dir.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testConfirmadosNoSeReleenAlReabrir() throws Exception {
+        Outbox outbox = new Outbox.Builder(dir).build();
+        outbox.append("uno".getBytes("UTF-8"));
+        outbox.append("dos".getBytes("UTF-8"));
+        outbox.append("tres".getBytes("UTF-8"));
+        List<Outbox.Entry> leidos = outbox.read(2);
+        assertEquals(2, leidos.size());
+        assertEquals("uno", new String(leidos.get(0).getPayload(), "UTF-8"));
+        outbox.commit(leidos.get(0));
+        assertEquals(2, outbox.getPendingCount());
+        outbox.close();
+
+        outbox = new Outbox.Builder(dir).build();
+        assertEquals(2, outbox.getPendingCount());
+        leidos = outbox.read(10);
+        assertEquals(2, leidos.size());
+        assertEquals("dos", new String(leidos.get(0).getPayload(), "UTF-8"));
+        assertEquals("tres", new String(leidos.get(1).getPayload(), "UTF-8"));
+        outbox.close();
+    }
+
+    @Test
+    public void testCambiaDeSegmentoYBorraLosConsumidos() throws Exception {
+        Outbox outbox = new Outbox.Builder(dir).setSegmentSize(64).build();
+        for (int i = 0; i < 10; i++) {
+            outbox.append(("registro-" + i).getBytes("UTF-8"));
+        }
+        assertTrue(dir.list().length > 2);
+        List<Outbox.Entry> leidos = outbox.read(100);
+        assertEquals(10, leidos.size());
+        assertEquals("registro-9", new String(leidos.get(9).getPayload(), "UTF-8"));
+        for (Outbox.Entry entry : leidos) {
+            outbox.commit(entry);
+        }
+        assertEquals(0, outbox.getPendingCount());
+        assertTrue(outbox.read(100).isEmpty());
+        // solo quedan el segmento en escritura y el checkpoint
+        assertEquals(2, dir.list().length);
+        outbox.close();
+    }
+}
@@ -0,0 +1,361 @@
+package com.mycorp.resilience;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link Bulkhead}: rechazo con los hilos y la cola llenos, tiempo maximo, deadline, errores y
+ * llamadas en el hilo llamante.
+ */
+public class BulkheadTest extends TestCase {
+
+    private Bulkhead bulkhead;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (bulkhead != null) {
+            bulkhead.close();
+        }
+    }
+
+    /**
+     * Ocupa un hilo del compartimento hasta que se abra <code>salida</code>.
+     */
+    private Thread ocupar(final CountDownLatch salida) {
+        Thread hilo = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    bulkhead.call(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            salida.await();
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    // no interesa en estos tests
+                }
+            }
+        };
+        hilo.start();
+        return hilo;
+    }
+
+    @Test
+    public void testRechazaConLosHilosYLaColaLlenos() throws Exception {
+        bulkhead = new Bulkhead("test", 1, 1, 5000);
+        CountDownLatch salida = new CountDownLatch(1);
+        Thread enCurso = ocupar(salida);
+        Thread enCola = ocupar(salida);
+        Thread.sleep(100);
+        assertEquals(1, bulkhead.getActiveCount());
+        assertEquals(1, bulkhead.getQueuedCount());
+
+        long inicio = System.nanoTime();
+        try {
+            bulkhead.call(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return "no deberia ejecutarse";
+                }
+            });
+            fail();
+        } catch (BulkheadFullException e) {
+            assertEquals("test", e.getBulkhead());
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio) < 100);
+        assertEquals(1, bulkhead.getRejectedCount());
+
+        salida.countDown();
+        enCurso.join();
+        enCola.join();
+        assertEquals("ok", bulkhead.call(new Callable<String>() {
+            @Override
+            public String call() {
+                return "ok";
+            }
+        }));
+    }
+
+    @Test
+    public void testCancelaLaLlamadaQueSuperaElTiempoMaximo() throws Exception {
+        bulkhead = new Bulkhead("test", 2, 0, 50);
+        final CountDownLatch interrumpida = new CountDownLatch(1);
+        try {
+            bulkhead.call(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        interrumpida.countDown();
+                    }
+                    return null;
+                }
+            });
+            fail();
+        } catch (TimeoutException e) {
+            // esperado
+        }
+        assertTrue(interrumpida.await(1, TimeUnit.SECONDS));
+        assertEquals(1, bulkhead.getTimeoutCount());
+    }
+
+    @Test
+    public void testLaLlamadaCanceladaQueSigueBloqueadaConservaSuPermiso() throws Exception {
+        bulkhead = new Bulkhead("test", 1, 0, 50);
+        final CountDownLatch salida = new CountDownLatch(1);
+        final CountDownLatch terminada = new CountDownLatch(1);
+        try {
+            bulkhead.call(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    while (salida.getCount() > 0) {
+                        try {
+                            salida.await();
+                        } catch (InterruptedException e) {
+                            // no atiende la interrupcion, como una lectura de socket
+                        }
+                    }
+                    terminada.countDown();
+                    return null;
+                }
+            });
+            fail();
+        } catch (TimeoutException e) {
+            // esperado
+        }
+        try {
+            bulkhead.call(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return "no deberia ejecutarse";
+                }
+            });
+            fail();
+        } catch (BulkheadFullException e) {
+            // el hilo sigue ocupado
+        }
+
+        salida.countDown();
+        assertTrue(terminada.await(1, TimeUnit.SECONDS));
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (bulkhead.getActiveCount() > 0 && System.nanoTime() - limite < 0) {
+            Thread.sleep(1);
+        }
+        assertEquals("ok", bulkhead.call(new Callable<String>() {
+            @Override
+            public String call() {
+                return "ok";
+            }
+        }));
+    }
+
+    @Test
+    public void testAcotaElTiempoAlDeadlineYLoPropaga() throws Exception {
+        bulkhead = new Bulkhead("test", 1, 0, 5000);
+        Deadline deadline = Deadline.after(100);
+        Deadline anterior = Deadline.enter(deadline);
+        try {
+            final Deadline[] heredado = new Deadline[1];
+            bulkhead.call(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    heredado[0] = Deadline.current();
+                    return null;
+                }
+            });
+            assertSame(deadline, heredado[0]);
+
+            long inicio = System.nanoTime();
+            try {
+                bulkhead.call(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        Thread.sleep(5000);
+                        return null;
+                    }
+                });
+                fail();
+            } catch (TimeoutException e) {
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio) < 1000);
+            }
+            try {
+                bulkhead.call(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return "no deberia ejecutarse";
+                    }
+                });
+                fail();
+            } catch (TimeoutException e) {
+                // el deadline ya ha pasado
+            }
+        } finally {
+            Deadline.restore(anterior);
+        }
+        assertNull(Deadline.current());
+        assertEquals(2, bulkhead.getTimeoutCount());
+    }
+
+    /**
+     * Ocupa un turno de llamada en el hilo llamante hasta que se abra <code>salida</code>.
+     */
+    private Thread ocuparEnLlamante(final CountDownLatch dentro, final CountDownLatch salida) {
+        Thread hilo = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    bulkhead.callInCaller(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            dentro.countDown();
+                            salida.await();
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    // no interesa en estos tests
+                }
+            }
+        };
+        hilo.start();
+        return hilo;
+    }
+
+    @Test
+    public void testEnElHiloLlamanteConSuDeadline() throws Exception {
+        bulkhead = new Bulkhead("test", 1, 0, 5000);
+        final Thread llamante = Thread.currentThread();
+        final Deadline[] deadline = new Deadline[1];
+        assertEquals("ok", bulkhead.callInCaller(new Callable<String>() {
+            @Override
+            public String call() {
+                assertSame(llamante, Thread.currentThread());
+                deadline[0] = Deadline.current();
+                return "ok";
+            }
+        }));
+        assertNotNull(deadline[0]);	// sin deadline propio, el del tiempo maximo
+        assertTrue(deadline[0].remainingNanos() <= TimeUnit.SECONDS.toNanos(5));
+        assertNull(Deadline.current());
+
+        Deadline anterior = Deadline.enter(Deadline.after(0));
+        try {
+            bulkhead.callInCaller(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return "no deberia ejecutarse";
+                }
+            });
+            fail();
+        } catch (TimeoutException e) {
+            // el deadline ya ha pasado
+        } finally {
+            Deadline.restore(anterior);
+        }
+        assertEquals(1, bulkhead.getTimeoutCount());
+    }
+
+    @Test
+    public void testEnElHiloLlamanteEsperaTurnoYRechazaConLaColaLlena() throws Exception {
+        bulkhead = new Bulkhead("test", 1, 1, 5000);
+        CountDownLatch dentro = new CountDownLatch(1);
+        CountDownLatch salida = new CountDownLatch(1);
+        Thread enCurso = ocuparEnLlamante(dentro, salida);
+        assertTrue(dentro.await(5, TimeUnit.SECONDS));
+        assertEquals(1, bulkhead.getActiveCount());
+
+        final CountDownLatch segunda = new CountDownLatch(1);
+        Thread enEspera = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    bulkhead.callInCaller(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            segunda.countDown();
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    // no deberia fallar
+                }
+            }
+        };
+        enEspera.start();
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (bulkhead.getQueuedCount() == 0 && System.nanoTime() - limite < 0) {
+            Thread.yield();
+        }
+        assertEquals(1, bulkhead.getQueuedCount());
+
+        try {
+            bulkhead.callInCaller(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return "no deberia ejecutarse";
+                }
+            });
+            fail();
+        } catch (BulkheadFullException e) {
+            // ya hay una en curso y otra esperando
+        }
+        assertEquals(1, bulkhead.getRejectedCount());
+
+        salida.countDown();	// la que espera turno no se rechaza: se ejecuta al quedar libre
+        assertTrue(segunda.await(5, TimeUnit.SECONDS));
+        enCurso.join();
+        enEspera.join();
+        assertEquals(0, bulkhead.getActiveCount());
+    }
+
+    @Test
+    public void testEnElHiloLlamanteRechazaSiNoLlegaElTurno() throws Exception {
+        bulkhead = new Bulkhead("test", 1, 1, 50);
+        CountDownLatch dentro = new CountDownLatch(1);
+        CountDownLatch salida = new CountDownLatch(1);
+        Thread enCurso = ocuparEnLlamante(dentro, salida);
+        assertTrue(dentro.await(5, TimeUnit.SECONDS));
+        try {
+            bulkhead.callInCaller(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return "no deberia ejecutarse";
+                }
+            });
+            fail();
+        } catch (BulkheadFullException e) {
+            // el turno no llega en el tiempo maximo
+        }
+        salida.countDown();
+        enCurso.join();
+        assertEquals(1, bulkhead.getRejectedCount());
+    }
+
+    @Test
+    public void testPropagaLosErroresDeLaLlamada() throws Exception {
+        bulkhead = new Bulkhead("test", 1, 0, 1000);
+        try {
+            bulkhead.call(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    throw new IllegalStateException("servicio caido");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("servicio caido", e.getMessage());
+        }
+        assertEquals(0, bulkhead.getRejectedCount());
+        assertEquals(0, bulkhead.getTimeoutCount());
+    }
+}
@@ -0,0 +1,49 @@
+package com.mycorp.resilience;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de las transiciones de estado de {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+    @Test
+    public void testSeAbreTrasFallosConsecutivosYRechaza() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 60000);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void testUnExitoReiniciaLaCuenta() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 60000);
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testSemiabiertoDejaPasarUnaSolaPrueba() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 10);
+        breaker.onFailure();
+        Thread.sleep(20);
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(20);
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,47 @@
+package com.mycorp.support;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mycorp.Zendesk;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link Ticket} y su builder.
+ */
+public class TicketTest extends TestCase {
+
+    private final ObjectMapper mapper = Zendesk.createMapper();
+
+    @Test
+    public void testBuilderDesdePlantillaNoLaModifica() throws Exception {
+        Ticket plantilla = mapper.readValue("{\"requester\":{\"name\":\"\",\"email\":\"\"},"
+                + "\"subject\":\"Alta\",\"tags\":[\"alta_web\"],\"priority\":\"normal\","
+                + "\"custom_fields\":[{\"id\":10,\"value\":\"a\"}],\"comment\":{\"body\":\"\"}}", Ticket.class);
+
+        Ticket ticket = new Ticket.Builder(plantilla)
+                .setRequester("MARIA", "maria@example.com")
+                .setComment("Datos \"del\" alta\nfin")
+                .addTag("clientes")
+                .setCustomField(10, "b")
+                .setCustomField(11, 5)
+                .build();
+
+        assertEquals("{\"requester\":{\"name\":\"MARIA\",\"email\":\"maria@example.com\"},\"subject\":\"Alta\","
+                + "\"comment\":{\"body\":\"Datos \\\"del\\\" alta\\nfin\"},\"tags\":[\"alta_web\",\"clientes\"],"
+                + "\"custom_fields\":[{\"id\":10,\"value\":\"b\"},{\"id\":11,\"value\":5}],\"priority\":\"normal\"}",
+                mapper.writeValueAsString(ticket));
+        assertEquals("", plantilla.getRequester().getName());
+        assertEquals(1, plantilla.getTags().size());
+        assertEquals("a", plantilla.getCustomFields().get(0).getValue());
+    }
+
+    @Test
+    public void testRespuestaConId() throws Exception {
+        Ticket ticket = mapper.readValue("{\"id\":35436,\"subject\":\"Alta\",\"status\":\"new\"}", Ticket.class);
+        assertEquals(Long.valueOf(35436), ticket.getId());
+        assertEquals("new", ticket.getOtros().get("status"));
+    }
+}
@@ -0,0 +1,115 @@
+package com.mycorp.template;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.junit.Test;
+
+import com.mycorp.template.TicketModel.Campo;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link CompiledTemplate}: la salida tiene que ser identica a la de Velocity.
+ */
+public class CompiledTemplateTest extends TestCase {
+
+    @Test
+    public void testPlantillasDeTicketIgualQueVelocity() throws Exception {
+        TicketTemplates plantillas = TicketTemplates.load();
+        for (TicketModel modelo : modelos()) {
+            assertIgual(plantillas.getDatosUsuarioRenderer(false), plantillas.getDatosUsuarioRenderer(true), modelo);
+            assertIgual(plantillas.getDatosBravoRenderer(false), plantillas.getDatosBravoRenderer(true), modelo);
+        }
+    }
+
+    @Test
+    public void testEspaciosDeDirectivasIgualQueVelocity() throws Exception {
+        VelocityEngine engine = new VelocityEngine();
+        engine.init();
+        String[] fuentes = {
+                "A\n#if ($isPoliza)\nB\n#else\nC\n#end\nD",
+                "A\n  #if ($isPoliza)  \nB\n  #end  \nD",
+                "A #if($isPoliza) B #else C #end D",
+                "A\n#if ($isPoliza)\t\r\nB\r\n#end\r\nD",
+                "#foreach( $t in $tiposDocumentosCliente )<$t>#end\n[$t]",
+                "#foreach($email in $tiposDocumentosCliente)\n$email\n#end\n$email",
+                "$email. $email-x $email_ ${email}-x $ 5 $5 # #5 100$ fin",
+                "#if ($noExiste)\nX\n#end\n#if ($email)Y#end",
+        };
+        for (TicketModel modelo : modelos()) {
+            for (String fuente : fuentes) {
+                StringWriter velocity = new StringWriter();
+                engine.evaluate(modelo.toVelocityContext(), velocity, "test", fuente);
+                StringBuilder compilada = new StringBuilder();
+                CompiledTemplate.compile("test", fuente).render(modelo, compilada);
+                assertEquals(fuente, velocity.toString(), compilada.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testRechazaLoQueNoAdmite() {
+        String[] fuentes = {"#set($a = 1)", "$email.length()", "$!email", "## comentario", "\\$email",
+                "#if ($email)sin fin", "#end", "#foreach($t in $l)$velocityCount#end"};
+        for (String fuente : fuentes) {
+            try {
+                CompiledTemplate.compile("test", fuente);
+                fail(fuente);
+            } catch (IllegalArgumentException e) {
+                // esperado
+            }
+        }
+    }
+
+    private static void assertIgual(TicketRenderer velocity, TicketRenderer compilada, TicketModel modelo)
+            throws Exception {
+        assertTrue(compilada instanceof CompiledTemplate);
+        StringBuilder esperado = new StringBuilder();
+        velocity.render(modelo, esperado);
+        StringBuilder obtenido = new StringBuilder();
+        compilada.render(modelo, obtenido);
+        assertEquals(esperado.toString(), obtenido.toString());
+    }
+
+    private static List<TicketModel> modelos() {
+        List<TicketModel> modelos = new ArrayList<TicketModel>();
+        modelos.add(new TicketModel());
+
+        TicketModel poliza = new TicketModel()
+                .put(Campo.IS_POLIZA, true)
+                .put(Campo.NUM_POLIZA, "40123456")
+                .put(Campo.NUM_DOC_ACREDITATIVO, "100234")
+                .put(Campo.TIPO_DOC_ACREDITATIVO, 1)
+                .put(Campo.EMAIL, "maria@example.com")
+                .put(Campo.NUMERO_TELEFONO, "600123456")
+                .put(Campo.USER_AGENT, "Mozilla/5.0 (X11; Linux x86_64)")
+                .put(Campo.GEN_T_GRUPO_TMK, 3)
+                .put(Campo.FECHA_NACIMIENTO, "15/03/1978")
+                .put(Campo.TIPOS_DOCUMENTOS_CLIENTE, Arrays.asList("NIF", null, "PASAPORTE"))
+                .put(Campo.NUMERO_DOC_ACRED, "12345678Z")
+                .put(Campo.TIPO_CLIENTE, "REAL")
+                .put(Campo.GEN_T_STATUS, 1)
+                .put(Campo.ID_MOTIVO_ALTA, 7L)
+                .put(Campo.F_INACTIVO_WEB, "SÍ");
+        modelos.add(poliza);
+
+        TicketModel tarjeta = new TicketModel()
+                .put(Campo.IS_POLIZA, false)
+                .put(Campo.NUM_TARJETA, "6034120012345678")
+                .put(Campo.EMAIL, "")
+                .put(Campo.TIPOS_DOCUMENTOS_CLIENTE, Collections.emptyList());
+        modelos.add(tarjeta);
+
+        TicketModel otros = new TicketModel()
+                .put(Campo.IS_POLIZA, "no es booleano")
+                .put(Campo.TIPOS_DOCUMENTOS_CLIENTE, new String[] {"NIE"});
+        modelos.add(otros);
+        return modelos;
+    }
+}
@@ -0,0 +1,49 @@
+package com.mycorp.template;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.velocity.VelocityContext;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link TicketTemplates} mezclando plantillas desde varios hilos a la vez.
+ */
+public class TicketTemplatesTest extends TestCase {
+
+    @Test
+    public void testCadaPeticionVeSoloSuContexto() throws Exception {
+        final TicketTemplates plantillas = TicketTemplates.load();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> resultados = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 200; i++) {
+            final String email = "usuario" + i + "@example.com";
+            resultados.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    VelocityContext ctx = new VelocityContext();
+                    ctx.put("isPoliza", false);
+                    ctx.put("numTarjeta", "6034");
+                    ctx.put("email", email);
+                    StringWriter out = new StringWriter();
+                    plantillas.getDatosUsuario().merge(ctx, out);
+                    String texto = out.toString();
+                    return texto.contains(email + "$ESCAPED_LINE_SEPARATOR")
+                            && texto.indexOf("usuario") == texto.lastIndexOf("usuario");
+                }
+            }));
+        }
+        for (Future<Boolean> resultado : resultados) {
+            assertTrue(resultado.get());
+        }
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,80 @@
+package com.mycorp.text;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests de {@link TicketSanitizer}: mismo resultado que las expresiones regulares y la relectura
+ * como JSON a las que sustituye.
+ */
+public class TicketSanitizerTest extends TestCase {
+
+    private static final String ALFABETO = "ab Ñ1:,[]{}\"\r\n\\ntrf/";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testServicioIgualQueReplaceAll() {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            String texto = aleatorio(random);
+            assertEquals(texto, texto.replaceAll("[\\[\\]\\{\\}\\\"\\r]", "").replaceAll("\\n", "\\\\n"),
+                    TicketSanitizer.servicio(texto));
+        }
+    }
+
+    @Test
+    public void testHtmlIgualQueReplaceAll() {
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            String texto = aleatorio(random);
+            assertEquals(texto, texto.replaceAll("\\\\n", "<br/>"), TicketSanitizer.html(texto));
+        }
+    }
+
+    @Test
+    public void testComentarioIgualQueLeerElJson() throws Exception {
+        Random random = new Random(3);
+        int comparados = 0;
+        while (comparados < 2000) {
+            String usuario = aleatorio(random);
+            String bravo = aleatorio(random);
+            String servicio = aleatorio(random);
+            String cuerpo = usuario + bravo + TicketSanitizer.servicio(servicio);
+            JsonNode leido;
+            try {
+                leido = mapper.readTree("{\"body\":\"" + cuerpo.replaceAll("[\\n]", " ") + "\"}");
+            } catch (Exception e) {
+                continue;	// la composicion anterior tampoco creaba el ticket
+            }
+            if (usuario.endsWith("\\") || bravo.endsWith("\\") || (usuario + bravo).indexOf('"') >= 0) {
+                continue;	// antes la barra final se combinaba con la parte siguiente y las comillas rompian el JSON
+            }
+            assertEquals(cuerpo, leido.get("body").asText(),
+                    TicketSanitizer.comentarioTicket(usuario, bravo, servicio));
+            comparados++;
+        }
+    }
+
+    @Test
+    public void testComentarioServicio() {
+        String respuesta = "Datos recuperados del servicio de tarjeta:\\n{\n  \"numPoliza\" : 40123456,\r\n  \"tomador\" : [ ]\n}";
+        assertEquals("Datos recuperados del servicio de tarjeta:\n\n  numPoliza : 40123456,\n  tomador :  \n",
+                TicketSanitizer.comentarioTicket("", "", respuesta));
+    }
+
+    private static String aleatorio(Random random) {
+        char[] texto = new char[random.nextInt(30)];
+        for (int i = 0; i < texto.length; i++) {
+            texto[i] = ALFABETO.charAt(random.nextInt(ALFABETO.length()));
+        }
+        return new String(texto);
+    }
+}